@@ -0,0 +1,61 @@
+package com.xaur.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Name decoding runs once per user during every roster sync. UTF8 covers firmware that ignores
+ * the UTF-16LE convention and takes the fallback path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceNameBenchmark {
+
+    public enum Encoding { LATIN, DEVANAGARI, UTF8 }
+
+    @Param
+    private Encoding encoding;
+
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        switch (encoding) {
+            case LATIN:
+                encoded = encode("Rajesh Kumar Sharma", StandardCharsets.UTF_16LE);
+                break;
+            case DEVANAGARI:
+                encoded = encode("राजेश कुमार शर्मा", StandardCharsets.UTF_16LE);
+                break;
+            default:
+                encoded = encode("José Muñoz Ruiz", StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public String decode() {
+        return DeviceNameUtils.decodeBase64Utf16(encoded);
+    }
+
+    private static String encode(String name, Charset charset) {
+        return Base64.getEncoder().encodeToString(name.getBytes(charset));
+    }
+}
@@ -0,0 +1,79 @@
+package com.xaur.websocket.message;
+
+import com.xaur.dto.UserData;
+import com.xaur.service.UserCommandService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound frame building: the ACKs sent for every punch and keep-alive, the requests the sync
+ * services send, and the dom4j-built SetUserData command that carries a face template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+
+    private MessageBuilder messageBuilder;
+    private UserCommandService userCommandService;
+    private UserData userData;
+
+    @Setup
+    public void setUp() {
+        messageBuilder = new MessageBuilder();
+        userCommandService = new UserCommandService();
+        userData = UserData.builder()
+                .name("Rajesh Kumar Sharma")
+                .privilege("User")
+                .enabled(true)
+                .timeSet1(1)
+                .userPeriodUsed(false)
+                .card("0004523187")
+                .faceData(FrameCorpus.blob(10 * 1024, 4))
+                .Department(3)
+                .build();
+    }
+
+    @Benchmark
+    public String timeLogAck() {
+        return messageBuilder.buildTimeLogResponse("1710144000123", "OK");
+    }
+
+    @Benchmark
+    public String keepAliveAck() {
+        return messageBuilder.buildKeepAliveResponse("2024-03-11-T08:59:57Z", "2024-03-11-T09:00:00Z");
+    }
+
+    @Benchmark
+    public String getNextUserDataRequest() {
+        return messageBuilder.buildGetNextUserDataRequest();
+    }
+
+    @Benchmark
+    public String getFaceDataRequest() {
+        return messageBuilder.buildGetFaceDataRequest("100234");
+    }
+
+    @Benchmark
+    public String setDepartmentCommand() {
+        return messageBuilder.buildSetDepartmentCommand(3, "Engineering");
+    }
+
+    @Benchmark
+    public String setUserDataCommand() {
+        return userCommandService.buildSetUserDataCommand("100234", userData);
+    }
+}
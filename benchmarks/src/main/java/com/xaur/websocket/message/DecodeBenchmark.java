@@ -0,0 +1,62 @@
+package com.xaur.websocket.message;
+
+import com.xaur.util.XmlUtils;
+import org.dom4j.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound frame decoding: the StAX decoder the pipeline uses against a dom4j parse through
+ * {@link XmlUtils}. Each iteration reads the type, the serial number and the frame's largest field,
+ * which is what every handler does at minimum.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param
+    private FrameCorpus frame;
+
+    private String xml;
+    private String probe;
+    private DeviceMessageDecoder decoder;
+
+    @Setup
+    public void setUp() {
+        xml = frame.xml();
+        probe = frame.probe();
+        decoder = new DeviceMessageDecoder();
+    }
+
+    @Benchmark
+    public void stax(Blackhole bh) throws Exception {
+        DeviceMessage message = decoder.decode(xml);
+        bh.consume(message.getType());
+        bh.consume(message.getText("DeviceSerialNo"));
+        bh.consume(message.getText(probe));
+    }
+
+    @Benchmark
+    public void dom4j(Blackhole bh) throws Exception {
+        Element root = XmlUtils.parseXml(xml).getRootElement();
+        bh.consume(XmlUtils.elementText(root, "Response"));
+        bh.consume(XmlUtils.elementText(root, "DeviceSerialNo"));
+        bh.consume(XmlUtils.elementText(root, probe));
+    }
+}
@@ -0,0 +1,130 @@
+package com.xaur.websocket.message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Inbound frames shaped like what terminals put on the wire: an XML prolog without encoding,
+ * one element per line, and base64 blobs at the sizes seen in production. Blobs are seeded so every
+ * run measures identical input.
+ */
+public enum FrameCorpus {
+
+    SET_USER_DATA_ACK("Result",
+            "Response", "SetUserData",
+            "DeviceSerialNo", "AYSK12345678",
+            "TerminalType", "FACE-7",
+            "TerminalID", "1",
+            "UserID", "100234",
+            "Type", "Set",
+            "Result", "OK"),
+
+    KEEP_ALIVE("DevTime",
+            "Event", "KeepAlive",
+            "DeviceSerialNo", "AYSK12345678",
+            "DevTime", "2024-03-11-T08:59:57Z"),
+
+    NEXT_USER_DATA("Name",
+            "Response", "GetNextUserData",
+            "DeviceSerialNo", "AYSK12345678",
+            "TerminalType", "FACE-7",
+            "TerminalID", "1",
+            "Result", "OK",
+            "UserID", "100234",
+            "Name", name("Rajesh Kumar Sharma"),
+            "Privilege", "User",
+            "Depart", "3",
+            "Enabled", "Yes",
+            "TimeSet1", "1", "TimeSet2", "0", "TimeSet3", "0", "TimeSet4", "0", "TimeSet5", "0",
+            "UserPeriod_Used", "No", "UserPeriod_Start", "0", "UserPeriod_End", "0",
+            "Card", "0004523187",
+            "PWD", "",
+            "Fingers", "0,5",
+            "FaceEnrolled", "Yes",
+            "More", "Yes"),
+
+    TIME_LOG("UserID",
+            "Event", "TimeLog_v2",
+            "DeviceSerialNo", "AYSK12345678",
+            "TerminalType", "FACE-7",
+            "TerminalID", "1",
+            "TransID", "1710144000123",
+            "LogID", "88231",
+            "Time", "2024-03-11-T09:00:02Z",
+            "UserID", "100234",
+            "Action", "Face",
+            "AttendStat", "DutyOn",
+            "APStat", "0",
+            "JobCode", "0",
+            "Photo", "No"),
+
+    TIME_LOG_WITH_IMAGE("LogImage",
+            "Event", "TimeLog_v2",
+            "DeviceSerialNo", "AYSK12345678",
+            "TerminalType", "FACE-7",
+            "TerminalID", "1",
+            "TransID", "1710144000124",
+            "LogID", "88232",
+            "Time", "2024-03-11-T09:00:05Z",
+            "UserID", "100235",
+            "Action", "Face",
+            "AttendStat", "DutyOn",
+            "APStat", "0",
+            "JobCode", "0",
+            "Photo", "Yes",
+            "LogImage", blob(48 * 1024, 1)),
+
+    FACE_DATA("FaceData",
+            "Response", "GetFaceData",
+            "DeviceSerialNo", "AYSK12345678",
+            "TerminalType", "FACE-7",
+            "TerminalID", "1",
+            "UserID", "100234",
+            "FaceEnrolled", "Yes",
+            "FaceData", blob(3 * 1024 * 1024, 2),
+            "Result", "OK"),
+
+    USER_PHOTO("PhotoData",
+            "Response", "GetUserPhoto",
+            "DeviceSerialNo", "AYSK12345678",
+            "TerminalType", "FACE-7",
+            "TerminalID", "1",
+            "UserID", "100234",
+            "PhotoData", blob(3 * 512 * 1024, 3),
+            "Result", "OK");
+
+    private final String probe;
+    private final String xml;
+
+    FrameCorpus(String probe, String... namesAndValues) {
+        this.probe = probe;
+        StringBuilder out = new StringBuilder("<?xml version=\"1.0\"?>\n<Message>\n");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            out.append("  <").append(namesAndValues[i]).append('>')
+                    .append(namesAndValues[i + 1])
+                    .append("</").append(namesAndValues[i]).append(">\n");
+        }
+        this.xml = out.append("</Message>\n").toString();
+    }
+
+    /** The frame as received. */
+    public String xml() {
+        return xml;
+    }
+
+    /** The field a handler reads last, usually the largest one. */
+    public String probe() {
+        return probe;
+    }
+
+    static String name(String name) {
+        return Base64.getEncoder().encodeToString(name.getBytes(StandardCharsets.UTF_16LE));
+    }
+
+    static String blob(int bytes, long seed) {
+        byte[] data = new byte[bytes];
+        new Random(seed).nextBytes(data);
+        return Base64.getEncoder().encodeToString(data);
+    }
+}
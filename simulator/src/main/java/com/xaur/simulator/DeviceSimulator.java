@@ -0,0 +1,185 @@
+package com.xaur.simulator;
+
+import javax.websocket.ContainerProvider;
+import javax.websocket.WebSocketContainer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a fleet of simulated terminals against a running attendance server and prints latency
+ * percentiles and ACK rates. Punch arrivals follow the configured curve; reconnect storms take a
+ * share of the fleet offline at once and bring it back together.
+ */
+public final class DeviceSimulator {
+
+    private static final long TICK_MS = 10;
+
+    private final SimulatorConfig config;
+    private final Metrics metrics = new Metrics();
+    private final List<SimulatedDevice> devices = new ArrayList<>();
+    private final WebSocketContainer container;
+    private final URI uri;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemon("sim-clock"));
+    private final ExecutorService connectors;
+    private final ExecutorService senders;
+
+    private long startedAt;
+    private double owedPunches;
+    private volatile boolean punching = true;
+
+    private DeviceSimulator(SimulatorConfig config) {
+        this.config = config;
+        this.uri = URI.create(config.url);
+        this.container = ContainerProvider.getWebSocketContainer();
+        // Tomcat allocates this buffer up front for every session, so it bounds how many devices fit in the heap
+        container.setDefaultMaxTextMessageBufferSize(config.maxFrameKb * 1024);
+        this.connectors = Executors.newFixedThreadPool(Math.max(1, Math.min(config.devices, 64)), daemon("sim-connect"));
+        this.senders = Executors.newFixedThreadPool(config.senderThreads, daemon("sim-send"));
+
+        SimulatedDevice.Payloads payloads = new SimulatedDevice.Payloads(config);
+        for (int i = 1; i <= config.devices; i++) {
+            devices.add(new SimulatedDevice(String.format("%s%06d", config.serialPrefix, i), config, metrics, payloads));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimulatorConfig config;
+        try {
+            config = SimulatorConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(SimulatorConfig.usage());
+            System.exit(2);
+            return;
+        }
+        if (config == null) {
+            System.out.print(SimulatorConfig.usage());
+            return;
+        }
+        new DeviceSimulator(config).run();
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf("Simulating %d devices against %s for %ds (curve %s, storms at %s)%n",
+                config.devices, config.url, config.durationSeconds,
+                config.curve.name().toLowerCase().replace('_', '-'), config.storms);
+        startedAt = System.nanoTime();
+
+        long rampMs = config.connectRampSeconds * 1000L;
+        for (int i = 0; i < devices.size(); i++) {
+            SimulatedDevice device = devices.get(i);
+            long delay = devices.size() == 1 ? 0 : rampMs * i / (devices.size() - 1);
+            scheduler.schedule(() -> connectors.execute(() -> device.connect(container, uri)), delay, TimeUnit.MILLISECONDS);
+        }
+        for (int offset : config.storms) {
+            scheduler.schedule(this::storm, offset, TimeUnit.SECONDS);
+        }
+        scheduler.scheduleAtFixedRate(this::generatePunches, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::housekeeping, 1, 1, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::report, config.reportIntervalSeconds, config.reportIntervalSeconds, TimeUnit.SECONDS);
+
+        Thread.sleep(config.durationSeconds * 1000L);
+        punching = false;
+
+        // give in-flight punches the ACK timeout to come back before counting them as lost
+        long deadline = System.currentTimeMillis() + config.ackTimeoutSeconds * 1000L;
+        while (unacked() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+        scheduler.shutdownNow();
+        metrics.printSummary(System.out, elapsedSeconds(), unacked());
+
+        devices.forEach(SimulatedDevice::close);
+        senders.shutdownNow();
+        connectors.shutdownNow();
+    }
+
+    private void generatePunches() {
+        if (!punching) {
+            return;
+        }
+        owedPunches += config.punchRateAt(elapsedSeconds()) * TICK_MS / 1000.0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (owedPunches >= 1) {
+            owedPunches--;
+            // punches only come from terminals that are up; try a few picks before giving the slot up
+            for (int attempt = 0; attempt < 8; attempt++) {
+                SimulatedDevice device = devices.get(random.nextInt(devices.size()));
+                if (device.isOnline()) {
+                    senders.execute(device::punch);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void housekeeping() {
+        long now = System.currentTimeMillis();
+        for (SimulatedDevice device : devices) {
+            if (device.beginReconnect(now)) {
+                connectors.execute(() -> device.connect(container, uri));
+            } else if (device.isOnline()) {
+                senders.execute(() -> device.keepAliveIfDue(now));
+            }
+        }
+    }
+
+    private void storm() {
+        List<SimulatedDevice> online = new ArrayList<>();
+        for (SimulatedDevice device : devices) {
+            if (device.isOnline()) {
+                online.add(device);
+            }
+        }
+        Collections.shuffle(online);
+        int victims = (int) Math.round(online.size() * config.stormFraction);
+        long until = System.currentTimeMillis() + config.stormDowntimeSeconds * 1000L;
+        System.out.printf("t=%6.1fs reconnect storm: dropping %d of %d online devices for %ds%n",
+                elapsedSeconds(), victims, online.size(), config.stormDowntimeSeconds);
+        for (SimulatedDevice device : online.subList(0, victims)) {
+            connectors.execute(() -> device.outage(until));
+        }
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        long late = 0;
+        for (SimulatedDevice device : devices) {
+            late += device.lateCount(now);
+        }
+        double elapsed = elapsedSeconds();
+        metrics.printInterval(System.out, elapsed, punching ? config.punchRateAt(elapsed) : 0, late);
+    }
+
+    private long unacked() {
+        long pending = 0;
+        for (SimulatedDevice device : devices) {
+            pending += device.unackedCount();
+        }
+        return pending;
+    }
+
+    private double elapsedSeconds() {
+        return (System.nanoTime() - startedAt) / 1e9;
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,94 @@
+package com.xaur.simulator;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Builds and reads the flat {@code <Message>} frames of the device protocol. Frames never nest, so
+ * reading a field is a substring search rather than a full XML parse.
+ */
+final class Frames {
+
+    static final DateTimeFormatter DEVICE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd-'T'HH:mm:ss'Z'");
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Message>";
+
+    private Frames() {
+    }
+
+    /** Builds a frame from alternating element names and values; null values are skipped. */
+    static String build(String... namesAndValues) {
+        StringBuilder out = new StringBuilder(HEADER.length() + namesAndValues.length * 24);
+        out.append(HEADER);
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            String value = namesAndValues[i + 1];
+            if (value == null) {
+                continue;
+            }
+            out.append('<').append(namesAndValues[i]).append('>');
+            escape(value, out);
+            out.append("</").append(namesAndValues[i]).append('>');
+        }
+        return out.append("</Message>").toString();
+    }
+
+    static String field(String frame, String name) {
+        String open = "<" + name + ">";
+        int start = frame.indexOf(open);
+        if (start < 0) {
+            return null;
+        }
+        start += open.length();
+        int end = frame.indexOf("</" + name + ">", start);
+        if (end < 0) {
+            return null;
+        }
+        return unescape(frame.substring(start, end).trim());
+    }
+
+    static String now() {
+        return LocalDateTime.now().format(DEVICE_TIME);
+    }
+
+    /** Names travel as base64 of UTF-16LE, the same way real terminals report them. */
+    static String encodeName(String name) {
+        return Base64.getEncoder().encodeToString(name.getBytes(StandardCharsets.UTF_16LE));
+    }
+
+    /** Random base64 blob standing in for a biometric template or photo of the given raw size. */
+    static String blob(int bytes, Random random) {
+        byte[] data = new byte[bytes];
+        random.nextBytes(data);
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,80 @@
+package com.xaur.simulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of microsecond latencies. Each power of two is split into 32
+ * sub-buckets, which keeps every reported percentile within about 3% of the true value while
+ * recording stays a single atomic increment on the hot path.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKETS = (64 - 5) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    long maxMicros() {
+        return max.get();
+    }
+
+    long percentileMicros(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** Moves everything recorded so far into {@code target} and starts this histogram over. */
+    void drainTo(LatencyHistogram target) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long moved = counts.getAndSet(i, 0);
+            if (moved > 0) {
+                target.counts.addAndGet(i, moved);
+                target.total.addAndGet(moved);
+                total.addAndGet(-moved);
+            }
+        }
+        target.max.accumulateAndGet(max.getAndSet(0), Math::max);
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return (magnitude + 1) * SUB_BUCKETS + (int) ((value >> magnitude) - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,112 @@
+package com.xaur.simulator;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms shared by every simulated device. Latencies are recorded into a
+ * per-interval window that the progress reporter folds into the run totals.
+ */
+final class Metrics {
+
+    enum Op {
+        REGISTER, LOGIN, KEEPALIVE, TIMELOG
+    }
+
+    private final Map<Op, LatencyHistogram> window = new ConcurrentHashMap<>();
+    private final Map<Op, LatencyHistogram> total = new ConcurrentHashMap<>();
+
+    final LongAdder connects = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder loginFailures = new LongAdder();
+    final LongAdder punchesSent = new LongAdder();
+    final LongAdder punchesResent = new LongAdder();
+    final LongAdder acksOk = new LongAdder();
+    final LongAdder acksFail = new LongAdder();
+    final LongAdder framesIn = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final AtomicLong online = new AtomicLong();
+
+    private final Map<String, LongAdder> serverRequests = new ConcurrentHashMap<>();
+
+    Metrics() {
+        for (Op op : Op.values()) {
+            window.put(op, new LatencyHistogram());
+            total.put(op, new LatencyHistogram());
+        }
+    }
+
+    void latency(Op op, long startedNanos) {
+        window.get(op).record((System.nanoTime() - startedNanos) / 1000);
+    }
+
+    void serverRequest(String type) {
+        serverRequests.computeIfAbsent(type, t -> new LongAdder()).increment();
+    }
+
+    void sent(String frame) {
+        framesOut.increment();
+        bytesOut.add(frame.length());
+    }
+
+    void received(String frame) {
+        framesIn.increment();
+        bytesIn.add(frame.length());
+    }
+
+    /** One progress line covering the interval since the previous call. */
+    void printInterval(PrintStream out, double elapsedSeconds, double targetRate, long late) {
+        LatencyHistogram punches = window.get(Op.TIMELOG);
+        LatencyHistogram keepAlive = window.get(Op.KEEPALIVE);
+        out.printf("t=%6.1fs online=%5d target=%7.1f/s acked=%7d p50=%7.2fms p99=%8.2fms keepalive.p99=%7.2fms late=%d%n",
+                elapsedSeconds, online.get(), targetRate, punches.count(),
+                ms(punches.percentileMicros(50)), ms(punches.percentileMicros(99)),
+                ms(keepAlive.percentileMicros(99)), late);
+        for (Op op : Op.values()) {
+            window.get(op).drainTo(total.get(op));
+        }
+    }
+
+    void printSummary(PrintStream out, double elapsedSeconds, long unacked) {
+        for (Op op : Op.values()) {
+            window.get(op).drainTo(total.get(op));
+        }
+        out.println();
+        out.println("=== Device simulator summary ===");
+        out.printf("run time              %.1f s%n", elapsedSeconds);
+        out.printf("connects              %d (failed %d, disconnects %d, login failures %d)%n",
+                connects.sum(), connectFailures.sum(), disconnects.sum(), loginFailures.sum());
+        long sent = punchesSent.sum();
+        long ok = acksOk.sum();
+        out.printf("punches sent          %d (+%d resent after reconnect), %.1f/s%n",
+                sent, punchesResent.sum(), sent / Math.max(elapsedSeconds, 1e-9));
+        out.printf("ack rate              %.2f%% OK, %d Fail, %d never acknowledged%n",
+                sent == 0 ? 0.0 : 100.0 * ok / sent, acksFail.sum(), unacked);
+        out.printf("frames                %d out / %d in, %.1f MB out / %.1f MB in%n",
+                framesOut.sum(), framesIn.sum(), bytesOut.sum() / 1048576.0, bytesIn.sum() / 1048576.0);
+        out.println();
+        out.printf("%-10s %9s %9s %9s %9s %9s %9s%n", "op", "count", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Op op : Op.values()) {
+            LatencyHistogram h = total.get(op);
+            out.printf("%-10s %9d %9.2f %9.2f %9.2f %9.2f %9.2f%n", op.name().toLowerCase(), h.count(),
+                    ms(h.percentileMicros(50)), ms(h.percentileMicros(95)), ms(h.percentileMicros(99)),
+                    ms(h.percentileMicros(99.9)), ms(h.maxMicros()));
+        }
+        if (!serverRequests.isEmpty()) {
+            out.println();
+            out.println("server requests answered");
+            new TreeMap<>(serverRequests).forEach((type, count) -> out.printf("  %-22s %d%n", type, count.sum()));
+        }
+    }
+
+    private static double ms(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,440 @@
+package com.xaur.simulator;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One terminal. Registers once, logs in with the issued token on every connection, sends punches
+ * and keep-alives, and answers the server's requests the way the firmware does. Punches that were
+ * not acknowledged before a disconnect are resent after the next login, as real devices do.
+ */
+final class SimulatedDevice extends Endpoint {
+
+    private enum State {
+        OFFLINE, CONNECTING, REGISTERING, LOGGING_IN, ONLINE
+    }
+
+    private final String serial;
+    private final SimulatorConfig config;
+    private final Metrics metrics;
+    private final Payloads payloads;
+
+    private final Set<String> roster = new LinkedHashSet<>();
+    private List<String> rosterSnapshot = new ArrayList<>();
+    private int rosterCursor;
+
+    private final Map<String, Punch> unacked = new ConcurrentHashMap<>();
+    private final Deque<Long> keepAlivesInFlight = new ArrayDeque<>();
+    private final AtomicLong transIds = new AtomicLong(System.currentTimeMillis());
+    private final Object sendLock = new Object();
+
+    private volatile State state = State.OFFLINE;
+    private volatile Session session;
+    private volatile String token;
+    private volatile long handshakeStartedAt;
+    private volatile long nextKeepAliveAt;
+    private volatile boolean dropping;
+    private volatile long holdUntil;
+    private volatile long reconnectAt = Long.MAX_VALUE;
+
+    SimulatedDevice(String serial, SimulatorConfig config, Metrics metrics, Payloads payloads) {
+        this.serial = serial;
+        this.config = config;
+        this.metrics = metrics;
+        this.payloads = payloads;
+        for (int i = 1; i <= config.usersPerDevice; i++) {
+            roster.add(String.valueOf(i));
+        }
+    }
+
+    boolean isOnline() {
+        return state == State.ONLINE;
+    }
+
+    /** Claims the device for a reconnect once its retry time has come; the caller then runs {@link #connect}. */
+    synchronized boolean beginReconnect(long nowMillis) {
+        if (state != State.OFFLINE || nowMillis < reconnectAt) {
+            return false;
+        }
+        state = State.CONNECTING;
+        return true;
+    }
+
+    void connect(WebSocketContainer container, URI uri) {
+        state = State.CONNECTING;
+        dropping = false;
+        try {
+            container.connectToServer(this, ClientEndpointConfig.Builder.create().build(), uri);
+        } catch (Exception e) {
+            metrics.connectFailures.increment();
+            scheduleReconnect();
+            state = State.OFFLINE;
+        }
+    }
+
+    /** Terminals retry with a few seconds of jitter unless an outage is holding them off. */
+    private void scheduleReconnect() {
+        long now = System.currentTimeMillis();
+        reconnectAt = holdUntil > now ? holdUntil : now + 1000 + ThreadLocalRandom.current().nextLong(4000);
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig endpointConfig) {
+        this.session = session;
+        session.addMessageHandler(String.class, (MessageHandler.Whole<String>) this::onFrame);
+        metrics.connects.increment();
+        handshakeStartedAt = System.nanoTime();
+        if (token == null) {
+            state = State.REGISTERING;
+            send(Frames.build("Request", "Register", "DeviceSerialNo", serial,
+                    "TerminalType", "SIM-FACE", "CloudId", "sim-cloud"));
+        } else {
+            login();
+        }
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason) {
+        wentOffline(session);
+    }
+
+    @Override
+    public void onError(Session session, Throwable error) {
+        wentOffline(session);
+    }
+
+    private synchronized void wentOffline(Session closed) {
+        if (closed != session || state == State.OFFLINE) {
+            return;
+        }
+        if (state == State.ONLINE) {
+            metrics.online.decrementAndGet();
+        }
+        metrics.disconnects.increment();
+        scheduleReconnect();
+        state = State.OFFLINE;
+        synchronized (keepAlivesInFlight) {
+            keepAlivesInFlight.clear();
+        }
+    }
+
+    /** Takes the device off the network until {@code untilMillis}, then it reconnects. */
+    void outage(long untilMillis) {
+        holdUntil = untilMillis;
+        drop();
+    }
+
+    private void drop() {
+        Session current = session;
+        if (current == null || !current.isOpen()) {
+            return;
+        }
+        dropping = true;
+        try {
+            current.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "simulated outage"));
+        } catch (IOException ignored) {
+            // the close handler still runs
+        }
+    }
+
+    void close() {
+        Session current = session;
+        if (current != null && current.isOpen()) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // shutting down
+            }
+        }
+    }
+
+    void punch() {
+        if (state != State.ONLINE) {
+            return;
+        }
+        String transId = String.valueOf(transIds.incrementAndGet());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String userId = String.valueOf(1 + random.nextInt(Math.max(1, config.usersPerDevice)));
+        String frame = Frames.build(
+                "Event", "TimeLog_v2",
+                "DeviceSerialNo", serial,
+                "TerminalType", "SIM-FACE",
+                "TerminalID", "1",
+                "TransID", transId,
+                "LogID", transId,
+                "Time", Frames.now(),
+                "UserID", userId,
+                "Action", "Face",
+                "AttendStat", random.nextBoolean() ? "DutyOn" : "DutyOff",
+                "APStat", "0",
+                "JobCode", "0",
+                "Photo", "No");
+        Punch punch = new Punch(frame);
+        unacked.put(transId, punch);
+        metrics.punchesSent.increment();
+        send(frame);
+    }
+
+    void keepAliveIfDue(long nowMillis) {
+        if (state != State.ONLINE || nowMillis < nextKeepAliveAt) {
+            return;
+        }
+        nextKeepAliveAt = nowMillis + config.keepAliveSeconds * 1000L;
+        synchronized (keepAlivesInFlight) {
+            keepAlivesInFlight.addLast(System.nanoTime());
+        }
+        send(Frames.build("Event", "KeepAlive", "DeviceSerialNo", serial, "DevTime", Frames.now()));
+    }
+
+    int lateCount(long nowNanos) {
+        long limit = config.ackTimeoutSeconds * 1_000_000_000L;
+        int late = 0;
+        for (Punch punch : unacked.values()) {
+            if (nowNanos - punch.sentAt > limit) {
+                late++;
+            }
+        }
+        return late;
+    }
+
+    int unackedCount() {
+        return unacked.size();
+    }
+
+    private void login() {
+        state = State.LOGGING_IN;
+        handshakeStartedAt = System.nanoTime();
+        send(Frames.build("Request", "Login", "DeviceSerialNo", serial, "Token", token));
+    }
+
+    private void onFrame(String frame) {
+        metrics.received(frame);
+        String response = Frames.field(frame, "Response");
+        if (response != null) {
+            onResponse(response, frame);
+            return;
+        }
+        String request = Frames.field(frame, "Request");
+        if (request != null) {
+            metrics.serverRequest(request);
+            String answer = answer(request, frame);
+            if (answer != null) {
+                send(answer);
+            }
+        }
+    }
+
+    private void onResponse(String type, String frame) {
+        String result = Frames.field(frame, "Result");
+        switch (type) {
+            case "Register":
+                metrics.latency(Metrics.Op.REGISTER, handshakeStartedAt);
+                token = Frames.field(frame, "Token");
+                if ("OK".equals(result) && token != null) {
+                    login();
+                } else {
+                    metrics.loginFailures.increment();
+                    drop();
+                }
+                break;
+            case "Login":
+                metrics.latency(Metrics.Op.LOGIN, handshakeStartedAt);
+                if ("OK".equals(result)) {
+                    state = State.ONLINE;
+                    metrics.online.incrementAndGet();
+                    nextKeepAliveAt = System.currentTimeMillis()
+                            + ThreadLocalRandom.current().nextLong(config.keepAliveSeconds * 1000L + 1);
+                    resendUnacked();
+                } else {
+                    metrics.loginFailures.increment();
+                    if ("FailUnknownToken".equals(result)) {
+                        token = null;
+                    }
+                    drop();
+                }
+                break;
+            case "TimeLog_v2":
+                Punch punch = unacked.remove(String.valueOf(Frames.field(frame, "TransID")));
+                if (punch != null) {
+                    metrics.latency(Metrics.Op.TIMELOG, punch.sentAt);
+                }
+                if ("OK".equals(result)) {
+                    metrics.acksOk.increment();
+                } else {
+                    metrics.acksFail.increment();
+                }
+                break;
+            case "KeepAlive":
+                Long sentAt;
+                synchronized (keepAlivesInFlight) {
+                    sentAt = keepAlivesInFlight.pollFirst();
+                }
+                if (sentAt != null) {
+                    metrics.latency(Metrics.Op.KEEPALIVE, sentAt);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void resendUnacked() {
+        for (Punch punch : unacked.values()) {
+            punch.sentAt = System.nanoTime();
+            metrics.punchesResent.increment();
+            send(punch.frame);
+        }
+    }
+
+    private String answer(String request, String frame) {
+        String userId = Frames.field(frame, "UserID");
+        switch (request) {
+            case "GetFirstUserData":
+                synchronized (roster) {
+                    rosterSnapshot = new ArrayList<>(roster);
+                    rosterCursor = 0;
+                }
+                return nextUser("GetFirstUserData");
+            case "GetNextUserData":
+                return nextUser("GetNextUserData");
+            case "GetUserData":
+                return userFrame("GetUserData", userId, null);
+            case "GetDeviceStatusAll":
+                int users;
+                synchronized (roster) {
+                    users = roster.size();
+                }
+                return Frames.build("Response", "GetDeviceStatusAll", "DeviceSerialNo", serial,
+                        "TerminalType", "SIM-FACE", "TerminalID", "1", "Result", "OK",
+                        "ManagerCount", "1", "UserCount", String.valueOf(users),
+                        "FaceCount", String.valueOf(users * 9 / 10), "FpCount", String.valueOf(users / 2),
+                        "CardCount", String.valueOf(users / 4), "PwdCount", "0",
+                        "DoorStatus", "0", "AlarmStatus", "0");
+            case "SetUserData":
+                String type = Frames.field(frame, "Type");
+                synchronized (roster) {
+                    if ("Delete".equalsIgnoreCase(type)) {
+                        roster.remove(userId);
+                    } else if (userId != null) {
+                        roster.add(userId);
+                    }
+                }
+                return Frames.build("Response", "SetUserData", "DeviceSerialNo", serial,
+                        "UserID", userId, "Type", type, "Result", "OK");
+            case "GetFaceData":
+                return Frames.build("Response", "GetFaceData", "DeviceSerialNo", serial,
+                        "TerminalType", "SIM-FACE", "TerminalID", "1", "UserID", userId,
+                        "FaceEnrolled", "Yes", "FaceData", payloads.face, "Result", "OK");
+            case "GetFingerData":
+                return Frames.build("Response", "GetFingerData", "DeviceSerialNo", serial,
+                        "TerminalType", "SIM-FACE", "TerminalID", "1", "UserID", userId,
+                        "FingerNo", Frames.field(frame, "FingerNo"), "Duress", "No",
+                        "FingerData", payloads.finger, "Result", "OK");
+            case "GetUserPhoto":
+                return Frames.build("Response", "GetUserPhoto", "DeviceSerialNo", serial,
+                        "TerminalType", "SIM-FACE", "TerminalID", "1", "UserID", userId,
+                        "PhotoData", payloads.photo, "Result", "OK");
+            case "GetFirmwareVersion":
+                return Frames.build("Response", "GetFirmwareVersion", "DeviceSerialNo", serial,
+                        "Version", "SIM-1.0", "BuildNumber", "1000", "Result", "OK");
+            case "GetTime":
+                return Frames.build("Response", "GetTime", "DeviceSerialNo", serial,
+                        "Time", Frames.now(), "Result", "OK");
+            default:
+                return Frames.build("Response", request, "DeviceSerialNo", serial, "Result", "OK");
+        }
+    }
+
+    private String nextUser(String responseType) {
+        String userId;
+        boolean more;
+        synchronized (roster) {
+            if (rosterCursor >= rosterSnapshot.size()) {
+                return Frames.build("Response", responseType, "DeviceSerialNo", serial, "Result", "Fail", "More", "No");
+            }
+            userId = rosterSnapshot.get(rosterCursor++);
+            more = rosterCursor < rosterSnapshot.size();
+        }
+        return userFrame(responseType, userId, more ? "Yes" : "No");
+    }
+
+    private String userFrame(String responseType, String userId, String more) {
+        Random random = new Random(userId == null ? 0 : userId.hashCode());
+        return Frames.build(
+                "Response", responseType,
+                "DeviceSerialNo", serial,
+                "TerminalType", "SIM-FACE",
+                "TerminalID", "1",
+                "Result", "OK",
+                "UserID", userId,
+                "Name", Frames.encodeName("Sim User " + userId),
+                "Privilege", "User",
+                "Depart", String.valueOf(random.nextInt(10)),
+                "Enabled", "Yes",
+                "TimeSet1", "0", "TimeSet2", "0", "TimeSet3", "0", "TimeSet4", "0", "TimeSet5", "0",
+                "UserPeriod_Used", "No", "UserPeriod_Start", "0", "UserPeriod_End", "0",
+                "Card", String.valueOf(1_000_000_000L + random.nextInt(1_000_000_000)),
+                "PWD", "",
+                "Fingers", random.nextBoolean() ? "0,5" : "",
+                "FaceEnrolled", random.nextInt(10) < 9 ? "Yes" : "No",
+                "More", more);
+    }
+
+    private void send(String frame) {
+        Session current = session;
+        if (current == null || !current.isOpen()) {
+            return;
+        }
+        synchronized (sendLock) {
+            try {
+                current.getBasicRemote().sendText(frame);
+                metrics.sent(frame);
+            } catch (IOException | IllegalStateException e) {
+                if (!dropping) {
+                    drop();
+                }
+            }
+        }
+    }
+
+    private static final class Punch {
+        private final String frame;
+        private volatile long sentAt = System.nanoTime();
+
+        private Punch(String frame) {
+            this.frame = frame;
+        }
+    }
+
+    /** Pre-encoded biometric blobs shared by the fleet so response size, not encoding, is what gets measured. */
+    static final class Payloads {
+        final String face;
+        final String finger;
+        final String photo;
+
+        Payloads(SimulatorConfig config) {
+            Random random = new Random(42);
+            face = Frames.blob(config.faceBytes, random);
+            finger = Frames.blob(config.fingerBytes, random);
+            photo = Frames.blob(config.photoBytes, random);
+        }
+    }
+}
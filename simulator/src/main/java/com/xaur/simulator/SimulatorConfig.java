@@ -0,0 +1,162 @@
+package com.xaur.simulator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line settings. Every option is {@code --name value} or {@code --name=value}; anything
+ * left out keeps the default shown by {@code --help}.
+ */
+final class SimulatorConfig {
+
+    enum Curve {
+        /** constant fleet-wide punch rate */
+        STEADY,
+        /** base rate plus gaussian spikes at each shift boundary */
+        SHIFT_CHANGE
+    }
+
+    String url = "ws://localhost:8089/attendance/ws";
+    int devices = 100;
+    String serialPrefix = "SIM";
+    int durationSeconds = 120;
+    int connectRampSeconds = 10;
+
+    Curve curve = Curve.STEADY;
+    double punchRate = 5;
+    double peakRate = 200;
+    List<Integer> shiftPeaks = new ArrayList<>();
+    double shiftWidthSeconds = 15;
+
+    List<Integer> storms = new ArrayList<>();
+    double stormFraction = 0.5;
+    int stormDowntimeSeconds = 2;
+
+    int keepAliveSeconds = 30;
+    int usersPerDevice = 200;
+    int faceBytes = 10240;
+    int fingerBytes = 1024;
+    int photoBytes = 24576;
+
+    int ackTimeoutSeconds = 10;
+    int reportIntervalSeconds = 5;
+    int senderThreads = 8;
+    int maxFrameKb = 256;
+
+    static SimulatorConfig parse(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            String name = arg.substring(2);
+            String value;
+            int eq = name.indexOf('=');
+            if (eq >= 0) {
+                value = name.substring(eq + 1);
+                name = name.substring(0, eq);
+            } else if ("help".equals(name)) {
+                value = "true";
+            } else if (i + 1 < args.length) {
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("Missing value for --" + name);
+            }
+            options.put(name, value);
+        }
+
+        SimulatorConfig config = new SimulatorConfig();
+        if (options.containsKey("help")) {
+            return null;
+        }
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            config.apply(option.getKey(), option.getValue());
+        }
+        if (config.curve == Curve.SHIFT_CHANGE && config.shiftPeaks.isEmpty()) {
+            config.shiftPeaks.add(config.durationSeconds / 2);
+        }
+        return config;
+    }
+
+    private void apply(String name, String value) {
+        switch (name) {
+            case "url": url = value; break;
+            case "devices": devices = Integer.parseInt(value); break;
+            case "serial-prefix": serialPrefix = value; break;
+            case "duration": durationSeconds = Integer.parseInt(value); break;
+            case "connect-ramp": connectRampSeconds = Integer.parseInt(value); break;
+            case "curve": curve = Curve.valueOf(value.toUpperCase().replace('-', '_')); break;
+            case "punch-rate": punchRate = Double.parseDouble(value); break;
+            case "peak-rate": peakRate = Double.parseDouble(value); break;
+            case "shift-peaks": shiftPeaks = parseSeconds(value); break;
+            case "shift-width": shiftWidthSeconds = Double.parseDouble(value); break;
+            case "storms": storms = parseSeconds(value); break;
+            case "storm-fraction": stormFraction = Double.parseDouble(value); break;
+            case "storm-downtime": stormDowntimeSeconds = Integer.parseInt(value); break;
+            case "keepalive": keepAliveSeconds = Integer.parseInt(value); break;
+            case "users": usersPerDevice = Integer.parseInt(value); break;
+            case "face-bytes": faceBytes = Integer.parseInt(value); break;
+            case "finger-bytes": fingerBytes = Integer.parseInt(value); break;
+            case "photo-bytes": photoBytes = Integer.parseInt(value); break;
+            case "ack-timeout": ackTimeoutSeconds = Integer.parseInt(value); break;
+            case "report-interval": reportIntervalSeconds = Integer.parseInt(value); break;
+            case "sender-threads": senderThreads = Integer.parseInt(value); break;
+            case "max-frame-kb": maxFrameKb = Integer.parseInt(value); break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+
+    private static List<Integer> parseSeconds(String value) {
+        List<Integer> seconds = new ArrayList<>();
+        for (String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                seconds.add(Integer.parseInt(part.trim()));
+            }
+        }
+        return seconds;
+    }
+
+    /** Fleet-wide punches per second at {@code t} seconds into the run. */
+    double punchRateAt(double t) {
+        if (curve == Curve.STEADY) {
+            return punchRate;
+        }
+        double rate = punchRate;
+        for (int peak : shiftPeaks) {
+            double d = (t - peak) / shiftWidthSeconds;
+            rate += peakRate * Math.exp(-0.5 * d * d);
+        }
+        return rate;
+    }
+
+    static String usage() {
+        SimulatorConfig d = new SimulatorConfig();
+        return "Usage: java -jar device-simulator.jar [options]\n"
+                + "  --url <ws-url>            server endpoint (" + d.url + ")\n"
+                + "  --devices <n>             simulated terminals (" + d.devices + ")\n"
+                + "  --serial-prefix <s>       device serial prefix (" + d.serialPrefix + ")\n"
+                + "  --duration <s>            length of the measured run (" + d.durationSeconds + ")\n"
+                + "  --connect-ramp <s>        spread initial connects over this window (" + d.connectRampSeconds + ")\n"
+                + "  --curve steady|shift-change  punch arrival curve (steady)\n"
+                + "  --punch-rate <n/s>        fleet-wide base punch rate (" + d.punchRate + ")\n"
+                + "  --peak-rate <n/s>         extra rate at the top of each shift spike (" + d.peakRate + ")\n"
+                + "  --shift-peaks <s,s,...>   spike centres, seconds into the run (duration/2)\n"
+                + "  --shift-width <s>         spike standard deviation (" + d.shiftWidthSeconds + ")\n"
+                + "  --storms <s,s,...>        drop and reconnect part of the fleet at these offsets\n"
+                + "  --storm-fraction <0..1>   share of connected devices dropped per storm (" + d.stormFraction + ")\n"
+                + "  --storm-downtime <s>      how long dropped devices stay away (" + d.stormDowntimeSeconds + ")\n"
+                + "  --keepalive <s>           KeepAlive interval per device (" + d.keepAliveSeconds + ")\n"
+                + "  --users <n>               enrolled users per device (" + d.usersPerDevice + ")\n"
+                + "  --face-bytes <n>          raw face template size (" + d.faceBytes + ")\n"
+                + "  --finger-bytes <n>        raw fingerprint template size (" + d.fingerBytes + ")\n"
+                + "  --photo-bytes <n>         raw user photo size (" + d.photoBytes + ")\n"
+                + "  --ack-timeout <s>         punches unacknowledged this long count as late (" + d.ackTimeoutSeconds + ")\n"
+                + "  --report-interval <s>     progress line interval (" + d.reportIntervalSeconds + ")\n"
+                + "  --sender-threads <n>      threads writing device frames (" + d.senderThreads + ")\n"
+                + "  --max-frame-kb <n>        largest server frame a device accepts (" + d.maxFrameKb + ")\n";
+    }
+}
@@ -1,5 +1,7 @@
 package com.xaur.controller;
 
+import com.xaur.dto.BroadcastRequest;
+import com.xaur.dto.BroadcastStatus;
 import com.xaur.dto.DepartmentDto;
 import com.xaur.dto.DepartmentResponse;
 import com.xaur.dto.DeviceAdditionalInfoDto;
@@ -13,20 +15,34 @@ import com.xaur.model.Branch;
 import com.xaur.model.Company;
 import com.xaur.model.Device;
 import com.xaur.model.DeviceAdditionalInfo;
+import com.xaur.model.DeviceMigration;
 import com.xaur.model.DeviceStatus;
 import com.xaur.repository.BranchRepository;
 import com.xaur.repository.CompanyRepository;
 import com.xaur.service.BranchService;
+import com.xaur.service.BroadcastService;
+import com.xaur.service.BulkUserPushService;
+import com.xaur.service.DeviceMigrationService;
+import com.xaur.service.ProvisioningService;
+import com.xaur.service.RosterReconciler;
+import com.xaur.service.ScheduledCommandService;
 import com.xaur.service.CompanyService;
 import com.xaur.service.DepartmentService;
 import com.xaur.service.DeviceAdditionalInfoService;
 import com.xaur.service.DeviceEthernetSettingsService;
 import com.xaur.service.DeviceLogStatusService;
+import com.xaur.service.DeviceOrgCache;
+import com.xaur.service.DevicePresenceTracker;
 import com.xaur.service.DeviceService;
 import com.xaur.service.DeviceStatusService;
 import com.xaur.service.DeviceWifiSettingsService;
+import com.xaur.service.TemplateHarvester;
+import com.xaur.service.TemplateStore;
 import com.xaur.service.TimeLogService;
+import com.xaur.service.UserSyncService;
 import com.xaur.util.CustomMap;
+import com.xaur.websocket.DeviceMessagePipeline;
+import com.xaur.websocket.WebSocketSessionManager;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -71,6 +87,19 @@ public class DeviceController {
     private final DeviceService deviceService;
     private final CompanyRepository companyRepository;
     private final BranchRepository branchRepository;
+    private final DeviceMessagePipeline messagePipeline;
+    private final WebSocketSessionManager sessionManager;
+    private final DeviceOrgCache deviceOrgCache;
+    private final DevicePresenceTracker presenceTracker;
+    private final UserSyncService userSyncService;
+    private final TemplateHarvester templateHarvester;
+    private final BulkUserPushService bulkUserPushService;
+    private final ProvisioningService provisioningService;
+    private final DeviceMigrationService deviceMigrationService;
+    private final TemplateStore templateStore;
+    private final RosterReconciler rosterReconciler;
+    private final ScheduledCommandService scheduledCommandService;
+    private final BroadcastService broadcastService;
 
 
 
@@ -136,6 +165,205 @@ public class DeviceController {
 
     }
 
+    @Operation(summary = "Get inbound pipeline stats", description = "Queue depth, wait time and processing time of the inbound frame queue of every connected device")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved pipeline stats")
+    @GetMapping("/pipeline/stats")
+    public ResponseEntity<Map<String, Map<String, Object>>> getPipelineStats() {
+        return ResponseEntity.ok(messagePipeline.getStats());
+    }
+
+    @Operation(summary = "Get outbound queue stats", description = "Queue depth, buffered size, drops and send latency of the outbound frame queue of every connected device")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved outbound queue stats")
+    @GetMapping("/outbound/stats")
+    public ResponseEntity<Map<String, Map<String, Object>>> getOutboundStats() {
+        return ResponseEntity.ok(sessionManager.getOutboundStats());
+    }
+
+    @Operation(summary = "Get org cache stats", description = "Size and hit/miss counts of the device to company/branch cache")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved org cache stats")
+    @GetMapping("/org-cache/stats")
+    public ResponseEntity<Map<String, Object>> getOrgCacheStats() {
+        return ResponseEntity.ok(deviceOrgCache.getStats());
+    }
+
+    @Operation(summary = "Get presence stats", description = "Tracked and online terminal counts of the in-memory presence table")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved presence stats")
+    @GetMapping("/presence/stats")
+    public ResponseEntity<Map<String, Object>> getPresenceStats() {
+        return ResponseEntity.ok(presenceTracker.getStats());
+    }
+
+    @Operation(summary = "Get user sync stats", description = "Roster walks started per reason, walks skipped because nothing changed, and pending enrollment changes")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved user sync stats")
+    @GetMapping("/user-sync/stats")
+    public ResponseEntity<Map<String, Object>> getUserSyncStats() {
+        return ResponseEntity.ok(userSyncService.getStats());
+    }
+
+    @Operation(summary = "Get template harvest stats", description = "Completed, skipped and aborted harvests, template counts, and the request window of every device being harvested")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved template harvest stats")
+    @GetMapping("/harvest/stats")
+    public ResponseEntity<Map<String, Object>> getHarvestStats() {
+        return ResponseEntity.ok(templateHarvester.getStats());
+    }
+
+    @Operation(summary = "Get bulk user push stats", description = "Bulk user rows per status, sends, retries and failures, and the request window of every device being pushed to")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved bulk push stats")
+    @GetMapping("/bulk-push/stats")
+    public ResponseEntity<Map<String, Object>> getBulkPushStats() {
+        return ResponseEntity.ok(bulkUserPushService.getStats());
+    }
+
+    @Operation(summary = "Get provisioning stats", description = "Running provisioning jobs and the queue and request window of every target device")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved provisioning stats")
+    @GetMapping("/provisioning/stats")
+    public ResponseEntity<Map<String, Object>> getProvisioningStats() {
+        return ResponseEntity.ok(provisioningService.getStats());
+    }
+
+    @Operation(summary = "Get template store stats", description = "Templates stored and deduplicated, payload characters received against bytes stored, and legacy rows moved into the store")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved template store stats")
+    @GetMapping("/template-store/stats")
+    public ResponseEntity<Map<String, Object>> getTemplateStoreStats() {
+        return ResponseEntity.ok(templateStore.getStats());
+    }
+
+    @Operation(summary = "Get command dispatch stats", description = "Mailbox flushes, commands sent and refused, safety-net sweeps, and the delay from enqueue or login to send")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved command dispatch stats")
+    @GetMapping("/command-dispatch/stats")
+    public ResponseEntity<Map<String, Object>> getCommandDispatchStats() {
+        return ResponseEntity.ok(scheduledCommandService.getStats());
+    }
+
+    @Operation(summary = "Get roster reconciliation stats", description = "Devices reconciled, in sync and skipped, users and fingers set, users deleted, and bytes of commands queued")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved reconciliation stats")
+    @GetMapping("/reconcile/stats")
+    public ResponseEntity<Map<String, Object>> getReconcileStats() {
+        return ResponseEntity.ok(rosterReconciler.getStats());
+    }
+
+    @Operation(summary = "Reconcile a device roster", description = "Diff the users tables against the device's roster as last synced and queue only the SetUserData, SetFingerData and delete commands that differ")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Diff computed; commands queued unless dryRun"),
+            @ApiResponse(responseCode = "400", description = "Device not found")
+    })
+    @PostMapping("/{deviceSerialNumber}/reconcile")
+    public ResponseEntity<?> reconcileRoster(
+            @Parameter(description = "Serial number of the device", required = true) @PathVariable String deviceSerialNumber,
+            @Parameter(description = "Only report what would be queued") @RequestParam(defaultValue = "false") boolean dryRun) {
+        try {
+            return ResponseEntity.ok(rosterReconciler.reconcile(deviceSerialNumber, dryRun));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(CustomMap.of("status", "error", "message", e.getMessage()));
+        }
+    }
+
+    @Operation(summary = "Get broadcast stats", description = "Broadcast jobs submitted, commands queued, and the time to queue a job")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved broadcast stats")
+    @GetMapping("/broadcast/stats")
+    public ResponseEntity<Map<String, Object>> getBroadcastStats() {
+        return ResponseEntity.ok(broadcastService.getStats());
+    }
+
+    @Operation(summary = "Broadcast a setting to many devices", description = "Queue one SetTime, SetDepartment, SetWiFiSetting or SetEthernetSetting for every target device: an explicit serial list, a company, or a branch. Connected devices get it at once, the rest when they log in")
+    @ApiResponses({
+            @ApiResponse(responseCode = "202", description = "Job accepted", content = @Content(schema = @Schema(implementation = BroadcastStatus.class))),
+            @ApiResponse(responseCode = "400", description = "Unknown command, missing settings, or no target devices")
+    })
+    @PostMapping("/broadcast")
+    public ResponseEntity<?> broadcast(@RequestBody BroadcastRequest request) {
+        try {
+            return ResponseEntity.accepted().body(broadcastService.submit(request));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(CustomMap.of("status", "error", "message", e.getMessage()));
+        }
+    }
+
+    @Operation(summary = "Get broadcast progress", description = "Device counts per status, with the devices not yet done or, on request, every device")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved job progress", content = @Content(schema = @Schema(implementation = BroadcastStatus.class))),
+            @ApiResponse(responseCode = "404", description = "Unknown job id")
+    })
+    @GetMapping("/broadcast/{jobId}")
+    public ResponseEntity<BroadcastStatus> getBroadcastStatus(
+            @Parameter(description = "Job id returned on submit", required = true) @PathVariable String jobId,
+            @Parameter(description = "List every device, not only those not yet done") @RequestParam(defaultValue = "false") boolean devices) {
+        return broadcastService.getStatus(jobId, devices)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @Operation(summary = "Harvest biometric templates", description = "Fetch the fingerprint, face and photo templates of a device that are missing from the database")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Harvest started"),
+            @ApiResponse(responseCode = "400", description = "Device is not connected or already harvesting")
+    })
+    @PostMapping("/{deviceSerialNumber}/templates/harvest")
+    public ResponseEntity<Map<String, String>> harvestTemplates(
+            @Parameter(description = "Serial number of the device", required = true) @PathVariable String deviceSerialNumber) {
+        if (templateHarvester.harvest(deviceSerialNumber)) {
+            return ResponseEntity.ok(CustomMap.of(
+                    "status", "success",
+                    "message", "Template harvest started"
+            ));
+        }
+        return ResponseEntity.badRequest().body(CustomMap.of(
+                "status", "error",
+                "message", "Device is not connected or already harvesting"
+        ));
+    }
+
+    @Operation(summary = "Migrate a device", description = "Copy every user, card, password, face and fingerprint of the source device to the target, e.g. a replacement terminal. With fromDevice the live source is re-read first; otherwise the stored roster is copied")
+    @ApiResponses({
+            @ApiResponse(responseCode = "202", description = "Migration started", content = @Content(schema = @Schema(implementation = DeviceMigration.class))),
+            @ApiResponse(responseCode = "400", description = "Unknown device, or source and target are the same"),
+            @ApiResponse(responseCode = "409", description = "The target already has a migration running")
+    })
+    @PostMapping("/migrations")
+    public ResponseEntity<?> startMigration(
+            @Parameter(description = "Serial number of the device to copy from", required = true) @RequestParam String sourceSerialNumber,
+            @Parameter(description = "Serial number of the device to copy to", required = true) @RequestParam String targetSerialNumber,
+            @Parameter(description = "Re-read the roster and templates from the live source first") @RequestParam(defaultValue = "false") boolean fromDevice) {
+        try {
+            return ResponseEntity.accepted().body(deviceMigrationService.start(sourceSerialNumber, targetSerialNumber, fromDevice));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(CustomMap.of("status", "error", "message", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(CustomMap.of("status", "error", "message", e.getMessage()));
+        }
+    }
+
+    @Operation(summary = "List device migrations", description = "The 50 most recent migrations, with live progress for running ones")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved migrations")
+    @GetMapping("/migrations")
+    public ResponseEntity<List<DeviceMigration>> getMigrations() {
+        return ResponseEntity.ok(deviceMigrationService.getRecentMigrations());
+    }
+
+    @Operation(summary = "Get device migration progress", description = "Users copied and failed, templates sent, and the target's counts once verified")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved migration", content = @Content(schema = @Schema(implementation = DeviceMigration.class))),
+            @ApiResponse(responseCode = "404", description = "Migration not found")
+    })
+    @GetMapping("/migrations/{id}")
+    public ResponseEntity<DeviceMigration> getMigration(@Parameter(description = "Migration id", required = true) @PathVariable Long id) {
+        return deviceMigrationService.getMigration(id)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @Operation(summary = "Cancel a device migration", description = "Stops sending; users already copied stay on the target")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Migration cancelled or already finished", content = @Content(schema = @Schema(implementation = DeviceMigration.class))),
+            @ApiResponse(responseCode = "404", description = "Migration not found")
+    })
+    @PostMapping("/migrations/{id}/cancel")
+    public ResponseEntity<DeviceMigration> cancelMigration(@Parameter(description = "Migration id", required = true) @PathVariable Long id) {
+        return deviceMigrationService.cancel(id)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
     @Operation(summary = "Get device status", description = "Retrieve the status of a specific device by its serial number")
     @ApiResponses({
             @ApiResponse(responseCode = "200", description = "Successfully retrieved device status", content = @Content(schema = @Schema(implementation = DeviceStatus.class))),
@@ -4,6 +4,8 @@ import com.xaur.model.TimeLog;
 import com.xaur.model.User;
 import com.xaur.repository.TimeLogRepository;
 import com.xaur.repository.UserRepository;
+import com.xaur.service.LogIngestionService;
+import com.xaur.service.PunchDeduplicator;
 import com.xaur.service.TimeLogService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -23,6 +25,7 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @RestController
@@ -36,6 +39,17 @@ public class TimeLogController {
     private final TimeLogService timeLogService;
     private final UserRepository userRepository;
     private final TimeLogRepository timeLogRepository;
+    private final LogIngestionService logIngestionService;
+    private final PunchDeduplicator punchDeduplicator;
+
+    @Operation(summary = "Get log ingestion stats", description = "Queue depth, batch sizes and commit latency of the batched punch writer")
+    @ApiResponse(responseCode = "200", description = "Successfully retrieved ingestion stats")
+    @GetMapping("/ingestion/stats")
+    public ResponseEntity<Map<String, Object>> getIngestionStats() {
+        Map<String, Object> stats = logIngestionService.getStats();
+        stats.put("dedup", punchDeduplicator.getStats());
+        return ResponseEntity.ok(stats);
+    }
 
     @Operation(summary = "Get all attendance logs", description = "Retrieve all attendance logs from the system")
     @ApiResponse(responseCode = "200", description = "Successfully retrieved attendance logs",
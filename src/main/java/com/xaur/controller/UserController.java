@@ -1,10 +1,11 @@
 package com.xaur.controller;
 
 import com.xaur.dto.*;
-import com.xaur.model.BulkUser;
+import com.xaur.model.CommandPriority;
 import com.xaur.model.ScheduledCommand;
 import com.xaur.model.User;
-import com.xaur.repository.BulkUserRepository;
+import com.xaur.service.BulkUserImportService;
+import com.xaur.service.ProvisioningService;
 import com.xaur.service.ScheduledCommandService;
 import com.xaur.service.UserCommandService;
 import com.xaur.service.UserCopyService;
@@ -25,17 +26,11 @@ import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.openxmlformats.schemas.spreadsheetml.x2006.main.WorkbookDocument;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -57,7 +52,8 @@ public class UserController {
     private final UserFaceDataService userFaceDataService;
     private final UserFingerDataService userFingerDataService;
     private final UserCopyService userCopyService;
-    private final BulkUserRepository bulkUserRepository;
+    private final BulkUserImportService bulkUserImportService;
+    private final ProvisioningService provisioningService;
 
     @Operation(summary = "Get users by device", description = "Retrieve all users associated with a specific device")
     @ApiResponses({
@@ -68,7 +64,7 @@ public class UserController {
     public ResponseEntity<List<User>> getUsersByDevice(
             @Parameter(description = "Serial number of the device", required = true) @PathVariable String deviceSerialNumber) {
         List<User> users = userService.getUsersByDeviceSerialNumber(deviceSerialNumber);
-        return ResponseEntity.ok(users);
+        return ResponseEntity.ok(userService.withFaceData(users));
     }
 
     @Operation(summary = "Get user by ID from device", description = "Retrieve a specific user by ID from a specific device")
@@ -81,7 +77,8 @@ public class UserController {
             @Parameter(description = "Serial number of the device", required = true) @PathVariable String deviceSerialNumber,
             @Parameter(description = "ID of the user", required = true) @PathVariable String userId) {
         Optional<User> user = userService.getUserByIdAndDeviceSerialNumber(userId, deviceSerialNumber);
-        return user.map(ResponseEntity::ok)
+        return user.map(userService::withFaceData)
+                .map(ResponseEntity::ok)
                 .orElseGet(() -> ResponseEntity.notFound().build());
     }
 
@@ -118,7 +115,7 @@ public class UserController {
         }
     }
 
-    @Operation(summary = "Schedule user operation", description = "Schedule a user operation (SET or DELETE) on a device")
+    @Operation(summary = "Schedule user operation", description = "Schedule a user operation (SET or DELETE) on a device. The priority class defaults to INTERACTIVE")
     @ApiResponses({
             @ApiResponse(responseCode = "200", description = "Operation scheduled successfully", content = @Content(schema = @Schema(implementation = ScheduledCommand.class))),
             @ApiResponse(responseCode = "400", description = "Invalid request parameters")
@@ -147,6 +144,7 @@ public class UserController {
                 .commandXml(commandXml)
                 .status("PENDING")
                 .userId(request.getUserId())
+                .priority(request.getPriority() != null ? request.getPriority() : CommandPriority.INTERACTIVE)
                 .build();
 
         ScheduledCommand savedCommand = scheduledCommandService.saveCommand(command);
@@ -179,13 +177,9 @@ public class UserController {
             ));
         }
 
-        boolean sent = sessionManager.sendMessageToDevice(deviceSerialNumber, command.getCommandXml());
+        boolean sent = scheduledCommandService.sendNow(command);
 
         if (sent) {
-            command.setStatus("SENT");
-            command.setExecutedAt(java.time.LocalDateTime.now());
-            scheduledCommandService.saveCommand(command);
-
             return ResponseEntity.ok(CustomMap.of(
                     "status", "success",
                     "message", "Command sent to device"
@@ -359,55 +353,60 @@ if(userService.getUserByIdAndDeviceSerialNumber(userId,deviceSerialNumber).isPre
     }
 
 
+    @Operation(summary = "Import bulk users", description = "Queue an .xlsx sheet (B = device serial, C = name, E = user id) for a streaming import; rows become PENDING pushes to their devices")
+    @ApiResponses({
+            @ApiResponse(responseCode = "202", description = "Import queued", content = @Content(schema = @Schema(implementation = BulkImportStatus.class))),
+            @ApiResponse(responseCode = "400", description = "No file uploaded")
+    })
     @PostMapping("/bulk")
-
-    public void bulkUserUpload(@RequestPart("file")  MultipartFile file) throws IOException {
-
-        Workbook workbook = new XSSFWorkbook(file.getInputStream());
-
-        Sheet sheet = workbook.getSheetAt(0);
-        int rowNumber = 0;
-        List<BulkUser> bulkUserList=new ArrayList<>();
-
-
-        for (Row row : sheet) {
-            if (rowNumber == 0) {
-                rowNumber++; // Skip header
-                continue;
-
-
-            }
-
-            BulkUser user = new BulkUser();
-            user.setName(row.getCell(2).getStringCellValue());
-            user.setDevice_serial_number(row.getCell(1).getStringCellValue());
-            user.setEnabled(true);
-            user.setPrivilege("User");
-            user.setUser_period_used(false);
-
-      double id=      row.getCell(4).getNumericCellValue();
-            user.setUser_id(String.valueOf(id));
-            user.setStatus("PENDING");
-            user.setDepartment(0);
-
-
-bulkUserList.add(user);
-
-
-            //  userService.userList();
+    public ResponseEntity<BulkImportStatus> bulkUserUpload(@RequestPart("file")  MultipartFile file) throws IOException {
+        if (file.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.accepted().body(bulkUserImportService.submit(file));
     }
 
-        bulkUserRepository.saveAll(bulkUserList);
-
-
-
+    @Operation(summary = "Get bulk import progress", description = "Rows read, imported and rejected so far, with the reason for each rejected row")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved import progress", content = @Content(schema = @Schema(implementation = BulkImportStatus.class))),
+            @ApiResponse(responseCode = "404", description = "Unknown or expired job id")
+    })
+    @GetMapping("/bulk/{jobId}")
+    public ResponseEntity<BulkImportStatus> getBulkUploadStatus(
+            @Parameter(description = "Job id returned by the upload", required = true) @PathVariable String jobId) {
+        return bulkUserImportService.getStatus(jobId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
     }
 
+    @Operation(summary = "Provision or deprovision users across devices", description = "Sends (PROVISION) or deletes (DEPROVISION) the given users on every target device: an explicit serial list, a company, or a branch. Users and templates are taken from the source device, or from the most recently updated copy when no source is given")
+    @ApiResponses({
+            @ApiResponse(responseCode = "202", description = "Job accepted", content = @Content(schema = @Schema(implementation = ProvisioningStatus.class))),
+            @ApiResponse(responseCode = "400", description = "Unknown action, no users, or no target devices")
+    })
+    @PostMapping("/provisioning")
+    public ResponseEntity<?> submitProvisioning(@RequestBody ProvisioningRequest request) {
+        try {
+            return ResponseEntity.accepted().body(provisioningService.submit(request));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(CustomMap.of(
+                    "status", "error",
+                    "message", e.getMessage()
+            ));
+        }
+    }
 
-
-
-
-
-
-
-}
\ No newline at end of file
+    @Operation(summary = "Get provisioning progress", description = "Item counts per status overall and per device, with failed items or, on request, every item")
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "Successfully retrieved job progress", content = @Content(schema = @Schema(implementation = ProvisioningStatus.class))),
+            @ApiResponse(responseCode = "404", description = "Unknown or expired job id")
+    })
+    @GetMapping("/provisioning/{jobId}")
+    public ResponseEntity<ProvisioningStatus> getProvisioningStatus(
+            @Parameter(description = "Job id returned on submit", required = true) @PathVariable String jobId,
+            @Parameter(description = "List every item, not only failed ones") @RequestParam(defaultValue = "false") boolean items) {
+        return provisioningService.getStatus(jobId, items)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
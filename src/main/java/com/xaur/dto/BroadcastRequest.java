@@ -0,0 +1,33 @@
+package com.xaur.dto;
+
+import com.xaur.model.CommandPriority;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BroadcastRequest {
+    /** SetTime, SetDepartment, SetWiFiSetting or SetEthernetSetting */
+    private String command;
+    /** SetTime: yyyy-MM-dd-'T'HH:mm:ss'Z', the server clock when empty */
+    private String time;
+    /** SetDepartment: 0-29 */
+    private Integer deptNo;
+    /** SetDepartment */
+    private String name;
+    /** SetWiFiSetting */
+    private DeviceWifiSettingsDto wifi;
+    /** SetEthernetSetting */
+    private DeviceEthernetSettingsDto ethernet;
+    private List<String> targetDeviceSerialNumbers;
+    private Long companyId;
+    private Long branchId;
+    /** OPERATIONAL when not given */
+    private CommandPriority priority;
+}
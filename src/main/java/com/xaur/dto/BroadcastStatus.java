@@ -0,0 +1,39 @@
+package com.xaur.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BroadcastStatus {
+    private String jobId;
+    private String command;
+    /** RUNNING while a device has the command queued or unanswered, then COMPLETED */
+    private String state;
+    private LocalDateTime createdAt;
+    private LocalDateTime finishedAt;
+    /** Device counts per status: PENDING (device offline), SENT, COMPLETED, FAILED, SUPERSEDED (by a later command) */
+    private Map<String, Integer> totals;
+    /** Devices not yet COMPLETED, or every device when requested */
+    private List<Device> devices;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Device {
+        private String deviceSerialNumber;
+        private Long commandId;
+        private String status;
+        private Integer attempts;
+        private LocalDateTime sentAt;
+        private LocalDateTime completedAt;
+    }
+}
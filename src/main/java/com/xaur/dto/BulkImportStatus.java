@@ -0,0 +1,36 @@
+package com.xaur.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkImportStatus {
+    private String jobId;
+    private String fileName;
+    /** QUEUED, RUNNING, COMPLETED or FAILED */
+    private String state;
+    private String message;
+    private long rowsRead;
+    private long rowsImported;
+    private long rowsRejected;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+    /** The first rejected rows; rowsRejected has the full count. */
+    private List<RowError> errors;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class RowError {
+        private long row;
+        private String message;
+    }
+}
@@ -0,0 +1,23 @@
+package com.xaur.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProvisioningRequest {
+    /** PROVISION (SetUserData plus templates) or DEPROVISION (delete) */
+    private String action;
+    private List<String> userIds;
+    /** Device whose stored user record and templates are copied; when empty the most recently synced record is used. */
+    private String sourceDeviceSerialNumber;
+    private List<String> targetDeviceSerialNumbers;
+    private Long companyId;
+    private Long branchId;
+}
@@ -0,0 +1,40 @@
+package com.xaur.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProvisioningStatus {
+    private String jobId;
+    private String action;
+    /** RUNNING or COMPLETED */
+    private String state;
+    private LocalDateTime createdAt;
+    private LocalDateTime finishedAt;
+    /** Item counts per status: PENDING, SENT, COMPLETED, FAILED */
+    private Map<String, Integer> totals;
+    /** Item counts per status for each target device */
+    private Map<String, Map<String, Integer>> devices;
+    /** Failed items, or every item when requested */
+    private List<Item> items;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Item {
+        private String userId;
+        private String deviceSerialNumber;
+        private String status;
+        private int attempts;
+        private String error;
+    }
+}
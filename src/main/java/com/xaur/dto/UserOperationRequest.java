@@ -1,5 +1,6 @@
 package com.xaur.dto;
 
+import com.xaur.model.CommandPriority;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -13,4 +14,6 @@ public class UserOperationRequest {
     private String userId;
     private String operationType; 
     private UserData userData;
+    /** INTERACTIVE when not given */
+    private CommandPriority priority;
 }
\ No newline at end of file
@@ -0,0 +1,425 @@
+package com.xaur.journal;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of opaque records stored in fixed-size memory-mapped segment files.
+ * Every record gets a sequence number; a consumer reads records in order with {@link #poll},
+ * and {@link #commit} persists a checkpoint and deletes segments that are fully behind it.
+ * <p>
+ * Entry layout: {@code int length | int crc32(seq + payload) | long seq | payload}. A zero
+ * length marks the end of a segment. On open, every segment is scanned and a torn or corrupt
+ * tail is zeroed, so replay always restarts at the first record after the checkpoint.
+ * <p>
+ * Forcing to disk happens outside the journal's lock, so appends, polls and commits carry on during
+ * a flush, and records appended meanwhile are made durable together by the next one.
+ */
+@Slf4j
+public class SegmentJournal implements Closeable {
+
+    private static final int HEADER_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /** held by the one thread flushing; taken before, never while holding, the journal's lock */
+    private final Object flushLock = new Object();
+
+    private Segment active;
+    private long nextSeq;
+    private long durableSeq;
+    private long checkpoint;
+
+    private Segment readSegment;
+    private int readPosition;
+    private long readSeq;
+
+    public SegmentJournal(Path directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        checkpoint = readCheckpoint();
+        long lastSeq = checkpoint;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long baseSeq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(file, baseSeq);
+                segment.scan();
+                segments.put(baseSeq, segment);
+                lastSeq = Math.max(lastSeq, segment.lastSeq);
+            }
+        }
+        nextSeq = lastSeq + 1;
+        durableSeq = lastSeq;
+        active = segments.isEmpty() ? newSegment() : segments.lastEntry().getValue();
+        seek(checkpoint + 1);
+        compact();
+        log.info("Journal {} opened: {} segments, checkpoint {}, {} records to replay",
+                directory, segments.size(), checkpoint, pending());
+    }
+
+    /**
+     * Appends a record. The data is in the OS page cache once this returns; call {@link #sync}
+     * with the returned sequence to make it durable.
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        int required = HEADER_SIZE + payload.length;
+        if (required > segmentSize) {
+            throw new IOException("Record of " + payload.length + " bytes exceeds journal segment size");
+        }
+        if (active.writePosition + required > segmentSize) {
+            if (segments.size() >= maxSegments) {
+                throw new IOException("Journal is full (" + maxSegments + " segments pending)");
+            }
+            active = newSegment();
+        }
+        long seq = nextSeq++;
+        active.write(seq, payload);
+        notifyAll();
+        return seq;
+    }
+
+    /**
+     * Forces everything up to {@code seq} to disk. Concurrent callers share one force: a caller
+     * that waited for another's flush returns without forcing if that flush covered its record.
+     */
+    public void sync(long seq) {
+        synchronized (this) {
+            if (seq <= durableSeq) {
+                return;
+            }
+        }
+        flush(seq);
+    }
+
+    /** Forces everything appended so far to disk. */
+    public void force() {
+        flush(Long.MAX_VALUE);
+    }
+
+    private void flush(long seq) {
+        synchronized (flushLock) {
+            long target;
+            List<Segment> dirty = new ArrayList<>();
+            synchronized (this) {
+                target = nextSeq - 1;
+                if (seq <= durableSeq || target <= durableSeq) {
+                    return;
+                }
+                for (Segment segment : segments.values()) {
+                    if (segment.lastSeq > durableSeq) {
+                        dirty.add(segment);
+                    }
+                }
+            }
+            // records appended from here on are beyond target and wait for the next flush
+            for (Segment segment : dirty) {
+                segment.buffer.force();
+            }
+            synchronized (this) {
+                durableSeq = Math.max(durableSeq, target);
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code max} unread records. Waits up to {@code waitMs} for the first one and
+     * then up to {@code lingerMs} more for the batch to fill.
+     */
+    public synchronized List<Entry> poll(int max, long waitMs, long lingerMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMs;
+        while (readSeq >= nextSeq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return Collections.emptyList();
+            }
+            wait(remaining);
+        }
+        deadline = System.currentTimeMillis() + lingerMs;
+        while (nextSeq - readSeq < max) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        List<Entry> entries = new ArrayList<>(Math.min(max, (int) (nextSeq - readSeq)));
+        while (entries.size() < max && readSeq < nextSeq) {
+            Entry record = readSegment.read(readPosition);
+            if (record == null) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(readSegment.baseSeq);
+                if (next == null) {
+                    break;
+                }
+                readSegment = next.getValue();
+                readPosition = 0;
+                continue;
+            }
+            readPosition += HEADER_SIZE + record.payload.length;
+            readSeq = record.seq + 1;
+            entries.add(record);
+        }
+        return entries;
+    }
+
+    /**
+     * Marks everything up to {@code seq} as applied and drops segments that are fully behind it.
+     */
+    public synchronized void commit(long seq) throws IOException {
+        if (seq <= checkpoint) {
+            return;
+        }
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            buffer.putLong(seq).putLong(crc(seq)).flip();
+            channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = seq;
+        compact();
+    }
+
+    /**
+     * Moves the read cursor back to the first record after the checkpoint so uncommitted records
+     * are handed out again.
+     */
+    public synchronized void rewind() {
+        seek(checkpoint + 1);
+    }
+
+    public synchronized long pending() {
+        return nextSeq - 1 - checkpoint;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        force();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+    private void seek(long seq) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(seq);
+        readSegment = entry != null ? entry.getValue() : segments.firstEntry().getValue();
+        readPosition = 0;
+        readSeq = seq;
+        while (true) {
+            Entry record = readSegment.read(readPosition);
+            if (record == null) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(readSegment.baseSeq);
+                if (next == null) {
+                    return;
+                }
+                readSegment = next.getValue();
+                readPosition = 0;
+                continue;
+            }
+            if (record.seq >= seq) {
+                readSeq = record.seq;
+                return;
+            }
+            readPosition += HEADER_SIZE + record.payload.length;
+        }
+    }
+
+    private void compact() {
+        Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == active || segment == readSegment || segment.lastSeq > checkpoint) {
+                break;
+            }
+            segment.close();
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                log.warn("Failed to delete journal segment {}", segment.file, e);
+            }
+            it.remove();
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", nextSeq, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, nextSeq);
+        segments.put(segment.baseSeq, segment);
+        return segment;
+    }
+
+    private long readCheckpoint() {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            long seq = buffer.getLong();
+            if (buffer.getLong() != crc(seq)) {
+                log.error("Journal checkpoint in {} is corrupt, replaying all segments", directory);
+                return 0;
+            }
+            return seq;
+        } catch (Exception e) {
+            log.error("Failed to read journal checkpoint in {}, replaying all segments", directory, e);
+            return 0;
+        }
+    }
+
+    private static long crc(long seq) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(seq).array());
+        return crc.getValue();
+    }
+
+    public static final class Entry {
+        private final long seq;
+        private final byte[] payload;
+
+        private Entry(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final class Segment {
+        private final Path file;
+        private final long baseSeq;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private long lastSeq;
+
+        private Segment(Path file, long baseSeq) throws IOException {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.lastSeq = baseSeq - 1;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        private void write(long seq, byte[] payload) {
+            int position = writePosition;
+            buffer.putInt(position + 4, (int) checksum(seq, payload, 0, payload.length));
+            buffer.putLong(position + 8, seq);
+            ByteBuffer target = buffer.duplicate();
+            target.position(position + HEADER_SIZE);
+            target.put(payload);
+            // length last, so a record is only visible once fully written
+            buffer.putInt(position, payload.length);
+            writePosition = position + HEADER_SIZE + payload.length;
+            lastSeq = seq;
+        }
+
+        private Entry read(int position) {
+            if (position + HEADER_SIZE > segmentSize || position >= writePosition) {
+                return null;
+            }
+            int length = buffer.getInt(position);
+            if (length <= 0) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(position + HEADER_SIZE);
+            source.get(payload);
+            return new Entry(buffer.getLong(position + 8), payload);
+        }
+
+        private void scan() {
+            int position = 0;
+            while (position + HEADER_SIZE <= segmentSize) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 0 || position + HEADER_SIZE + length > segmentSize) {
+                    truncate(position);
+                    break;
+                }
+                long seq = buffer.getLong(position + 8);
+                byte[] payload = new byte[length];
+                ByteBuffer source = buffer.duplicate();
+                source.position(position + HEADER_SIZE);
+                source.get(payload);
+                if ((int) checksum(seq, payload, 0, length) != buffer.getInt(position + 4) || seq <= lastSeq) {
+                    truncate(position);
+                    break;
+                }
+                lastSeq = seq;
+                position += HEADER_SIZE + length;
+            }
+            writePosition = position;
+        }
+
+        private void truncate(int position) {
+            log.warn("Journal segment {} has a torn or corrupt record at offset {}, discarding the tail", file, position);
+            for (int i = position; i < segmentSize; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close journal segment {}", file, e);
+            }
+        }
+    }
+
+    private static long checksum(long seq, byte[] payload, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(seq).array());
+        crc.update(payload, offset, length);
+        return crc.getValue();
+    }
+}
@@ -12,10 +12,11 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "admin_logs")
+@Table(name = "admin_logs", uniqueConstraints = @UniqueConstraint(name = "uk_admin_logs_device_trans", columnNames = {"device_serial_number", "trans_id"}))
 @Data
 @Builder
 @NoArgsConstructor
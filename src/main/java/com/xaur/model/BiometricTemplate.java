@@ -0,0 +1,50 @@
+package com.xaur.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import java.time.LocalDateTime;
+
+/**
+ * One face or fingerprint template, stored once however many devices it is enrolled on and keyed by
+ * the SHA-256 of its content. user_face_data, user_finger_data and users refer to it by hash.
+ */
+@Entity
+@Table(name = "biometric_template")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BiometricTemplate {
+
+    @Id
+    @Column(name = "hash", length = 64, nullable = false)
+    private String hash;
+
+    /** B64: data holds the decoded base64 payload; TEXT: the payload was not canonical base64 and is kept as UTF-8 */
+    @Column(name = "format", length = 8, nullable = false)
+    private String format;
+
+    /** DEFLATE or NONE, whichever was smaller */
+    @Column(name = "compression", length = 8, nullable = false)
+    private String compression;
+
+    @Column(name = "raw_size", nullable = false)
+    private Integer rawSize;
+
+    @Lob
+    @Column(name = "data", nullable = false, columnDefinition = "LONGBLOB")
+    private byte[] data;
+
+    @CreationTimestamp
+    @Column(name = "created_at", updatable = false)
+    private LocalDateTime createdAt;
+}
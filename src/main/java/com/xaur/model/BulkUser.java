@@ -3,9 +3,10 @@ package com.xaur.model;
 import lombok.Data;
 
 import javax.persistence.*;
+import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "user")
+@Table(name = "user", indexes = @Index(name = "idx_user_status_device", columnList = "status, device_serial_number"))
 @Data
 public class BulkUser {
 
@@ -26,4 +27,9 @@ public class BulkUser {
             ;
 
     private String status;
+
+    // push bookkeeping: SetUserData attempts so far, earliest retry, and the last device answer
+    private Integer attempts;
+    private LocalDateTime next_attempt_at;
+    private String last_error;
 }
@@ -0,0 +1,14 @@
+package com.xaur.model;
+
+/**
+ * Dispatch class of a queued command. A device's mailbox is drained by weighted round robin over
+ * the classes, so a bulk load cannot hold back an admin's action and still gets its share.
+ * <ul>
+ *     <li>INTERACTIVE - an admin waiting on the result, e.g. an employee-exit delete</li>
+ *     <li>OPERATIONAL - device housekeeping such as clock and network settings</li>
+ *     <li>BULK - enrollments, reconciliation and other mass pushes</li>
+ * </ul>
+ */
+public enum CommandPriority {
+    INTERACTIVE, OPERATIONAL, BULK
+}
@@ -0,0 +1,90 @@
+package com.xaur.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.LocalDateTime;
+
+/**
+ * A whole-roster copy from one terminal to its replacement. Users are pushed in id order and
+ * {@link #checkpointId} is the highest users.id whose page has been fully answered, so a migration
+ * interrupted by a disconnect or a restart carries on from there.
+ * <p>
+ * Status: REFRESHING (re-reading the live source first), RUNNING, VERIFYING, COMPLETED, FAILED, CANCELLED.
+ */
+@Entity
+@Table(name = "device_migration", indexes = @Index(name = "idx_device_migration_status", columnList = "status"))
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceMigration {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "source_serial_number", nullable = false)
+    private String sourceSerialNumber;
+
+    @Column(name = "target_serial_number", nullable = false)
+    private String targetSerialNumber;
+
+    @Column(name = "from_device")
+    private boolean fromDevice;
+
+    @Column(name = "status", nullable = false)
+    private String status;
+
+    @Column(name = "checkpoint_id")
+    private Long checkpointId;
+
+    @Column(name = "users_total")
+    private Long usersTotal;
+
+    @Column(name = "users_done")
+    private Long usersDone;
+
+    @Column(name = "users_failed")
+    private Long usersFailed;
+
+    @Column(name = "fingers_sent")
+    private Long fingersSent;
+
+    @Column(name = "faces_sent")
+    private Long facesSent;
+
+    @Column(name = "verified_users")
+    private Integer verifiedUsers;
+
+    @Column(name = "verified_fingers")
+    private Integer verifiedFingers;
+
+    @Column(name = "verified_faces")
+    private Integer verifiedFaces;
+
+    @Column(name = "message")
+    private String message;
+
+    @CreationTimestamp
+    @Column(name = "created_at", updatable = false)
+    private LocalDateTime createdAt;
+
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @Column(name = "finished_at")
+    private LocalDateTime finishedAt;
+}
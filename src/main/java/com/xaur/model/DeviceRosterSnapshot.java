@@ -0,0 +1,53 @@
+package com.xaur.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.time.LocalDateTime;
+
+/**
+ * Fingerprint of one user as the device last held it: recorded when a roster walk or template
+ * harvest saw the user on the terminal, or when the reconciler queued the user's update. Diffing
+ * these against the users tables tells the reconciler what the device is missing.
+ */
+@Entity
+@Table(name = "device_roster_snapshot", uniqueConstraints = @UniqueConstraint(name = "uk_device_roster_snapshot_device_user", columnNames = {"device_serial_number", "user_id"}))
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceRosterSnapshot {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "device_serial_number", nullable = false, length = 50)
+    private String deviceSerialNumber;
+
+    @Column(name = "user_id", nullable = false)
+    private String userId;
+
+    /** SHA-256 over the SetUserData fields: name, privilege, department, enabled, card, PWD, timesets and period */
+    @Column(name = "user_hash", nullable = false, length = 64)
+    private String userHash;
+
+    @Column(name = "face_hash", length = 64)
+    private String faceHash;
+
+    /** fingerNo:duress:template-hash-prefix entries in finger order, comma separated */
+    @Column(name = "fingers", length = 512)
+    private String fingers;
+
+    @Column(name = "recorded_at")
+    private LocalDateTime recordedAt;
+}
@@ -13,7 +13,7 @@ import java.time.LocalTime;
 @Data
 @Getter
 @Setter
-@Table(name = "hr_timesheet_log")
+@Table(name = "hr_timesheet_log", uniqueConstraints = @UniqueConstraint(name = "uk_hr_timesheet_log_device_log", columnNames = {"device_id", "device_log_id"}))
 
 public class HrTimeSheetLog {
     @Id
@@ -9,14 +9,22 @@ import org.hibernate.annotations.UpdateTimestamp;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "command_queue")
+@Table(name = "command_queue", indexes = {
+        @Index(name = "idx_command_queue_status_device", columnList = "status, device_serial_number"),
+        @Index(name = "idx_command_queue_device_lane", columnList = "device_serial_number, status, priority"),
+        @Index(name = "idx_command_queue_device_user", columnList = "device_serial_number, user_id"),
+        @Index(name = "idx_command_queue_job", columnList = "job_id")
+})
 @Data
 @Builder
 @NoArgsConstructor
@@ -42,6 +50,22 @@ public class ScheduledCommand {
     @Column(name = "user_id")
     private String userId;
 
+    /** what the device echoes back to identify the command, e.g. UserID or DeptNo; empty when nothing is */
+    @Column(name = "correlation_key", length = 100)
+    private String correlationKey;
+
+    @Column(name = "attempts")
+    private Integer attempts;
+
+    /** OPERATIONAL when not given */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "priority", length = 16)
+    private CommandPriority priority;
+
+    /** set on every command of one broadcast */
+    @Column(name = "job_id", length = 36)
+    private String jobId;
+
     @Column(name = "response_xml", columnDefinition = "TEXT")
     private String responseXml;
 
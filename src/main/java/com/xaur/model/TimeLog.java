@@ -10,7 +10,7 @@ import javax.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "time_logs")
+@Table(name = "time_logs", uniqueConstraints = @UniqueConstraint(name = "uk_time_logs_device_trans", columnNames = {"device_serial_number", "trans_id"}))
 @Data
 @Builder
 @NoArgsConstructor
@@ -18,7 +18,7 @@ import java.time.LocalDateTime;
 @Entity
 @Table(name = "users")
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class User {
@@ -87,9 +87,14 @@ public class User {
     @Column(name = "face_enrolled")
     private boolean faceEnrolled;
 
+    /** Only set on rows written before the template store; see {@link #faceTemplateHash} */
     @Column(name = "face_data", columnDefinition = "LONGTEXT")
     private String faceData;
 
+    /** {@link BiometricTemplate} holding the template */
+    @Column(name = "face_template_hash", length = 64)
+    private String faceTemplateHash;
+
     @CreationTimestamp
     @Column(name = "created_at", updatable = false)
     private LocalDateTime createdAt;
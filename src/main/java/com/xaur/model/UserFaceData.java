@@ -33,9 +33,14 @@ public class UserFaceData {
     @Column(name = "face_enrolled")
     private String faceEnrolled;
 
+    /** Only set on rows written before the template store; see {@link #templateHash} */
     @Column(name = "face_data", columnDefinition = "TEXT")
     private String faceData;
 
+    /** {@link BiometricTemplate} holding the template */
+    @Column(name = "template_hash", length = 64)
+    private String templateHash;
+
     @Column(name = "device_serial_number")
     private String deviceSerialNumber;
 
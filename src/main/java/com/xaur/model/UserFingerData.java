@@ -36,9 +36,14 @@ public class UserFingerData {
     @Column(name = "duress")
     private String duress;
 
+    /** Only set on rows written before the template store; see {@link #templateHash} */
     @Column(name = "finger_data", columnDefinition = "TEXT")
     private String fingerData;
 
+    /** {@link BiometricTemplate} holding the template */
+    @Column(name = "template_hash", length = 64)
+    private String templateHash;
+
     @Column(name = "device_serial_number")
     private String deviceSerialNumber;
 
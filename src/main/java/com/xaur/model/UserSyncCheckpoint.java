@@ -0,0 +1,40 @@
+package com.xaur.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.time.LocalDateTime;
+
+/**
+ * What a device's roster looked like the last time it was walked completely, so the scheduled sync
+ * can skip devices whose enrollment counts have not moved since.
+ */
+@Entity
+@Table(name = "user_sync_checkpoint")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserSyncCheckpoint {
+
+    @Id
+    @Column(name = "device_serial_no", nullable = false)
+    private String deviceSerialNo;
+
+    @Column(name = "signature")
+    private String signature;
+
+    @Column(name = "last_full_sync")
+    private LocalDateTime lastFullSync;
+
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+}
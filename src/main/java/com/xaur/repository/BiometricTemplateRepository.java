@@ -0,0 +1,9 @@
+package com.xaur.repository;
+
+import com.xaur.model.BiometricTemplate;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface BiometricTemplateRepository extends JpaRepository<BiometricTemplate, String> {
+}
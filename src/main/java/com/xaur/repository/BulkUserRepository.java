@@ -2,9 +2,12 @@ package com.xaur.repository;
 
 import com.xaur.model.BulkUser;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -15,4 +18,18 @@ List<BulkUser> find(String status);
 
 @Query(nativeQuery = true,value = "select * from user where user_id=:userId and device_serial_number=:deviceSerialNumber")
 Optional<BulkUser> updateStatus(String userId,String deviceSerialNumber);
+
+@Query(nativeQuery = true,value = "select distinct device_serial_number from user where status='PENDING' and (next_attempt_at is null or next_attempt_at<=:now)")
+List<String> findDevicesWithDueRows(LocalDateTime now);
+
+@Query(nativeQuery = true,value = "select * from user where device_serial_number=:deviceSerialNumber and status='PENDING' and (next_attempt_at is null or next_attempt_at<=:now) order by id limit :limit")
+List<BulkUser> findDueRows(String deviceSerialNumber, LocalDateTime now, int limit);
+
+@Query(nativeQuery = true,value = "select status, count(*) from user group by status")
+List<Object[]> countByStatus();
+
+@Modifying
+@Transactional
+@Query(nativeQuery = true,value = "update user set status='PENDING' where status='SENT'")
+int requeueSent();
 }
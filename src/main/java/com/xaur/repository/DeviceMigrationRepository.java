@@ -0,0 +1,16 @@
+package com.xaur.repository;
+
+import com.xaur.model.DeviceMigration;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface DeviceMigrationRepository extends JpaRepository<DeviceMigration, Long> {
+
+    List<DeviceMigration> findByStatusIn(Collection<String> statuses);
+
+    List<DeviceMigration> findTop50ByOrderByIdDesc();
+}
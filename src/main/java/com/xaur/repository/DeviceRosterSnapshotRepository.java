@@ -0,0 +1,15 @@
+package com.xaur.repository;
+
+import com.xaur.model.DeviceRosterSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface DeviceRosterSnapshotRepository extends JpaRepository<DeviceRosterSnapshot, Long> {
+
+    List<DeviceRosterSnapshot> findByDeviceSerialNumber(String deviceSerialNumber);
+
+    long countByDeviceSerialNumber(String deviceSerialNumber);
+}
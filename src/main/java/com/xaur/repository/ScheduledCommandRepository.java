@@ -1,10 +1,16 @@
 package com.xaur.repository;
 
+import com.xaur.model.CommandPriority;
 import com.xaur.model.ScheduledCommand;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -14,4 +20,61 @@ public interface ScheduledCommandRepository extends JpaRepository<ScheduledComma
 
     List<ScheduledCommand> findByStatusAndScheduledForBefore(String status, LocalDateTime dateTime);
     List<ScheduledCommand> findByStatus(String status);
+
+    List<ScheduledCommand> findByJobIdOrderByIdAsc(String jobId);
+
+    /** Keyset page of one priority lane of a device's mailbox. */
+    List<ScheduledCommand> findByDeviceSerialNumberAndStatusAndPriorityAndIdGreaterThanOrderByIdAsc(String deviceSerialNumber, String status, CommandPriority priority, Long id, Pageable pageable);
+
+    /** A user's commands queued before the given one, whatever their lane. */
+    List<ScheduledCommand> findByDeviceSerialNumberAndStatusAndUserIdAndIdLessThanOrderByIdAsc(String deviceSerialNumber, String status, String userId, Long id);
+
+    /** Rows queued before priorities existed are drained as OPERATIONAL. */
+    @Modifying
+    @Transactional
+    @Query("update ScheduledCommand c set c.priority = com.xaur.model.CommandPriority.OPERATIONAL where c.priority is null and c.status = 'PENDING'")
+    int assignMissingPriority();
+
+    @Query("select distinct c.deviceSerialNumber from ScheduledCommand c where c.status = :status")
+    List<String> findDeviceSerialNumbersByStatus(String status);
+
+    @Modifying
+    @Transactional
+    @Query("update ScheduledCommand c set c.status = :status, c.correlationKey = :correlationKey, c.attempts = :attempts, c.executedAt = :executedAt, c.completedAt = :completedAt, c.updatedAt = :executedAt where c.id = :id")
+    int markSent(Long id, String status, String correlationKey, Integer attempts, LocalDateTime executedAt, LocalDateTime completedAt);
+
+    @Modifying
+    @Transactional
+    @Query("update ScheduledCommand c set c.status = 'PENDING', c.updatedAt = :updatedAt where c.id = :id")
+    int markPending(Long id, LocalDateTime updatedAt);
+
+    @Modifying
+    @Transactional
+    @Query("update ScheduledCommand c set c.status = :status, c.responseXml = :responseXml, c.completedAt = :completedAt, c.updatedAt = :completedAt where c.id = :id")
+    int markFinished(Long id, String status, String responseXml, LocalDateTime completedAt);
+
+    /** Commands sent before a restart lost their in-flight entry; they go out again on the next flush. */
+    @Modifying
+    @Transactional
+    @Query("update ScheduledCommand c set c.status = 'PENDING', c.updatedAt = :now where c.status = 'SENT' and c.executedAt >= :since and upper(c.commandType) in :types")
+    int requeueSentSince(LocalDateTime since, Collection<String> types, LocalDateTime now);
+
+    /** The rest of the commands sent before a restart; their outcome is unknown and resending them is not safe. */
+    @Modifying
+    @Transactional
+    @Query("update ScheduledCommand c set c.status = 'FAILED', c.completedAt = :now, c.updatedAt = :now where c.status = 'SENT' and c.executedAt >= :since and upper(c.commandType) not in :types")
+    int failSentSinceExcept(LocalDateTime since, Collection<String> types, LocalDateTime now);
+
+    /** What compaction needs of a device's mailbox, without the command payloads: id, type, user, correlation key, payload length. */
+    @Query("select c.id, c.commandType, c.userId, c.correlationKey, length(c.commandXml) from ScheduledCommand c where c.deviceSerialNumber = :deviceSerialNumber and c.status = 'PENDING' order by c.id")
+    List<Object[]> findPendingTargetsByDeviceSerialNumber(String deviceSerialNumber);
+
+    @Modifying
+    @Transactional
+    @Query("update ScheduledCommand c set c.status = 'SUPERSEDED', c.completedAt = :now, c.updatedAt = :now where c.id in :ids and c.status = 'PENDING'")
+    int markSuperseded(Collection<Long> ids, LocalDateTime now);
+
+    /** Users that still have a command waiting for or awaiting an answer from the device. */
+    @Query("select distinct c.userId from ScheduledCommand c where c.deviceSerialNumber = :deviceSerialNumber and c.status in :statuses and c.userId is not null")
+    List<String> findUserIdsByDeviceSerialNumberAndStatusIn(String deviceSerialNumber, Collection<String> statuses);
 }
\ No newline at end of file
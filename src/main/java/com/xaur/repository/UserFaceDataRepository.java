@@ -2,12 +2,20 @@ package com.xaur.repository;
 
 import com.xaur.model.UserFaceData;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface UserFaceDataRepository extends JpaRepository<UserFaceData, Long> {
 
     Optional<UserFaceData> findByUserIdAndDeviceSerialNumber(String userId, String deviceSerialNumber);
+
+    @Query("select t.userId from UserFaceData t where t.deviceSerialNumber = :deviceSerialNumber")
+    List<String> findUserIdsByDeviceSerialNumber(String deviceSerialNumber);
+
+    List<UserFaceData> findByUserIdInAndDeviceSerialNumber(Collection<String> userIds, String deviceSerialNumber);
 }
\ No newline at end of file
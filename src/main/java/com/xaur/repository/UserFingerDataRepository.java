@@ -7,6 +7,8 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -18,4 +20,10 @@ public interface UserFingerDataRepository extends JpaRepository<UserFingerData,
     @Transactional
     @Query(nativeQuery = true,value = "delete from user_finger_data where user_id=:userId and device_serial_number=:deviceSerialNumber")
     void deleteByUserIdAndDeviceSerialNumber(String userId, String deviceSerialNumber);
+
+    /** (userId, fingerNo) pairs already stored for a device, without loading the templates. */
+    @Query("select f.userId, f.fingerNo from UserFingerData f where f.deviceSerialNumber = :deviceSerialNumber")
+    List<Object[]> findFingerKeysByDeviceSerialNumber(String deviceSerialNumber);
+
+    List<UserFingerData> findByUserIdInAndDeviceSerialNumber(Collection<String> userIds, String deviceSerialNumber);
 }
\ No newline at end of file
@@ -2,8 +2,10 @@ package com.xaur.repository;
 
 import com.xaur.model.UserPhoto;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -11,4 +13,6 @@ public interface UserPhotoRepository extends JpaRepository<UserPhoto, Long> {
 
     Optional<UserPhoto> findByUserIdAndDeviceSerialNumber(String userId, String deviceSerialNumber);
 
+    @Query("select t.userId from UserPhoto t where t.deviceSerialNumber = :deviceSerialNumber")
+    List<String> findUserIdsByDeviceSerialNumber(String deviceSerialNumber);
 }
\ No newline at end of file
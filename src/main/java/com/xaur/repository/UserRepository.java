@@ -1,9 +1,11 @@
 package com.xaur.repository;
 
 import com.xaur.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,4 +18,13 @@ public interface UserRepository extends JpaRepository<User, Long> {
 
     Optional<User> findByUserIdAndDeviceSerialNumber(String userId, String deviceSerialNumber);
 
+    List<User> findByUserIdIn(Collection<String> userIds);
+
+    List<User> findByUserIdInAndDeviceSerialNumber(Collection<String> userIds, String deviceSerialNumber);
+
+    /** Keyset page of a device's roster in id order. */
+    List<User> findByDeviceSerialNumberAndIdGreaterThanOrderByIdAsc(String deviceSerialNumber, Long id, Pageable pageable);
+
+    long countByDeviceSerialNumber(String deviceSerialNumber);
+
 }
\ No newline at end of file
@@ -0,0 +1,9 @@
+package com.xaur.repository;
+
+import com.xaur.model.UserSyncCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UserSyncCheckpointRepository extends JpaRepository<UserSyncCheckpoint, String> {
+}
@@ -17,6 +17,7 @@ import java.util.Optional;
 public class BranchService {
 
     private final BranchRepository branchRepository;
+    private final DeviceOrgCache deviceOrgCache;
 
     @Transactional(readOnly = true)
     public List<Branch> getAllBranches() {
@@ -52,6 +53,7 @@ public class BranchService {
     @Transactional
     public Optional<Branch> updateBranch(Long id, Branch branchDetails) {
         log.info("Updating branch with id: {}", id);
+        deviceOrgCache.invalidateBranch(id);
         return branchRepository.findById(id)
                 .map(branch -> {
                     branch.setName(branchDetails.getName());
@@ -0,0 +1,190 @@
+package com.xaur.service;
+
+import com.xaur.dto.BroadcastRequest;
+import com.xaur.dto.BroadcastStatus;
+import com.xaur.model.CommandPriority;
+import com.xaur.model.Department;
+import com.xaur.model.ScheduledCommand;
+import com.xaur.repository.DepartmentRepository;
+import com.xaur.repository.ScheduledCommandRepository;
+import com.xaur.websocket.message.MessageBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends one device setting to every device of a company, a branch or an explicit list. The command
+ * is built once and queued for each target under a shared job id; connected devices get it within
+ * milliseconds through the command dispatcher, the rest when they log in. Progress is read back
+ * from the queue rows, so a job survives a restart.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class BroadcastService {
+
+    static final String SET_TIME = "SetTime";
+    static final String SET_DEPARTMENT = "SetDepartment";
+    static final String SET_WIFI = "SetWiFiSetting";
+    static final String SET_ETHERNET = "SetEthernetSetting";
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-'T'HH:mm:ss'Z'");
+
+    private final DeviceService deviceService;
+    private final ScheduledCommandService scheduledCommandService;
+    private final ScheduledCommandRepository commandRepository;
+    private final DepartmentRepository departmentRepository;
+    private final MessageBuilder messageBuilder;
+
+    private final AtomicLong jobsSubmitted = new AtomicLong();
+    private final AtomicLong commandsQueued = new AtomicLong();
+    private final AtomicLong submitMicros = new AtomicLong();
+    private final AtomicLong maxSubmitMicros = new AtomicLong();
+
+    /**
+     * Queues the command for every target and returns the job as it stands right after.
+     *
+     * @throws IllegalArgumentException for an unknown command, missing settings, or no targets
+     */
+    public BroadcastStatus submit(BroadcastRequest request) {
+        long started = System.nanoTime();
+        String command = request.getCommand() == null ? "" : request.getCommand().trim();
+        String xml;
+        String correlationKey = "";
+        if (SET_TIME.equalsIgnoreCase(command)) {
+            command = SET_TIME;
+            String time = request.getTime() == null || request.getTime().trim().isEmpty()
+                    ? LocalDateTime.now().format(TIME_FORMAT)
+                    : request.getTime().trim();
+            xml = messageBuilder.buildSetTimeCommand(time);
+        } else if (SET_DEPARTMENT.equalsIgnoreCase(command)) {
+            command = SET_DEPARTMENT;
+            if (request.getDeptNo() == null || request.getDeptNo() < 0 || request.getDeptNo() > 29) {
+                throw new IllegalArgumentException("Department number must be between 0 and 29");
+            }
+            if (request.getName() == null) {
+                throw new IllegalArgumentException("No department name given");
+            }
+            xml = messageBuilder.buildSetDepartmentCommand(request.getDeptNo(), request.getName());
+            correlationKey = String.valueOf(request.getDeptNo());
+        } else if (SET_WIFI.equalsIgnoreCase(command)) {
+            command = SET_WIFI;
+            if (request.getWifi() == null) {
+                throw new IllegalArgumentException("No WiFi settings given");
+            }
+            xml = messageBuilder.buildSetWifiSettingsCommand(request.getWifi());
+        } else if (SET_ETHERNET.equalsIgnoreCase(command)) {
+            command = SET_ETHERNET;
+            if (request.getEthernet() == null) {
+                throw new IllegalArgumentException("No Ethernet settings given");
+            }
+            xml = messageBuilder.buildSetEthernetSettingsCommand(request.getEthernet());
+        } else {
+            throw new IllegalArgumentException("Unknown command: " + request.getCommand());
+        }
+        List<String> targets = deviceService.resolveTargetSerialNumbers(
+                request.getTargetDeviceSerialNumbers(), request.getCompanyId(), request.getBranchId());
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No target devices given or found");
+        }
+
+        String jobId = UUID.randomUUID().toString();
+        CommandPriority priority = request.getPriority() != null ? request.getPriority() : CommandPriority.OPERATIONAL;
+        List<ScheduledCommand> commands = new ArrayList<>(targets.size());
+        for (String target : targets) {
+            commands.add(ScheduledCommand.builder()
+                    .deviceSerialNumber(target)
+                    .commandType(command)
+                    .commandXml(xml)
+                    .status("PENDING")
+                    .correlationKey(correlationKey)
+                    .priority(priority)
+                    .jobId(jobId)
+                    .build());
+        }
+        scheduledCommandService.enqueue(commands);
+        if (SET_DEPARTMENT.equals(command)) {
+            // as for a single device, the stored departments follow what was sent
+            recordDepartments(targets, request.getDeptNo(), request.getName());
+        }
+
+        jobsSubmitted.incrementAndGet();
+        commandsQueued.addAndGet(commands.size());
+        long tookMicros = (System.nanoTime() - started) / 1000;
+        submitMicros.addAndGet(tookMicros);
+        maxSubmitMicros.accumulateAndGet(tookMicros, Math::max);
+        log.info("Broadcast {} {} queued for {} devices in {} ms", jobId, command, targets.size(), tookMicros / 1000);
+        return getStatus(jobId, false).orElseThrow(() -> new IllegalStateException("Broadcast " + jobId + " was not queued"));
+    }
+
+    private void recordDepartments(List<String> targets, Integer deptNo, String name) {
+        List<Department> departments = new ArrayList<>(targets.size());
+        for (String target : targets) {
+            Department department = departmentRepository.findByDeptNoAndDeviceSerialNumber(deptNo, target).orElse(new Department());
+            department.setDeptNo(deptNo);
+            department.setName(name);
+            department.setDeviceSerialNumber(target);
+            departments.add(department);
+        }
+        departmentRepository.saveAll(departments);
+    }
+
+    public Optional<BroadcastStatus> getStatus(String jobId, boolean allDevices) {
+        List<ScheduledCommand> rows = commandRepository.findByJobIdOrderByIdAsc(jobId);
+        if (rows.isEmpty()) {
+            return Optional.empty();
+        }
+        Map<String, Integer> totals = new LinkedHashMap<>();
+        for (String status : new String[]{"PENDING", "SENT", "COMPLETED", "FAILED", "SUPERSEDED"}) {
+            totals.put(status, 0);
+        }
+        List<BroadcastStatus.Device> devices = new ArrayList<>();
+        LocalDateTime createdAt = null;
+        LocalDateTime finishedAt = null;
+        boolean running = false;
+        for (ScheduledCommand row : rows) {
+            totals.merge(row.getStatus(), 1, Integer::sum);
+            running |= "PENDING".equals(row.getStatus()) || "SENT".equals(row.getStatus());
+            if (row.getCreatedAt() != null && (createdAt == null || row.getCreatedAt().isBefore(createdAt))) {
+                createdAt = row.getCreatedAt();
+            }
+            if (row.getCompletedAt() != null && (finishedAt == null || row.getCompletedAt().isAfter(finishedAt))) {
+                finishedAt = row.getCompletedAt();
+            }
+            if (allDevices || !"COMPLETED".equals(row.getStatus())) {
+                devices.add(new BroadcastStatus.Device(row.getDeviceSerialNumber(), row.getId(), row.getStatus(),
+                        row.getAttempts(), row.getExecutedAt(), row.getCompletedAt()));
+            }
+        }
+        return Optional.of(BroadcastStatus.builder()
+                .jobId(jobId)
+                .command(rows.get(0).getCommandType())
+                .state(running ? "RUNNING" : "COMPLETED")
+                .createdAt(createdAt)
+                .finishedAt(running ? null : finishedAt)
+                .totals(totals)
+                .devices(devices)
+                .build());
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("jobsSubmitted", jobsSubmitted.get());
+        stats.put("commandsQueued", commandsQueued.get());
+        long jobs = jobsSubmitted.get();
+        // validation, target lookup and the queue insert; sending happens after
+        stats.put("avgSubmitMs", jobs == 0 ? 0.0 : submitMicros.get() / 1000.0 / jobs);
+        stats.put("maxSubmitMs", maxSubmitMicros.get() / 1000.0);
+        return stats;
+    }
+}
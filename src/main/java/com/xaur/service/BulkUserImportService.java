@@ -0,0 +1,308 @@
+package com.xaur.service;
+
+import com.xaur.dto.BulkImportStatus;
+import com.xaur.repository.DeviceRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Imports bulk user sheets into the user table as PENDING rows for {@link BulkUserPushService}.
+ * The upload is spooled to a temp file and streamed row by row through POI's SAX reader, so heap use
+ * does not grow with the sheet; valid rows are inserted in JDBC batches as they are read and invalid
+ * ones are reported with their sheet row number.
+ * <p>
+ * Sheet layout (first sheet, header in row 1): B = device serial number, C = name, E = user id.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class BulkUserImportService {
+
+    private static final String INSERT_BULK_USER = "INSERT INTO user (user_id, device_serial_number, name, privilege, enabled, user_period_used, department, status, attempts) VALUES (?, ?, ?, 'User', TRUE, FALSE, 0, 'PENDING', 0)";
+    private static final Pattern WHOLE_NUMBER = Pattern.compile("\\d+(\\.0+)?");
+    private static final int COL_SERIAL = 1;
+    private static final int COL_NAME = 2;
+    private static final int COL_USER_ID = 4;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final DeviceRepository deviceRepository;
+
+    @Value("${bulk-import.batch-size:500}")
+    private int batchSize;
+
+    @Value("${bulk-import.max-reported-errors:1000}")
+    private int maxReportedErrors;
+
+    @Value("${bulk-import.retained-jobs:50}")
+    private int retainedJobs;
+
+    private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "bulk-import-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /** Spools the upload and queues it for import; progress is available under the returned job id. */
+    public BulkImportStatus submit(MultipartFile file) throws IOException {
+        Path spool = Files.createTempFile("bulk-import-", ".xlsx");
+        try {
+            file.transferTo(spool);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+        ImportJob job = new ImportJob(UUID.randomUUID().toString(), file.getOriginalFilename());
+        evictFinishedJobs();
+        jobs.put(job.id, job);
+        executor.execute(() -> run(job, spool));
+        return job.snapshot();
+    }
+
+    public Optional<BulkImportStatus> getStatus(String jobId) {
+        ImportJob job = jobs.get(jobId);
+        return job == null ? Optional.empty() : Optional.of(job.snapshot());
+    }
+
+    private void run(ImportJob job, Path spool) {
+        job.started();
+        RowHandler rows = new RowHandler(job);
+        try (OPCPackage pkg = OPCPackage.open(spool.toFile(), PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext()) {
+                job.finished("FAILED", "Workbook has no sheets");
+                return;
+            }
+            try (InputStream sheet = sheets.next()) {
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(new XSSFSheetXMLHandler(reader.getStylesTable(), null,
+                        new ReadOnlySharedStringsTable(pkg), rows, new DataFormatter(), false));
+                parser.parse(new InputSource(sheet));
+            }
+            rows.flush();
+            job.finished("COMPLETED", null);
+            log.info("Bulk import {} ({}) done: {} rows read, {} imported, {} rejected",
+                    job.id, job.fileName, job.rowsRead, job.rowsImported, job.rowsRejected);
+        } catch (Exception e) {
+            job.finished("FAILED", e.getMessage());
+            log.error("Bulk import {} ({}) failed after {} rows", job.id, job.fileName, job.rowsRead, e);
+        } finally {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                log.warn("Failed to delete bulk import spool file {}", spool, e);
+            }
+        }
+    }
+
+    private void evictFinishedJobs() {
+        if (jobs.size() < retainedJobs) {
+            return;
+        }
+        jobs.values().stream()
+                .filter(job -> job.finishedAt != null)
+                .sorted((a, b) -> a.finishedAt.compareTo(b.finishedAt))
+                .limit(jobs.size() - retainedJobs + 1)
+                .forEach(job -> jobs.remove(job.id));
+    }
+
+    private final class RowHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+        private final ImportJob job;
+        private final List<Object[]> batch = new ArrayList<>();
+        private final Map<String, Boolean> knownDevices = new HashMap<>();
+        private final Map<String, Integer> seen = new HashMap<>();
+        private final String[] cells = new String[COL_USER_ID + 1];
+
+        RowHandler(ImportJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = null;
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            if (cellReference == null) {
+                return;
+            }
+            int col = new CellReference(cellReference).getCol();
+            if (col < cells.length) {
+                cells[col] = formattedValue == null ? null : formattedValue.trim();
+            }
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (rowNum == 0 || isBlankRow()) {
+                return;
+            }
+            int sheetRow = rowNum + 1;
+            job.rowRead();
+            String serial = cells[COL_SERIAL];
+            String name = cells[COL_NAME];
+            String userId = cells[COL_USER_ID];
+            if (isEmpty(serial)) {
+                job.reject(sheetRow, "Device serial number (column B) is empty");
+                return;
+            }
+            if (isEmpty(name)) {
+                job.reject(sheetRow, "Name (column C) is empty");
+                return;
+            }
+            if (isEmpty(userId) || !WHOLE_NUMBER.matcher(userId).matches()) {
+                job.reject(sheetRow, "User id (column E) must be a whole number, got '" + (userId == null ? "" : userId) + "'");
+                return;
+            }
+            userId = userId.replaceFirst("\\.0+$", "");
+            if (!knownDevices.computeIfAbsent(serial, deviceRepository::existsBySerialNumber)) {
+                job.reject(sheetRow, "Unknown device " + serial);
+                return;
+            }
+            Integer firstRow = seen.putIfAbsent(userId + "|" + serial, sheetRow);
+            if (firstRow != null) {
+                job.reject(sheetRow, "Duplicate of row " + firstRow + " (user " + userId + " on " + serial + ")");
+                return;
+            }
+            batch.add(new Object[]{userId, serial, name});
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INSERT_BULK_USER, batch));
+            job.imported(batch.size());
+            batch.clear();
+        }
+
+        private boolean isBlankRow() {
+            for (String cell : cells) {
+                if (!isEmpty(cell)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isEmpty(String value) {
+            return value == null || value.isEmpty();
+        }
+    }
+
+    private final class ImportJob {
+
+        private final String id;
+        private final String fileName;
+        private final List<BulkImportStatus.RowError> errors = new ArrayList<>();
+        private volatile String state = "QUEUED";
+        private volatile String message;
+        private volatile long rowsRead;
+        private volatile long rowsImported;
+        private volatile long rowsRejected;
+        private volatile LocalDateTime startedAt;
+        private volatile LocalDateTime finishedAt;
+
+        ImportJob(String id, String fileName) {
+            this.id = id;
+            this.fileName = fileName;
+        }
+
+        void started() {
+            startedAt = LocalDateTime.now();
+            state = "RUNNING";
+        }
+
+        void rowRead() {
+            rowsRead++;
+        }
+
+        void imported(int rows) {
+            rowsImported += rows;
+        }
+
+        synchronized void reject(long row, String reason) {
+            rowsRejected++;
+            if (errors.size() < maxReportedErrors) {
+                errors.add(new BulkImportStatus.RowError(row, reason));
+            }
+        }
+
+        void finished(String finalState, String finalMessage) {
+            message = finalMessage;
+            finishedAt = LocalDateTime.now();
+            state = finalState;
+        }
+
+        synchronized BulkImportStatus snapshot() {
+            return BulkImportStatus.builder()
+                    .jobId(id)
+                    .fileName(fileName)
+                    .state(state)
+                    .message(message)
+                    .rowsRead(rowsRead)
+                    .rowsImported(rowsImported)
+                    .rowsRejected(rowsRejected)
+                    .startedAt(startedAt)
+                    .finishedAt(finishedAt)
+                    .errors(new ArrayList<>(errors))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.xaur.service;
+
+import com.xaur.dto.UserData;
+import com.xaur.model.BulkUser;
+import com.xaur.repository.BulkUserRepository;
+import com.xaur.websocket.RequestWindow;
+import com.xaur.websocket.WebSocketSessionManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes PENDING bulk user rows to their terminals with SetUserData. Every device with due rows
+ * gets its own push that sends the next row as soon as a SetUserData answer frees a slot in its
+ * {@link RequestWindow}, so devices run in parallel and each one at its own speed. Rejected or
+ * unanswered rows go back to PENDING with exponential backoff until bulk-push.max-attempts.
+ * <p>
+ * Row states: PENDING, SENT (awaiting the answer), COMPLETED, FAILED.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class BulkUserPushService {
+
+    private final BulkUserRepository bulkUserRepository;
+    private final UserCommandService userCommandService;
+    private final WebSocketSessionManager sessionManager;
+
+    @Value("${bulk-push.batch-size:200}")
+    private int batchSize;
+
+    @Value("${bulk-push.initial-window:1}")
+    private int initialWindow;
+
+    @Value("${bulk-push.max-window:4}")
+    private int maxWindow;
+
+    @Value("${bulk-push.min-timeout-ms:5000}")
+    private long minTimeoutMs;
+
+    @Value("${bulk-push.max-timeout-ms:30000}")
+    private long maxTimeoutMs;
+
+    @Value("${bulk-push.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${bulk-push.backoff-ms:30000}")
+    private long backoffMs;
+
+    @Value("${bulk-push.max-backoff-ms:1800000}")
+    private long maxBackoffMs;
+
+    private final Map<String, Push> pushes = new ConcurrentHashMap<>();
+
+    private final AtomicLong rowsSent = new AtomicLong();
+    private final AtomicLong rowsCompleted = new AtomicLong();
+    private final AtomicLong rowsRetried = new AtomicLong();
+    private final AtomicLong rowsFailed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /** Rows left SENT by a previous run never got their answer recorded; send them again. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void requeueInterrupted() {
+        int requeued = bulkUserRepository.requeueSent();
+        if (requeued > 0) {
+            log.info("Requeued {} bulk user rows left in SENT state", requeued);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${bulk-push.poll-ms:10000}")
+    public void dispatch() {
+        List<String> devices;
+        try {
+            devices = bulkUserRepository.findDevicesWithDueRows(LocalDateTime.now());
+        } catch (Exception e) {
+            log.error("Failed to look up pending bulk user rows", e);
+            return;
+        }
+        for (String deviceSerialNumber : devices) {
+            if (deviceSerialNumber == null || pushes.containsKey(deviceSerialNumber)) {
+                continue;
+            }
+            WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
+            if (session != null && session.isOpen()) {
+                startPush(deviceSerialNumber);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${bulk-push.timeout-check-ms:1000}")
+    public void expireRequests() {
+        pushes.values().forEach(Push::expire);
+    }
+
+    /**
+     * Records a SetUserData answer for a row this service pushed.
+     *
+     * @return false if the answer does not belong to an active push
+     */
+    public boolean onSetUserDataResult(String deviceSerialNumber, String userId, boolean ok, String result) {
+        Push push = deviceSerialNumber == null ? null : pushes.get(deviceSerialNumber);
+        return push != null && push.onResult(userId, ok, result);
+    }
+
+    private void startPush(String deviceSerialNumber) {
+        Push push = new Push(deviceSerialNumber);
+        if (pushes.putIfAbsent(deviceSerialNumber, push) != null) {
+            return;
+        }
+        if (!push.load()) {
+            pushes.remove(deviceSerialNumber, push);
+            return;
+        }
+        log.info("Pushing {} bulk users to device {}", push.queue.size(), deviceSerialNumber);
+        push.pump();
+    }
+
+    private String buildCommand(BulkUser row) {
+        UserData userData = new UserData();
+        userData.setEnabled(row.isEnabled());
+        userData.setName(row.getName());
+        userData.setPrivilege(row.getPrivilege());
+        userData.setDepartment(row.getDepartment() != null ? row.getDepartment() : 0);
+        userData.setUserPeriodUsed(Boolean.TRUE.equals(row.getUser_period_used()));
+        userData.setAllowNoCertificate(true);
+        return userCommandService.buildSetUserDataCommand(row.getUser_id(), userData);
+    }
+
+    private LocalDateTime nextAttemptAt(int attempts) {
+        long delay = backoffMs << Math.min(Math.max(attempts - 1, 0), 16);
+        return LocalDateTime.now().plusNanos(Math.min(delay, maxBackoffMs) * 1_000_000L);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rowsSent", rowsSent.get());
+        stats.put("rowsCompleted", rowsCompleted.get());
+        stats.put("rowsRetried", rowsRetried.get());
+        stats.put("rowsFailed", rowsFailed.get());
+        stats.put("timeouts", timeouts.get());
+        Map<String, Long> rows = new LinkedHashMap<>();
+        try {
+            for (Object[] row : bulkUserRepository.countByStatus()) {
+                rows.put(String.valueOf(row[0]), ((Number) row[1]).longValue());
+            }
+        } catch (Exception e) {
+            log.warn("Failed to count bulk user rows", e);
+        }
+        stats.put("rowsByStatus", rows);
+        Map<String, Object> active = new LinkedHashMap<>();
+        pushes.forEach((serial, push) -> active.put(serial, push.stats()));
+        stats.put("active", active);
+        return stats;
+    }
+
+    private final class Push {
+
+        private final String deviceSerialNumber;
+        private final Deque<BulkUser> queue = new ArrayDeque<>();
+        private final Map<String, BulkUser> inFlight = new HashMap<>();
+        private final RequestWindow window = new RequestWindow(initialWindow, maxWindow, minTimeoutMs, maxTimeoutMs);
+        private boolean fullBatch;
+
+        Push(String deviceSerialNumber) {
+            this.deviceSerialNumber = deviceSerialNumber;
+        }
+
+        synchronized boolean load() {
+            try {
+                List<BulkUser> rows = bulkUserRepository.findDueRows(deviceSerialNumber, LocalDateTime.now(), batchSize);
+                queue.addAll(rows);
+                fullBatch = rows.size() >= batchSize;
+                return !rows.isEmpty();
+            } catch (Exception e) {
+                log.error("Failed to load bulk user rows for device: {}", deviceSerialNumber, e);
+                return false;
+            }
+        }
+
+        synchronized void pump() {
+            while (window.hasCredit() && !queue.isEmpty()) {
+                BulkUser row = queue.poll();
+                String userId = row.getUser_id();
+                if (inFlight.containsKey(userId)) {
+                    // answers only carry the UserID, so a second row for the same user waits for the next batch
+                    continue;
+                }
+                row.setStatus("SENT");
+                row.setAttempts(row.getAttempts() == null ? 1 : row.getAttempts() + 1);
+                bulkUserRepository.save(row);
+                inFlight.put(userId, row);
+                window.sent(userId);
+                rowsSent.incrementAndGet();
+                if (!sessionManager.sendMessageToDevice(deviceSerialNumber, buildCommand(row))) {
+                    window.cancel(userId);
+                    inFlight.remove(userId);
+                    retry(row, "send failed");
+                    abort();
+                    return;
+                }
+            }
+            if (queue.isEmpty() && inFlight.isEmpty()) {
+                // keep going while the device keeps up; a short batch means the backlog is drained
+                if (fullBatch && load()) {
+                    pump();
+                    return;
+                }
+                pushes.remove(deviceSerialNumber, this);
+            }
+        }
+
+        synchronized boolean onResult(String userId, boolean ok, String result) {
+            BulkUser row = inFlight.remove(userId);
+            if (row == null) {
+                return false;
+            }
+            window.complete(userId);
+            if (ok) {
+                row.setStatus("COMPLETED");
+                row.setNext_attempt_at(null);
+                row.setLast_error(null);
+                bulkUserRepository.save(row);
+                rowsCompleted.incrementAndGet();
+            } else {
+                retry(row, "device answered " + result);
+            }
+            pump();
+            return true;
+        }
+
+        synchronized void expire() {
+            if (pushes.get(deviceSerialNumber) != this) {
+                return;
+            }
+            WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
+            if (session == null || !session.isOpen()) {
+                abort();
+                return;
+            }
+            for (String userId : window.expire()) {
+                BulkUser row = inFlight.remove(userId);
+                if (row != null) {
+                    timeouts.incrementAndGet();
+                    retry(row, "no answer");
+                }
+            }
+            pump();
+        }
+
+        private void retry(BulkUser row, String error) {
+            row.setLast_error(error);
+            if (row.getAttempts() != null && row.getAttempts() >= maxAttempts) {
+                row.setStatus("FAILED");
+                rowsFailed.incrementAndGet();
+                log.warn("Giving up on bulk user {} for device {} after {} attempts: {}",
+                        row.getUser_id(), deviceSerialNumber, row.getAttempts(), error);
+            } else {
+                row.setStatus("PENDING");
+                row.setNext_attempt_at(nextAttemptAt(row.getAttempts() == null ? 1 : row.getAttempts()));
+                rowsRetried.incrementAndGet();
+            }
+            bulkUserRepository.save(row);
+        }
+
+        /** Unanswered rows go back to PENDING without waiting out a backoff. */
+        private void abort() {
+            if (!pushes.remove(deviceSerialNumber, this)) {
+                return;
+            }
+            for (BulkUser row : inFlight.values()) {
+                row.setStatus("PENDING");
+                bulkUserRepository.save(row);
+            }
+            log.warn("Bulk push to device {} stopped: {} rows in flight requeued, {} not sent",
+                    deviceSerialNumber, inFlight.size(), queue.size());
+            inFlight.clear();
+            queue.clear();
+        }
+
+        synchronized Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("queued", queue.size());
+            stats.put("inFlight", inFlight.size());
+            stats.put("window", Math.round(window.window() * 10) / 10.0);
+            stats.put("latencyMs", Math.round(window.smoothedRttMs()));
+            return stats;
+        }
+    }
+}
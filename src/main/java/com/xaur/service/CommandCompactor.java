@@ -0,0 +1,163 @@
+package com.xaur.service;
+
+import com.xaur.repository.ScheduledCommandRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops queued commands a later command for the same device and target makes pointless, so a
+ * device that was away does not replay a weekend of edits on reconnect. Superseded rows are marked
+ * SUPERSEDED and never sent. The rules, by command type:
+ * <ul>
+ *     <li>SET, DELETE, SET_FINGER (per UserID): a DELETE supersedes everything queued for the user
+ *     before it, including earlier DELETEs; after the last DELETE a SET supersedes the previous SET
+ *     unless a SET_FINGER was queued between them, and only the last SET_FINGER of each finger is
+ *     kept. The surviving commands keep their queue order, so a finger never goes out ahead of the
+ *     SET that creates its user. A DELETE followed by a SET keeps both, as the SET alone would
+ *     leave the old fingerprints on the device.</li>
+ *     <li>SetTime, GetTime, ClearLogData, SetWiFiSetting, SetEthernetSetting (per device) and
+ *     SetDepartment (per DeptNo): the last one wins.</li>
+ *     <li>anything else is sent as queued.</li>
+ * </ul>
+ * Only PENDING rows are considered; commands already sent are left to their answer.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CommandCompactor {
+
+    private static final Set<String> USER_COMMANDS = new HashSet<>(Arrays.asList(
+            RosterReconciler.SET, RosterReconciler.DELETE, RosterReconciler.SET_FINGER));
+    private static final Set<String> LAST_WINS = new HashSet<>(Arrays.asList(
+            "SETTIME", "GETTIME", "CLEARLOGDATA", "SETWIFISETTING", "SETETHERNETSETTING", "SETDEPARTMENT"));
+
+    private static final int UPDATE_BATCH = 500;
+
+    private final ScheduledCommandRepository commandRepository;
+
+    @Value("${command-dispatch.compaction-enabled:true}")
+    private boolean enabled;
+
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong commandsSuperseded = new AtomicLong();
+    private final AtomicLong bytesSuperseded = new AtomicLong();
+    private final Map<String, AtomicLong> supersededByType = new ConcurrentHashMap<>();
+
+    /**
+     * Marks the device's superseded PENDING commands. Callers hold the device's dispatch lock, so
+     * nothing is picked up for sending meanwhile.
+     *
+     * @return the number of commands superseded
+     */
+    public int compact(String deviceSerialNumber) {
+        if (!enabled) {
+            return 0;
+        }
+        List<Object[]> rows = commandRepository.findPendingTargetsByDeviceSerialNumber(deviceSerialNumber);
+        if (rows.size() < 2) {
+            return 0;
+        }
+        compactions.incrementAndGet();
+
+        Map<String, List<Object[]>> userCommands = new LinkedHashMap<>();
+        Map<String, Object[]> lastByTarget = new HashMap<>();
+        List<Object[]> superseded = new ArrayList<>();
+        for (Object[] row : rows) {
+            String type = row[1] == null ? "" : ((String) row[1]).toUpperCase(Locale.ROOT);
+            String userId = (String) row[2];
+            String correlationKey = (String) row[3];
+            if (USER_COMMANDS.contains(type) && userId != null) {
+                userCommands.computeIfAbsent(userId, k -> new ArrayList<>()).add(row);
+            } else if (LAST_WINS.contains(type) && (correlationKey != null || !"SETDEPARTMENT".equals(type))) {
+                Object[] previous = lastByTarget.put(type + "|" + (correlationKey == null ? "" : correlationKey), row);
+                if (previous != null) {
+                    superseded.add(previous);
+                }
+            }
+        }
+        for (List<Object[]> commands : userCommands.values()) {
+            compactUser(commands, superseded);
+        }
+        if (superseded.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = new ArrayList<>(superseded.size());
+        for (Object[] row : superseded) {
+            ids.add((Long) row[0]);
+        }
+        LocalDateTime now = LocalDateTime.now();
+        int marked = 0;
+        for (int from = 0; from < ids.size(); from += UPDATE_BATCH) {
+            marked += commandRepository.markSuperseded(ids.subList(from, Math.min(ids.size(), from + UPDATE_BATCH)), now);
+        }
+        commandsSuperseded.addAndGet(marked);
+        for (Object[] row : superseded) {
+            bytesSuperseded.addAndGet(row[4] == null ? 0 : ((Number) row[4]).longValue());
+            supersededByType.computeIfAbsent(String.valueOf(row[1]).toUpperCase(Locale.ROOT), k -> new AtomicLong()).incrementAndGet();
+        }
+        log.info("Superseded {} of {} queued commands for device {}", marked, rows.size(), deviceSerialNumber);
+        return marked;
+    }
+
+    /** One user's commands in queue order. */
+    static void compactUser(List<Object[]> commands, List<Object[]> superseded) {
+        if (commands.size() < 2) {
+            return;
+        }
+        int lastDelete = -1;
+        for (int i = 0; i < commands.size(); i++) {
+            if (RosterReconciler.DELETE.equalsIgnoreCase((String) commands.get(i)[1])) {
+                lastDelete = i;
+            }
+        }
+        Object[] lastSet = null;
+        Map<String, Object[]> lastFinger = new HashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            Object[] row = commands.get(i);
+            if (i < lastDelete) {
+                superseded.add(row);
+            } else if (RosterReconciler.SET.equalsIgnoreCase((String) row[1])) {
+                if (lastSet != null) {
+                    superseded.add(lastSet);
+                }
+                lastSet = row;
+            } else if (RosterReconciler.SET_FINGER.equalsIgnoreCase((String) row[1])) {
+                // dropping the SET before this finger would leave the finger ahead of the user's SET
+                lastSet = null;
+                // the correlation key of a finger command also names the finger
+                Object[] previous = row[3] == null ? null : lastFinger.put((String) row[3], row);
+                if (previous != null) {
+                    superseded.add(previous);
+                }
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("compactionEnabled", enabled);
+        stats.put("compactions", compactions.get());
+        stats.put("commandsSuperseded", commandsSuperseded.get());
+        stats.put("bytesSuperseded", bytesSuperseded.get());
+        Map<String, Long> byType = new LinkedHashMap<>();
+        supersededByType.forEach((type, count) -> byType.put(type, count.get()));
+        stats.put("supersededByType", byType);
+        return stats;
+    }
+}
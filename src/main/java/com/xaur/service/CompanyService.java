@@ -22,6 +22,7 @@ import java.util.Optional;
 public class CompanyService {
 
     private final CompanyRepository companyRepository;
+    private final DeviceOrgCache deviceOrgCache;
 
     @Transactional(readOnly = true)
     public List<Company> getAllCompanies() {
@@ -66,6 +67,7 @@ public class CompanyService {
     @Transactional
     public Optional<Company> updateCompany(Long id, Company companyDetails) {
         log.info("Updating company with id: {}", id);
+        deviceOrgCache.invalidateCompany(id);
         return companyRepository.findById(id)
                 .map(company -> {
                     company.setName(companyDetails.getName());
@@ -0,0 +1,678 @@
+package com.xaur.service;
+
+import com.xaur.dto.UserData;
+import com.xaur.model.DeviceMigration;
+import com.xaur.model.DeviceStatus;
+import com.xaur.model.User;
+import com.xaur.model.UserFaceData;
+import com.xaur.model.UserFingerData;
+import com.xaur.repository.DeviceMigrationRepository;
+import com.xaur.repository.DeviceRepository;
+import com.xaur.repository.UserFaceDataRepository;
+import com.xaur.repository.UserFingerDataRepository;
+import com.xaur.repository.UserRepository;
+import com.xaur.websocket.RequestWindow;
+import com.xaur.websocket.WebSocketSessionManager;
+import com.xaur.websocket.message.MessageBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copies a terminal's whole roster (users, cards, passwords, faces and fingerprints) to another
+ * terminal, typically its replacement. Users are read from the database in keyset pages, optionally
+ * after a fresh roster walk and template harvest of the live source, and pushed with SetUserData
+ * through a {@link RequestWindow}; fingerprints follow once the target has accepted the user. The
+ * page checkpoint is persisted, so a migration survives target disconnects and restarts.
+ * <p>
+ * Sends are paced by a per-migration and a global token bucket and held back while the target's
+ * outbound queue is backed up, so punch acknowledgements are never stuck behind a migration. When the
+ * roster is through, the target's GetDeviceStatusAll counts are checked against what was sent.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class DeviceMigrationService {
+
+    private static final List<String> ACTIVE = Arrays.asList("REFRESHING", "RUNNING", "VERIFYING");
+
+    private final DeviceMigrationRepository migrationRepository;
+    private final DeviceRepository deviceRepository;
+    private final UserRepository userRepository;
+    private final UserFingerDataRepository userFingerDataRepository;
+    private final UserFaceDataRepository userFaceDataRepository;
+    private final UserCommandService userCommandService;
+    private final UserSyncService userSyncService;
+    private final TemplateHarvester templateHarvester;
+    private final MessageBuilder messageBuilder;
+    private final TemplateStore templateStore;
+    private final UserFaceDataService userFaceDataService;
+    private final UserFingerDataService userFingerDataService;
+    private final WebSocketSessionManager sessionManager;
+
+    @Value("${migration.page-size:200}")
+    private int pageSize;
+
+    @Value("${migration.initial-window:1}")
+    private int initialWindow;
+
+    @Value("${migration.max-window:4}")
+    private int maxWindow;
+
+    @Value("${migration.min-timeout-ms:5000}")
+    private long minTimeoutMs;
+
+    @Value("${migration.max-timeout-ms:30000}")
+    private long maxTimeoutMs;
+
+    @Value("${migration.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${migration.commands-per-second:20}")
+    private double commandsPerSecond;
+
+    @Value("${migration.global-commands-per-second:50}")
+    private double globalCommandsPerSecond;
+
+    @Value("${migration.max-outbound-depth:8}")
+    private int maxOutboundDepth;
+
+    @Value("${migration.verify-delay-ms:5000}")
+    private long verifyDelayMs;
+
+    @Value("${migration.verify-attempts:3}")
+    private int verifyAttempts;
+
+    @Value("${migration.refresh-timeout-ms:1800000}")
+    private long refreshTimeoutMs;
+
+    private final Map<String, Migration> byTarget = new ConcurrentHashMap<>();
+    private TokenBucket globalBucket;
+
+    @PostConstruct
+    public void init() {
+        globalBucket = new TokenBucket(globalCommandsPerSecond);
+    }
+
+    /** Migrations cut short by a restart carry on from their checkpoint. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterrupted() {
+        for (DeviceMigration migration : migrationRepository.findByStatusIn(ACTIVE)) {
+            byTarget.put(migration.getTargetSerialNumber(), new Migration(migration));
+            log.info("Resuming migration {} from {} to {} at user id {}", migration.getId(),
+                    migration.getSourceSerialNumber(), migration.getTargetSerialNumber(), migration.getCheckpointId());
+        }
+    }
+
+    /**
+     * Starts copying the source device's roster to the target.
+     *
+     * @param fromDevice walk the live source's roster and harvest its templates first instead of
+     *                   copying the database snapshot as it is
+     * @throws IllegalArgumentException if a device is unknown or source and target are the same
+     * @throws IllegalStateException    if the target already has a migration running
+     */
+    public DeviceMigration start(String sourceSerialNumber, String targetSerialNumber, boolean fromDevice) {
+        if (sourceSerialNumber == null || targetSerialNumber == null || sourceSerialNumber.equals(targetSerialNumber)) {
+            throw new IllegalArgumentException("Source and target must be two different devices");
+        }
+        if (!deviceRepository.existsBySerialNumber(sourceSerialNumber)) {
+            throw new IllegalArgumentException("Device not found: " + sourceSerialNumber);
+        }
+        if (!deviceRepository.existsBySerialNumber(targetSerialNumber)) {
+            throw new IllegalArgumentException("Device not found: " + targetSerialNumber);
+        }
+        if (byTarget.containsKey(targetSerialNumber)) {
+            throw new IllegalStateException("Device " + targetSerialNumber + " is already being migrated to");
+        }
+        DeviceMigration migration = migrationRepository.save(DeviceMigration.builder()
+                .sourceSerialNumber(sourceSerialNumber)
+                .targetSerialNumber(targetSerialNumber)
+                .fromDevice(fromDevice)
+                .status(fromDevice ? "REFRESHING" : "RUNNING")
+                .checkpointId(0L)
+                .usersTotal(fromDevice ? null : userRepository.countByDeviceSerialNumber(sourceSerialNumber))
+                .usersDone(0L)
+                .usersFailed(0L)
+                .fingersSent(0L)
+                .facesSent(0L)
+                .build());
+        Migration runner = new Migration(migration);
+        if (byTarget.putIfAbsent(targetSerialNumber, runner) != null) {
+            migration.setStatus("CANCELLED");
+            migration.setMessage("Another migration to the target started first");
+            migrationRepository.save(migration);
+            throw new IllegalStateException("Device " + targetSerialNumber + " is already being migrated to");
+        }
+        log.info("Migration {} from {} to {} started ({})", migration.getId(), sourceSerialNumber, targetSerialNumber,
+                fromDevice ? "live source" : "database snapshot");
+        runner.tick();
+        return runner.view();
+    }
+
+    public Optional<DeviceMigration> getMigration(Long id) {
+        for (Migration runner : byTarget.values()) {
+            if (runner.state.getId().equals(id)) {
+                return Optional.of(runner.view());
+            }
+        }
+        return migrationRepository.findById(id);
+    }
+
+    public List<DeviceMigration> getRecentMigrations() {
+        Map<Long, DeviceMigration> live = new HashMap<>();
+        byTarget.values().forEach(runner -> live.put(runner.state.getId(), runner.view()));
+        List<DeviceMigration> migrations = new ArrayList<>();
+        for (DeviceMigration migration : migrationRepository.findTop50ByOrderByIdDesc()) {
+            migrations.add(live.getOrDefault(migration.getId(), migration));
+        }
+        return migrations;
+    }
+
+    public Optional<DeviceMigration> cancel(Long id) {
+        for (Migration runner : byTarget.values()) {
+            if (runner.state.getId().equals(id)) {
+                runner.finish("CANCELLED", "Cancelled");
+                return Optional.of(runner.view());
+            }
+        }
+        return migrationRepository.findById(id);
+    }
+
+    /** True while a migration is copying users onto the device. */
+    public boolean isMigrationTarget(String deviceSerialNumber) {
+        return byTarget.containsKey(deviceSerialNumber);
+    }
+
+    /** @return false if no migration was waiting for this answer */
+    public boolean onSetUserDataResult(String deviceSerialNumber, String userId, boolean ok, String result) {
+        Migration runner = deviceSerialNumber == null ? null : byTarget.get(deviceSerialNumber);
+        return runner != null && runner.onResult(userId, ok, result);
+    }
+
+    public void onDeviceStatus(String deviceSerialNumber, DeviceStatus status) {
+        Migration runner = deviceSerialNumber == null ? null : byTarget.get(deviceSerialNumber);
+        if (runner != null) {
+            runner.onDeviceStatus(status);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${migration.tick-ms:250}")
+    public void tick() {
+        byTarget.values().forEach(Migration::tick);
+    }
+
+    private boolean isConnected(String deviceSerialNumber) {
+        WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
+        return session != null && session.isOpen();
+    }
+
+    private static long plus(Long value, long delta) {
+        return (value == null ? 0 : value) + delta;
+    }
+
+    private final class Migration {
+
+        private DeviceMigration state;
+        private final String source;
+        private final String target;
+        private final RequestWindow window = new RequestWindow(initialWindow, maxWindow, minTimeoutMs, maxTimeoutMs);
+        private final TokenBucket bucket = new TokenBucket(commandsPerSecond);
+
+        // the page being pushed; the checkpoint moves past it once every user has an answer
+        private final Deque<User> queue = new ArrayDeque<>();
+        private final Map<String, User> inFlight = new HashMap<>();
+        private final Deque<String> followUps = new ArrayDeque<>();
+        private final Map<String, String> setCommands = new HashMap<>();
+        private final Map<String, List<String>> fingerCommands = new HashMap<>();
+        private final Set<String> withFace = new HashSet<>();
+        private final Map<String, UserFaceData> faceRecords = new HashMap<>();
+        private final Map<String, List<UserFingerData>> fingerRecords = new HashMap<>();
+        private final Map<String, Integer> attempts = new HashMap<>();
+        private Long pageMaxId;
+        private long pageDone;
+        private long pageFailed;
+        private long pageFingers;
+        private long pageFaces;
+
+        private boolean walkRequested;
+        private boolean harvestRequested;
+        private long refreshStartedAt;
+        private long lastSendAt;
+        private long verifySentAt;
+        private int verifyQueries;
+
+        Migration(DeviceMigration state) {
+            this.state = state;
+            this.source = state.getSourceSerialNumber();
+            this.target = state.getTargetSerialNumber();
+        }
+
+        synchronized void tick() {
+            if (byTarget.get(target) != this) {
+                return;
+            }
+            try {
+                switch (state.getStatus()) {
+                    case "REFRESHING":
+                        refresh();
+                        break;
+                    case "RUNNING":
+                        if (!isConnected(target)) {
+                            requeueInFlight();
+                            return;
+                        }
+                        for (String userId : window.expire()) {
+                            User user = inFlight.remove(userId);
+                            if (user != null) {
+                                retryOrFail(user, "No answer from device");
+                            }
+                        }
+                        pump();
+                        break;
+                    case "VERIFYING":
+                        verify();
+                        break;
+                    default:
+                        byTarget.remove(target, this);
+                }
+            } catch (Exception e) {
+                log.error("Migration {} to {} failed", state.getId(), target, e);
+                finish("FAILED", e.getMessage());
+            }
+        }
+
+        /** Walks the live source's roster and harvests its templates so the snapshot is current. */
+        private void refresh() {
+            long now = System.currentTimeMillis();
+            if (refreshStartedAt == 0) {
+                refreshStartedAt = now;
+            }
+            // a source that stays away or never finishes its walk must not hold the target forever
+            if (now - refreshStartedAt >= refreshTimeoutMs) {
+                finish("FAILED", !isConnected(source) ? "Source did not reconnect to be refreshed"
+                        : !harvestRequested ? "Source roster walk did not complete" : "Source template harvest did not complete");
+                return;
+            }
+            if (!isConnected(source)) {
+                return;
+            }
+            if (!walkRequested) {
+                walkRequested = userSyncService.syncUsersFromDevice(source) || userSyncService.isDeviceSyncing(source);
+                return;
+            }
+            if (!userSyncService.isRosterCurrent(source)) {
+                return;
+            }
+            if (!harvestRequested) {
+                templateHarvester.harvest(source);
+                harvestRequested = true;
+                return;
+            }
+            if (templateHarvester.isHarvesting(source)) {
+                return;
+            }
+            state.setStatus("RUNNING");
+            state.setUsersTotal(userRepository.countByDeviceSerialNumber(source));
+            state = migrationRepository.save(state);
+            log.info("Migration {}: source {} refreshed, pushing {} users", state.getId(), source, state.getUsersTotal());
+        }
+
+        private void pump() {
+            while (true) {
+                // punch acknowledgements share the outbound queue; never let a migration back it up
+                if (sessionManager.getOutboundDepth(target) > maxOutboundDepth) {
+                    return;
+                }
+                if (!followUps.isEmpty()) {
+                    if (!takeToken() || !send(followUps.peek())) {
+                        return;
+                    }
+                    followUps.poll();
+                    continue;
+                }
+                if (queue.isEmpty()) {
+                    if (!inFlight.isEmpty()) {
+                        return;
+                    }
+                    checkpoint();
+                    if (!loadPage()) {
+                        return;
+                    }
+                    continue;
+                }
+                if (!window.hasCredit() || !takeToken()) {
+                    return;
+                }
+                User user = queue.poll();
+                String userId = user.getUserId();
+                attempts.merge(userId, 1, Integer::sum);
+                inFlight.put(userId, user);
+                window.sent(userId);
+                if (!send(setCommands.get(userId))) {
+                    window.cancel(userId);
+                    inFlight.remove(userId);
+                    attempts.merge(userId, -1, Integer::sum);
+                    queue.addFirst(user);
+                    return;
+                }
+            }
+        }
+
+        private boolean takeToken() {
+            if (!bucket.hasToken() || !globalBucket.tryTake()) {
+                return false;
+            }
+            bucket.tryTake();
+            return true;
+        }
+
+        private boolean send(String command) {
+            if (!sessionManager.sendMessageToDevice(target, command)) {
+                return false;
+            }
+            lastSendAt = System.currentTimeMillis();
+            return true;
+        }
+
+        private boolean loadPage() {
+            List<User> users = userRepository.findByDeviceSerialNumberAndIdGreaterThanOrderByIdAsc(
+                    source, state.getCheckpointId() == null ? 0L : state.getCheckpointId(), PageRequest.of(0, pageSize));
+            if (users.isEmpty()) {
+                startVerify();
+                return false;
+            }
+            Map<String, User> page = new LinkedHashMap<>();
+            for (User user : users) {
+                page.put(user.getUserId(), user);
+            }
+            List<String> userIds = new ArrayList<>(page.keySet());
+            List<UserFaceData> faceRows = userFaceDataRepository.findByUserIdInAndDeviceSerialNumber(userIds, source);
+            List<UserFingerData> fingerRows = userFingerDataRepository.findByUserIdInAndDeviceSerialNumber(userIds, source);
+            Set<String> hashes = new HashSet<>();
+            faceRows.forEach(face -> hashes.add(face.getTemplateHash()));
+            fingerRows.forEach(finger -> hashes.add(finger.getTemplateHash()));
+            hashes.remove(null);
+            Map<String, String> templates = templateStore.getAll(hashes);
+            Map<String, String> faces = new HashMap<>();
+            for (UserFaceData face : faceRows) {
+                faces.put(face.getUserId(), face.getTemplateHash() != null ? templates.get(face.getTemplateHash()) : face.getFaceData());
+                faceRecords.put(face.getUserId(), face);
+            }
+            for (UserFingerData finger : fingerRows) {
+                String template = finger.getTemplateHash() != null ? templates.get(finger.getTemplateHash()) : finger.getFingerData();
+                fingerCommands.computeIfAbsent(finger.getUserId(), id -> new ArrayList<>()).add(userCommandService.buildSetFingerDataCommand(
+                        finger.getUserId(), finger.getFingerNo(), finger.getDuress(), template));
+                fingerRecords.computeIfAbsent(finger.getUserId(), id -> new ArrayList<>()).add(finger);
+            }
+            for (User user : page.values()) {
+                UserData userData = UserData.builder()
+                        .name(user.getName())
+                        .privilege(user.getPrivilege())
+                        .enabled(user.isEnabled())
+                        .Department(user.getDepartment())
+                        .timeSet1(user.getTimeSet1())
+                        .timeSet2(user.getTimeSet2())
+                        .timeSet3(user.getTimeSet3())
+                        .timeSet4(user.getTimeSet4())
+                        .timeSet5(user.getTimeSet5())
+                        .userPeriodUsed(user.isUserPeriodUsed())
+                        .userPeriodStart(user.getUserPeriodStart())
+                        .userPeriodEnd(user.getUserPeriodEnd())
+                        .card(user.getCard())
+                        .password(user.getPassword())
+                        .faceData(faces.get(user.getUserId()))
+                        .allowNoCertificate(true)
+                        .build();
+                if (userData.getFaceData() != null) {
+                    withFace.add(user.getUserId());
+                }
+                setCommands.put(user.getUserId(), userCommandService.buildSetUserDataCommand(user.getUserId(), userData));
+            }
+            queue.addAll(page.values());
+            pageMaxId = users.get(users.size() - 1).getId();
+            return true;
+        }
+
+        private void checkpoint() {
+            if (pageMaxId == null) {
+                return;
+            }
+            state.setCheckpointId(pageMaxId);
+            state.setUsersDone(plus(state.getUsersDone(), pageDone));
+            state.setUsersFailed(plus(state.getUsersFailed(), pageFailed));
+            state.setFingersSent(plus(state.getFingersSent(), pageFingers));
+            state.setFacesSent(plus(state.getFacesSent(), pageFaces));
+            state = migrationRepository.save(state);
+            pageMaxId = null;
+            pageDone = pageFailed = pageFingers = pageFaces = 0;
+            setCommands.clear();
+            fingerCommands.clear();
+            withFace.clear();
+            faceRecords.clear();
+            fingerRecords.clear();
+            attempts.clear();
+        }
+
+        synchronized boolean onResult(String userId, boolean ok, String result) {
+            User user = inFlight.remove(userId);
+            if (user == null) {
+                return false;
+            }
+            window.complete(userId);
+            if (ok) {
+                pageDone++;
+                List<String> fingers = fingerCommands.getOrDefault(userId, new ArrayList<>());
+                followUps.addAll(fingers);
+                pageFingers += fingers.size();
+                if (withFace.contains(userId)) {
+                    pageFaces++;
+                }
+                copyTemplateReferences(userId);
+            } else {
+                retryOrFail(user, "Device answered " + result);
+            }
+            if (isConnected(target)) {
+                pump();
+            }
+            return true;
+        }
+
+        /** Records the target's templates as references to the source's, so it need not be harvested. */
+        private void copyTemplateReferences(String userId) {
+            try {
+                UserFaceData face = faceRecords.get(userId);
+                if (face != null) {
+                    userFaceDataService.copyFaceReference(face, target);
+                }
+                List<UserFingerData> fingers = fingerRecords.get(userId);
+                if (fingers != null) {
+                    userFingerDataService.copyFingerReferences(userId, fingers, target);
+                }
+            } catch (Exception e) {
+                log.warn("Migration {}: failed to record templates of user {} on {}", state.getId(), userId, target, e);
+            }
+        }
+
+        private void retryOrFail(User user, String reason) {
+            if (attempts.getOrDefault(user.getUserId(), 0) >= maxAttempts) {
+                pageFailed++;
+                state.setMessage("User " + user.getUserId() + ": " + reason);
+                log.warn("Migration {}: giving up on user {} for {}: {}", state.getId(), user.getUserId(), target, reason);
+            } else {
+                queue.add(user);
+            }
+        }
+
+        /** Unanswered users are sent again once the target is back; follow-ups stay queued. */
+        private void requeueInFlight() {
+            for (User user : inFlight.values()) {
+                window.cancel(user.getUserId());
+                attempts.merge(user.getUserId(), -1, Integer::sum);
+                queue.addFirst(user);
+            }
+            inFlight.clear();
+        }
+
+        private void startVerify() {
+            state.setStatus("VERIFYING");
+            state = migrationRepository.save(state);
+            verifySentAt = 0;
+            verifyQueries = 0;
+            log.info("Migration {}: {} users pushed to {}, verifying counts", state.getId(), state.getUsersDone(), target);
+        }
+
+        private void verify() {
+            long now = System.currentTimeMillis();
+            if (!isConnected(target) || (verifySentAt != 0 && now - verifySentAt < maxTimeoutMs)) {
+                return;
+            }
+            // give the terminal time to write the last templates before counting
+            if (now - lastSendAt < verifyDelayMs) {
+                return;
+            }
+            if (verifyQueries >= verifyAttempts) {
+                finish("FAILED", "Target did not answer GetDeviceStatusAll");
+                return;
+            }
+            verifyQueries++;
+            verifySentAt = now;
+            lastSendAt = now;
+            sessionManager.sendMessageToDevice(target, messageBuilder.buildGetDeviceStatusAllRequest());
+        }
+
+        synchronized void onDeviceStatus(DeviceStatus status) {
+            if (!"VERIFYING".equals(state.getStatus()) || verifySentAt == 0) {
+                return;
+            }
+            state.setVerifiedUsers(status.getUserCount());
+            state.setVerifiedFingers(status.getFpCount());
+            state.setVerifiedFaces(status.getFaceCount());
+            String shortfall = shortfall("users", status.getUserCount(), state.getUsersDone());
+            if (shortfall == null) {
+                shortfall = shortfall("fingerprints", status.getFpCount(), state.getFingersSent());
+            }
+            if (shortfall == null) {
+                shortfall = shortfall("faces", status.getFaceCount(), state.getFacesSent());
+            }
+            if (shortfall == null) {
+                finish("COMPLETED", state.getUsersFailed() != null && state.getUsersFailed() > 0
+                        ? state.getUsersFailed() + " users could not be copied, last: " + state.getMessage() : null);
+            } else if (verifyQueries >= verifyAttempts) {
+                finish("FAILED", shortfall);
+            } else {
+                // the terminal may still be writing; count again after the delay
+                verifySentAt = 0;
+                lastSendAt = System.currentTimeMillis();
+            }
+        }
+
+        private String shortfall(String what, Integer reported, Long expected) {
+            if (expected == null || expected == 0) {
+                return null;
+            }
+            if (reported == null || reported < expected) {
+                return "Target reports " + reported + " " + what + ", expected at least " + expected;
+            }
+            return null;
+        }
+
+        synchronized void finish(String status, String message) {
+            if (!byTarget.remove(target, this)) {
+                return;
+            }
+            for (User user : inFlight.values()) {
+                window.cancel(user.getUserId());
+            }
+            queue.clear();
+            inFlight.clear();
+            followUps.clear();
+            state.setStatus(status);
+            state.setMessage(message);
+            state.setFinishedAt(LocalDateTime.now());
+            state = migrationRepository.save(state);
+            log.info("Migration {} from {} to {} {}: {} users copied, {} failed{}", state.getId(), source, target,
+                    status.toLowerCase(), state.getUsersDone(), state.getUsersFailed(), message == null ? "" : " (" + message + ")");
+        }
+
+        /** The persisted state plus the progress of the page in flight. */
+        synchronized DeviceMigration view() {
+            return DeviceMigration.builder()
+                    .id(state.getId())
+                    .sourceSerialNumber(source)
+                    .targetSerialNumber(target)
+                    .fromDevice(state.isFromDevice())
+                    .status(state.getStatus())
+                    .checkpointId(state.getCheckpointId())
+                    .usersTotal(state.getUsersTotal())
+                    .usersDone(plus(state.getUsersDone(), pageDone))
+                    .usersFailed(plus(state.getUsersFailed(), pageFailed))
+                    .fingersSent(plus(state.getFingersSent(), pageFingers))
+                    .facesSent(plus(state.getFacesSent(), pageFaces))
+                    .verifiedUsers(state.getVerifiedUsers())
+                    .verifiedFingers(state.getVerifiedFingers())
+                    .verifiedFaces(state.getVerifiedFaces())
+                    .message(state.getMessage())
+                    .createdAt(state.getCreatedAt())
+                    .updatedAt(state.getUpdatedAt())
+                    .finishedAt(state.getFinishedAt())
+                    .build();
+        }
+    }
+
+    /** Refills continuously at the configured rate, holding at most one second's worth. */
+    private static final class TokenBucket {
+
+        private final double ratePerMs;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double perSecond) {
+            this.ratePerMs = Math.max(perSecond, 0.001) / 1000;
+            this.capacity = Math.max(perSecond, 1);
+            this.tokens = capacity;
+        }
+
+        synchronized boolean hasToken() {
+            refill();
+            return tokens >= 1;
+        }
+
+        synchronized boolean tryTake() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) / 1e6 * ratePerMs);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.xaur.service;
+
+import com.xaur.model.Branch;
+import com.xaur.model.Company;
+import com.xaur.model.Device;
+import com.xaur.repository.DeviceRepository;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Read-through cache of the company and branch a device belongs to. Entries are dropped when a
+ * device is registered or reassigned and when a company or branch is edited; invalidation runs
+ * again after commit so a concurrent read cannot re-cache the old rows.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class DeviceOrgCache {
+
+    private final DeviceRepository deviceRepository;
+
+    private final Map<String, DeviceOrg> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public Optional<DeviceOrg> get(String deviceSerialNumber) {
+        if (deviceSerialNumber == null) {
+            return Optional.empty();
+        }
+        DeviceOrg org = entries.get(deviceSerialNumber);
+        if (org != null) {
+            hits.incrementAndGet();
+            return Optional.of(org);
+        }
+        misses.incrementAndGet();
+        Optional<DeviceOrg> loaded = deviceRepository.findBySerialNumber(deviceSerialNumber).map(DeviceOrg::new);
+        loaded.ifPresent(value -> entries.put(deviceSerialNumber, value));
+        return loaded;
+    }
+
+    public void invalidateDevice(String deviceSerialNumber) {
+        invalidate(org -> org.getSerialNumber().equals(deviceSerialNumber));
+    }
+
+    public void invalidateDevice(Long deviceId) {
+        invalidate(org -> org.getDeviceId().equals(deviceId));
+    }
+
+    public void invalidateCompany(Long companyId) {
+        invalidate(org -> org.getCompany() != null && companyId.equals(org.getCompany().getId()));
+    }
+
+    public void invalidateBranch(Long branchId) {
+        invalidate(org -> org.getBranch() != null && branchId.equals(org.getBranch().getId()));
+    }
+
+    private void invalidate(Predicate<DeviceOrg> matches) {
+        entries.values().removeIf(matches);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    entries.values().removeIf(matches);
+                }
+            });
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", entries.size());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        return stats;
+    }
+
+    @Getter
+    public static final class DeviceOrg {
+        private final Long deviceId;
+        private final String serialNumber;
+        private final Company company;
+        private final Branch branch;
+
+        private DeviceOrg(Device device) {
+            this.deviceId = device.getId();
+            this.serialNumber = device.getSerialNumber();
+            this.company = device.getCompany();
+            this.branch = device.getBranch();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.xaur.service;
+
+import com.xaur.model.Device;
+import com.xaur.model.DeviceStatus;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory presence of every terminal: last activity, online flag and the epoch of its current
+ * connection. Heartbeats only touch memory; changed rows are written to {@code devices} and
+ * {@code device_status} in batched UPDATEs on a fixed delay. Reads of those columns should go
+ * through {@link #applyTo} since the table can lag by one flush interval.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class DevicePresenceTracker {
+
+    public static final String EPOCH_ATTRIBUTE = "presenceEpoch";
+
+    private static final String UPDATE_DEVICE = "UPDATE devices SET is_logged_in = ?, last_activity_time = COALESCE(?, last_activity_time) WHERE serial_number = ?";
+    private static final String UPDATE_DEVICE_STATUS = "UPDATE device_status SET online = ?, last_online = COALESCE(?, last_online) WHERE device_serial_no = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Map<String, Presence> devices = new ConcurrentHashMap<>();
+    private final AtomicLong epochs = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+
+    /**
+     * Marks the device online for a new connection.
+     *
+     * @return the connection epoch to hand back to {@link #disconnected}
+     */
+    public long connected(String deviceSerialNumber) {
+        Presence presence = devices.computeIfAbsent(deviceSerialNumber, serial -> new Presence());
+        long epoch = epochs.incrementAndGet();
+        synchronized (presence) {
+            presence.epoch = epoch;
+            presence.online = true;
+            presence.lastActivity = LocalDateTime.now();
+            presence.lastOnline = presence.lastActivity;
+            presence.dirty = true;
+        }
+        return epoch;
+    }
+
+    public void touch(String deviceSerialNumber) {
+        Presence presence = devices.computeIfAbsent(deviceSerialNumber, serial -> new Presence());
+        synchronized (presence) {
+            presence.lastActivity = LocalDateTime.now();
+            if (presence.online) {
+                presence.lastOnline = presence.lastActivity;
+            }
+            presence.dirty = true;
+        }
+    }
+
+    /**
+     * Marks the device offline unless it has already reconnected on a newer connection.
+     */
+    public void disconnected(String deviceSerialNumber, long epoch) {
+        Presence presence = devices.get(deviceSerialNumber);
+        if (presence == null) {
+            return;
+        }
+        synchronized (presence) {
+            if (epoch != 0 && presence.epoch != epoch) {
+                log.debug("Ignoring stale disconnect of device {} (epoch {}, current {})", deviceSerialNumber, epoch, presence.epoch);
+                return;
+            }
+            presence.online = false;
+            presence.dirty = true;
+        }
+    }
+
+    public boolean isOnline(String deviceSerialNumber) {
+        Presence presence = devices.get(deviceSerialNumber);
+        return presence != null && presence.online;
+    }
+
+    public Device applyTo(Device device) {
+        Presence presence = device != null ? devices.get(device.getSerialNumber()) : null;
+        if (presence != null) {
+            synchronized (presence) {
+                device.setLoggedIn(presence.online);
+                device.setLastActivityTime(presence.lastActivity);
+            }
+        }
+        return device;
+    }
+
+    public DeviceStatus applyTo(DeviceStatus status) {
+        Presence presence = status != null ? devices.get(status.getDeviceSerialNo()) : null;
+        if (presence != null) {
+            synchronized (presence) {
+                status.setOnline(presence.online);
+                if (presence.lastOnline != null) {
+                    status.setLastOnline(presence.lastOnline);
+                }
+            }
+        }
+        return status;
+    }
+
+    @Scheduled(fixedDelayString = "${presence.flush-interval-ms:15000}")
+    @PreDestroy
+    public void flush() {
+        List<Object[]> deviceRows = new ArrayList<>();
+        List<Object[]> statusRows = new ArrayList<>();
+        List<Presence> flushed = new ArrayList<>();
+        devices.forEach((serial, presence) -> {
+            synchronized (presence) {
+                if (!presence.dirty) {
+                    return;
+                }
+                presence.dirty = false;
+                deviceRows.add(new Object[]{presence.online, timestamp(presence.lastActivity), serial});
+                statusRows.add(new Object[]{presence.online, timestamp(presence.lastOnline), serial});
+                flushed.add(presence);
+            }
+        });
+        if (flushed.isEmpty()) {
+            return;
+        }
+        try {
+            jdbcTemplate.batchUpdate(UPDATE_DEVICE, deviceRows);
+            jdbcTemplate.batchUpdate(UPDATE_DEVICE_STATUS, statusRows);
+            flushedRows.addAndGet(flushed.size());
+            log.debug("Flushed presence of {} devices", flushed.size());
+        } catch (Exception e) {
+            log.error("Failed to flush presence of {} devices, retrying on next cycle", flushed.size(), e);
+            flushed.forEach(presence -> {
+                synchronized (presence) {
+                    presence.dirty = true;
+                }
+            });
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long online = devices.values().stream().filter(presence -> presence.online).count();
+        stats.put("tracked", devices.size());
+        stats.put("online", online);
+        stats.put("flushedRows", flushedRows.get());
+        return stats;
+    }
+
+    private static Timestamp timestamp(LocalDateTime value) {
+        return value != null ? Timestamp.valueOf(value) : null;
+    }
+
+    private static final class Presence {
+        private long epoch;
+        private volatile boolean online;
+        private LocalDateTime lastActivity;
+        private LocalDateTime lastOnline;
+        private boolean dirty;
+    }
+}
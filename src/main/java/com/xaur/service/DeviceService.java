@@ -4,6 +4,8 @@ import com.xaur.model.Branch;
 import com.xaur.model.Company;
 import com.xaur.model.Device;
 import com.xaur.model.DeviceStatus;
+import com.xaur.repository.BranchRepository;
+import com.xaur.repository.CompanyRepository;
 import com.xaur.repository.DeviceRepository;
 import com.xaur.repository.DeviceStatusRepository;
 
@@ -14,6 +16,9 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 
@@ -25,26 +30,30 @@ public class DeviceService {
     private final DeviceRepository deviceRepository;
     private final TokenGenerator tokenGenerator;
     private final DeviceStatusRepository deviceStatusRepository;
+    private final DeviceOrgCache deviceOrgCache;
+    private final DevicePresenceTracker presenceTracker;
+    private final CompanyRepository companyRepository;
+    private final BranchRepository branchRepository;
 
 
     @Transactional(readOnly = true)
     public List<Device> getAllDevices() {
-        return deviceRepository.findAll();
+        return withPresence(deviceRepository.findAll());
     }
 
     @Transactional(readOnly = true)
     public List<Device> getDevicesByCompany(Company company) {
-        return deviceRepository.findByCompany(company);
+        return withPresence(deviceRepository.findByCompany(company));
     }
 
     @Transactional(readOnly = true)
     public List<Device> getDevicesByBranch(Branch branch) {
-        return deviceRepository.findByBranch(branch);
+        return withPresence(deviceRepository.findByBranch(branch));
     }
 
     @Transactional(readOnly = true)
     public Optional<Device> getDeviceBySerialNumber(String serialNumber) {
-        return deviceRepository.findBySerialNumber(serialNumber);
+        return deviceRepository.findBySerialNumber(serialNumber).map(presenceTracker::applyTo);
     }
 
     @Transactional(readOnly = true)
@@ -58,13 +67,50 @@ public class DeviceService {
     }
     @Transactional(readOnly = true)
     public List<Device> getDeviceByCompanyAndBranch(Company company,Branch branch){
-      return  deviceRepository.findByCompanyAndBranch(company,branch);
+      return  withPresence(deviceRepository.findByCompanyAndBranch(company,branch));
+    }
+
+    /**
+     * Serial numbers addressed by an explicit list plus every device of a branch or, without a
+     * branch, of a company.
+     *
+     * @throws IllegalArgumentException if a listed device, the company or the branch does not exist
+     */
+    @Transactional(readOnly = true)
+    public List<String> resolveTargetSerialNumbers(Collection<String> serialNumbers, Long companyId, Long branchId) {
+        LinkedHashSet<String> targets = new LinkedHashSet<>();
+        if (serialNumbers != null) {
+            for (String serialNumber : serialNumbers) {
+                if (serialNumber == null || serialNumber.trim().isEmpty()) {
+                    continue;
+                }
+                if (!deviceRepository.existsBySerialNumber(serialNumber.trim())) {
+                    throw new IllegalArgumentException("Device not found: " + serialNumber.trim());
+                }
+                targets.add(serialNumber.trim());
+            }
+        }
+        List<Device> devices = new ArrayList<>();
+        if (branchId != null) {
+            Branch branch = branchRepository.findById(branchId)
+                    .orElseThrow(() -> new IllegalArgumentException("Branch not found: " + branchId));
+            devices = deviceRepository.findByBranch(branch);
+        } else if (companyId != null) {
+            Company company = companyRepository.findById(companyId)
+                    .orElseThrow(() -> new IllegalArgumentException("Company not found: " + companyId));
+            devices = deviceRepository.findByCompany(company);
+        }
+        for (Device device : devices) {
+            targets.add(device.getSerialNumber());
+        }
+        return new ArrayList<>(targets);
     }
 
     @Transactional
     public Device registerDevice(String serialNumber, String terminalType, String cloudId, Company company, Branch branch) {
         log.info("Registering device with serial number: {} for company: {} and branch: {}",
                 serialNumber, company != null ? company.getName() : "N/A", branch != null ? branch.getName() : "N/A");
+        deviceOrgCache.invalidateDevice(serialNumber);
 
         Optional<Device> existingDevice = deviceRepository.findBySerialNumber(serialNumber);
         if (existingDevice.isPresent()) {
@@ -124,46 +170,29 @@ public class DeviceService {
 
     }
 
-    @Transactional
+    /**
+     * Only validates the token; the logged-in flag is owned by {@link DevicePresenceTracker}.
+     */
+    @Transactional(readOnly = true)
     public boolean loginDevice(String serialNumber, String token) {
         log.info("Logging in device with serial number: {}", serialNumber);
-
-        Optional<Device> deviceOpt = deviceRepository.findBySerialNumberAndToken(serialNumber, token);
-
-        if (deviceOpt.isPresent()) {
-            Device device = deviceOpt.get();
-            device.setLoggedIn(true);
-            device.setLastActivityTime(LocalDateTime.now());
-            deviceRepository.save(device);
-            return true;
-        }
-
-        return false;
+        return deviceRepository.findBySerialNumberAndToken(serialNumber, token).isPresent();
     }
 
-    @Transactional
     public void updateDeviceActivity(String serialNumber) {
-        deviceRepository.findBySerialNumber(serialNumber).ifPresent(device -> {
-            device.setLastActivityTime(LocalDateTime.now());
-            deviceRepository.save(device);
-        });
+        presenceTracker.touch(serialNumber);
     }
 
-    @Transactional
-    public void disconnectDevice(String serialNumber) {
+    public void disconnectDevice(String serialNumber, long connectionEpoch) {
         log.info("Disconnecting device with serial number: {}", serialNumber);
-
-        deviceRepository.findBySerialNumber(serialNumber).ifPresent(device -> {
-            device.setLoggedIn(false);
-            deviceRepository.save(device);
-        });
-        deviceStatusRepository.findByDeviceSerialNo(serialNumber).ifPresent(e->{e.setOnline(false);deviceStatusRepository.save(e);});
+        presenceTracker.disconnected(serialNumber, connectionEpoch);
     }
 
     @Transactional
     public Optional<Device> updateDeviceCompanyAndBranch(Long deviceId, Company company, Branch branch) {
         log.info("Updating device {} with company {} and branch {}",
                 deviceId, company.getName(), branch != null ? branch.getName() : "N/A");
+        deviceOrgCache.invalidateDevice(deviceId);
 
         return deviceRepository.findById(deviceId)
                 .map(device -> {
@@ -173,5 +202,8 @@ public class DeviceService {
                 });
     }
 
-
+    private List<Device> withPresence(List<Device> devices) {
+        devices.forEach(presenceTracker::applyTo);
+        return devices;
+    }
 }
\ No newline at end of file
@@ -9,10 +9,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
-import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
@@ -26,23 +24,27 @@ public class DeviceStatusService {
     private final DeviceStatusRepository deviceStatusRepository;
     private final WebSocketSessionManager sessionManager;
     private final MessageBuilder messageBuilder;
+    private final DevicePresenceTracker presenceTracker;
 
     
     private final ConcurrentHashMap<String, Boolean> queryingDevices = new ConcurrentHashMap<>();
 
     
     public List<DeviceStatus> getAllDeviceStatuses() {
-        return deviceStatusRepository.findAll();
+        List<DeviceStatus> statuses = deviceStatusRepository.findAll();
+        statuses.forEach(presenceTracker::applyTo);
+        return statuses;
     }
 
     
     public Optional<DeviceStatus> getDeviceStatus(String deviceSerialNo) {
-        return deviceStatusRepository.findById(deviceSerialNo);
+        return deviceStatusRepository.findById(deviceSerialNo).map(presenceTracker::applyTo);
     }
 
     
     public DeviceStatus updateDeviceStatus(DeviceStatus deviceStatus) {
         deviceStatus.setLastStatusUpdate(LocalDateTime.now());
+        presenceTracker.applyTo(deviceStatus);
         return deviceStatusRepository.save(deviceStatus);
     }
 
@@ -52,6 +54,7 @@ public class DeviceStatusService {
         }
 
         try {
+            presenceTracker.applyTo(deviceStatus);
             return deviceStatusRepository.save(deviceStatus);
         } catch (Exception e) {
             log.error("Error saving device status for device: {}", deviceStatus.getDeviceSerialNo(), e);
@@ -59,14 +62,6 @@ public class DeviceStatusService {
         }
     }
     
-    public void updateDeviceOnlineStatus(String deviceSerialNo, boolean online) {
-        deviceStatusRepository.findById(deviceSerialNo).ifPresent(status -> {
-            status.setOnline(online);
-            status.setLastOnline(online ? LocalDateTime.now() : status.getLastOnline());
-            deviceStatusRepository.save(status);
-        });
-    }
-
     
     public DeviceStatus registerDevice(String deviceSerialNo, String terminalType, String terminalId,
                                        String productName, String deviceUid) {
@@ -95,24 +90,17 @@ public class DeviceStatusService {
 
         WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNo);
         if (session != null && session.isOpen()) {
-            try {
-                
-                queryingDevices.put(deviceSerialNo, true);
-
-                
-                String request = messageBuilder.buildGetDeviceStatusAllRequest();
-                session.sendMessage(new TextMessage(request));
-
-                
-                String firmwareRequest = messageBuilder.buildGetFirmwareVersionRequest();
-                session.sendMessage(new TextMessage(firmwareRequest));
+            queryingDevices.put(deviceSerialNo, true);
 
+            String request = messageBuilder.buildGetDeviceStatusAllRequest();
+            String firmwareRequest = messageBuilder.buildGetFirmwareVersionRequest();
+            if (sessionManager.sendMessageToDevice(deviceSerialNo, request)
+                    && sessionManager.sendMessageToDevice(deviceSerialNo, firmwareRequest)) {
                 log.info("Sent device status query to device: {}", deviceSerialNo);
                 return true;
-            } catch (IOException e) {
-                queryingDevices.put(deviceSerialNo, false);
-                log.error("Failed to send device status query to device: {}", deviceSerialNo, e);
             }
+            queryingDevices.put(deviceSerialNo, false);
+            log.error("Failed to send device status query to device: {}", deviceSerialNo);
         } else {
             log.warn("Device not connected: {}", deviceSerialNo);
         }
@@ -0,0 +1,13 @@
+package com.xaur.service;
+
+/**
+ * When a punch is acknowledged to the terminal.
+ * <ul>
+ *     <li>SYNC_DB - after the database batch holding it commits</li>
+ *     <li>JOURNALED - after it is forced to the local journal</li>
+ *     <li>ASYNC - after it is appended to the journal; forced to disk on the next drain cycle</li>
+ * </ul>
+ */
+public enum DurabilityMode {
+    SYNC_DB, JOURNALED, ASYNC
+}
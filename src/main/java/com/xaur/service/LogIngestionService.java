@@ -0,0 +1,548 @@
+package com.xaur.service;
+
+import com.xaur.journal.SegmentJournal;
+import com.xaur.model.AdminLog;
+import com.xaur.model.HrTimeSheetLog;
+import com.xaur.model.TimeLog;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage for attendance punches and admin logs. Records from all devices are grouped
+ * into micro-batches bounded by size and age and inserted with JDBC batches in one transaction;
+ * each caller's future completes only after the batch holding its record has committed.
+ * IDENTITY keys rule out Hibernate batching, hence plain JDBC here.
+ * <p>
+ * In the journaled durability modes records are appended to a local {@link SegmentJournal} and
+ * acknowledged right away; the writer then drains the journal instead of the in-memory queue and
+ * only advances the checkpoint after a commit, so punches survive database outages and restarts.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class LogIngestionService {
+
+    // resent frames hit the (device, trans id) unique keys and are skipped instead of failing the batch
+    private static final String INSERT_TIME_LOG = "INSERT INTO time_logs (log_id, device_serial_number, user_id, log_time, action, attend_stat, ap_stat, job_code, has_photo, log_image, trans_id, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE id = id";
+    private static final String INSERT_TIME_SHEET_LOG = "INSERT INTO hr_timesheet_log (date_code, employee_ref_code, employee_name, att_date, att_time, log_date, device_id, device_log_id, status, is_modified, is_processed, is_transfered, branch_code, company_code, createdby, createddate) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE id = id";
+    private static final String INSERT_ADMIN_LOG = "INSERT INTO admin_logs (log_id, device_serial_number, admin_id, user_id, log_time, action, stat, trans_id, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE id = id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${ingestion.batch-size:200}")
+    private int batchSize;
+
+    @Value("${ingestion.max-delay-ms:50}")
+    private long maxDelayMs;
+
+    @Value("${ingestion.queue-capacity:20000}")
+    private int queueCapacity;
+
+    @Value("${ingestion.durability:SYNC_DB}")
+    private DurabilityMode durability;
+
+    @Value("${ingestion.journal.dir:journal}")
+    private String journalDir;
+
+    @Value("${ingestion.journal.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    @Value("${ingestion.journal.max-segments:32}")
+    private int maxSegments;
+
+    @Value("${ingestion.journal.retry-backoff-ms:5000}")
+    private long retryBackoffMs;
+
+    private BlockingQueue<PendingLog> queue;
+    private SegmentJournal journal;
+    private Thread writer;
+    private volatile boolean running;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalCommitNanos = new AtomicLong();
+
+    @PostConstruct
+    public void start() throws IOException {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        if (durability != DurabilityMode.SYNC_DB) {
+            journal = new SegmentJournal(Paths.get(journalDir), segmentSizeMb * 1024 * 1024, maxSegments);
+        }
+        running = true;
+        writer = new Thread(journal != null ? this::runJournalDrainer : this::runWriter, "log-ingestion-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        writer.interrupt();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * @param timeSheetLog optional HR row written in the same transaction as the punch
+     * @return completes with true once the record is as durable as the configured mode requires,
+     * false if it was rejected or failed
+     */
+    public CompletableFuture<Boolean> submitTimeLog(TimeLog timeLog, HrTimeSheetLog timeSheetLog) {
+        return submit(new PendingLog(timeLog, timeSheetLog, null));
+    }
+
+    public CompletableFuture<Boolean> submitAdminLog(AdminLog adminLog) {
+        return submit(new PendingLog(null, null, adminLog));
+    }
+
+    private CompletableFuture<Boolean> submit(PendingLog pending) {
+        if (journal != null) {
+            try {
+                long seq = journal.append(encode(pending));
+                if (durability == DurabilityMode.JOURNALED) {
+                    journal.sync(seq);
+                }
+                pending.future.complete(true);
+            } catch (IOException e) {
+                rejected.incrementAndGet();
+                log.error("Failed to journal log record from device {}", pending.deviceSerialNumber(), e);
+                pending.future.complete(false);
+            }
+            return pending.future;
+        }
+        if (!running || !queue.offer(pending)) {
+            rejected.incrementAndGet();
+            log.warn("Log ingestion queue full ({} records), rejecting record", queue.size());
+            pending.future.complete(false);
+        }
+        return pending.future;
+    }
+
+    private void runWriter() {
+        List<PendingLog> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingLog first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingLog next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (running) {
+                    continue;
+                }
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void runJournalDrainer() {
+        while (running) {
+            try {
+                List<SegmentJournal.Entry> entries = journal.poll(batchSize, 1000, maxDelayMs);
+                if (durability == DurabilityMode.ASYNC) {
+                    journal.force();
+                }
+                if (entries.isEmpty()) {
+                    continue;
+                }
+                if (drain(entries)) {
+                    journal.commit(entries.get(entries.size() - 1).getSeq());
+                } else {
+                    journal.rewind();
+                    Thread.sleep(retryBackoffMs);
+                }
+            } catch (InterruptedException e) {
+                // stop() clears running; anything not committed is replayed on the next start
+            } catch (IOException e) {
+                log.error("Failed to write journal checkpoint", e);
+                journal.rewind();
+            }
+        }
+    }
+
+    /**
+     * Writes a journal batch. Returns false when the database is unreachable so the batch is
+     * retried later; records that fail while the database is up are set aside in a dead letter
+     * file instead of blocking the journal.
+     */
+    private boolean drain(List<SegmentJournal.Entry> entries) {
+        List<PendingLog> batch = new ArrayList<>(entries.size());
+        List<Long> seqs = new ArrayList<>(entries.size());
+        for (SegmentJournal.Entry entry : entries) {
+            try {
+                batch.add(decode(entry.getPayload()));
+                seqs.add(entry.getSeq());
+            } catch (IOException e) {
+                log.error("Undecodable journal record {}", entry.getSeq(), e);
+                deadLetter(entry.getSeq(), entry.getPayload());
+            }
+        }
+        long started = System.nanoTime();
+        try {
+            transactionTemplate.executeWithoutResult(status -> write(batch));
+            totalCommitNanos.addAndGet(System.nanoTime() - started);
+            batches.incrementAndGet();
+            written.addAndGet(batch.size());
+            return true;
+        } catch (Exception e) {
+            if (!databaseReachable()) {
+                log.warn("Database unavailable, {} journaled records waiting", journal.pending());
+                return false;
+            }
+            log.error("Batch insert of {} journaled records failed, retrying one by one", batch.size(), e);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            PendingLog pending = batch.get(i);
+            try {
+                transactionTemplate.executeWithoutResult(status -> write(Collections.singletonList(pending)));
+                written.incrementAndGet();
+            } catch (Exception e) {
+                if (!databaseReachable()) {
+                    return false;
+                }
+                failed.incrementAndGet();
+                log.error("Failed to persist journaled record from device {}", pending.deviceSerialNumber(), e);
+                deadLetter(seqs.get(i), encode(pending));
+            }
+        }
+        return true;
+    }
+
+    private boolean databaseReachable() {
+        try {
+            jdbcTemplate.queryForObject("SELECT 1", Integer.class);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void deadLetter(long seq, byte[] payload) {
+        Path file = Paths.get(journalDir, "rejected.log");
+        String line = seq + " " + Base64.getEncoder().encodeToString(payload) + System.lineSeparator();
+        try {
+            Files.write(file, line.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("Failed to write dead letter record {}: {}", seq, line, e);
+        }
+    }
+
+    private void flush(List<PendingLog> batch) {
+        long started = System.nanoTime();
+        try {
+            transactionTemplate.executeWithoutResult(status -> write(batch));
+            totalCommitNanos.addAndGet(System.nanoTime() - started);
+            batches.incrementAndGet();
+            written.addAndGet(batch.size());
+            batch.forEach(pending -> pending.future.complete(true));
+        } catch (Exception e) {
+            log.error("Batch insert of {} log records failed, retrying one by one", batch.size(), e);
+            // isolate bad rows so one record cannot fail the whole burst
+            for (PendingLog pending : batch) {
+                try {
+                    transactionTemplate.executeWithoutResult(status -> write(Collections.singletonList(pending)));
+                    written.incrementAndGet();
+                    pending.future.complete(true);
+                } catch (Exception single) {
+                    failed.incrementAndGet();
+                    log.error("Failed to persist log record from device {}", pending.deviceSerialNumber(), single);
+                    pending.future.complete(false);
+                }
+            }
+        }
+    }
+
+    private void write(List<PendingLog> batch) {
+        List<Object[]> timeLogs = new ArrayList<>();
+        List<Object[]> timeSheetLogs = new ArrayList<>();
+        List<Object[]> adminLogs = new ArrayList<>();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+
+        for (PendingLog pending : batch) {
+            if (pending.timeLog != null) {
+                TimeLog t = pending.timeLog;
+                timeLogs.add(new Object[]{t.getLogId(), t.getDeviceSerialNumber(), t.getUserId(), timestamp(t.getLogTime()),
+                        t.getAction(), t.getAttendStat(), t.getApStat(), t.getJobCode(), t.isHasPhoto(), t.getLogImage(),
+                        t.getTransId(), now});
+            }
+            if (pending.timeSheetLog != null) {
+                HrTimeSheetLog h = pending.timeSheetLog;
+                timeSheetLogs.add(new Object[]{date(h.getDateCode()), h.getEmployeeRefCode(), h.getEmployeeName(),
+                        date(h.getAttDate()), time(h.getAttTime()), timestamp(h.getLogDate()), h.getDeviceId(),
+                        h.getDeviceLogId(), h.getStatus(), h.getIsModified(), h.getIsProcessed(), h.getIsTransfered(),
+                        h.getBranchCode(), h.getCompanyCode(), h.getCreatedBy(), timestamp(h.getCreatedDate())});
+            }
+            if (pending.adminLog != null) {
+                AdminLog a = pending.adminLog;
+                adminLogs.add(new Object[]{a.getLogId(), a.getDeviceSerialNumber(), a.getAdminId(), a.getUserId(),
+                        timestamp(a.getLogTime()), a.getAction(), a.getStat(), a.getTransId(), now});
+            }
+        }
+
+        if (!timeLogs.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_TIME_LOG, timeLogs);
+        }
+        if (!timeSheetLogs.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_TIME_SHEET_LOG, timeSheetLogs);
+        }
+        if (!adminLogs.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_ADMIN_LOG, adminLogs);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long batchCount = batches.get();
+        stats.put("durability", durability);
+        stats.put("queueDepth", journal != null ? journal.pending() : queue.size());
+        if (journal != null) {
+            stats.put("journalSegments", journal.segmentCount());
+        }
+        stats.put("batches", batchCount);
+        stats.put("written", written.get());
+        stats.put("failed", failed.get());
+        stats.put("rejected", rejected.get());
+        stats.put("avgBatchSize", batchCount == 0 ? 0 : written.get() / batchCount);
+        stats.put("avgCommitMs", batchCount == 0 ? 0 : totalCommitNanos.get() / batchCount / 1_000_000);
+        return stats;
+    }
+
+    private static byte[] encode(PendingLog pending) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeBoolean(pending.timeLog != null);
+            if (pending.timeLog != null) {
+                TimeLog t = pending.timeLog;
+                writeString(out, t.getLogId());
+                writeString(out, t.getDeviceSerialNumber());
+                writeString(out, t.getUserId());
+                writeString(out, string(t.getLogTime()));
+                writeString(out, t.getAction());
+                writeString(out, t.getAttendStat());
+                writeString(out, t.getApStat());
+                writeString(out, t.getJobCode() != null ? t.getJobCode().toString() : null);
+                out.writeBoolean(t.isHasPhoto());
+                writeString(out, t.getLogImage());
+                writeString(out, t.getTransId());
+            }
+            out.writeBoolean(pending.timeSheetLog != null);
+            if (pending.timeSheetLog != null) {
+                HrTimeSheetLog h = pending.timeSheetLog;
+                writeString(out, string(h.getDateCode()));
+                writeString(out, h.getEmployeeRefCode());
+                writeString(out, h.getEmployeeName());
+                writeString(out, string(h.getAttDate()));
+                writeString(out, string(h.getAttTime()));
+                writeString(out, string(h.getLogDate()));
+                writeString(out, h.getDeviceId());
+                writeString(out, h.getDeviceLogId() != null ? h.getDeviceLogId().toString() : null);
+                writeString(out, h.getStatus());
+                writeString(out, string(h.getIsModified()));
+                writeString(out, string(h.getIsProcessed()));
+                writeString(out, string(h.getIsTransfered()));
+                writeString(out, h.getBranchCode());
+                writeString(out, h.getCompanyCode());
+                writeString(out, h.getCreatedBy());
+                writeString(out, string(h.getCreatedDate()));
+            }
+            out.writeBoolean(pending.adminLog != null);
+            if (pending.adminLog != null) {
+                AdminLog a = pending.adminLog;
+                writeString(out, a.getLogId());
+                writeString(out, a.getDeviceSerialNumber());
+                writeString(out, a.getAdminId());
+                writeString(out, a.getUserId());
+                writeString(out, string(a.getLogTime()));
+                writeString(out, a.getAction());
+                writeString(out, a.getStat() != null ? a.getStat().toString() : null);
+                writeString(out, a.getTransId());
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static PendingLog decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        TimeLog timeLog = null;
+        HrTimeSheetLog timeSheetLog = null;
+        AdminLog adminLog = null;
+        if (in.readBoolean()) {
+            timeLog = TimeLog.builder()
+                    .logId(readString(in))
+                    .deviceSerialNumber(readString(in))
+                    .userId(readString(in))
+                    .logTime(dateTime(readString(in)))
+                    .action(readString(in))
+                    .attendStat(readString(in))
+                    .apStat(readString(in))
+                    .jobCode(integer(readString(in)))
+                    .hasPhoto(in.readBoolean())
+                    .logImage(readString(in))
+                    .transId(readString(in))
+                    .build();
+        }
+        if (in.readBoolean()) {
+            timeSheetLog = new HrTimeSheetLog();
+            timeSheetLog.setDateCode(date(readString(in)));
+            timeSheetLog.setEmployeeRefCode(readString(in));
+            timeSheetLog.setEmployeeName(readString(in));
+            timeSheetLog.setAttDate(date(readString(in)));
+            String attTime = readString(in);
+            timeSheetLog.setAttTime(attTime != null ? LocalTime.parse(attTime) : null);
+            timeSheetLog.setLogDate(dateTime(readString(in)));
+            timeSheetLog.setDeviceId(readString(in));
+            String deviceLogId = readString(in);
+            timeSheetLog.setDeviceLogId(deviceLogId != null ? Long.valueOf(deviceLogId) : null);
+            timeSheetLog.setStatus(readString(in));
+            timeSheetLog.setIsModified(bool(readString(in)));
+            timeSheetLog.setIsProcessed(bool(readString(in)));
+            timeSheetLog.setIsTransfered(bool(readString(in)));
+            timeSheetLog.setBranchCode(readString(in));
+            timeSheetLog.setCompanyCode(readString(in));
+            timeSheetLog.setCreatedBy(readString(in));
+            timeSheetLog.setCreatedDate(dateTime(readString(in)));
+        }
+        if (in.readBoolean()) {
+            adminLog = AdminLog.builder()
+                    .logId(readString(in))
+                    .deviceSerialNumber(readString(in))
+                    .adminId(readString(in))
+                    .userId(readString(in))
+                    .logTime(dateTime(readString(in)))
+                    .action(readString(in))
+                    .stat(integer(readString(in)))
+                    .transId(readString(in))
+                    .build();
+        }
+        return new PendingLog(timeLog, timeSheetLog, adminLog);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String string(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static LocalDateTime dateTime(String value) {
+        return value != null ? LocalDateTime.parse(value) : null;
+    }
+
+    private static LocalDate date(String value) {
+        return value != null ? LocalDate.parse(value) : null;
+    }
+
+    private static Integer integer(String value) {
+        return value != null ? Integer.valueOf(value) : null;
+    }
+
+    private static Boolean bool(String value) {
+        return value != null ? Boolean.valueOf(value) : null;
+    }
+
+    private static Timestamp timestamp(LocalDateTime value) {
+        return value != null ? Timestamp.valueOf(value) : null;
+    }
+
+    private static Date date(LocalDate value) {
+        return value != null ? Date.valueOf(value) : null;
+    }
+
+    private static Time time(LocalTime value) {
+        return value != null ? Time.valueOf(value) : null;
+    }
+
+    private static final class PendingLog {
+        private final TimeLog timeLog;
+        private final HrTimeSheetLog timeSheetLog;
+        private final AdminLog adminLog;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private PendingLog(TimeLog timeLog, HrTimeSheetLog timeSheetLog, AdminLog adminLog) {
+            this.timeLog = timeLog;
+            this.timeSheetLog = timeSheetLog;
+            this.adminLog = adminLog;
+        }
+
+        private String deviceSerialNumber() {
+            return timeLog != null ? timeLog.getDeviceSerialNumber() : adminLog.getDeviceSerialNumber();
+        }
+    }
+}
@@ -0,0 +1,561 @@
+package com.xaur.service;
+
+import com.xaur.dto.ProvisioningRequest;
+import com.xaur.dto.ProvisioningStatus;
+import com.xaur.dto.UserData;
+import com.xaur.model.User;
+import com.xaur.model.UserFaceData;
+import com.xaur.model.UserFingerData;
+import com.xaur.repository.UserFaceDataRepository;
+import com.xaur.repository.UserFingerDataRepository;
+import com.xaur.repository.UserRepository;
+import com.xaur.websocket.RequestWindow;
+import com.xaur.websocket.WebSocketSessionManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans user provisioning and deprovisioning out to many terminals. A job covers a set of users and a
+ * set of target devices; user records and templates are loaded once per job and every
+ * (user, device) pair becomes an item queued on that device's lane. Each lane keeps a
+ * {@link RequestWindow} of SetUserData commands outstanding and completes items from the
+ * SetUserData answers; fingerprints follow once the terminal has accepted the user. Lanes are shared
+ * by all jobs so concurrent jobs never overrun a device, and items for offline devices wait for the
+ * device to come back until provisioning.offline-wait-minutes.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ProvisioningService {
+
+    private static final int IN_CHUNK = 500;
+
+    private final UserRepository userRepository;
+    private final UserFingerDataRepository userFingerDataRepository;
+    private final UserFaceDataRepository userFaceDataRepository;
+    private final UserCommandService userCommandService;
+    private final UserService userService;
+    private final UserFingerDataService userFingerDataService;
+    private final UserFaceDataService userFaceDataService;
+    private final DeviceService deviceService;
+    private final WebSocketSessionManager sessionManager;
+    private final TemplateStore templateStore;
+
+    @Value("${provisioning.initial-window:1}")
+    private int initialWindow;
+
+    @Value("${provisioning.max-window:4}")
+    private int maxWindow;
+
+    @Value("${provisioning.min-timeout-ms:5000}")
+    private long minTimeoutMs;
+
+    @Value("${provisioning.max-timeout-ms:30000}")
+    private long maxTimeoutMs;
+
+    @Value("${provisioning.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${provisioning.offline-wait-minutes:60}")
+    private long offlineWaitMinutes;
+
+    @Value("${provisioning.retained-jobs:50}")
+    private int retainedJobs;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a job and starts sending to the connected targets.
+     *
+     * @throws IllegalArgumentException for an unknown action, no users, or no targets
+     */
+    public ProvisioningStatus submit(ProvisioningRequest request) {
+        String action = request.getAction() == null ? "PROVISION" : request.getAction().trim().toUpperCase();
+        boolean delete;
+        if ("PROVISION".equals(action)) {
+            delete = false;
+        } else if ("DEPROVISION".equals(action)) {
+            delete = true;
+        } else {
+            throw new IllegalArgumentException("Unknown action: " + request.getAction());
+        }
+        LinkedHashSet<String> userIds = new LinkedHashSet<>();
+        if (request.getUserIds() != null) {
+            for (String userId : request.getUserIds()) {
+                if (userId != null && !userId.trim().isEmpty()) {
+                    userIds.add(userId.trim());
+                }
+            }
+        }
+        if (userIds.isEmpty()) {
+            throw new IllegalArgumentException("No users given");
+        }
+        List<String> targets = deviceService.resolveTargetSerialNumbers(
+                request.getTargetDeviceSerialNumbers(), request.getCompanyId(), request.getBranchId());
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No target devices given or found");
+        }
+
+        Job job = new Job(UUID.randomUUID().toString(), action, userIds.size() * targets.size());
+        Map<String, Payload> payloads = delete ? new HashMap<>() : loadPayloads(userIds, request.getSourceDeviceSerialNumber());
+        for (String target : targets) {
+            for (String userId : userIds) {
+                Item item = new Item(job, userId, target, delete, payloads.get(userId));
+                job.items.add(item);
+                if (!delete && item.payload == null) {
+                    item.fail("User not found" + (request.getSourceDeviceSerialNumber() == null
+                            ? "" : " on source device " + request.getSourceDeviceSerialNumber()));
+                }
+            }
+        }
+
+        evictFinishedJobs();
+        jobs.put(job.id, job);
+        Map<String, List<Item>> byDevice = new LinkedHashMap<>();
+        for (Item item : job.items) {
+            if ("PENDING".equals(item.status)) {
+                byDevice.computeIfAbsent(item.deviceSerialNumber, serial -> new ArrayList<>()).add(item);
+            }
+        }
+        byDevice.forEach(this::enqueue);
+        log.info("Provisioning job {} ({}): {} users x {} devices", job.id, action, userIds.size(), targets.size());
+        return job.snapshot(false);
+    }
+
+    public java.util.Optional<ProvisioningStatus> getStatus(String jobId, boolean allItems) {
+        Job job = jobs.get(jobId);
+        return job == null ? java.util.Optional.empty() : java.util.Optional.of(job.snapshot(allItems));
+    }
+
+    /**
+     * Completes the item a SetUserData answer belongs to.
+     *
+     * @return false if no provisioning item was waiting for it
+     */
+    public boolean onSetUserDataResult(String deviceSerialNumber, String userId, String type, boolean ok, String result) {
+        Lane lane = deviceSerialNumber == null ? null : lanes.get(deviceSerialNumber);
+        return lane != null && lane.onResult(userId, "Delete".equalsIgnoreCase(type), ok, result);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("jobsRunning", jobs.values().stream().filter(job -> job.finishedAt == null).count());
+        stats.put("jobsRetained", jobs.size());
+        Map<String, Object> active = new LinkedHashMap<>();
+        lanes.forEach((serial, lane) -> active.put(serial, lane.stats()));
+        stats.put("devices", active);
+        return stats;
+    }
+
+    /** Queues items on the device's lane, replacing a lane that tick() retired meanwhile. */
+    private void enqueue(String deviceSerialNumber, List<Item> items) {
+        while (!lanes.compute(deviceSerialNumber, (serial, lane) -> lane == null || lane.retired ? new Lane(serial) : lane).enqueue(items)) {
+            // retired between the lookup and enqueue; the next compute replaces it
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${provisioning.tick-ms:1000}")
+    public void tick() {
+        lanes.values().forEach(Lane::tick);
+        lanes.forEach((serial, lane) -> {
+            if (lane.retireIfIdle()) {
+                lanes.remove(serial, lane);
+            }
+        });
+    }
+
+    /** Builds each user's SetUserData and SetFingerData commands once for all targets. */
+    private Map<String, Payload> loadPayloads(Collection<String> userIds, String sourceDeviceSerialNumber) {
+        Map<String, User> users = new HashMap<>();
+        for (List<String> chunk : chunks(userIds)) {
+            List<User> rows = sourceDeviceSerialNumber != null
+                    ? userRepository.findByUserIdInAndDeviceSerialNumber(chunk, sourceDeviceSerialNumber)
+                    : userRepository.findByUserIdIn(chunk);
+            for (User user : rows) {
+                users.merge(user.getUserId(), user, ProvisioningService::newer);
+            }
+        }
+
+        // templates are read from the device each user record was taken from
+        Map<String, List<String>> bySource = new HashMap<>();
+        users.values().forEach(user -> bySource.computeIfAbsent(user.getDeviceSerialNumber(), s -> new ArrayList<>()).add(user.getUserId()));
+        Map<String, List<UserFingerData>> fingers = new HashMap<>();
+        Map<String, UserFaceData> faces = new HashMap<>();
+        bySource.forEach((source, ids) -> {
+            for (List<String> chunk : chunks(ids)) {
+                for (UserFingerData finger : userFingerDataRepository.findByUserIdInAndDeviceSerialNumber(chunk, source)) {
+                    fingers.computeIfAbsent(finger.getUserId(), id -> new ArrayList<>()).add(finger);
+                }
+                for (UserFaceData face : userFaceDataRepository.findByUserIdInAndDeviceSerialNumber(chunk, source)) {
+                    faces.put(face.getUserId(), face);
+                }
+            }
+        });
+        Map<String, String> templates = loadTemplates(fingers, faces);
+
+        Map<String, Payload> payloads = new HashMap<>();
+        users.forEach((userId, user) -> {
+            UserData userData = UserData.builder()
+                    .name(user.getName())
+                    .privilege(user.getPrivilege())
+                    .enabled(user.isEnabled())
+                    .Department(user.getDepartment())
+                    .timeSet1(user.getTimeSet1())
+                    .timeSet2(user.getTimeSet2())
+                    .timeSet3(user.getTimeSet3())
+                    .timeSet4(user.getTimeSet4())
+                    .timeSet5(user.getTimeSet5())
+                    .userPeriodUsed(user.isUserPeriodUsed())
+                    .userPeriodStart(user.getUserPeriodStart())
+                    .userPeriodEnd(user.getUserPeriodEnd())
+                    .card(user.getCard())
+                    .password(user.getPassword())
+                    .allowNoCertificate(true)
+                    .build();
+            UserFaceData face = faces.get(userId);
+            if (face != null) {
+                userData.setFaceData(face.getTemplateHash() != null ? templates.get(face.getTemplateHash()) : face.getFaceData());
+            }
+            List<UserFingerData> userFingers = fingers.getOrDefault(userId, new ArrayList<>());
+            List<String> fingerCommands = new ArrayList<>();
+            for (UserFingerData finger : userFingers) {
+                String template = finger.getTemplateHash() != null ? templates.get(finger.getTemplateHash()) : finger.getFingerData();
+                fingerCommands.add(userCommandService.buildSetFingerDataCommand(userId, finger.getFingerNo(), finger.getDuress(), template));
+            }
+            payloads.put(userId, new Payload(userCommandService.buildSetUserDataCommand(userId, userData), fingerCommands, face, userFingers));
+        });
+        return payloads;
+    }
+
+    /** Each distinct template is read and encoded once, however many users and targets share it. */
+    private Map<String, String> loadTemplates(Map<String, List<UserFingerData>> fingers, Map<String, UserFaceData> faces) {
+        Set<String> hashes = new HashSet<>();
+        fingers.values().forEach(list -> list.forEach(finger -> hashes.add(finger.getTemplateHash())));
+        faces.values().forEach(face -> hashes.add(face.getTemplateHash()));
+        hashes.remove(null);
+        Map<String, String> templates = new HashMap<>();
+        for (List<String> chunk : chunks(hashes)) {
+            templates.putAll(templateStore.getAll(chunk));
+        }
+        return templates;
+    }
+
+    private static User newer(User a, User b) {
+        if (a.getUpdatedAt() == null) {
+            return b;
+        }
+        return b.getUpdatedAt() != null && b.getUpdatedAt().isAfter(a.getUpdatedAt()) ? b : a;
+    }
+
+    private static List<List<String>> chunks(Collection<String> values) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        for (String value : values) {
+            current.add(value);
+            if (current.size() == IN_CHUNK) {
+                chunks.add(current);
+                current = new ArrayList<>();
+            }
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private void evictFinishedJobs() {
+        if (jobs.size() < retainedJobs) {
+            return;
+        }
+        jobs.values().stream()
+                .filter(job -> job.finishedAt != null)
+                .sorted((a, b) -> a.finishedAt.compareTo(b.finishedAt))
+                .limit(jobs.size() - retainedJobs + 1)
+                .forEach(job -> jobs.remove(job.id));
+    }
+
+    private static final class Payload {
+        private final String setUserCommand;
+        private final List<String> fingerCommands;
+        private final UserFaceData face;
+        private final List<UserFingerData> fingers;
+
+        Payload(String setUserCommand, List<String> fingerCommands, UserFaceData face, List<UserFingerData> fingers) {
+            this.setUserCommand = setUserCommand;
+            this.fingerCommands = fingerCommands;
+            this.face = face;
+            this.fingers = fingers;
+        }
+    }
+
+    private final class Item {
+        private final Job job;
+        private final String userId;
+        private final String deviceSerialNumber;
+        private final boolean delete;
+        private final Payload payload;
+        private volatile String status = "PENDING";
+        private volatile String error;
+        private volatile int attempts;
+
+        Item(Job job, String userId, String deviceSerialNumber, boolean delete, Payload payload) {
+            this.job = job;
+            this.userId = userId;
+            this.deviceSerialNumber = deviceSerialNumber;
+            this.delete = delete;
+            this.payload = payload;
+        }
+
+        void complete() {
+            finish("COMPLETED", null);
+        }
+
+        void fail(String reason) {
+            finish("FAILED", reason);
+        }
+
+        private void finish(String outcome, String reason) {
+            boolean first = !"COMPLETED".equals(status) && !"FAILED".equals(status);
+            status = outcome;
+            error = reason;
+            if (first) {
+                job.itemFinished();
+            }
+        }
+    }
+
+    private final class Lane {
+
+        private final String deviceSerialNumber;
+        private final Deque<Item> queue = new ArrayDeque<>();
+        private final Map<String, Item> inFlight = new HashMap<>();
+        private final RequestWindow window = new RequestWindow(initialWindow, maxWindow, minTimeoutMs, maxTimeoutMs);
+        /** set under the lane's lock once it is idle and about to leave the lane map; it takes no more items */
+        private volatile boolean retired;
+
+        Lane(String deviceSerialNumber) {
+            this.deviceSerialNumber = deviceSerialNumber;
+        }
+
+        /** @return false if the lane was retired, in which case the items were not taken */
+        synchronized boolean enqueue(List<Item> items) {
+            if (retired) {
+                return false;
+            }
+            queue.addAll(items);
+            pump();
+            return true;
+        }
+
+        synchronized boolean retireIfIdle() {
+            if (queue.isEmpty() && inFlight.isEmpty()) {
+                retired = true;
+            }
+            return retired;
+        }
+
+        synchronized void pump() {
+            if (!isConnected()) {
+                return;
+            }
+            List<Item> deferred = new ArrayList<>();
+            while (window.hasCredit() && !queue.isEmpty()) {
+                Item item = queue.poll();
+                if (inFlight.containsKey(item.userId)) {
+                    // answers are matched by UserID, so one command per user at a time
+                    deferred.add(item);
+                    continue;
+                }
+                String command = item.delete ? userCommandService.buildDeleteUserCommand(item.userId) : item.payload.setUserCommand;
+                item.attempts++;
+                item.status = "SENT";
+                inFlight.put(item.userId, item);
+                window.sent(item.userId);
+                if (!sessionManager.sendMessageToDevice(deviceSerialNumber, command)) {
+                    window.cancel(item.userId);
+                    inFlight.remove(item.userId);
+                    item.status = "PENDING";
+                    queue.addFirst(item);
+                    break;
+                }
+            }
+            for (int i = deferred.size() - 1; i >= 0; i--) {
+                queue.addFirst(deferred.get(i));
+            }
+        }
+
+        synchronized boolean onResult(String userId, boolean deleteAnswer, boolean ok, String result) {
+            Item item = inFlight.get(userId);
+            if (item == null || item.delete != deleteAnswer) {
+                return false;
+            }
+            inFlight.remove(userId);
+            window.complete(userId);
+            if (ok) {
+                if (item.delete) {
+                    removeLocalRecords(item);
+                } else {
+                    for (String fingerCommand : item.payload.fingerCommands) {
+                        sessionManager.sendMessageToDevice(deviceSerialNumber, fingerCommand);
+                    }
+                    copyTemplateReferences(item);
+                }
+                item.complete();
+            } else {
+                retryOrFail(item, "Device answered " + result);
+            }
+            pump();
+            return true;
+        }
+
+        synchronized void tick() {
+            if (!isConnected()) {
+                // unanswered commands are sent again once the device is back
+                for (Item item : inFlight.values()) {
+                    window.cancel(item.userId);
+                    item.status = "PENDING";
+                    queue.addFirst(item);
+                }
+                inFlight.clear();
+                LocalDateTime cutoff = LocalDateTime.now().minusMinutes(offlineWaitMinutes);
+                queue.removeIf(item -> {
+                    if (item.job.createdAt.isBefore(cutoff)) {
+                        item.fail("Device offline");
+                        return true;
+                    }
+                    return false;
+                });
+                return;
+            }
+            for (String userId : window.expire()) {
+                Item item = inFlight.remove(userId);
+                if (item != null) {
+                    retryOrFail(item, "No answer from device");
+                }
+            }
+            pump();
+        }
+
+        synchronized Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("connected", isConnected());
+            stats.put("queued", queue.size());
+            stats.put("inFlight", inFlight.size());
+            stats.put("window", Math.round(window.window() * 10) / 10.0);
+            stats.put("latencyMs", Math.round(window.smoothedRttMs()));
+            return stats;
+        }
+
+        private void retryOrFail(Item item, String reason) {
+            if (item.attempts >= maxAttempts) {
+                item.fail(reason);
+                log.warn("Provisioning {} of user {} on {} failed after {} attempts: {}",
+                        item.delete ? "delete" : "set", item.userId, deviceSerialNumber, item.attempts, reason);
+            } else {
+                item.status = "PENDING";
+                item.error = reason;
+                queue.add(item);
+            }
+        }
+
+        /** The target now holds the source's templates; record that without touching the blobs. */
+        private void copyTemplateReferences(Item item) {
+            try {
+                if (item.payload.face != null) {
+                    userFaceDataService.copyFaceReference(item.payload.face, deviceSerialNumber);
+                }
+                if (!item.payload.fingers.isEmpty()) {
+                    userFingerDataService.copyFingerReferences(item.userId, item.payload.fingers, deviceSerialNumber);
+                }
+            } catch (Exception e) {
+                log.warn("Failed to record templates of user {} on {}", item.userId, deviceSerialNumber, e);
+            }
+        }
+
+        private void removeLocalRecords(Item item) {
+            try {
+                userService.deleteUser(item.userId, deviceSerialNumber);
+                userFingerDataService.deleteUserFingerData(item.userId, deviceSerialNumber);
+                userFaceDataService.deleteUserFaceData(item.userId, deviceSerialNumber);
+            } catch (Exception e) {
+                log.error("Failed to remove local records of user {} on {}", item.userId, deviceSerialNumber, e);
+            }
+        }
+
+        private boolean isConnected() {
+            WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
+            return session != null && session.isOpen();
+        }
+    }
+
+    private final class Job {
+        private final String id;
+        private final String action;
+        private final LocalDateTime createdAt = LocalDateTime.now();
+        private final List<Item> items = new ArrayList<>();
+        /** items not yet COMPLETED or FAILED */
+        private final AtomicInteger remaining;
+        private volatile LocalDateTime finishedAt;
+
+        Job(String id, String action, int itemCount) {
+            this.id = id;
+            this.action = action;
+            this.remaining = new AtomicInteger(itemCount);
+        }
+
+        void itemFinished() {
+            if (remaining.decrementAndGet() == 0) {
+                finishedAt = LocalDateTime.now();
+                log.info("Provisioning job {} finished", id);
+            }
+        }
+
+        ProvisioningStatus snapshot(boolean allItems) {
+            Map<String, Integer> totals = new LinkedHashMap<>();
+            for (String status : new String[]{"PENDING", "SENT", "COMPLETED", "FAILED"}) {
+                totals.put(status, 0);
+            }
+            Map<String, Map<String, Integer>> devices = new LinkedHashMap<>();
+            List<ProvisioningStatus.Item> reported = new ArrayList<>();
+            for (Item item : items) {
+                String status = item.status;
+                totals.merge(status, 1, Integer::sum);
+                devices.computeIfAbsent(item.deviceSerialNumber, serial -> new LinkedHashMap<>()).merge(status, 1, Integer::sum);
+                if (allItems || "FAILED".equals(status)) {
+                    reported.add(new ProvisioningStatus.Item(item.userId, item.deviceSerialNumber, status, item.attempts, item.error));
+                }
+            }
+            return ProvisioningStatus.builder()
+                    .jobId(id)
+                    .action(action)
+                    .state(finishedAt == null ? "RUNNING" : "COMPLETED")
+                    .createdAt(createdAt)
+                    .finishedAt(finishedAt)
+                    .totals(totals)
+                    .devices(devices)
+                    .items(reported)
+                    .build();
+        }
+    }
+}
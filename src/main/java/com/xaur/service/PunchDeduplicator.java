@@ -0,0 +1,76 @@
+package com.xaur.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the most recent log keys persisted for each device so that frames a terminal resends
+ * after a lost ACK can be answered without touching the database. The unique keys on
+ * (device, trans_id) remain the source of truth after a restart or an eviction.
+ */
+@Component
+@Slf4j
+public class PunchDeduplicator {
+
+    @Value("${ingestion.dedup.entries-per-device:4096}")
+    private int entriesPerDevice;
+
+    private final Map<String, Map<String, Boolean>> recentKeys = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public boolean isDuplicate(String logType, String deviceSerialNumber, String key) {
+        if (deviceSerialNumber == null || key == null) {
+            return false;
+        }
+        Map<String, Boolean> keys = recentKeys.get(deviceSerialNumber);
+        boolean duplicate;
+        if (keys == null) {
+            duplicate = false;
+        } else {
+            synchronized (keys) {
+                duplicate = keys.get(logType + ':' + key) != null;
+            }
+        }
+        if (duplicate) {
+            hits.incrementAndGet();
+            log.debug("Duplicate {} {} from device {}, acknowledging without insert", logType, key, deviceSerialNumber);
+        } else {
+            misses.incrementAndGet();
+        }
+        return duplicate;
+    }
+
+    public void remember(String logType, String deviceSerialNumber, String key) {
+        if (deviceSerialNumber == null || key == null) {
+            return;
+        }
+        Map<String, Boolean> keys = recentKeys.computeIfAbsent(deviceSerialNumber, serial -> newLru());
+        synchronized (keys) {
+            keys.put(logType + ':' + key, Boolean.TRUE);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("devices", recentKeys.size());
+        stats.put("duplicates", hits.get());
+        stats.put("misses", misses.get());
+        return stats;
+    }
+
+    private Map<String, Boolean> newLru() {
+        return new LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > entriesPerDevice;
+            }
+        };
+    }
+}
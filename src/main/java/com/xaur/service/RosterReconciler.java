@@ -0,0 +1,390 @@
+package com.xaur.service;
+
+import com.xaur.dto.UserData;
+import com.xaur.model.CommandPriority;
+import com.xaur.model.Device;
+import com.xaur.model.ScheduledCommand;
+import com.xaur.model.User;
+import com.xaur.model.UserFaceData;
+import com.xaur.model.UserFingerData;
+import com.xaur.repository.DeviceRepository;
+import com.xaur.repository.ScheduledCommandRepository;
+import com.xaur.repository.UserFaceDataRepository;
+import com.xaur.repository.UserFingerDataRepository;
+import com.xaur.repository.UserRepository;
+import com.xaur.service.RosterSnapshotService.Fingerprint;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings drifted devices back in line with the users tables by pushing only what differs. Each
+ * user's fingerprint on the server is compared with the one recorded for the device at its last
+ * roster walk or harvest; changed or missing users get a SetUserData, changed fingers a
+ * SetFingerData, and users the server no longer has a delete. The commands go through
+ * command_queue, so devices that are offline pick them up when they reconnect.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class RosterReconciler {
+
+    static final String SET = "SET";
+    static final String DELETE = "DELETE";
+    static final String SET_FINGER = "SET_FINGER";
+
+    private static final List<String> OPEN_STATUSES = Arrays.asList("PENDING", "SENT");
+    private static final int LOAD_CHUNK = 500;
+
+    private final RosterSnapshotService snapshotService;
+    private final DeviceRepository deviceRepository;
+    private final ScheduledCommandRepository commandRepository;
+    private final ScheduledCommandService scheduledCommandService;
+    private final UserRepository userRepository;
+    private final UserFingerDataRepository userFingerDataRepository;
+    private final UserFaceDataRepository userFaceDataRepository;
+    private final UserCommandService userCommandService;
+    private final TemplateStore templateStore;
+    private final UserSyncService userSyncService;
+    private final TemplateHarvester templateHarvester;
+    private final DeviceMigrationService deviceMigrationService;
+
+    @Value("${reconcile.enabled:true}")
+    private boolean enabled;
+
+    /** deletes beyond this share of the recorded roster are held back as a likely data problem */
+    @Value("${reconcile.max-delete-fraction:0.5}")
+    private double maxDeleteFraction;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong devicesReconciled = new AtomicLong();
+    private final AtomicLong devicesInSync = new AtomicLong();
+    private final AtomicLong devicesSkipped = new AtomicLong();
+    private final AtomicLong usersSet = new AtomicLong();
+    private final AtomicLong fingersSet = new AtomicLong();
+    private final AtomicLong usersDeleted = new AtomicLong();
+    private final AtomicLong deletesHeldBack = new AtomicLong();
+    private final AtomicLong bytesQueued = new AtomicLong();
+    private final AtomicLong commandsFailed = new AtomicLong();
+
+    @Scheduled(cron = "${reconcile.cron:0 30 2 * * *}")
+    public void reconcileAll() {
+        if (!enabled) {
+            return;
+        }
+        runs.incrementAndGet();
+        long started = System.currentTimeMillis();
+        long queuedBefore = bytesQueued.get();
+        for (Device device : deviceRepository.findAll()) {
+            try {
+                reconcile(device.getSerialNumber(), false);
+            } catch (Exception e) {
+                log.error("Roster reconciliation failed for device: {}", device.getSerialNumber(), e);
+            }
+        }
+        log.info("Roster reconciliation finished in {} ms, {} bytes of commands queued",
+                System.currentTimeMillis() - started, bytesQueued.get() - queuedBefore);
+    }
+
+    /**
+     * Diffs one device and, unless dryRun, queues the commands that bring it in line.
+     *
+     * @throws IllegalArgumentException if the device is unknown
+     */
+    public Map<String, Object> reconcile(String deviceSerialNumber, boolean dryRun) {
+        if (!deviceRepository.existsBySerialNumber(deviceSerialNumber)) {
+            throw new IllegalArgumentException("Device not found: " + deviceSerialNumber);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("deviceSerialNumber", deviceSerialNumber);
+        result.put("dryRun", dryRun);
+
+        String busyReason = busyReason(deviceSerialNumber);
+        Map<String, Fingerprint> device = busyReason == null ? snapshotService.load(deviceSerialNumber) : null;
+        if (busyReason == null && device.isEmpty()) {
+            busyReason = "no roster recorded yet, the next complete roster walk records it";
+        }
+        if (busyReason != null) {
+            devicesSkipped.incrementAndGet();
+            result.put("status", "SKIPPED");
+            result.put("reason", busyReason);
+            return result;
+        }
+
+        Map<String, Fingerprint> server = snapshotService.compute(deviceSerialNumber);
+        Set<String> open = new HashSet<>(commandRepository.findUserIdsByDeviceSerialNumberAndStatusIn(deviceSerialNumber, OPEN_STATUSES));
+
+        Set<String> sets = new TreeSet<>();
+        Map<String, Set<Integer>> fingers = new HashMap<>();
+        Map<String, Fingerprint> pushed = new HashMap<>();
+        int fingerRemovals = 0;
+        for (Map.Entry<String, Fingerprint> entry : server.entrySet()) {
+            String userId = entry.getKey();
+            Fingerprint wanted = entry.getValue();
+            Fingerprint held = device.get(userId);
+            if (open.contains(userId)) {
+                continue;
+            }
+            Map<Integer, String> wantedFingers = wanted.fingerEntries();
+            Set<Integer> changedFingers = new TreeSet<>();
+            if (held == null) {
+                sets.add(userId);
+                changedFingers.addAll(wantedFingers.keySet());
+            } else {
+                if (!wanted.sameUser(held)) {
+                    sets.add(userId);
+                }
+                if (!wanted.sameFingers(held)) {
+                    Map<Integer, String> heldFingers = held.fingerEntries();
+                    wantedFingers.forEach((fingerNo, fingerEntry) -> {
+                        if (!fingerEntry.equals(heldFingers.get(fingerNo))) {
+                            changedFingers.add(fingerNo);
+                        }
+                    });
+                    // SetFingerData cannot take a finger off the terminal; that needs re-enrolling there
+                    if (!wantedFingers.keySet().containsAll(heldFingers.keySet())) {
+                        fingerRemovals++;
+                    }
+                }
+            }
+            if (!changedFingers.isEmpty()) {
+                fingers.put(userId, changedFingers);
+            }
+            if (held == null || !wanted.sameUser(held) || !wanted.sameFingers(held)) {
+                pushed.put(userId, wanted);
+            }
+        }
+
+        List<String> deletes = new ArrayList<>();
+        for (String userId : device.keySet()) {
+            if (!server.containsKey(userId) && !open.contains(userId)) {
+                deletes.add(userId);
+            }
+        }
+        int heldBack = 0;
+        if (deletes.size() > maxDeleteFraction * device.size()) {
+            heldBack = deletes.size();
+            log.warn("Reconciliation of {} would delete {} of {} users, holding the deletes back",
+                    deviceSerialNumber, deletes.size(), device.size());
+            deletes.clear();
+        }
+        deletes.sort(null);
+
+        int fingerCount = fingers.values().stream().mapToInt(Set::size).sum();
+        result.put("usersChecked", server.size());
+        result.put("usersWithOpenCommands", open.size());
+        result.put("usersToSet", sets.size());
+        result.put("fingersToSet", fingerCount);
+        result.put("usersToDelete", deletes.size());
+        result.put("deletesHeldBack", heldBack);
+        result.put("fingerRemovalsSkipped", fingerRemovals);
+
+        if (sets.isEmpty() && fingers.isEmpty() && deletes.isEmpty()) {
+            if (!dryRun) {
+                devicesInSync.incrementAndGet();
+                // nothing to send, but snapshot rows for users whose only difference was a removed finger are settled
+                snapshotService.record(deviceSerialNumber, pushed);
+            }
+            result.put("status", "IN_SYNC");
+            return result;
+        }
+
+        List<ScheduledCommand> commands = buildCommands(deviceSerialNumber, sets, fingers, deletes);
+        long bytes = commands.stream().mapToLong(command -> command.getCommandXml().length()).sum();
+        result.put("commands", commands.size());
+        result.put("bytes", bytes);
+        if (dryRun) {
+            result.put("status", "PLANNED");
+            return result;
+        }
+
+        scheduledCommandService.enqueue(commands);
+        snapshotService.record(deviceSerialNumber, pushed);
+        snapshotService.forget(deviceSerialNumber, deletes);
+
+        devicesReconciled.incrementAndGet();
+        usersSet.addAndGet(sets.size());
+        fingersSet.addAndGet(fingerCount);
+        usersDeleted.addAndGet(deletes.size());
+        deletesHeldBack.addAndGet(heldBack);
+        bytesQueued.addAndGet(bytes);
+        log.info("Queued {} commands ({} bytes) to reconcile device {}: {} users set, {} fingers set, {} users deleted",
+                commands.size(), bytes, deviceSerialNumber, sets.size(), fingerCount, deletes.size());
+        result.put("status", "QUEUED");
+        return result;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduledCommandService.addFailureListener(this::onCommandFailed);
+    }
+
+    /**
+     * A reconciliation command was refused or never answered by the device: what the device now holds for the user is
+     * unknown, so the user is dropped from the recorded roster and pushed in full next time.
+     */
+    public void onCommandFailed(String deviceSerialNumber, String userId) {
+        if (userId == null) {
+            return;
+        }
+        commandsFailed.incrementAndGet();
+        try {
+            snapshotService.forget(deviceSerialNumber, Collections.singletonList(userId));
+        } catch (Exception e) {
+            log.error("Failed to drop user {} from roster snapshot of device: {}", userId, deviceSerialNumber, e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("runs", runs.get());
+        stats.put("devicesReconciled", devicesReconciled.get());
+        stats.put("devicesInSync", devicesInSync.get());
+        stats.put("devicesSkipped", devicesSkipped.get());
+        stats.put("usersSet", usersSet.get());
+        stats.put("fingersSet", fingersSet.get());
+        stats.put("usersDeleted", usersDeleted.get());
+        stats.put("deletesHeldBack", deletesHeldBack.get());
+        stats.put("bytesQueued", bytesQueued.get());
+        stats.put("commandsFailed", commandsFailed.get());
+        stats.put("snapshots", snapshotService.getStats());
+        return stats;
+    }
+
+    /** Why the device's roster cannot be diffed right now, or null if it can. */
+    private String busyReason(String deviceSerialNumber) {
+        if (userSyncService.isDeviceSyncing(deviceSerialNumber)) {
+            return "roster walk in progress";
+        }
+        if (userSyncService.hasUnsyncedEnrollments(deviceSerialNumber)) {
+            // pushing now would overwrite changes made on the terminal before they reach the server
+            return "enrollment on the terminal not synced yet";
+        }
+        if (templateHarvester.isHarvesting(deviceSerialNumber)) {
+            return "template harvest in progress";
+        }
+        if (deviceMigrationService.isMigrationTarget(deviceSerialNumber)) {
+            return "migration in progress";
+        }
+        return null;
+    }
+
+    /** SetUserData first so the user exists when its fingers arrive; deletes last. */
+    private List<ScheduledCommand> buildCommands(String deviceSerialNumber, Set<String> sets,
+                                                 Map<String, Set<Integer>> fingers, List<String> deletes) {
+        Set<String> touched = new TreeSet<>(sets);
+        touched.addAll(fingers.keySet());
+        Map<String, User> users = new HashMap<>();
+        Map<String, UserFaceData> faces = new HashMap<>();
+        Map<String, Map<Integer, UserFingerData>> fingerRows = new HashMap<>();
+        List<String> ids = new ArrayList<>(touched);
+        for (int from = 0; from < ids.size(); from += LOAD_CHUNK) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + LOAD_CHUNK));
+            for (User user : userRepository.findByUserIdInAndDeviceSerialNumber(chunk, deviceSerialNumber)) {
+                users.putIfAbsent(user.getUserId(), user);
+            }
+            for (UserFaceData face : userFaceDataRepository.findByUserIdInAndDeviceSerialNumber(chunk, deviceSerialNumber)) {
+                faces.put(face.getUserId(), face);
+            }
+            for (UserFingerData finger : userFingerDataRepository.findByUserIdInAndDeviceSerialNumber(chunk, deviceSerialNumber)) {
+                fingerRows.computeIfAbsent(finger.getUserId(), id -> new HashMap<>()).put(finger.getFingerNo(), finger);
+            }
+        }
+
+        Set<String> hashes = new HashSet<>();
+        for (String userId : sets) {
+            UserFaceData face = faces.get(userId);
+            if (face != null) {
+                hashes.add(face.getTemplateHash());
+            }
+        }
+        fingers.forEach((userId, fingerNos) -> {
+            Map<Integer, UserFingerData> rows = fingerRows.getOrDefault(userId, new HashMap<>());
+            fingerNos.forEach(fingerNo -> {
+                UserFingerData finger = rows.get(fingerNo);
+                if (finger != null) {
+                    hashes.add(finger.getTemplateHash());
+                }
+            });
+        });
+        hashes.remove(null);
+        Map<String, String> templates = templateStore.getAll(hashes);
+
+        List<ScheduledCommand> commands = new ArrayList<>();
+        for (String userId : touched) {
+            User user = users.get(userId);
+            if (user == null) {
+                continue;
+            }
+            if (sets.contains(userId)) {
+                UserData userData = UserData.builder()
+                        .name(user.getName())
+                        .privilege(user.getPrivilege())
+                        .enabled(user.isEnabled())
+                        .Department(user.getDepartment())
+                        .timeSet1(user.getTimeSet1())
+                        .timeSet2(user.getTimeSet2())
+                        .timeSet3(user.getTimeSet3())
+                        .timeSet4(user.getTimeSet4())
+                        .timeSet5(user.getTimeSet5())
+                        .userPeriodUsed(user.isUserPeriodUsed())
+                        .userPeriodStart(user.getUserPeriodStart())
+                        .userPeriodEnd(user.getUserPeriodEnd())
+                        .card(user.getCard())
+                        .password(user.getPassword())
+                        .allowNoCertificate(true)
+                        .build();
+                UserFaceData face = faces.get(userId);
+                if (face != null) {
+                    userData.setFaceData(face.getTemplateHash() != null ? templates.get(face.getTemplateHash()) : face.getFaceData());
+                }
+                commands.add(command(deviceSerialNumber, SET, userId, userCommandService.buildSetUserDataCommand(userId, userData)));
+            }
+            Map<Integer, UserFingerData> rows = fingerRows.getOrDefault(userId, new HashMap<>());
+            for (Integer fingerNo : fingers.getOrDefault(userId, new TreeSet<>())) {
+                UserFingerData finger = rows.get(fingerNo);
+                if (finger == null) {
+                    continue;
+                }
+                String template = finger.getTemplateHash() != null ? templates.get(finger.getTemplateHash()) : finger.getFingerData();
+                if (template == null) {
+                    continue;
+                }
+                commands.add(command(deviceSerialNumber, SET_FINGER, userId,
+                        userCommandService.buildSetFingerDataCommand(userId, fingerNo, finger.getDuress(), template)));
+            }
+        }
+        for (String userId : deletes) {
+            commands.add(command(deviceSerialNumber, DELETE, userId, userCommandService.buildDeleteUserCommand(userId)));
+        }
+        return commands;
+    }
+
+    private static ScheduledCommand command(String deviceSerialNumber, String type, String userId, String xml) {
+        return ScheduledCommand.builder()
+                .deviceSerialNumber(deviceSerialNumber)
+                .commandType(type)
+                .commandXml(xml)
+                .status("PENDING")
+                .userId(userId)
+                .priority(CommandPriority.BULK)
+                .build();
+    }
+}
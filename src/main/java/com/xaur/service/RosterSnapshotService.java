@@ -0,0 +1,234 @@
+package com.xaur.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user fingerprints of device rosters. {@link #compute} derives them from the users,
+ * user_finger_data and user_face_data rows without reading any template; the recorded snapshot in
+ * device_roster_snapshot is what the device held when it was last walked or harvested, and
+ * {@link RosterReconciler} pushes the difference between the two.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class RosterSnapshotService {
+
+    private static final String SELECT_USERS = "SELECT user_id, name, privilege, department, enabled, time_set_1, time_set_2, time_set_3, time_set_4, time_set_5, user_period_used, user_period_start, user_period_end, card, password FROM users WHERE device_serial_number = ?";
+    private static final String SELECT_FINGERS = "SELECT user_id, finger_no, duress, template_hash FROM user_finger_data WHERE device_serial_number = ?";
+    private static final String SELECT_FACES = "SELECT user_id, template_hash FROM user_face_data WHERE device_serial_number = ?";
+    private static final String SELECT_SNAPSHOT = "SELECT user_id, user_hash, face_hash, fingers FROM device_roster_snapshot WHERE device_serial_number = ?";
+    private static final String DELETE_DEVICE = "DELETE FROM device_roster_snapshot WHERE device_serial_number = ?";
+    private static final String DELETE_USER = "DELETE FROM device_roster_snapshot WHERE device_serial_number = ? AND user_id = ?";
+    private static final String INSERT = "INSERT INTO device_roster_snapshot (device_serial_number, user_id, user_hash, face_hash, fingers, recorded_at) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_TEMPLATES = "UPDATE device_roster_snapshot SET face_hash = ?, fingers = ?, recorded_at = ? WHERE device_serial_number = ? AND user_id = ?";
+
+    /** template hash characters kept per finger entry; 64 bits is plenty to notice a changed template */
+    private static final int FINGER_HASH_PREFIX = 16;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    private final AtomicLong walksRecorded = new AtomicLong();
+    private final AtomicLong harvestsRecorded = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    /** What one user looks like on a device, reduced to what SetUserData and SetFingerData carry. */
+    public static final class Fingerprint {
+
+        private final String userHash;
+        private final String faceHash;
+        private final String fingers;
+
+        Fingerprint(String userHash, String faceHash, String fingers) {
+            this.userHash = userHash;
+            this.faceHash = faceHash;
+            this.fingers = fingers == null ? "" : fingers;
+        }
+
+        /** Same SetUserData, face included. */
+        public boolean sameUser(Fingerprint other) {
+            return userHash.equals(other.userHash) && Objects.equals(faceHash, other.faceHash);
+        }
+
+        public boolean sameFingers(Fingerprint other) {
+            return fingers.equals(other.fingers);
+        }
+
+        /** Entry per enrolled finger number. */
+        public Map<Integer, String> fingerEntries() {
+            Map<Integer, String> entries = new TreeMap<>();
+            if (!fingers.isEmpty()) {
+                for (String entry : fingers.split(",")) {
+                    entries.put(Integer.valueOf(entry.substring(0, entry.indexOf(':'))), entry);
+                }
+            }
+            return entries;
+        }
+    }
+
+    /** Fingerprints of every user the users table holds for the device. */
+    public Map<String, Fingerprint> compute(String deviceSerialNumber) {
+        Map<String, String> userHashes = new LinkedHashMap<>();
+        jdbcTemplate.query(SELECT_USERS, (RowCallbackHandler) rs -> userHashes.putIfAbsent(rs.getString(1), userHash(rs)), deviceSerialNumber);
+
+        Map<String, String> faces = new HashMap<>();
+        jdbcTemplate.query(SELECT_FACES, (RowCallbackHandler) rs -> faces.put(rs.getString(1), rs.getString(2)), deviceSerialNumber);
+
+        Map<String, Map<Integer, String>> fingers = new HashMap<>();
+        jdbcTemplate.query(SELECT_FINGERS, (RowCallbackHandler) rs -> {
+            String hash = rs.getString(4);
+            String entry = rs.getInt(2) + ":" + (rs.getString(3) == null ? "" : rs.getString(3)) + ":"
+                    + (hash == null ? "-" : hash.substring(0, Math.min(FINGER_HASH_PREFIX, hash.length())));
+            fingers.computeIfAbsent(rs.getString(1), id -> new TreeMap<>()).put(rs.getInt(2), entry);
+        }, deviceSerialNumber);
+
+        Map<String, Fingerprint> fingerprints = new LinkedHashMap<>();
+        userHashes.forEach((userId, userHash) -> {
+            Map<Integer, String> userFingers = fingers.get(userId);
+            fingerprints.put(userId, new Fingerprint(userHash, faces.get(userId),
+                    userFingers == null ? "" : String.join(",", userFingers.values())));
+        });
+        return fingerprints;
+    }
+
+    /** The device's roster as last recorded. */
+    public Map<String, Fingerprint> load(String deviceSerialNumber) {
+        Map<String, Fingerprint> snapshot = new HashMap<>();
+        jdbcTemplate.query(SELECT_SNAPSHOT, (RowCallbackHandler) rs ->
+                snapshot.put(rs.getString(1), new Fingerprint(rs.getString(2), rs.getString(3), rs.getString(4))), deviceSerialNumber);
+        return snapshot;
+    }
+
+    /** A completed roster walk saw exactly these users on the device; they replace its recorded roster. */
+    public void recordWalk(String deviceSerialNumber, Set<String> userIds) {
+        try {
+            Map<String, Fingerprint> current = compute(deviceSerialNumber);
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            List<Object[]> rows = new ArrayList<>();
+            for (String userId : userIds) {
+                Fingerprint fingerprint = current.get(userId);
+                if (fingerprint != null) {
+                    rows.add(new Object[]{deviceSerialNumber, userId, fingerprint.userHash, fingerprint.faceHash, fingerprint.fingers, now});
+                }
+            }
+            transactionTemplate.execute(status -> {
+                jdbcTemplate.update(DELETE_DEVICE, deviceSerialNumber);
+                if (!rows.isEmpty()) {
+                    jdbcTemplate.batchUpdate(INSERT, rows);
+                }
+                return null;
+            });
+            walksRecorded.incrementAndGet();
+            rowsWritten.addAndGet(rows.size());
+        } catch (Exception e) {
+            log.error("Failed to record roster snapshot for device: {}", deviceSerialNumber, e);
+        }
+    }
+
+    /** A harvest fetched these users' templates from the device; their template fingerprints are now known. */
+    public void recordTemplates(String deviceSerialNumber, Set<String> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        try {
+            Map<String, Fingerprint> current = compute(deviceSerialNumber);
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            List<Object[]> rows = new ArrayList<>();
+            for (String userId : userIds) {
+                Fingerprint fingerprint = current.get(userId);
+                if (fingerprint != null) {
+                    rows.add(new Object[]{fingerprint.faceHash, fingerprint.fingers, now, deviceSerialNumber, userId});
+                }
+            }
+            if (!rows.isEmpty()) {
+                jdbcTemplate.batchUpdate(UPDATE_TEMPLATES, rows);
+            }
+            harvestsRecorded.incrementAndGet();
+            rowsWritten.addAndGet(rows.size());
+        } catch (Exception e) {
+            log.error("Failed to record harvested templates in roster snapshot for device: {}", deviceSerialNumber, e);
+        }
+    }
+
+    /** Records users as the device now holds them, e.g. once their update has been queued. */
+    public void record(String deviceSerialNumber, Map<String, Fingerprint> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> deletes = new ArrayList<>();
+        List<Object[]> inserts = new ArrayList<>();
+        fingerprints.forEach((userId, fingerprint) -> {
+            deletes.add(new Object[]{deviceSerialNumber, userId});
+            inserts.add(new Object[]{deviceSerialNumber, userId, fingerprint.userHash, fingerprint.faceHash, fingerprint.fingers, now});
+        });
+        transactionTemplate.execute(status -> {
+            jdbcTemplate.batchUpdate(DELETE_USER, deletes);
+            jdbcTemplate.batchUpdate(INSERT, inserts);
+            return null;
+        });
+        rowsWritten.addAndGet(inserts.size());
+    }
+
+    /** Drops users from the recorded roster: deleted from the device, or in an unknown state after a failed push. */
+    public void forget(String deviceSerialNumber, Collection<String> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        List<Object[]> deletes = new ArrayList<>();
+        for (String userId : userIds) {
+            deletes.add(new Object[]{deviceSerialNumber, userId});
+        }
+        jdbcTemplate.batchUpdate(DELETE_USER, deletes);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("walksRecorded", walksRecorded.get());
+        stats.put("harvestsRecorded", harvestsRecorded.get());
+        stats.put("rowsWritten", rowsWritten.get());
+        return stats;
+    }
+
+    private static String userHash(ResultSet rs) throws SQLException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int column = 2; column <= 15; column++) {
+                String value = rs.getString(column);
+                // separator and null marker are control characters no roster field contains
+                digest.update(value == null ? new byte[]{2} : value.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 1);
+            }
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
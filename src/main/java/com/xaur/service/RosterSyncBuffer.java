@@ -0,0 +1,271 @@
+package com.xaur.service;
+
+import com.xaur.model.User;
+import com.xaur.repository.UserRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Collects the users decoded during a roster walk and writes them to the users table in JDBC
+ * batches instead of one lookup and save per GetNextUserData answer. The device's existing rows are
+ * loaded once per walk; users whose fields did not change are not written at all.
+ * Face data, terminal id and type are not part of the roster answer and are left untouched.
+ * A walk that reaches the end of the roster records the users it saw with {@link RosterSnapshotService}.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class RosterSyncBuffer {
+
+    private static final String INSERT_USER = "INSERT INTO users (user_id, device_serial_number, name, privilege, department, enabled, time_set_1, time_set_2, time_set_3, time_set_4, time_set_5, user_period_used, user_period_start, user_period_end, card, password, fingers, face_enrolled, created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_USER = "UPDATE users SET name = ?, privilege = ?, department = ?, enabled = ?, time_set_1 = ?, time_set_2 = ?, time_set_3 = ?, time_set_4 = ?, time_set_5 = ?, user_period_used = ?, user_period_start = ?, user_period_end = ?, card = ?, password = ?, fingers = ?, face_enrolled = ?, updated_at = ? WHERE user_id = ? AND device_serial_number = ?";
+
+    private final UserRepository userRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final RosterSnapshotService rosterSnapshotService;
+
+    @Value("${user-sync.batch-size:500}")
+    private int batchSize;
+
+    @Value("${user-sync.idle-flush-ms:30000}")
+    private long idleFlushMs;
+
+    private final Map<String, RosterSession> sessions = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> idleListeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong usersReceived = new AtomicLong();
+    private final AtomicLong usersInserted = new AtomicLong();
+    private final AtomicLong usersUpdated = new AtomicLong();
+    private final AtomicLong usersUnchanged = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+
+    /** Starts a fresh buffer for a roster walk; anything left from an abandoned walk is written first. */
+    public void open(String deviceSerialNumber) {
+        RosterSession stale = sessions.put(deviceSerialNumber, new RosterSession(deviceSerialNumber, true));
+        if (stale != null) {
+            stale.flush();
+        }
+    }
+
+    /** Buffers one decoded roster entry, writing the batch out once it is full. */
+    public void add(String deviceSerialNumber, User user) {
+        usersReceived.incrementAndGet();
+        RosterSession session = sessions.computeIfAbsent(deviceSerialNumber, serial -> new RosterSession(serial, false));
+        session.add(user);
+    }
+
+    /**
+     * Writes whatever is still buffered and closes the walk's buffer.
+     *
+     * @return false if any batch of this walk failed to commit
+     */
+    public boolean finish(String deviceSerialNumber) {
+        RosterSession session = sessions.remove(deviceSerialNumber);
+        if (session == null) {
+            return true;
+        }
+        session.flush();
+        return !session.failed;
+    }
+
+    /**
+     * Like {@link #finish} for a walk that reached the end of the roster: the users it saw become the
+     * device's recorded roster. A buffer reopened after going idle saw only part of the roster and
+     * records nothing.
+     *
+     * @return false if any batch of this walk failed to commit
+     */
+    public boolean complete(String deviceSerialNumber) {
+        RosterSession session = sessions.remove(deviceSerialNumber);
+        if (session == null) {
+            return true;
+        }
+        session.flush();
+        if (session.failed) {
+            return false;
+        }
+        if (session.fromStart) {
+            rosterSnapshotService.recordWalk(deviceSerialNumber, session.seen);
+        }
+        return true;
+    }
+
+    /** Notified with the device serial number when that device's walk went idle and was written out. */
+    public void addIdleListener(Consumer<String> listener) {
+        idleListeners.add(listener);
+    }
+
+    /** Writes out walks that went quiet, e.g. because the device dropped off mid-roster. */
+    @Scheduled(fixedDelayString = "${user-sync.idle-flush-ms:30000}")
+    public void flushIdle() {
+        long cutoff = System.currentTimeMillis() - idleFlushMs;
+        sessions.forEach((serial, session) -> {
+            if (session.lastAddedAt < cutoff && sessions.remove(serial, session)) {
+                log.warn("Roster walk for {} went idle, writing {} buffered users", serial, session.pending.size());
+                session.flush();
+                idleListeners.forEach(listener -> listener.accept(serial));
+            }
+        });
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("batchSize", batchSize);
+        stats.put("openWalks", sessions.size());
+        stats.put("usersReceived", usersReceived.get());
+        stats.put("usersInserted", usersInserted.get());
+        stats.put("usersUpdated", usersUpdated.get());
+        stats.put("usersUnchanged", usersUnchanged.get());
+        stats.put("flushes", flushes.get());
+        stats.put("flushFailures", flushFailures.get());
+        long count = flushes.get();
+        stats.put("avgFlushMs", count == 0 ? 0.0 : flushNanos.get() / 1e6 / count);
+        return stats;
+    }
+
+    private final class RosterSession {
+
+        private final String deviceSerialNumber;
+        private final boolean fromStart;
+        private final List<User> pending = new ArrayList<>();
+        private final Set<String> seen = new HashSet<>();
+        private Map<String, User> existing;
+        private volatile long lastAddedAt = System.currentTimeMillis();
+        private boolean failed;
+
+        RosterSession(String deviceSerialNumber, boolean fromStart) {
+            this.deviceSerialNumber = deviceSerialNumber;
+            this.fromStart = fromStart;
+        }
+
+        synchronized void add(User user) {
+            pending.add(user);
+            seen.add(user.getUserId());
+            lastAddedAt = System.currentTimeMillis();
+            if (pending.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        synchronized void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            long started = System.nanoTime();
+            try {
+                if (existing == null) {
+                    existing = new HashMap<>();
+                    for (User user : userRepository.findByDeviceSerialNumber(deviceSerialNumber)) {
+                        existing.putIfAbsent(user.getUserId(), user);
+                    }
+                }
+
+                // later answers for the same user win, so collapse repeats before diffing
+                Map<String, User> latest = new LinkedHashMap<>();
+                for (User user : pending) {
+                    latest.put(user.getUserId(), user);
+                }
+                Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+                List<Object[]> inserts = new ArrayList<>();
+                List<Object[]> updates = new ArrayList<>();
+                for (User user : latest.values()) {
+                    User current = existing.get(user.getUserId());
+                    if (current == null) {
+                        inserts.add(insertRow(user, now));
+                    } else if (!sameRosterFields(current, user)) {
+                        updates.add(updateRow(user, now));
+                    }
+                }
+
+                if (!inserts.isEmpty() || !updates.isEmpty()) {
+                    transactionTemplate.execute(status -> {
+                        if (!inserts.isEmpty()) {
+                            jdbcTemplate.batchUpdate(INSERT_USER, inserts);
+                        }
+                        if (!updates.isEmpty()) {
+                            jdbcTemplate.batchUpdate(UPDATE_USER, updates);
+                        }
+                        return null;
+                    });
+                }
+                existing.putAll(latest);
+                usersInserted.addAndGet(inserts.size());
+                usersUpdated.addAndGet(updates.size());
+                usersUnchanged.addAndGet(pending.size() - inserts.size() - updates.size());
+                log.debug("Wrote roster batch for {}: {} inserted, {} updated, {} unchanged",
+                        deviceSerialNumber, inserts.size(), updates.size(), pending.size() - inserts.size() - updates.size());
+            } catch (Exception e) {
+                // the walk won't be checkpointed, so the next scheduled pass fetches these users again
+                failed = true;
+                flushFailures.incrementAndGet();
+                log.error("Failed to write {} roster users for device: {}", pending.size(), deviceSerialNumber, e);
+            } finally {
+                pending.clear();
+                flushes.incrementAndGet();
+                flushNanos.addAndGet(System.nanoTime() - started);
+            }
+        }
+    }
+
+    private static Object[] insertRow(User user, Timestamp now) {
+        return new Object[]{
+                user.getUserId(), user.getDeviceSerialNumber(), user.getName(), user.getPrivilege(),
+                user.getDepartment(), user.isEnabled(), user.getTimeSet1(), user.getTimeSet2(),
+                user.getTimeSet3(), user.getTimeSet4(), user.getTimeSet5(), user.isUserPeriodUsed(),
+                user.getUserPeriodStart(), user.getUserPeriodEnd(), user.getCard(), user.getPassword(),
+                user.getFingers(), user.isFaceEnrolled(), now, now
+        };
+    }
+
+    private static Object[] updateRow(User user, Timestamp now) {
+        return new Object[]{
+                user.getName(), user.getPrivilege(), user.getDepartment(), user.isEnabled(),
+                user.getTimeSet1(), user.getTimeSet2(), user.getTimeSet3(), user.getTimeSet4(),
+                user.getTimeSet5(), user.isUserPeriodUsed(), user.getUserPeriodStart(),
+                user.getUserPeriodEnd(), user.getCard(), user.getPassword(), user.getFingers(),
+                user.isFaceEnrolled(), now, user.getUserId(), user.getDeviceSerialNumber()
+        };
+    }
+
+    private static boolean sameRosterFields(User a, User b) {
+        return Objects.equals(a.getName(), b.getName())
+                && Objects.equals(a.getPrivilege(), b.getPrivilege())
+                && Objects.equals(a.getDepartment(), b.getDepartment())
+                && a.isEnabled() == b.isEnabled()
+                && Objects.equals(a.getTimeSet1(), b.getTimeSet1())
+                && Objects.equals(a.getTimeSet2(), b.getTimeSet2())
+                && Objects.equals(a.getTimeSet3(), b.getTimeSet3())
+                && Objects.equals(a.getTimeSet4(), b.getTimeSet4())
+                && Objects.equals(a.getTimeSet5(), b.getTimeSet5())
+                && a.isUserPeriodUsed() == b.isUserPeriodUsed()
+                && Objects.equals(a.getUserPeriodStart(), b.getUserPeriodStart())
+                && Objects.equals(a.getUserPeriodEnd(), b.getUserPeriodEnd())
+                && Objects.equals(a.getCard(), b.getCard())
+                && Objects.equals(a.getPassword(), b.getPassword())
+                && Objects.equals(a.getFingers(), b.getFingers())
+                && a.isFaceEnrolled() == b.isFaceEnrolled();
+    }
+}
@@ -1,29 +1,286 @@
 package com.xaur.service;
 
+import com.xaur.model.CommandPriority;
+import com.xaur.model.Company;
 import com.xaur.model.ScheduledCommand;
 import com.xaur.repository.ScheduledCommandRepository;
 import com.xaur.websocket.WebSocketSessionManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Delivers command_queue rows to devices. A device's mailbox is flushed as soon as a command is
+ * queued for it and again when it logs in, so commands go out within milliseconds; the periodic
+ * sweep only catches what those triggers missed, e.g. a send refused by a full outbound queue.
+ * <p>
+ * Sent commands wait in an in-memory in-flight table keyed by device, command type and the key
+ * the device echoes back (UserID, DeptNo), so an answer is matched without reading the table.
+ * Unanswered commands are resent with a doubling timeout and fail after
+ * {@code command-dispatch.max-attempts}; only state changes are written to the database. Only
+ * commands that can safely run twice are resent (see {@link #RETRYABLE}); the others, e.g.
+ * ClearLogData, which would erase punches recorded since the first attempt, fail instead.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class ScheduledCommandService {
 
+    private static final Pattern USER_ID = Pattern.compile("<UserID>([^<]*)</UserID>");
+    private static final Pattern DEPT_NO = Pattern.compile("<DeptNo>([^<]*)</DeptNo>");
+    private static final Pattern FINGER_NO = Pattern.compile("<FingerNo>([^<]*)</FingerNo>");
+    private static final Pattern TIME = Pattern.compile("<Time>([^<]*)</Time>");
+    /** Upper-cased command types whose second run leaves the device as the first did. */
+    static final Set<String> RETRYABLE = new HashSet<>(Arrays.asList(
+            RosterReconciler.SET, RosterReconciler.DELETE, RosterReconciler.SET_FINGER,
+            "SETTIME", "SETDEPARTMENT", "SETWIFISETTING", "SETETHERNETSETTING"));
+
+    private static final DateTimeFormatter DEVICE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd-'T'HH:mm:ss'Z'");
+
     private final ScheduledCommandRepository commandRepository;
     private final WebSocketSessionManager sessionManager;
+    private final CommandCompactor commandCompactor;
+    private final DeviceOrgCache deviceOrgCache;
+
+    @Value("${command-dispatch.threads:2}")
+    private int dispatchThreads;
+
+    @Value("${command-dispatch.page-size:200}")
+    private int pageSize;
+
+    /** commands sent per turn before the device goes to the back of the line */
+    @Value("${command-dispatch.flush-quantum:50}")
+    private int flushQuantum;
+
+    @Value("${command-dispatch.weight.interactive:8}")
+    private int interactiveWeight;
+
+    @Value("${command-dispatch.weight.operational:4}")
+    private int operationalWeight;
+
+    @Value("${command-dispatch.weight.bulk:1}")
+    private int bulkWeight;
+
+    @Value("${command-dispatch.timeout-ms:15000}")
+    private long timeoutMs;
+
+    @Value("${command-dispatch.max-timeout-ms:120000}")
+    private long maxTimeoutMs;
+
+    @Value("${command-dispatch.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${command-dispatch.requeue-window-hours:24}")
+    private long requeueWindowHours;
+
+    private ExecutorService dispatcher;
+    private final Set<String> scheduledDevices = ConcurrentHashMap.newKeySet();
+    /** devices whose last turn ended on the quantum; their mailbox was compacted at the start of that run */
+    private final Set<String> continuingDevices = ConcurrentHashMap.newKeySet();
+    /** guarded by itself, as are urgentDevices and requestedAt: devices waiting for a dispatcher thread, served a company at a time */
+    private final Map<Long, Deque<String>> readyByCompany = new LinkedHashMap<>();
+    private final Deque<String> urgentDevices = new ArrayDeque<>();
+    private final Map<String, Long> requestedAt = new HashMap<>();
+    private final Map<String, Object> deviceLocks = new ConcurrentHashMap<>();
+
+    /** guarded by itself, as is byId */
+    private final Map<String, Deque<InFlight>> inFlight = new HashMap<>();
+    private final Map<Long, InFlight> byId = new HashMap<>();
+    private final List<BiConsumer<String, String>> failureListeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong commandsSent = new AtomicLong();
+    private final AtomicLong sendsRefused = new AtomicLong();
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong sweptDevices = new AtomicLong();
+    private final AtomicLong triggerToSentMicros = new AtomicLong();
+    private final AtomicLong maxTriggerToSentMicros = new AtomicLong();
+    private final AtomicLong answersMatched = new AtomicLong();
+    private final AtomicLong answersUnmatched = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong commandsFailed = new AtomicLong();
+    private final AtomicLong requeuedOnDisconnect = new AtomicLong();
+    private final AtomicLong urgentDispatches = new AtomicLong();
+    private final AtomicLong quantumYields = new AtomicLong();
+    private final AtomicLong sentOutOfTurn = new AtomicLong();
+    private final Map<CommandPriority, AtomicLong> sentByLane = new EnumMap<>(CommandPriority.class);
+    private final Map<CommandPriority, AtomicLong> queuedMillisByLane = new EnumMap<>(CommandPriority.class);
+    private final Map<CommandPriority, AtomicLong> maxQueuedMillisByLane = new EnumMap<>(CommandPriority.class);
+
+    {
+        for (CommandPriority priority : CommandPriority.values()) {
+            sentByLane.put(priority, new AtomicLong());
+            queuedMillisByLane.put(priority, new AtomicLong());
+            maxQueuedMillisByLane.put(priority, new AtomicLong());
+        }
+    }
+
+    private static final class InFlight {
+        private final long id;
+        private final String deviceSerialNumber;
+        private final String key;
+        private final String correlationKey;
+        private final String userId;
+        private final String commandType;
+        private final String commandXml;
+        private final LocalDateTime queuedAt;
+        private int attempts;
+        private long deadline;
+
+        InFlight(ScheduledCommand command, String correlationKey) {
+            this.id = command.getId();
+            this.deviceSerialNumber = command.getDeviceSerialNumber();
+            this.key = key(deviceSerialNumber, command.getCommandType(), correlationKey);
+            this.correlationKey = correlationKey;
+            this.userId = command.getUserId();
+            this.commandType = command.getCommandType();
+            this.commandXml = command.getCommandXml();
+            this.queuedAt = command.getCreatedAt();
+        }
+    }
+
+    /** One priority class of a device's mailbox, read a keyset page at a time. */
+    private final class Lane {
+        private final String deviceSerialNumber;
+        private final CommandPriority priority;
+        private final int weight;
+        private final Deque<ScheduledCommand> buffer = new ArrayDeque<>();
+        private long lastId;
+        private boolean exhausted;
+        private int credit;
+
+        Lane(String deviceSerialNumber, CommandPriority priority, int weight) {
+            this.deviceSerialNumber = deviceSerialNumber;
+            this.priority = priority;
+            this.weight = weight;
+        }
+
+        ScheduledCommand head() {
+            if (buffer.isEmpty() && !exhausted) {
+                List<ScheduledCommand> page = commandRepository.findByDeviceSerialNumberAndStatusAndPriorityAndIdGreaterThanOrderByIdAsc(
+                        deviceSerialNumber, "PENDING", priority, lastId, PageRequest.of(0, pageSize));
+                buffer.addAll(page);
+                if (!page.isEmpty()) {
+                    lastId = page.get(page.size() - 1).getId();
+                }
+                exhausted = page.size() < pageSize;
+            }
+            return buffer.peek();
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        dispatcher = Executors.newFixedThreadPool(dispatchThreads, r -> {
+            Thread thread = new Thread(r, "command-dispatch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        dispatcher.shutdownNow();
+    }
+
+    /**
+     * The in-flight table does not survive a restart, so recently sent commands are queued again,
+     * or failed if they are not safe to run twice.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void requeueInterrupted() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime since = now.minusHours(requeueWindowHours);
+        int requeued = commandRepository.requeueSentSince(since, RETRYABLE, now);
+        if (requeued > 0) {
+            log.info("Requeued {} commands that were awaiting an answer before the restart", requeued);
+        }
+        int failed = commandRepository.failSentSinceExcept(since, RETRYABLE, now);
+        if (failed > 0) {
+            commandsFailed.addAndGet(failed);
+            log.warn("Failed {} commands that were awaiting an answer before the restart and cannot safely be resent", failed);
+        }
+        int assigned = commandRepository.assignMissingPriority();
+        if (assigned > 0) {
+            log.info("Assigned the OPERATIONAL class to {} commands queued before priorities existed", assigned);
+        }
+    }
+
+    /** Called with (deviceSerialNumber, userId) when a command fails, refused by the device or never answered. */
+    public void addFailureListener(BiConsumer<String, String> listener) {
+        failureListeners.add(listener);
+    }
 
     @Transactional
     public ScheduledCommand saveCommand(ScheduledCommand command) {
-        return commandRepository.save(command);
+        prepare(command);
+        ScheduledCommand saved = commandRepository.save(command);
+        if ("PENDING".equals(saved.getStatus())) {
+            dispatchAfterCommit(saved.getDeviceSerialNumber(), saved.getPriority() == CommandPriority.INTERACTIVE);
+        }
+        return saved;
+    }
+
+    /** Queues commands in order and flushes each device they are for once they are committed. */
+    @Transactional
+    public List<ScheduledCommand> enqueue(List<ScheduledCommand> commands) {
+        commands.forEach(this::prepare);
+        List<ScheduledCommand> saved = commandRepository.saveAll(commands);
+        Map<String, Boolean> devices = new LinkedHashMap<>();
+        for (ScheduledCommand command : saved) {
+            devices.merge(command.getDeviceSerialNumber(), command.getPriority() == CommandPriority.INTERACTIVE, Boolean::logicalOr);
+        }
+        devices.forEach(this::dispatchAfterCommit);
+        return saved;
+    }
+
+    private void prepare(ScheduledCommand command) {
+        if (command.getCorrelationKey() == null) {
+            command.setCorrelationKey(correlationKeyOf(command));
+        }
+        if (command.getPriority() == null) {
+            command.setPriority(CommandPriority.OPERATIONAL);
+        }
     }
 
     public Optional<ScheduledCommand> getCommandById(Long id) {
@@ -38,40 +295,443 @@ public class ScheduledCommandService {
         return commandRepository.findByDeviceSerialNumber(deviceSerialNumber);
     }
 
-    public List<ScheduledCommand> getPendingCommands() {
-        return commandRepository.findByStatus("PENDING");
+    /**
+     * Flushes the device's mailbox on a dispatcher thread. Calls made while a flush is already
+     * scheduled for the device are folded into it.
+     */
+    public void dispatch(String deviceSerialNumber) {
+        dispatch(deviceSerialNumber, false);
     }
 
-    @Scheduled(fixedRate = 60000)
-    @Transactional
-    public void executeScheduledCommands() {
-        List<ScheduledCommand> pendingCommands = getPendingCommands();
+    /**
+     * Devices wait for a dispatcher thread in one line per company, and the lines take turns, so one
+     * company's bulk load cannot occupy every thread. Urgent devices, those an interactive command was
+     * just queued for, go ahead of all lines.
+     */
+    private void dispatch(String deviceSerialNumber, boolean urgent) {
+        if (deviceSerialNumber == null) {
+            return;
+        }
+        Long companyId = urgent ? null : companyOf(deviceSerialNumber);
+        synchronized (readyByCompany) {
+            boolean added = scheduledDevices.add(deviceSerialNumber);
+            if (!added && !urgent) {
+                return;
+            }
+            requestedAt.putIfAbsent(deviceSerialNumber, System.nanoTime());
+            if (urgent) {
+                urgentDispatches.incrementAndGet();
+                urgentDevices.add(deviceSerialNumber);
+            } else {
+                readyByCompany.computeIfAbsent(companyId, k -> new ArrayDeque<>()).add(deviceSerialNumber);
+            }
+        }
+        dispatcher.execute(this::flushNext);
+    }
 
-        for (ScheduledCommand command : pendingCommands) {
-            try {
-                String deviceSerialNumber = command.getDeviceSerialNumber();
+    private Long companyOf(String deviceSerialNumber) {
+        try {
+            return deviceOrgCache.get(deviceSerialNumber)
+                    .map(DeviceOrgCache.DeviceOrg::getCompany)
+                    .map(Company::getId)
+                    .orElse(0L);
+        } catch (Exception e) {
+            log.warn("Could not look up the company of device {}", deviceSerialNumber, e);
+            return 0L;
+        }
+    }
+
+    private void flushNext() {
+        String deviceSerialNumber = null;
+        long requested = 0;
+        synchronized (readyByCompany) {
+            while (deviceSerialNumber == null) {
+                String candidate = urgentDevices.poll();
+                if (candidate == null) {
+                    Iterator<Map.Entry<Long, Deque<String>>> companies = readyByCompany.entrySet().iterator();
+                    if (!companies.hasNext()) {
+                        return;
+                    }
+                    Map.Entry<Long, Deque<String>> next = companies.next();
+                    companies.remove();
+                    candidate = next.getValue().poll();
+                    if (!next.getValue().isEmpty()) {
+                        // the company goes to the back of the line
+                        readyByCompany.put(next.getKey(), next.getValue());
+                    }
+                }
+                // a device made urgent while already waiting in its company's line is flushed once
+                if (candidate != null && scheduledDevices.remove(candidate)) {
+                    deviceSerialNumber = candidate;
+                    Long at = requestedAt.remove(candidate);
+                    requested = at == null ? System.nanoTime() : at;
+                }
+            }
+        }
+        try {
+            if (flush(deviceSerialNumber, requested, !continuingDevices.remove(deviceSerialNumber))) {
+                quantumYields.incrementAndGet();
+                continuingDevices.add(deviceSerialNumber);
+                dispatch(deviceSerialNumber);
+            }
+        } catch (Exception e) {
+            log.error("Error dispatching queued commands to device {}", deviceSerialNumber, e);
+        }
+    }
+
+    /** Sends one command right away, whatever its status, and tracks it like a dispatched one. */
+    public boolean sendNow(ScheduledCommand command) {
+        synchronized (deviceLock(command.getDeviceSerialNumber())) {
+            if (!send(command)) {
+                sendsRefused.incrementAndGet();
+                return false;
+            }
+            commandsSent.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Matches a device's answer to the oldest in-flight command of that type and key and records the
+     * outcome.
+     *
+     * @param commandType    the command_queue type, compared case-insensitively
+     * @param correlationKey what the answer echoes (UserID, DeptNo), or null when it echoes nothing
+     * @return false if no command from the queue was waiting for this answer
+     */
+    public boolean resolve(String deviceSerialNumber, String commandType, String correlationKey, boolean ok, String responseXml) {
+        if (deviceSerialNumber == null || commandType == null) {
+            return false;
+        }
+        InFlight command;
+        synchronized (inFlight) {
+            Deque<InFlight> waiting = inFlight.get(key(deviceSerialNumber, commandType, correlationKey));
+            command = waiting == null ? null : waiting.poll();
+            if (command == null) {
+                answersUnmatched.incrementAndGet();
+                return false;
+            }
+            if (waiting.isEmpty()) {
+                inFlight.remove(command.key);
+            }
+            byId.remove(command.id);
+        }
+        answersMatched.incrementAndGet();
+        commandRepository.markFinished(command.id, ok ? "COMPLETED" : "FAILED", responseXml, LocalDateTime.now());
+        if (!ok) {
+            fail(command);
+        }
+        return true;
+    }
 
-                if (sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber) == null) {
-                    log.warn("Device {} is not connected, skipping command execution", deviceSerialNumber);
+    /** Safety net for mailboxes no trigger flushed; reads only the (status, device) index. */
+    @Scheduled(fixedDelayString = "${command-dispatch.sweep-ms:60000}")
+    public void sweep() {
+        sweeps.incrementAndGet();
+        for (String deviceSerialNumber : commandRepository.findDeviceSerialNumbersByStatus("PENDING")) {
+            if (sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber) != null) {
+                sweptDevices.incrementAndGet();
+                dispatch(deviceSerialNumber);
+            }
+        }
+    }
+
+    /**
+     * Resends commands whose answer is overdue, fails those out of attempts or not safe to resend,
+     * and hands the retryable commands of devices that went away back to their mailbox for the
+     * next login.
+     */
+    @Scheduled(fixedDelayString = "${command-dispatch.timeout-check-ms:1000}")
+    public void expireInFlight() {
+        long now = System.currentTimeMillis();
+        List<InFlight> overdue = new ArrayList<>();
+        synchronized (inFlight) {
+            for (InFlight command : byId.values()) {
+                if (command.deadline <= now) {
+                    overdue.add(command);
+                }
+            }
+        }
+        for (InFlight command : overdue) {
+            boolean retryable = RETRYABLE.contains(command.commandType.toUpperCase(Locale.ROOT));
+            boolean connected = sessionManager.getSessionByDeviceSerialNumber(command.deviceSerialNumber) != null;
+            if (!connected && retryable) {
+                if (untrack(command)) {
+                    requeuedOnDisconnect.incrementAndGet();
+                    commandRepository.markPending(command.id, LocalDateTime.now());
+                }
+                continue;
+            }
+            timeouts.incrementAndGet();
+            if (command.attempts >= maxAttempts || !retryable) {
+                if (untrack(command)) {
+                    log.warn("Command {} ({}) to device {} unanswered after {} attempts{}", command.id, command.commandType,
+                            command.deviceSerialNumber, command.attempts, retryable ? "" : ", not resending it");
+                    commandRepository.markFinished(command.id, "FAILED", null, LocalDateTime.now());
+                    fail(command);
+                }
+                continue;
+            }
+            synchronized (deviceLock(command.deviceSerialNumber)) {
+                synchronized (inFlight) {
+                    if (byId.get(command.id) != command) {
+                        // answered meanwhile
+                        continue;
+                    }
+                    command.attempts++;
+                    command.deadline = System.currentTimeMillis() + timeoutFor(command.attempts);
+                }
+                if (!sessionManager.sendMessageToDevice(command.deviceSerialNumber, outgoingXml(command.commandType, command.commandXml, command.queuedAt))) {
+                    if (untrack(command)) {
+                        sendsRefused.incrementAndGet();
+                        commandRepository.markPending(command.id, LocalDateTime.now());
+                    }
                     continue;
                 }
+                retries.incrementAndGet();
+                commandRepository.markSent(command.id, "SENT", command.correlationKey, command.attempts, LocalDateTime.now(), null);
+            }
+        }
+    }
+
+    private void dispatchAfterCommit(String deviceSerialNumber, boolean urgent) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    dispatch(deviceSerialNumber, urgent);
+                }
+            });
+        } else {
+            dispatch(deviceSerialNumber, urgent);
+        }
+    }
 
-                boolean sent = sessionManager.sendMessageToDevice(deviceSerialNumber, command.getCommandXml());
+    private Object deviceLock(String deviceSerialNumber) {
+        return deviceLocks.computeIfAbsent(deviceSerialNumber, serial -> new Object());
+    }
 
-                if (sent) {
-                    command.setStatus("SENT");
-                    command.setExecutedAt(LocalDateTime.now());
-                    commandRepository.save(command);
-                    log.info("Command {} sent to device {}", command.getId(), deviceSerialNumber);
-                } else {
-                    log.error("Failed to send command {} to device {}", command.getId(), deviceSerialNumber);
+    /**
+     * Sends up to {@code command-dispatch.flush-quantum} of the device's pending commands, stopping
+     * early if one is refused. The priority lanes are interleaved by smooth weighted round robin, so
+     * every non-empty lane gets its weight's share of the turn and none starves. A user's commands
+     * still reach the device in the order they were queued: one that overtook older commands for the
+     * same user in a slower lane takes them along.
+     *
+     * @return true if the quantum ran out with commands still queued
+     */
+    private boolean flush(String deviceSerialNumber, long requestedAt, boolean compact) {
+        if (sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber) == null) {
+            return false;
+        }
+        // one flush per device at a time, so a command is never picked up twice
+        synchronized (deviceLock(deviceSerialNumber)) {
+            flushes.incrementAndGet();
+            if (compact) {
+                commandCompactor.compact(deviceSerialNumber);
+            }
+            Lane[] lanes = {
+                    new Lane(deviceSerialNumber, CommandPriority.INTERACTIVE, interactiveWeight),
+                    new Lane(deviceSerialNumber, CommandPriority.OPERATIONAL, operationalWeight),
+                    new Lane(deviceSerialNumber, CommandPriority.BULK, bulkWeight)
+            };
+            Set<Long> sentAhead = new HashSet<>();
+            int sent = 0;
+            while (true) {
+                Lane lane = nextLane(lanes);
+                if (lane == null) {
+                    return false;
+                }
+                if (sent >= flushQuantum) {
+                    return true;
+                }
+                ScheduledCommand command = lane.buffer.poll();
+                if (sentAhead.remove(command.getId())) {
+                    continue;
                 }
+                if (command.getUserId() != null && overtakes(lanes, lane, command)) {
+                    for (ScheduledCommand earlier : commandRepository.findByDeviceSerialNumberAndStatusAndUserIdAndIdLessThanOrderByIdAsc(
+                            deviceSerialNumber, "PENDING", command.getUserId(), command.getId())) {
+                        if (!sendQueued(earlier, requestedAt)) {
+                            return false;
+                        }
+                        sentAhead.add(earlier.getId());
+                        sentOutOfTurn.incrementAndGet();
+                        sent++;
+                    }
+                }
+                if (!sendQueued(command, requestedAt)) {
+                    return false;
+                }
+                sent++;
+            }
+        }
+    }
+
+    /** Smooth weighted round robin over the lanes that have commands; null when all are empty. */
+    private static Lane nextLane(Lane[] lanes) {
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : lanes) {
+            if (lane.head() == null) {
+                lane.credit = 0;
+                continue;
+            }
+            lane.credit += lane.weight;
+            total += lane.weight;
+            if (best == null || lane.credit > best.credit) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            best.credit -= total;
+        }
+        return best;
+    }
+
+    /** Whether another lane still holds commands queued before this one. */
+    private static boolean overtakes(Lane[] lanes, Lane lane, ScheduledCommand command) {
+        for (Lane other : lanes) {
+            ScheduledCommand head = other.buffer.peek();
+            if (other != lane && head != null && head.getId() < command.getId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean sendQueued(ScheduledCommand command, long requestedAt) {
+        if (!send(command)) {
+            sendsRefused.incrementAndGet();
+            log.warn("Device {} refused command {}, leaving the rest of its mailbox queued", command.getDeviceSerialNumber(), command.getId());
+            return false;
+        }
+        commandsSent.incrementAndGet();
+        long waitedMicros = (System.nanoTime() - requestedAt) / 1000;
+        triggerToSentMicros.addAndGet(waitedMicros);
+        maxTriggerToSentMicros.accumulateAndGet(waitedMicros, Math::max);
+        CommandPriority priority = command.getPriority() == null ? CommandPriority.OPERATIONAL : command.getPriority();
+        sentByLane.get(priority).incrementAndGet();
+        if (command.getCreatedAt() != null) {
+            long queuedMillis = Math.max(0, Duration.between(command.getCreatedAt(), LocalDateTime.now()).toMillis());
+            queuedMillisByLane.get(priority).addAndGet(queuedMillis);
+            maxQueuedMillisByLane.get(priority).accumulateAndGet(queuedMillis, Math::max);
+        }
+        return true;
+    }
+
+    /** @return false if the device refused the command, which is then left PENDING */
+    private boolean send(ScheduledCommand command) {
+        String correlationKey = command.getCorrelationKey() != null ? command.getCorrelationKey() : correlationKeyOf(command);
+        int attempts = (command.getAttempts() == null ? 0 : command.getAttempts()) + 1;
+        LocalDateTime now = LocalDateTime.now();
+        // SetFingerData gets no answer the server can match, so it is done once it is on the wire
+        boolean unanswered = RosterReconciler.SET_FINGER.equals(command.getCommandType());
+        InFlight tracked = null;
+        if (!unanswered) {
+            // tracked before sending: the answer can arrive before this thread gets to run again
+            tracked = new InFlight(command, correlationKey);
+            tracked.attempts = attempts;
+            tracked.deadline = System.currentTimeMillis() + timeoutFor(attempts);
+            synchronized (inFlight) {
+                InFlight previous = byId.get(tracked.id);
+                if (previous != null) {
+                    untrack(previous);
+                }
+                inFlight.computeIfAbsent(tracked.key, k -> new ArrayDeque<>()).add(tracked);
+                byId.put(tracked.id, tracked);
+            }
+        }
+        commandRepository.markSent(command.getId(), unanswered ? "COMPLETED" : "SENT", correlationKey, attempts, now, unanswered ? now : null);
+        if (sessionManager.sendMessageToDevice(command.getDeviceSerialNumber(),
+                outgoingXml(command.getCommandType(), command.getCommandXml(), command.getCreatedAt()))) {
+            return true;
+        }
+        if (tracked == null || untrack(tracked)) {
+            commandRepository.markPending(command.getId(), LocalDateTime.now());
+        }
+        return false;
+    }
+
+    /**
+     * A SetTime that waited in the queue, e.g. for an offline device, is moved forward by the wait,
+     * so the clock is set to what was asked for rather than to a time already past.
+     */
+    private static String outgoingXml(String commandType, String xml, LocalDateTime queuedAt) {
+        if (queuedAt == null || !"SetTime".equalsIgnoreCase(commandType)) {
+            return xml;
+        }
+        long waitedSeconds = Duration.between(queuedAt, LocalDateTime.now()).getSeconds();
+        Matcher time = TIME.matcher(xml);
+        if (waitedSeconds < 1 || !time.find()) {
+            return xml;
+        }
+        try {
+            LocalDateTime requested = LocalDateTime.parse(time.group(1), DEVICE_TIME);
+            return xml.substring(0, time.start(1)) + requested.plusSeconds(waitedSeconds).format(DEVICE_TIME) + xml.substring(time.end(1));
+        } catch (DateTimeParseException e) {
+            return xml;
+        }
+    }
+
+    /** @return false if the command was no longer in flight, e.g. answered meanwhile */
+    private boolean untrack(InFlight command) {
+        synchronized (inFlight) {
+            if (byId.get(command.id) != command) {
+                return false;
+            }
+            byId.remove(command.id);
+            Deque<InFlight> waiting = inFlight.get(command.key);
+            if (waiting != null) {
+                waiting.remove(command);
+                if (waiting.isEmpty()) {
+                    inFlight.remove(command.key);
+                }
+            }
+            return true;
+        }
+    }
+
+    private void fail(InFlight command) {
+        commandsFailed.incrementAndGet();
+        for (BiConsumer<String, String> listener : failureListeners) {
+            try {
+                listener.accept(command.deviceSerialNumber, command.userId);
             } catch (Exception e) {
-                log.error("Error executing scheduled command {}", command.getId(), e);
+                log.error("Command failure listener threw for command {}", command.id, e);
             }
         }
     }
 
+    private long timeoutFor(int attempt) {
+        return Math.min(maxTimeoutMs, timeoutMs << Math.min(attempt - 1, 16));
+    }
+
+    private static String key(String deviceSerialNumber, String commandType, String correlationKey) {
+        return deviceSerialNumber + "|" + commandType.toUpperCase(Locale.ROOT) + "|" + (correlationKey == null ? "" : correlationKey);
+    }
+
+    /**
+     * UserID for user commands, DeptNo for departments, empty for device-wide commands. Finger
+     * commands also name the finger, as "UserID:FingerNo", so compaction can tell them apart.
+     */
+    private static String correlationKeyOf(ScheduledCommand command) {
+        String xml = command.getCommandXml() == null ? "" : command.getCommandXml();
+        String userId = command.getUserId();
+        if (userId == null) {
+            Matcher matcher = USER_ID.matcher(xml);
+            userId = matcher.find() ? matcher.group(1) : null;
+        }
+        if (userId != null) {
+            Matcher fingerNo = FINGER_NO.matcher(xml);
+            return RosterReconciler.SET_FINGER.equalsIgnoreCase(command.getCommandType()) && fingerNo.find()
+                    ? userId + ":" + fingerNo.group(1)
+                    : userId;
+        }
+        Matcher deptNo = DEPT_NO.matcher(xml);
+        return deptNo.find() ? deptNo.group(1) : "";
+    }
+
     @Transactional
     public void updateCommandStatus(Long commandId, String status, String responseXml) {
         Optional<ScheduledCommand> commandOpt = commandRepository.findById(commandId);
@@ -88,4 +748,46 @@ public class ScheduledCommandService {
             commandRepository.save(command);
         }
     }
-}
\ No newline at end of file
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("flushes", flushes.get());
+        stats.put("commandsSent", commandsSent.get());
+        stats.put("sendsRefused", sendsRefused.get());
+        stats.put("sweeps", sweeps.get());
+        stats.put("sweptDevices", sweptDevices.get());
+        stats.put("scheduledFlushes", scheduledDevices.size());
+        long sent = commandsSent.get();
+        // from the enqueue, login or sweep that triggered the flush to the command being handed to the socket
+        stats.put("avgTriggerToSentMs", sent == 0 ? 0.0 : triggerToSentMicros.get() / 1000.0 / sent);
+        stats.put("maxTriggerToSentMs", maxTriggerToSentMicros.get() / 1000.0);
+        synchronized (inFlight) {
+            stats.put("inFlight", byId.size());
+        }
+        stats.put("answersMatched", answersMatched.get());
+        stats.put("answersUnmatched", answersUnmatched.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("retries", retries.get());
+        stats.put("commandsFailed", commandsFailed.get());
+        stats.put("requeuedOnDisconnect", requeuedOnDisconnect.get());
+        stats.put("urgentDispatches", urgentDispatches.get());
+        stats.put("quantumYields", quantumYields.get());
+        stats.put("sentOutOfTurn", sentOutOfTurn.get());
+        synchronized (readyByCompany) {
+            stats.put("companiesWaiting", readyByCompany.size());
+        }
+        Map<String, Object> lanes = new LinkedHashMap<>();
+        for (CommandPriority priority : CommandPriority.values()) {
+            Map<String, Object> lane = new LinkedHashMap<>();
+            long laneSent = sentByLane.get(priority).get();
+            lane.put("sent", laneSent);
+            // from the row being queued to it being handed to the socket
+            lane.put("avgQueuedMs", laneSent == 0 ? 0.0 : (double) queuedMillisByLane.get(priority).get() / laneSent);
+            lane.put("maxQueuedMs", maxQueuedMillisByLane.get(priority).get());
+            lanes.put(priority.name(), lane);
+        }
+        stats.put("lanes", lanes);
+        stats.put("compaction", commandCompactor.getStats());
+        return stats;
+    }
+}
@@ -0,0 +1,465 @@
+package com.xaur.service;
+
+import com.xaur.model.DeviceStatus;
+import com.xaur.model.User;
+import com.xaur.repository.UserFaceDataRepository;
+import com.xaur.repository.UserFingerDataRepository;
+import com.xaur.repository.UserPhotoRepository;
+import com.xaur.repository.UserRepository;
+import com.xaur.websocket.RequestWindow;
+import com.xaur.websocket.WebSocketSessionManager;
+import com.xaur.websocket.message.MessageBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pulls fingerprint, face and photo templates off terminals. Each device gets a
+ * {@link RequestWindow} of outstanding GetFingerData/GetFaceData/GetUserPhoto requests, refilled as
+ * responses arrive, so a roster is harvested at the pace the terminal can answer instead of one
+ * request per second. Only templates the roster lists but the database lacks, and those of users
+ * re-enrolled on the terminal, are requested; a device whose template counts have not moved since
+ * its last harvest is skipped altogether.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class TemplateHarvester {
+
+    public enum Kind {
+        FINGER, FACE, PHOTO
+    }
+
+    private final WebSocketSessionManager sessionManager;
+    private final MessageBuilder messageBuilder;
+    private final UserRepository userRepository;
+    private final UserFingerDataRepository userFingerDataRepository;
+    private final UserFaceDataRepository userFaceDataRepository;
+    private final UserPhotoRepository userPhotoRepository;
+    private final DeviceStatusService deviceStatusService;
+    private final UserSyncService userSyncService;
+    private final RosterSnapshotService rosterSnapshotService;
+
+    @Value("${harvest.enabled:true}")
+    private boolean enabled;
+
+    @Value("${harvest.photos:false}")
+    private boolean photosEnabled;
+
+    @Value("${harvest.initial-window:2}")
+    private int initialWindow;
+
+    @Value("${harvest.max-window:16}")
+    private int maxWindow;
+
+    @Value("${harvest.min-timeout-ms:3000}")
+    private long minTimeoutMs;
+
+    @Value("${harvest.max-timeout-ms:30000}")
+    private long maxTimeoutMs;
+
+    @Value("${harvest.max-attempts:3}")
+    private int maxAttempts;
+
+    private final Map<String, Harvest> harvests = new ConcurrentHashMap<>();
+    private final Map<String, String> harvestedSignatures = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> changedUsers = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> usersWithoutPhoto = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> unrecordedHarvests = new ConcurrentHashMap<>();
+    /** harvested templates handed to the caller and not yet written, per device */
+    private final Map<String, AtomicInteger> unwrittenTemplates = new ConcurrentHashMap<>();
+
+    private final AtomicLong harvestsCompleted = new AtomicLong();
+    private final AtomicLong harvestsAborted = new AtomicLong();
+    private final AtomicLong harvestsSkipped = new AtomicLong();
+    private final AtomicLong templatesReceived = new AtomicLong();
+    private final AtomicLong templatesMissing = new AtomicLong();
+    private final AtomicLong requestsTimedOut = new AtomicLong();
+    private final AtomicLong requestsAbandoned = new AtomicLong();
+
+    /** Starts harvesting whatever templates the device has that the database lacks. */
+    public boolean harvest(String deviceSerialNumber) {
+        return startHarvest(deviceSerialNumber, "requested");
+    }
+
+    /** Enrollment on the terminal may replace a template in place, so the user's are fetched again. */
+    public void markUserChanged(String deviceSerialNumber, String userId) {
+        if (deviceSerialNumber == null || userId == null) {
+            return;
+        }
+        changedUsers.computeIfAbsent(deviceSerialNumber, serial -> ConcurrentHashMap.newKeySet()).add(userId);
+        Set<String> noPhoto = usersWithoutPhoto.get(deviceSerialNumber);
+        if (noPhoto != null) {
+            noPhoto.remove(userId);
+        }
+    }
+
+    /**
+     * Called for every template response. Refills the window before the caller stores the template
+     * so the device is never idle waiting on the database.
+     *
+     * @return true if the template belongs to a harvest; the caller must then call
+     * {@link #onTemplateWritten} once its write has committed, or failed
+     */
+    public boolean onResponse(String deviceSerialNumber, Kind kind, String userId, Integer fingerNo, boolean ok) {
+        Harvest harvest = deviceSerialNumber == null ? null : harvests.get(deviceSerialNumber);
+        if (harvest == null) {
+            return false;
+        }
+        boolean awaitWrite = ok && kind != Kind.PHOTO;
+        AtomicInteger unwritten = unwrittenTemplates.computeIfAbsent(deviceSerialNumber, serial -> new AtomicInteger());
+        if (awaitWrite) {
+            // counted before the harvest can finish on this answer
+            unwritten.incrementAndGet();
+        }
+        if (!harvest.onResponse(kind, userId, fingerNo, ok) && awaitWrite) {
+            unwritten.decrementAndGet();
+            return false;
+        }
+        return awaitWrite;
+    }
+
+    /**
+     * The template of an answer {@link #onResponse} claimed is in the database. A finished harvest
+     * is recorded in the roster snapshot once the last of its templates is, so the snapshot holds
+     * the hashes the device actually has.
+     */
+    public void onTemplateWritten(String deviceSerialNumber) {
+        AtomicInteger unwritten = unwrittenTemplates.get(deviceSerialNumber);
+        if (unwritten != null) {
+            unwritten.decrementAndGet();
+        }
+        recordIfWritten(deviceSerialNumber);
+    }
+
+    private void recordIfWritten(String deviceSerialNumber) {
+        AtomicInteger unwritten = unwrittenTemplates.get(deviceSerialNumber);
+        if (unwritten != null && unwritten.get() > 0) {
+            return;
+        }
+        Set<String> users = unrecordedHarvests.remove(deviceSerialNumber);
+        if (users != null) {
+            rosterSnapshotService.recordTemplates(deviceSerialNumber, users);
+        }
+    }
+
+    @Scheduled(fixedRateString = "${harvest.interval-ms:300000}", initialDelayString = "${harvest.initial-delay-ms:60000}")
+    public void scheduledHarvest() {
+        if (!enabled) {
+            return;
+        }
+        sessionManager.getAllSessions().values().forEach(session -> {
+            String deviceSerialNumber = sessionManager.getDeviceSerialNumber(session);
+            // the plan is built from the users table, so wait until the roster has been walked
+            if (deviceSerialNumber == null || harvests.containsKey(deviceSerialNumber)
+                    || !userSyncService.isRosterCurrent(deviceSerialNumber)) {
+                return;
+            }
+            String reason = harvestReason(deviceSerialNumber);
+            if (reason == null) {
+                harvestsSkipped.incrementAndGet();
+                return;
+            }
+            startHarvest(deviceSerialNumber, reason);
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${harvest.timeout-check-ms:1000}")
+    public void expireRequests() {
+        harvests.values().forEach(Harvest::expire);
+    }
+
+    private String harvestReason(String deviceSerialNumber) {
+        Set<String> changed = changedUsers.get(deviceSerialNumber);
+        if (changed != null && !changed.isEmpty()) {
+            return "enrollment";
+        }
+        String signature = templateSignature(deviceSerialNumber);
+        if (signature == null) {
+            return null;
+        }
+        String last = harvestedSignatures.get(deviceSerialNumber);
+        if (last == null) {
+            return "first harvest";
+        }
+        return last.equals(signature) ? null : "counts changed";
+    }
+
+    private String templateSignature(String deviceSerialNumber) {
+        Optional<DeviceStatus> status = deviceStatusService.getDeviceStatus(deviceSerialNumber);
+        if (!status.isPresent() || status.get().getUserCount() == null) {
+            return null;
+        }
+        return status.get().getUserCount() + "|" + status.get().getFpCount() + "|" + status.get().getFaceCount();
+    }
+
+    private boolean startHarvest(String deviceSerialNumber, String reason) {
+        WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
+        if (session == null || !session.isOpen()) {
+            log.warn("Device not connected: {}", deviceSerialNumber);
+            return false;
+        }
+        Set<String> changed = new HashSet<>(changedUsers.getOrDefault(deviceSerialNumber, new HashSet<>()));
+        Harvest harvest = new Harvest(deviceSerialNumber, templateSignature(deviceSerialNumber), changed);
+        if (harvests.putIfAbsent(deviceSerialNumber, harvest) != null) {
+            log.info("Device already harvesting templates: {}", deviceSerialNumber);
+            return false;
+        }
+        try {
+            plan(harvest);
+        } catch (Exception e) {
+            harvests.remove(deviceSerialNumber);
+            log.error("Failed to plan template harvest for device: {}", deviceSerialNumber, e);
+            return false;
+        }
+        log.info("Harvesting {} templates from device {} ({})", harvest.queue.size(), deviceSerialNumber, reason);
+        harvest.pump();
+        return true;
+    }
+
+    private void plan(Harvest harvest) {
+        String serial = harvest.deviceSerialNumber;
+        Set<String> haveFingers = new HashSet<>();
+        for (Object[] row : userFingerDataRepository.findFingerKeysByDeviceSerialNumber(serial)) {
+            haveFingers.add(row[0] + ":" + row[1]);
+        }
+        Set<String> haveFaces = new HashSet<>(userFaceDataRepository.findUserIdsByDeviceSerialNumber(serial));
+        Set<String> havePhotos = photosEnabled
+                ? new HashSet<>(userPhotoRepository.findUserIdsByDeviceSerialNumber(serial)) : new HashSet<>();
+        Set<String> noPhoto = usersWithoutPhoto.getOrDefault(serial, new HashSet<>());
+
+        for (User user : userRepository.findByDeviceSerialNumber(serial)) {
+            String userId = user.getUserId();
+            boolean changed = harvest.changedUsers.contains(userId);
+            for (int fingerNo : enrolledFingers(user.getFingers())) {
+                if (changed || !haveFingers.contains(userId + ":" + fingerNo)) {
+                    harvest.queue.add(new Task(Kind.FINGER, userId, fingerNo));
+                }
+            }
+            if (user.isFaceEnrolled() && (changed || !haveFaces.contains(userId))) {
+                harvest.queue.add(new Task(Kind.FACE, userId, null));
+            }
+            if (photosEnabled && (changed || (!havePhotos.contains(userId) && !noPhoto.contains(userId)))) {
+                harvest.queue.add(new Task(Kind.PHOTO, userId, null));
+            }
+        }
+    }
+
+    /** The roster's Fingers field lists enrolled finger numbers, e.g. "0,5". */
+    private static Set<Integer> enrolledFingers(String fingers) {
+        Set<Integer> result = new HashSet<>();
+        if (fingers == null) {
+            return result;
+        }
+        for (String part : fingers.split("[^0-9]+")) {
+            if (!part.isEmpty()) {
+                int fingerNo = Integer.parseInt(part);
+                if (fingerNo >= 0 && fingerNo <= 9) {
+                    result.add(fingerNo);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String key(Kind kind, String userId, Integer fingerNo) {
+        return kind == Kind.FINGER ? kind + ":" + userId + ":" + fingerNo : kind + ":" + userId;
+    }
+
+    public boolean isHarvesting(String deviceSerialNumber) {
+        return harvests.containsKey(deviceSerialNumber);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("harvestsCompleted", harvestsCompleted.get());
+        stats.put("harvestsAborted", harvestsAborted.get());
+        stats.put("harvestsSkipped", harvestsSkipped.get());
+        stats.put("templatesReceived", templatesReceived.get());
+        stats.put("templatesMissing", templatesMissing.get());
+        stats.put("requestsTimedOut", requestsTimedOut.get());
+        stats.put("requestsAbandoned", requestsAbandoned.get());
+        Map<String, Object> active = new LinkedHashMap<>();
+        harvests.forEach((serial, harvest) -> active.put(serial, harvest.stats()));
+        stats.put("active", active);
+        return stats;
+    }
+
+    private static final class Task {
+        private final Kind kind;
+        private final String userId;
+        private final Integer fingerNo;
+        private int attempts;
+
+        Task(Kind kind, String userId, Integer fingerNo) {
+            this.kind = kind;
+            this.userId = userId;
+            this.fingerNo = fingerNo;
+        }
+    }
+
+    private final class Harvest {
+
+        private final String deviceSerialNumber;
+        private final String signature;
+        private final Set<String> changedUsers;
+        private final Deque<Task> queue = new ArrayDeque<>();
+        private final Map<String, Task> inFlight = new HashMap<>();
+        private final RequestWindow window = new RequestWindow(initialWindow, maxWindow, minTimeoutMs, maxTimeoutMs);
+        private final long startedAt = System.currentTimeMillis();
+        private final Set<String> harvestedUsers = new HashSet<>();
+        private final Set<String> failedUsers = new HashSet<>();
+        private int received;
+        private int failed;
+
+        Harvest(String deviceSerialNumber, String signature, Set<String> changedUsers) {
+            this.deviceSerialNumber = deviceSerialNumber;
+            this.signature = signature;
+            this.changedUsers = changedUsers;
+        }
+
+        synchronized void pump() {
+            while (window.hasCredit() && !queue.isEmpty()) {
+                Task task = queue.poll();
+                String key = key(task.kind, task.userId, task.fingerNo);
+                task.attempts++;
+                inFlight.put(key, task);
+                window.sent(key);
+                if (!sessionManager.sendMessageToDevice(deviceSerialNumber, request(task))) {
+                    window.cancel(key);
+                    inFlight.remove(key);
+                    abort("send failed");
+                    return;
+                }
+            }
+            if (queue.isEmpty() && inFlight.isEmpty()) {
+                finish();
+            }
+        }
+
+        /** @return false if no request was waiting for this answer */
+        synchronized boolean onResponse(Kind kind, String userId, Integer fingerNo, boolean ok) {
+            String key = key(kind, userId, fingerNo);
+            Task task = inFlight.remove(key);
+            if (task == null) {
+                return false;
+            }
+            window.complete(key);
+            if (ok) {
+                received++;
+                templatesReceived.incrementAndGet();
+                if (kind != Kind.PHOTO) {
+                    harvestedUsers.add(userId);
+                }
+            } else {
+                failed++;
+                failedUsers.add(userId);
+                templatesMissing.incrementAndGet();
+                if (kind == Kind.PHOTO) {
+                    usersWithoutPhoto.computeIfAbsent(deviceSerialNumber, serial -> ConcurrentHashMap.newKeySet()).add(userId);
+                }
+            }
+            pump();
+            return true;
+        }
+
+        synchronized void expire() {
+            if (harvests.get(deviceSerialNumber) != this) {
+                return;
+            }
+            WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
+            if (session == null || !session.isOpen()) {
+                abort("device disconnected");
+                return;
+            }
+            for (String key : window.expire()) {
+                Task task = inFlight.remove(key);
+                if (task == null) {
+                    continue;
+                }
+                requestsTimedOut.incrementAndGet();
+                if (task.attempts < maxAttempts) {
+                    queue.add(task);
+                } else {
+                    failed++;
+                    failedUsers.add(task.userId);
+                    requestsAbandoned.incrementAndGet();
+                    log.warn("Giving up on {} after {} attempts on device {}", key, task.attempts, deviceSerialNumber);
+                }
+            }
+            pump();
+        }
+
+        private String request(Task task) {
+            switch (task.kind) {
+                case FINGER:
+                    return messageBuilder.buildGetFingerDataRequest(task.userId, task.fingerNo, false);
+                case FACE:
+                    return messageBuilder.buildGetFaceDataRequest(task.userId);
+                default:
+                    return messageBuilder.buildGetUserPhotoRequest(task.userId);
+            }
+        }
+
+        private void finish() {
+            if (!harvests.remove(deviceSerialNumber, this)) {
+                return;
+            }
+            if (signature != null) {
+                harvestedSignatures.put(deviceSerialNumber, signature);
+            }
+            Set<String> changed = TemplateHarvester.this.changedUsers.get(deviceSerialNumber);
+            if (changed != null) {
+                changed.removeAll(changedUsers);
+            }
+            // users with a template still missing keep their old fingerprint and get checked again
+            harvestedUsers.removeAll(failedUsers);
+            unrecordedHarvests.merge(deviceSerialNumber, harvestedUsers, (a, b) -> {
+                Set<String> merged = new HashSet<>(a);
+                merged.addAll(b);
+                return merged;
+            });
+            harvestsCompleted.incrementAndGet();
+            log.info("Template harvest for device {} finished in {} ms: {} received, {} missing or failed",
+                    deviceSerialNumber, System.currentTimeMillis() - startedAt, received, failed);
+            // templates still being written record it from onTemplateWritten instead
+            recordIfWritten(deviceSerialNumber);
+        }
+
+        private void abort(String reason) {
+            if (harvests.remove(deviceSerialNumber, this)) {
+                harvestsAborted.incrementAndGet();
+                log.warn("Template harvest for device {} aborted ({}): {} received, {} still queued",
+                        deviceSerialNumber, reason, received, queue.size() + inFlight.size());
+            }
+        }
+
+        synchronized Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("queued", queue.size());
+            stats.put("inFlight", inFlight.size());
+            stats.put("received", received);
+            stats.put("failed", failed);
+            stats.put("window", Math.round(window.window() * 10) / 10.0);
+            stats.put("latencyMs", Math.round(window.smoothedRttMs()));
+            stats.put("timeoutMs", window.timeoutMs());
+            return stats;
+        }
+    }
+}
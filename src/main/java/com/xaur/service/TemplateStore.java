@@ -0,0 +1,298 @@
+package com.xaur.service;
+
+import com.xaur.model.BiometricTemplate;
+import com.xaur.repository.BiometricTemplateRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed store for face and fingerprint templates. Devices send templates as base64
+ * text; the store keeps the decoded bytes once per distinct template, deflated when that helps,
+ * under the SHA-256 of the content, and the per-device tables keep only the hash. Rows written
+ * before the store existed still carry their text inline and are moved into the store in the
+ * background after startup.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class TemplateStore {
+
+    private static final String INSERT_TEMPLATE = "INSERT INTO biometric_template (hash, format, compression, raw_size, data, created_at) VALUES (?, ?, ?, ?, ?, ?)";
+
+    /** table, inline text column, hash column */
+    private static final String[][] LEGACY_COLUMNS = {
+            {"user_face_data", "face_data", "template_hash"},
+            {"user_finger_data", "finger_data", "template_hash"},
+            {"users", "face_data", "face_template_hash"}
+    };
+
+    private final BiometricTemplateRepository templateRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${template-store.cache-entries:1024}")
+    private int cacheEntries;
+
+    @Value("${template-store.backfill-enabled:true}")
+    private boolean backfillEnabled;
+
+    @Value("${template-store.backfill-batch-size:200}")
+    private int backfillBatchSize;
+
+    private Map<String, Boolean> knownHashes;
+    private Map<String, String> payloads;
+    private ExecutorService backfillExecutor;
+
+    private final AtomicLong templatesStored = new AtomicLong();
+    private final AtomicLong duplicatesSkipped = new AtomicLong();
+    private final AtomicLong payloadChars = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong rowsBackfilled = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        knownHashes = lruMap(cacheEntries * 4);
+        payloads = lruMap(cacheEntries);
+        backfillExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "template-backfill");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        backfillExecutor.shutdownNow();
+    }
+
+    private static <V> Map<String, V> lruMap(int maxEntries) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Stores a template received from a device unless the same content is already stored.
+     *
+     * @return the template's hash, or null for an empty payload
+     */
+    public String put(String payload) {
+        if (payload == null || payload.isEmpty()) {
+            return null;
+        }
+        String format = "B64";
+        byte[] raw;
+        try {
+            raw = Base64.getDecoder().decode(payload);
+            // only canonical base64 round-trips; anything else is kept verbatim
+            if (!Base64.getEncoder().encodeToString(raw).equals(payload)) {
+                format = "TEXT";
+                raw = payload.getBytes(StandardCharsets.UTF_8);
+            }
+        } catch (IllegalArgumentException e) {
+            format = "TEXT";
+            raw = payload.getBytes(StandardCharsets.UTF_8);
+        }
+        String hash = hash(format, raw);
+        payloadChars.addAndGet(payload.length());
+        if (knownHashes.containsKey(hash) || templateRepository.existsById(hash)) {
+            knownHashes.put(hash, Boolean.TRUE);
+            duplicatesSkipped.incrementAndGet();
+            return hash;
+        }
+        byte[] deflated = deflate(raw);
+        boolean compressed = deflated.length < raw.length;
+        byte[] data = compressed ? deflated : raw;
+        try {
+            jdbcTemplate.update(INSERT_TEMPLATE, hash, format, compressed ? "DEFLATE" : "NONE", raw.length, data,
+                    Timestamp.valueOf(LocalDateTime.now()));
+            templatesStored.incrementAndGet();
+            storedBytes.addAndGet(data.length);
+        } catch (DataIntegrityViolationException e) {
+            // stored concurrently by another device's answer
+            duplicatesSkipped.incrementAndGet();
+        }
+        knownHashes.put(hash, Boolean.TRUE);
+        return hash;
+    }
+
+    /** The payload to send to a device, or null if the hash is unknown. */
+    public String get(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        return getAll(Collections.singletonList(hash)).get(hash);
+    }
+
+    /** Payloads by hash, loaded in one query for whatever is not cached. */
+    public Map<String, String> getAll(Collection<String> hashes) {
+        Map<String, String> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String hash : hashes) {
+            if (hash == null || found.containsKey(hash)) {
+                continue;
+            }
+            String payload = payloads.get(hash);
+            if (payload != null) {
+                found.put(hash, payload);
+            } else {
+                missing.add(hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (BiometricTemplate template : templateRepository.findAllById(missing)) {
+                String payload = decode(template);
+                payloads.put(template.getHash(), payload);
+                found.put(template.getHash(), payload);
+            }
+        }
+        return found;
+    }
+
+    /** A row's template: from the store when it has a hash, else the text written before the store existed. */
+    public String resolve(String hash, String inline) {
+        return hash != null ? get(hash) : inline;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("templatesStored", templatesStored.get());
+        stats.put("duplicatesSkipped", duplicatesSkipped.get());
+        stats.put("payloadChars", payloadChars.get());
+        stats.put("storedBytes", storedBytes.get());
+        stats.put("rowsBackfilled", rowsBackfilled.get());
+        stats.put("cachedPayloads", payloads.size());
+        return stats;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleBackfill() {
+        if (backfillEnabled) {
+            backfillExecutor.execute(this::backfill);
+        }
+    }
+
+    /** Moves inline templates into the store, a batch at a time, and clears the text column. */
+    private void backfill() {
+        for (String[] columns : LEGACY_COLUMNS) {
+            String table = columns[0];
+            String inline = columns[1];
+            String hashColumn = columns[2];
+            String select = "SELECT id, " + inline + " FROM " + table + " WHERE " + hashColumn + " IS NULL AND " + inline + " IS NOT NULL LIMIT " + backfillBatchSize;
+            // a device answer may have written a newer template since the select; it wins
+            String update = "UPDATE " + table + " SET " + hashColumn + " = ?, " + inline + " = NULL WHERE id = ? AND " + hashColumn + " IS NULL";
+            long moved = 0;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    List<Object[]> rows = jdbcTemplate.query(select, (rs, rowNum) -> new Object[]{rs.getLong(1), rs.getString(2)});
+                    if (rows.isEmpty()) {
+                        break;
+                    }
+                    List<Object[]> updates = new ArrayList<>();
+                    for (Object[] row : rows) {
+                        updates.add(new Object[]{put((String) row[1]), row[0]});
+                    }
+                    jdbcTemplate.batchUpdate(update, updates);
+                    moved += rows.size();
+                    rowsBackfilled.addAndGet(rows.size());
+                }
+            } catch (Exception e) {
+                log.error("Template backfill of {}.{} stopped after {} rows", table, inline, moved, e);
+                continue;
+            }
+            if (moved > 0) {
+                log.info("Moved {} inline templates from {}.{} into the template store", moved, table, inline);
+            }
+        }
+    }
+
+    private static String hash(String format, byte[] raw) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(format.getBytes(StandardCharsets.US_ASCII));
+            digest.update((byte) 0);
+            digest.update(raw);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String decode(BiometricTemplate template) {
+        byte[] raw = template.getData();
+        if ("DEFLATE".equals(template.getCompression())) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(raw);
+                byte[] inflated = new byte[template.getRawSize()];
+                int length = 0;
+                while (length < inflated.length && !inflater.finished()) {
+                    int n = inflater.inflate(inflated, length, inflated.length - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("truncated");
+                    }
+                    length += n;
+                }
+                raw = inflated;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt template " + template.getHash(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+        return "TEXT".equals(template.getFormat())
+                ? new String(raw, StandardCharsets.UTF_8)
+                : Base64.getEncoder().encodeToString(raw);
+    }
+}
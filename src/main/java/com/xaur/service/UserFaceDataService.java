@@ -21,6 +21,7 @@ public class UserFaceDataService {
     private final UserFaceDataRepository userFaceDataRepository;
     private final WebSocketSessionManager sessionManager;
     private final MessageBuilder messageBuilder;
+    private final TemplateStore templateStore;
 
     @Transactional
     public UserFaceData saveUserFaceData(UserFaceData userFaceData) {
@@ -44,11 +45,30 @@ public class UserFaceDataService {
         userFaceData.setUserId(userId);
         userFaceData.setDeviceSerialNumber(deviceSerialNumber);
         userFaceData.setFaceEnrolled(faceEnrolled);
-        userFaceData.setFaceData(faceData);
+        userFaceData.setTemplateHash(templateStore.put(faceData));
+        userFaceData.setFaceData(null);
 
         return userFaceDataRepository.save(userFaceData);
     }
 
+    /**
+     * Records that a device now holds the same face as another one. Only the reference is copied;
+     * the template itself is never read.
+     */
+    @Transactional
+    public void copyFaceReference(UserFaceData source, String targetDeviceSerialNumber) {
+        String hash = source.getTemplateHash() != null ? source.getTemplateHash() : templateStore.put(source.getFaceData());
+        UserFaceData copy = userFaceDataRepository
+                .findByUserIdAndDeviceSerialNumber(source.getUserId(), targetDeviceSerialNumber)
+                .orElse(new UserFaceData());
+        copy.setUserId(source.getUserId());
+        copy.setDeviceSerialNumber(targetDeviceSerialNumber);
+        copy.setFaceEnrolled(source.getFaceEnrolled());
+        copy.setTemplateHash(hash);
+        copy.setFaceData(null);
+        userFaceDataRepository.save(copy);
+    }
+
     
     public UserFaceDataResponse requestUserFaceData(String deviceSerialNumber, String userId) {
         
@@ -105,7 +125,7 @@ public class UserFaceDataService {
         return UserFaceDataDto.builder()
                 .userId(faceData.getUserId())
                 .faceEnrolled(faceData.getFaceEnrolled())
-                .faceData(faceData.getFaceData())
+                .faceData(templateStore.resolve(faceData.getTemplateHash(), faceData.getFaceData()))
                 .deviceSerialNumber(faceData.getDeviceSerialNumber())
                 .build();
     }
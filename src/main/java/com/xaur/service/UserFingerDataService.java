@@ -11,6 +11,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 @Service
@@ -21,6 +23,7 @@ public class UserFingerDataService {
     private final UserFingerDataRepository userFingerDataRepository;
     private final WebSocketSessionManager sessionManager;
     private final MessageBuilder messageBuilder;
+    private final TemplateStore templateStore;
 
     @Transactional
     public UserFingerData saveUserFingerData(UserFingerData userFingerData) {
@@ -49,11 +52,32 @@ public class UserFingerDataService {
         userFingerData.setFingerNo(fingerNo);
         userFingerData.setDeviceSerialNumber(deviceSerialNumber);
         userFingerData.setDuress(duress);
-        userFingerData.setFingerData(fingerData);
+        userFingerData.setTemplateHash(templateStore.put(fingerData));
+        userFingerData.setFingerData(null);
 
         return userFingerDataRepository.save(userFingerData);
     }
 
+    /**
+     * Replaces a user's fingerprints on a device with references to another device's. The templates
+     * themselves are never read.
+     */
+    @Transactional
+    public void copyFingerReferences(String userId, List<UserFingerData> source, String targetDeviceSerialNumber) {
+        userFingerDataRepository.deleteByUserIdAndDeviceSerialNumber(userId, targetDeviceSerialNumber);
+        List<UserFingerData> copies = new ArrayList<>();
+        for (UserFingerData finger : source) {
+            copies.add(UserFingerData.builder()
+                    .userId(userId)
+                    .fingerNo(finger.getFingerNo())
+                    .duress(finger.getDuress())
+                    .templateHash(finger.getTemplateHash() != null ? finger.getTemplateHash() : templateStore.put(finger.getFingerData()))
+                    .deviceSerialNumber(targetDeviceSerialNumber)
+                    .build());
+        }
+        userFingerDataRepository.saveAll(copies);
+    }
+
     
     public UserFingerDataResponse requestUserFingerData(String deviceSerialNumber,
                                                         String userId, Integer fingerNo) {
@@ -120,7 +144,7 @@ public class UserFingerDataService {
                 .userId(fingerData.getUserId())
                 .fingerNo(fingerData.getFingerNo())
                 .duress(fingerData.getDuress())
-                .fingerData(fingerData.getFingerData())
+                .fingerData(templateStore.resolve(fingerData.getTemplateHash(), fingerData.getFingerData()))
                 .deviceSerialNumber(fingerData.getDeviceSerialNumber())
                 .build();
     }
@@ -1,20 +1,19 @@
 package com.xaur.service;
 
 import com.xaur.dto.BulkUserDTO;
-import com.xaur.dto.UserData;
 import com.xaur.model.*;
 import com.xaur.repository.BulkUserRepository;
 import com.xaur.repository.TimeSheetRepository;
 import com.xaur.repository.UserRepository;
 
-import com.xaur.websocket.WebSocketSessionManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @Service
@@ -25,10 +24,9 @@ public class UserService {
 
     private final UserRepository userRepository;
     private final BulkUserRepository bulkUserRepository;
-    private final UserCommandService userCommandService;
-    private final WebSocketSessionManager sessionManager;
 
     private final TimeSheetRepository timeSheetRepository;
+    private final TemplateStore templateStore;
 
 
 
@@ -61,6 +59,30 @@ public class UserService {
         return userRepository.existsByUserId(userId);
     }
 
+    /**
+     * Copies of the users with faceData filled in from the template store, as the API returned it
+     * before templates moved out of the users table. The entities themselves are left untouched.
+     */
+    public List<User> withFaceData(List<User> users) {
+        List<String> hashes = new ArrayList<>();
+        for (User user : users) {
+            if (user.getFaceTemplateHash() != null) {
+                hashes.add(user.getFaceTemplateHash());
+            }
+        }
+        Map<String, String> payloads = templateStore.getAll(hashes);
+        List<User> resolved = new ArrayList<>(users.size());
+        for (User user : users) {
+            String faceData = user.getFaceTemplateHash() != null ? payloads.get(user.getFaceTemplateHash()) : user.getFaceData();
+            resolved.add(user.toBuilder().faceData(faceData).build());
+        }
+        return resolved;
+    }
+
+    public User withFaceData(User user) {
+        return user.toBuilder().faceData(templateStore.resolve(user.getFaceTemplateHash(), user.getFaceData())).build();
+    }
+
     public List<User> getUsersByDeviceSerialNumber(String deviceSerialNumber) {
         return userRepository.findByDeviceSerialNumber(deviceSerialNumber);
     }
@@ -69,34 +91,7 @@ public class UserService {
         return userRepository.findByUserIdAndDeviceSerialNumber(userId, deviceSerialNumber);
     }
 
-    @Scheduled(fixedRate = 120000
-    )
-    public void bulkUpload() throws InterruptedException {
-        List<BulkUser> list=bulkUserRepository.find("PENDING");
-
-        for(BulkUser bulkUser:list){
-                UserData userData=new UserData();
-
-                userData.setEnabled(true);
-                userData.setName(bulkUser.getName());
-                userData.setPrivilege(bulkUser.getPrivilege());
-                userData.setUserPeriodUsed(false);
-                userData.setAllowNoCertificate(true);
-
-      String commandXml=          userCommandService.buildSetUserDataCommand(bulkUser.getUser_id(),userData);
-            sessionManager.sendMessageToDevice(bulkUser.getDevice_serial_number(), commandXml);
-Thread.sleep(5000);
-        }
-
-
-
-    }
-
-
-
-
-
-
+    /** Rows saved here are pushed to their devices by {@link BulkUserPushService}. */
 public void userList(List<BulkUserDTO> list){
 
         for (BulkUserDTO bulkUser:list){
@@ -1,19 +1,33 @@
 package com.xaur.service;
 
-import com.xaur.repository.UserRepository;
+import com.xaur.model.DeviceStatus;
+import com.xaur.model.User;
+import com.xaur.model.UserSyncCheckpoint;
+import com.xaur.repository.UserSyncCheckpointRepository;
 import com.xaur.websocket.WebSocketSessionManager;
 import com.xaur.websocket.message.MessageBuilder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import javax.annotation.PostConstruct;
 
-import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors device rosters into the users table by walking them with GetFirstUserData/GetNextUserData.
+ * In delta mode the scheduled pass only walks a device when its reported enrollment counts differ
+ * from the last completed walk, an enrollment was logged on the terminal, or the periodic full
+ * reconciliation is due. Templates are fetched separately by {@link TemplateHarvester}.
+ */
 @Service
 @Slf4j
 @RequiredArgsConstructor
@@ -21,16 +35,37 @@ public class UserSyncService {
 
     private final WebSocketSessionManager sessionManager;
     private final MessageBuilder messageBuilder;
-    private final UserRepository userRepository;
-    private final UserFingerDataService userFingerDataService;
-    private final UserFaceDataService userFaceDataService;
+    private final DeviceStatusService deviceStatusService;
+    private final UserSyncCheckpointRepository checkpointRepository;
+    private final RosterSyncBuffer rosterSyncBuffer;
 
+    @Value("${user-sync.delta-enabled:true}")
+    private boolean deltaEnabled;
 
+    @Value("${user-sync.full-reconcile-hours:24}")
+    private long fullReconcileHours;
 
     private final Map<String, Boolean> syncingDevices = new ConcurrentHashMap<>();
-
+    private final Map<String, UserSyncCheckpoint> checkpoints = new ConcurrentHashMap<>();
+    private final Map<String, String> walkSignatures = new ConcurrentHashMap<>();
+    private final Set<String> rosterChanged = ConcurrentHashMap.newKeySet();
+    /** devices whose running walk took over a logged enrollment; an abandoned walk hands it back */
+    private final Set<String> enrollmentWalks = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicLong> walkReasons = new ConcurrentHashMap<>();
+    private final AtomicLong walksSkipped = new AtomicLong();
+    private final AtomicLong walksCompleted = new AtomicLong();
+    private final AtomicLong walksAbandoned = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        rosterSyncBuffer.addIdleListener(this::abandonWalk);
+    }
 
     public boolean syncUsersFromDevice(String deviceSerialNumber) {
+        return startRosterWalk(deviceSerialNumber, "requested");
+    }
+
+    private boolean startRosterWalk(String deviceSerialNumber, String reason) {
         if (Boolean.TRUE.equals(syncingDevices.getOrDefault(deviceSerialNumber, false))) {
             log.info("Device already syncing: {}", deviceSerialNumber);
             return false;
@@ -38,19 +73,30 @@ public class UserSyncService {
 
         WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
         if (session != null && session.isOpen()) {
-            try {
-
-                syncingDevices.put(deviceSerialNumber, true);
-
+            syncingDevices.put(deviceSerialNumber, true);
+            rosterSyncBuffer.open(deviceSerialNumber);
+            // enrollments logged from here on belong to the next walk
+            if (rosterChanged.remove(deviceSerialNumber)) {
+                enrollmentWalks.add(deviceSerialNumber);
+            }
+            String signature = deviceStatusService.getDeviceStatus(deviceSerialNumber)
+                    .filter(status -> status.getUserCount() != null)
+                    .map(UserSyncService::signatureOf)
+                    .orElse(null);
+            if (signature != null) {
+                walkSignatures.put(deviceSerialNumber, signature);
+            } else {
+                walkSignatures.remove(deviceSerialNumber);
+            }
 
-                String request = messageBuilder.buildGetFirstUserDataRequest();
-                session.sendMessage(new TextMessage(request));
-                log.info("Started user synchronization for device: {}", deviceSerialNumber);
+            String request = messageBuilder.buildGetFirstUserDataRequest();
+            if (sessionManager.sendMessageToDevice(deviceSerialNumber, request)) {
+                walkReasons.computeIfAbsent(reason, r -> new AtomicLong()).incrementAndGet();
+                log.info("Started user synchronization for device: {} ({})", deviceSerialNumber, reason);
                 return true;
-            } catch (IOException e) {
-                syncingDevices.put(deviceSerialNumber, false);
-                log.error("Failed to send GetFirstUserData request to device: {}", deviceSerialNumber, e);
             }
+            abandonWalk(deviceSerialNumber);
+            log.error("Failed to send GetFirstUserData request to device: {}", deviceSerialNumber);
         } else {
             log.warn("Device not connected: {}", deviceSerialNumber);
         }
@@ -61,13 +107,10 @@ public class UserSyncService {
     public void continueUserSync(String deviceSerialNumber) {
         WebSocketSession session = sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber);
         if (session != null && session.isOpen()) {
-            try {
-
-                String request = messageBuilder.buildGetNextUserDataRequest();
-                session.sendMessage(new TextMessage(request));
-            } catch (IOException e) {
+            String request = messageBuilder.buildGetNextUserDataRequest();
+            if (!sessionManager.sendMessageToDevice(deviceSerialNumber, request)) {
                 syncingDevices.put(deviceSerialNumber, false);
-                log.error("Failed to send GetNextUserData request to device: {}", deviceSerialNumber, e);
+                log.error("Failed to send GetNextUserData request to device: {}", deviceSerialNumber);
             }
         } else {
             syncingDevices.put(deviceSerialNumber, false);
@@ -76,92 +119,149 @@ public class UserSyncService {
     }
 
 
+    /**
+     * Hands a decoded roster entry to the walk's write buffer. Callers request the next user first so
+     * the device keeps streaming while batches are written.
+     */
+    public void acceptUser(String deviceSerialNumber, User user) {
+        rosterSyncBuffer.add(deviceSerialNumber, user);
+    }
+
+
     public void completeUserSync(String deviceSerialNumber) {
         syncingDevices.put(deviceSerialNumber, false);
+        enrollmentWalks.remove(deviceSerialNumber);
+        if (!rosterSyncBuffer.complete(deviceSerialNumber)) {
+            // leave the checkpoint alone so the next pass walks this roster again
+            walkSignatures.remove(deviceSerialNumber);
+            log.warn("User synchronization for device {} ended with unsaved users", deviceSerialNumber);
+            return;
+        }
+        walksCompleted.incrementAndGet();
+
+        UserSyncCheckpoint checkpoint = UserSyncCheckpoint.builder()
+                .deviceSerialNo(deviceSerialNumber)
+                .signature(walkSignatures.remove(deviceSerialNumber))
+                .lastFullSync(LocalDateTime.now())
+                .build();
+        try {
+            checkpoints.put(deviceSerialNumber, checkpointRepository.save(checkpoint));
+        } catch (Exception e) {
+            // without a checkpoint the next pass simply walks the roster again
+            checkpoints.remove(deviceSerialNumber);
+            log.error("Failed to save user sync checkpoint for device: {}", deviceSerialNumber, e);
+        }
         log.info("Completed user synchronization for device: {}", deviceSerialNumber);
     }
 
+    /**
+     * Ends a walk that will not complete, e.g. because the device disconnected or stopped answering
+     * mid-roster: writes what was buffered, drops the walk's signature so no checkpoint is taken
+     * from it, and lets the next pass start a new walk. An enrollment the walk took over is logged
+     * again, so that walk is not skipped.
+     */
+    public void abandonWalk(String deviceSerialNumber) {
+        rosterSyncBuffer.finish(deviceSerialNumber);
+        walkSignatures.remove(deviceSerialNumber);
+        if (enrollmentWalks.remove(deviceSerialNumber)) {
+            rosterChanged.add(deviceSerialNumber);
+        }
+        if (Boolean.TRUE.equals(syncingDevices.put(deviceSerialNumber, false))) {
+            walksAbandoned.incrementAndGet();
+            log.warn("Abandoned user synchronization for device: {}", deviceSerialNumber);
+        }
+    }
+
+    /**
+     * Called for enrollment-type admin events (a user was added, changed or removed on the
+     * terminal itself), which can leave every count unchanged.
+     */
+    public void markRosterChanged(String deviceSerialNumber) {
+        if (deviceSerialNumber != null) {
+            rosterChanged.add(deviceSerialNumber);
+        }
+    }
 
 
-    @Scheduled(fixedRate = 120000)
+    @Scheduled(fixedRateString = "${user-sync.interval-ms:120000}")
     public void scheduledUserSync() {
         log.info("Starting scheduled user synchronization");
         sessionManager.getAllSessions().values().forEach(session -> {
             String deviceSerialNumber = sessionManager.getDeviceSerialNumber(session);
-            if (deviceSerialNumber != null) {
-                syncUsersFromDevice(deviceSerialNumber);
+            if (deviceSerialNumber == null) {
+                return;
             }
-        });
-    }
-
-    /*@Scheduled(fixedRate = 660000)
-    public void scheduledUserFingerSync(){
-        sessionManager.getAllSessions().values().forEach(session -> {
-            String deviceSerialNumber = sessionManager.getDeviceSerialNumber(session);
-            if (deviceSerialNumber != null) {
-
-
-                List<User> list = userRepository.findAll();
-                for (User user : list) {
-
-
-                    log.info("userFingerData Synchronization started for userId:{},deviceSerialNumber:{}", user.getUserId(), user.getDeviceSerialNumber());
-
-                    for (int i = 0; i < 10; i++) {
-                        userFingerDataService.requestUserFingerData(user.getDeviceSerialNumber(), user.getUserId(), i);
-
-                        try {
-                            Thread.sleep(1000);
-                        } catch (Exception e) {
-                            log.info("Unintrerrpted Exception");
-                        }
-
-                    }
-                }
+            String reason = deltaEnabled ? rosterWalkReason(deviceSerialNumber) : "scheduled";
+            if (reason == null) {
+                walksSkipped.incrementAndGet();
+                log.debug("Roster of {} unchanged since last sync, skipping walk", deviceSerialNumber);
+                return;
             }
+            startRosterWalk(deviceSerialNumber, reason);
         });
     }
-    @Scheduled(fixedRate = 720000)
-    public void scheduledUserFaceSync(){
-        sessionManager.getAllSessions().values().forEach(session -> {
-            String deviceSerialNumber = sessionManager.getDeviceSerialNumber(session);
-            if (deviceSerialNumber != null) {
-
-
-        List<  User> list=userRepository.findAll();
-        for(User user:list){
-
-
-
-            log.info("userFaceData Synchronization started for userId:{},deviceSerialNumber:{}",user.getUserId(),user.getDeviceSerialNumber());
-
-
-                userFaceDataService.requestUserFaceData(user.getDeviceSerialNumber(), user.getUserId());
-
-            }}});
-
 
+    /**
+     * True once a walk of the device's roster has completed and no enrollment has been logged since,
+     * i.e. the users table can be trusted as the device's roster.
+     */
+    public boolean isRosterCurrent(String deviceSerialNumber) {
+        if (isDeviceSyncing(deviceSerialNumber) || rosterChanged.contains(deviceSerialNumber)) {
+            return false;
+        }
+        UserSyncCheckpoint checkpoint = checkpoints.get(deviceSerialNumber);
+        return checkpoint != null && checkpoint.getLastFullSync() != null;
     }
-*/
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
 
+    /** True if the terminal logged an enrollment that no roster walk has picked up yet. */
+    public boolean hasUnsyncedEnrollments(String deviceSerialNumber) {
+        return rosterChanged.contains(deviceSerialNumber);
+    }
 
+    /** Why the device's roster needs walking, or null when nothing suggests it changed. */
+    private String rosterWalkReason(String deviceSerialNumber) {
+        if (rosterChanged.contains(deviceSerialNumber)) {
+            return "enrollment";
+        }
+        Optional<DeviceStatus> status = deviceStatusService.getDeviceStatus(deviceSerialNumber);
+        if (!status.isPresent() || status.get().getUserCount() == null) {
+            // counts arrive with the GetDeviceStatusAll answer that follows login
+            return null;
+        }
+        UserSyncCheckpoint checkpoint = checkpoints.computeIfAbsent(deviceSerialNumber,
+                serial -> checkpointRepository.findById(serial)
+                        .orElseGet(() -> UserSyncCheckpoint.builder().deviceSerialNo(serial).build()));
+        if (checkpoint.getLastFullSync() == null) {
+            return "first sync";
+        }
+        if (!signatureOf(status.get()).equals(checkpoint.getSignature())) {
+            return "counts changed";
+        }
+        if (checkpoint.getLastFullSync().isBefore(LocalDateTime.now().minusHours(fullReconcileHours))) {
+            return "reconciliation";
+        }
+        return null;
+    }
 
+    private static String signatureOf(DeviceStatus status) {
+        return status.getUserCount() + "|" + status.getManagerCount() + "|" + status.getFpCount() + "|"
+                + status.getFaceCount() + "|" + status.getCardCount() + "|" + status.getPwdCount();
+    }
 
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("deltaEnabled", deltaEnabled);
+        stats.put("syncing", syncingDevices.values().stream().filter(Boolean::booleanValue).count());
+        stats.put("walksCompleted", walksCompleted.get());
+        stats.put("walksAbandoned", walksAbandoned.get());
+        stats.put("walksSkipped", walksSkipped.get());
+        Map<String, Long> reasons = new LinkedHashMap<>();
+        walkReasons.forEach((reason, count) -> reasons.put(reason, count.get()));
+        stats.put("walksStarted", reasons);
+        stats.put("pendingEnrollmentChanges", rosterChanged.size());
+        stats.put("writes", rosterSyncBuffer.getStats());
+        return stats;
+    }
 
     public boolean isDeviceSyncing(String deviceSerialNumber) {
         return syncingDevices.getOrDefault(deviceSerialNumber, false);
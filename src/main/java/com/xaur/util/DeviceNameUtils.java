@@ -0,0 +1,54 @@
+package com.xaur.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Terminals report user and department names as base64 of UTF-16LE, but some firmware sends UTF-8
+ * or a byte-order mark instead; decoding falls back through those before giving up.
+ */
+@Slf4j
+public class DeviceNameUtils {
+
+    public static String decodeBase64Utf16(String encodedString) {
+        if (encodedString == null || encodedString.isEmpty()) {
+            return "";
+        }
+
+        try {
+            byte[] decodedBytes = java.util.Base64.getDecoder().decode(encodedString);
+            String result = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_16LE);
+
+            if (result.contains("�")) {
+                String utf8Result = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_8);
+                if (!utf8Result.contains("�")) {
+                    log.info("Successfully decoded name using UTF-8 instead of UTF-16LE");
+                    return utf8Result;
+                }
+
+                if (decodedBytes.length >= 2) {
+
+                    if (decodedBytes[0] == (byte)0xFF && decodedBytes[1] == (byte)0xFE) {
+                        return new String(decodedBytes, 2, decodedBytes.length - 2, java.nio.charset.StandardCharsets.UTF_16LE);
+                    }
+
+                    else if (decodedBytes[0] == (byte)0xFE && decodedBytes[1] == (byte)0xFF) {
+                        return new String(decodedBytes, 2, decodedBytes.length - 2, java.nio.charset.StandardCharsets.UTF_16BE);
+                    }
+                }
+
+                
+                String asciiResult = new String(decodedBytes, java.nio.charset.StandardCharsets.US_ASCII);
+                log.warn("Falling back to ASCII decoding for name: {}", asciiResult);
+                return asciiResult;
+            }
+
+            return result;
+        } catch (IllegalArgumentException e) {
+            log.warn("The name doesn't appear to be base64 encoded, returning as-is: {}", encodedString);
+            return encodedString;
+        } catch (Exception e) {
+            log.error("Error decoding base64 string: {}", encodedString, e);
+            return encodedString;
+        }
+    }
+}
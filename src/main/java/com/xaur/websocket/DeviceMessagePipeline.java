@@ -0,0 +1,202 @@
+package com.xaur.websocket;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs inbound device frames off the WebSocket I/O thread. Every connection gets its own bounded
+ * queue that is drained by at most one worker at a time, so frames from one device are handled in
+ * arrival order while different devices are processed in parallel on a shared pool.
+ */
+@Component
+@Slf4j
+public class DeviceMessagePipeline {
+
+    @Value("${websocket.pipeline.worker-threads:16}")
+    private int workerThreads;
+
+    @Value("${websocket.pipeline.queue-capacity:256}")
+    private int queueCapacity;
+
+    @Value("${websocket.pipeline.enqueue-timeout-ms:5000}")
+    private long enqueueTimeoutMs;
+
+    @Value("${websocket.pipeline.drain-batch:32}")
+    private int drainBatch;
+
+    private final Map<String, DeviceQueue> queues = new ConcurrentHashMap<>();
+    private ExecutorService workers;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger counter = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "device-worker-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        log.info("Device message pipeline started with {} workers, queue capacity {}", workerThreads, queueCapacity);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        workers.shutdown();
+        if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Device workers did not finish within 10s, {} queues still pending", queues.size());
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Queues a frame for the given connection. When the queue is full the calling I/O thread waits
+     * up to the configured timeout, which stops Tomcat from reading more frames off that socket.
+     *
+     * @return false if the queue stayed full for the whole timeout and the frame was not accepted
+     */
+    public boolean submit(String sessionId, Runnable task) throws InterruptedException {
+        DeviceQueue queue = queues.computeIfAbsent(sessionId, DeviceQueue::new);
+        if (!queue.offer(task, enqueueTimeoutMs)) {
+            queue.rejected.incrementAndGet();
+            log.warn("Inbound queue full for session {}, rejected frame after {} ms", sessionId, enqueueTimeoutMs);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a final task behind everything already accepted for the connection and forgets the
+     * queue, so close handling observes the same ordering as the frames before it.
+     */
+    public void close(String sessionId, Runnable onDrained) {
+        DeviceQueue queue = queues.remove(sessionId);
+        if (queue == null) {
+            workers.execute(onDrained);
+            return;
+        }
+        queue.pending.add(new Entry(onDrained, false));
+        queue.schedule();
+    }
+
+    public void bindDevice(String sessionId, String deviceSerialNumber) {
+        DeviceQueue queue = queues.get(sessionId);
+        if (queue != null) {
+            queue.deviceSerialNumber = deviceSerialNumber;
+        }
+    }
+
+    public Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        queues.values().forEach(queue -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("sessionId", queue.sessionId);
+            entry.put("queueDepth", queue.pending.size());
+            entry.put("processed", queue.processed.get());
+            entry.put("rejected", queue.rejected.get());
+            entry.put("avgWaitMs", queue.averageWaitMs());
+            entry.put("maxWaitMs", queue.maxWaitNanos.get() / 1_000_000);
+            entry.put("avgProcessMs", queue.averageProcessMs());
+            String key = queue.deviceSerialNumber != null ? queue.deviceSerialNumber : queue.sessionId;
+            stats.put(key, entry);
+        });
+        return stats;
+    }
+
+    private static final class Entry {
+        private final Runnable task;
+        private final boolean counted;
+        private final long enqueuedAt = System.nanoTime();
+
+        private Entry(Runnable task, boolean counted) {
+            this.task = task;
+            this.counted = counted;
+        }
+    }
+
+    private final class DeviceQueue implements Runnable {
+        private final String sessionId;
+        private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+        private final Semaphore capacity = new Semaphore(queueCapacity);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong totalProcessNanos = new AtomicLong();
+        private volatile String deviceSerialNumber;
+
+        private DeviceQueue(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        private boolean offer(Runnable task, long timeoutMs) throws InterruptedException {
+            if (!capacity.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            pending.add(new Entry(task, true));
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int handled = 0;
+            Entry entry;
+            while (handled < drainBatch && (entry = pending.poll()) != null) {
+                long started = System.nanoTime();
+                long waited = started - entry.enqueuedAt;
+                totalWaitNanos.addAndGet(waited);
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+                try {
+                    entry.task.run();
+                } catch (Exception e) {
+                    log.error("Unhandled error processing frame for session {}", sessionId, e);
+                } finally {
+                    if (entry.counted) {
+                        capacity.release();
+                    }
+                }
+                totalProcessNanos.addAndGet(System.nanoTime() - started);
+                processed.incrementAndGet();
+                handled++;
+            }
+            scheduled.set(false);
+            // yield the worker to other devices between batches, but never strand queued frames
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private long averageWaitMs() {
+            long count = processed.get();
+            return count == 0 ? 0 : totalWaitNanos.get() / count / 1_000_000;
+        }
+
+        private long averageProcessMs() {
+            long count = processed.get();
+            return count == 0 ? 0 : totalProcessNanos.get() / count / 1_000_000;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.xaur.websocket;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Serializes all writes to one device session. Callers enqueue without blocking and get a future
+ * that completes once the frame is on the wire (true) or was dropped or rejected (false). A drain
+ * writes at most {@code batchSize} frames before handing its sender thread back to the pool, so a
+ * busy device cannot starve the others; the send-time limit is enforced by the session manager's
+ * watchdog through {@link #checkSendTimeLimit()}.
+ */
+@Slf4j
+class DeviceOutboundQueue implements Runnable {
+
+    private final WebSocketSession session;
+    private final Executor sender;
+    private final int bufferSizeLimit;
+    private final int maxMessages;
+    private final long sendTimeLimitMs;
+    private final int batchSize;
+
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private int bufferedChars;
+    private boolean draining;
+    private volatile long sendStartedAt;
+    private volatile boolean closed;
+
+    private long sent;
+    private long dropped;
+    private long rejected;
+    private long coalesced;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private long totalSendNanos;
+
+    DeviceOutboundQueue(WebSocketSession session, Executor sender, int bufferSizeLimit, int maxMessages,
+                        long sendTimeLimitMs, int batchSize) {
+        this.session = session;
+        this.sender = sender;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.maxMessages = maxMessages;
+        this.sendTimeLimitMs = sendTimeLimitMs;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    CompletableFuture<Boolean> enqueue(String message, OverflowPolicy policy) {
+        CompletableFuture<Boolean> result;
+        boolean schedule = false;
+        synchronized (this) {
+            if (closed || !session.isOpen()) {
+                rejected++;
+                return CompletableFuture.completedFuture(false);
+            }
+            if (policy == OverflowPolicy.COALESCE) {
+                for (Pending queued : pending) {
+                    if (queued.message.equals(message)) {
+                        coalesced++;
+                        return queued.future;
+                    }
+                }
+            }
+            int size = message.length();
+            while (isFull(size) && policy == OverflowPolicy.DROP_OLDEST && !pending.isEmpty()) {
+                Pending oldest = pending.pollFirst();
+                bufferedChars -= oldest.message.length();
+                dropped++;
+                oldest.future.complete(false);
+            }
+            if (isFull(size)) {
+                rejected++;
+                log.warn("Outbound queue full for session {} ({} frames, {} chars buffered), rejecting frame",
+                        session.getId(), pending.size(), bufferedChars);
+                return CompletableFuture.completedFuture(false);
+            }
+            Pending entry = new Pending(message);
+            pending.addLast(entry);
+            bufferedChars += size;
+            result = entry.future;
+            if (!draining) {
+                draining = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            sender.execute(this);
+        }
+        return result;
+    }
+
+    private boolean isFull(int incoming) {
+        return pending.size() >= maxMessages || (!pending.isEmpty() && bufferedChars + incoming > bufferSizeLimit);
+    }
+
+    /**
+     * A write that has been blocked longer than the limit means the device stopped reading; the
+     * session is closed so the device reconnects instead of silently accumulating frames, and the
+     * blocked write fails and frees its sender thread.
+     */
+    void checkSendTimeLimit() {
+        long started = sendStartedAt;
+        if (started == 0 || System.currentTimeMillis() - started <= sendTimeLimitMs || closed) {
+            return;
+        }
+        log.warn("Send to session {} blocked for more than {} ms, closing session", session.getId(), sendTimeLimitMs);
+        close();
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException | IllegalStateException e) {
+            log.error("Failed to close stalled session {}", session.getId(), e);
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int written = 0; ; written++) {
+            Pending next;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                if (written == batchSize) {
+                    // still draining: back of the pool's line, behind the other devices
+                    break;
+                }
+                next = pending.pollFirst();
+                bufferedChars -= next.message.length();
+            }
+            boolean ok = write(next);
+            next.future.complete(ok);
+        }
+        sender.execute(this);
+    }
+
+    private boolean write(Pending entry) {
+        if (!session.isOpen()) {
+            return false;
+        }
+        long started = System.nanoTime();
+        sendStartedAt = System.currentTimeMillis();
+        try {
+            session.sendMessage(new TextMessage(entry.message));
+            long finished = System.nanoTime();
+            synchronized (this) {
+                sent++;
+                totalSendNanos += finished - started;
+                long latency = finished - entry.enqueuedAt;
+                totalLatencyNanos += latency;
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            }
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            log.error("Failed to send message to session: {}", session.getId(), e);
+            return false;
+        } finally {
+            sendStartedAt = 0;
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+            for (Iterator<Pending> it = pending.iterator(); it.hasNext(); ) {
+                it.next().future.complete(false);
+                it.remove();
+            }
+            bufferedChars = 0;
+        }
+    }
+
+    synchronized int depth() {
+        return pending.size();
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessionId", session.getId());
+        stats.put("queueDepth", pending.size());
+        stats.put("bufferedChars", bufferedChars);
+        stats.put("sent", sent);
+        stats.put("dropped", dropped);
+        stats.put("rejected", rejected);
+        stats.put("coalesced", coalesced);
+        stats.put("avgLatencyMs", sent == 0 ? 0 : totalLatencyNanos / sent / 1_000_000);
+        stats.put("maxLatencyMs", maxLatencyNanos / 1_000_000);
+        stats.put("avgSendMs", sent == 0 ? 0 : totalSendNanos / sent / 1_000_000);
+        return stats;
+    }
+
+    private static final class Pending {
+        private final String message;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private Pending(String message) {
+            this.message = message;
+        }
+    }
+}
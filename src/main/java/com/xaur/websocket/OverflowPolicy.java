@@ -0,0 +1,5 @@
+package com.xaur.websocket;
+
+public enum OverflowPolicy {
+    REJECT, DROP_OLDEST, COALESCE
+}
@@ -0,0 +1,98 @@
+package com.xaur.websocket;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Credit window for request/response exchanges with one device. Outstanding requests are tracked
+ * by a correlation key; the window grows by one request per round trip while the smoothed latency
+ * stays within twice the fastest observed, shrinks when the device starts queueing, and halves
+ * when a request times out. The timeout itself follows the smoothed latency.
+ */
+public class RequestWindow {
+
+    private final int maxWindow;
+    private final long minTimeoutMs;
+    private final long maxTimeoutMs;
+
+    private final Map<String, Long> outstanding = new LinkedHashMap<>();
+    private double window;
+    private double smoothedRttMs = -1;
+    private double minRttMs = Double.MAX_VALUE;
+
+    public RequestWindow(int initialWindow, int maxWindow, long minTimeoutMs, long maxTimeoutMs) {
+        this.window = Math.max(1, Math.min(initialWindow, maxWindow));
+        this.maxWindow = Math.max(1, maxWindow);
+        this.minTimeoutMs = minTimeoutMs;
+        this.maxTimeoutMs = maxTimeoutMs;
+    }
+
+    public synchronized boolean hasCredit() {
+        return outstanding.size() < (int) window;
+    }
+
+    public synchronized void sent(String key) {
+        outstanding.put(key, System.nanoTime());
+    }
+
+    /** Drops a request without a sample, e.g. when the send itself failed. */
+    public synchronized void cancel(String key) {
+        outstanding.remove(key);
+    }
+
+    /** @return false if the key was not outstanding (late, duplicate, or someone else's request) */
+    public synchronized boolean complete(String key) {
+        Long sentAt = outstanding.remove(key);
+        if (sentAt == null) {
+            return false;
+        }
+        double rttMs = (System.nanoTime() - sentAt) / 1e6;
+        minRttMs = Math.min(minRttMs, rttMs);
+        smoothedRttMs = smoothedRttMs < 0 ? rttMs : smoothedRttMs * 0.875 + rttMs * 0.125;
+        if (smoothedRttMs <= 2 * minRttMs) {
+            window = Math.min(maxWindow, window + 1 / window);
+        } else {
+            window = Math.max(1, window - 1 / window);
+        }
+        return true;
+    }
+
+    /** Removes and returns requests outstanding longer than the current timeout. */
+    public synchronized List<String> expire() {
+        List<String> expired = new ArrayList<>();
+        long cutoff = System.nanoTime() - timeoutMs() * 1_000_000L;
+        for (Iterator<Map.Entry<String, Long>> it = outstanding.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() < cutoff) {
+                expired.add(entry.getKey());
+                it.remove();
+            }
+        }
+        if (!expired.isEmpty()) {
+            window = Math.max(1, window / 2);
+        }
+        return expired;
+    }
+
+    public synchronized long timeoutMs() {
+        if (smoothedRttMs < 0) {
+            return maxTimeoutMs;
+        }
+        return Math.max(minTimeoutMs, Math.min(maxTimeoutMs, (long) (smoothedRttMs * 4)));
+    }
+
+    public synchronized int outstanding() {
+        return outstanding.size();
+    }
+
+    public synchronized double window() {
+        return window;
+    }
+
+    public synchronized double smoothedRttMs() {
+        return Math.max(smoothedRttMs, 0);
+    }
+}
@@ -1,6 +1,8 @@
 package com.xaur.websocket;
 
+import com.xaur.service.DevicePresenceTracker;
 import com.xaur.service.DeviceService;
+import com.xaur.service.UserSyncService;
 import com.xaur.websocket.message.MessageParser;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -20,6 +22,8 @@ public class WebSocketHandler extends TextWebSocketHandler {
     private final WebSocketSessionManager sessionManager;
     private final MessageParser messageParser;
     private final DeviceService deviceService;
+    private final DeviceMessagePipeline messagePipeline;
+    private final UserSyncService userSyncService;
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
@@ -28,34 +32,50 @@ public class WebSocketHandler extends TextWebSocketHandler {
     }
 
     @Override
-    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws InterruptedException {
         String payload = message.getPayload();
         log.debug("Received message: {}", payload);
 
+        boolean accepted = messagePipeline.submit(session.getId(), () -> processMessage(session, payload));
+        if (!accepted) {
+            sendError(session, "Server busy, retry later");
+        }
+    }
+
+    private void processMessage(WebSocketSession session, String payload) {
         try {
             String response = messageParser.parseAndProcessMessage(session, payload);
             if (response != null && !response.isEmpty()) {
-                session.sendMessage(new TextMessage(response));
+                sessionManager.sendMessage(session, response);
             }
         } catch (Exception e) {
             log.error("Error processing message: {}", e.getMessage(), e);
-            try {
-                String errorResponse = "<?xml version=\"1.0\"?><Message><Response>Error</Response><Result>Fail</Result><Error>" + e.getMessage() + "</Error></Message>";
-                session.sendMessage(new TextMessage(errorResponse));
-            } catch (IOException ioe) {
-                log.error("Failed to send error response", ioe);
-            }
+            sendError(session, e.getMessage());
+        } finally {
+            messagePipeline.bindDevice(session.getId(), sessionManager.getDeviceSerialNumber(session));
         }
     }
 
+    private void sendError(WebSocketSession session, String error) {
+        String errorResponse = "<?xml version=\"1.0\"?><Message><Response>Error</Response><Result>Fail</Result><Error>" + error + "</Error></Message>";
+        sessionManager.sendMessage(session, errorResponse);
+    }
+
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
         log.info("WebSocket connection closed: {}, status: {}", session.getId(), status);
         String deviceSerialNumber = sessionManager.getDeviceSerialNumber(session);
-        if (deviceSerialNumber != null) {
-            deviceService.disconnectDevice(deviceSerialNumber);
-        }
-        sessionManager.removeSession(session);
+        Object epoch = session.getAttributes().get(DevicePresenceTracker.EPOCH_ATTRIBUTE);
+        messagePipeline.close(session.getId(), () -> {
+            if (deviceSerialNumber != null) {
+                deviceService.disconnectDevice(deviceSerialNumber, epoch != null ? (Long) epoch : 0L);
+            }
+            sessionManager.removeSession(session);
+            // a walk the device was answering will never finish; a reconnected device keeps its own
+            if (deviceSerialNumber != null && sessionManager.getSessionByDeviceSerialNumber(deviceSerialNumber) == null) {
+                userSyncService.abandonWalk(deviceSerialNumber);
+            }
+        });
     }
 
     @Override
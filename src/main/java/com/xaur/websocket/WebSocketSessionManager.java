@@ -1,24 +1,82 @@
 package com.xaur.websocket;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
-import java.io.IOException;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 @Slf4j
 public class WebSocketSessionManager {
 
+    @Value("${websocket.outbound.sender-threads:8}")
+    private int senderThreads;
+
+    @Value("${websocket.outbound.buffer-size-limit:1048576}")
+    private int bufferSizeLimit;
+
+    @Value("${websocket.outbound.max-messages:512}")
+    private int maxMessages;
+
+    @Value("${websocket.outbound.send-time-limit-ms:30000}")
+    private long sendTimeLimitMs;
+
+    /** frames one drain writes before yielding its sender thread */
+    @Value("${websocket.outbound.batch-size:16}")
+    private int batchSize;
+
+    @Value("${websocket.outbound.overflow-policy:REJECT}")
+    private OverflowPolicy defaultOverflowPolicy;
+
     private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
     private final Map<String, String> sessionToDeviceMap = new ConcurrentHashMap<>();
     private final Map<String, String> deviceToSessionMap = new ConcurrentHashMap<>();
+    private final Map<String, DeviceOutboundQueue> outboundQueues = new ConcurrentHashMap<>();
+    private ExecutorService sender;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger counter = new AtomicInteger();
+        sender = Executors.newFixedThreadPool(senderThreads, r -> {
+            Thread thread = new Thread(r, "device-sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        outboundQueues.values().forEach(DeviceOutboundQueue::close);
+        sender.shutdown();
+    }
+
+    /**
+     * Closes sessions whose current write has been blocked past the send-time limit. Checked here
+     * rather than on enqueue so a device that stopped reading is closed even when nothing new is
+     * queued for it.
+     */
+    @Scheduled(fixedDelayString = "${websocket.outbound.watchdog-ms:1000}")
+    public void closeStalledSessions() {
+        for (DeviceOutboundQueue queue : outboundQueues.values()) {
+            queue.checkSendTimeLimit();
+        }
+    }
 
     public void addSession(WebSocketSession session) {
         sessions.put(session.getId(), session);
+        outboundQueues.put(session.getId(),
+                new DeviceOutboundQueue(session, sender, bufferSizeLimit, maxMessages, sendTimeLimitMs, batchSize));
     }
 
     public void removeSession(WebSocketSession session) {
@@ -26,11 +84,15 @@ public class WebSocketSessionManager {
         String deviceSerialNumber = sessionToDeviceMap.get(sessionId);
 
         if (deviceSerialNumber != null) {
-            deviceToSessionMap.remove(deviceSerialNumber);
+            deviceToSessionMap.remove(deviceSerialNumber, sessionId);
             sessionToDeviceMap.remove(sessionId);
         }
 
         sessions.remove(sessionId);
+        DeviceOutboundQueue queue = outboundQueues.remove(sessionId);
+        if (queue != null) {
+            queue.close();
+        }
     }
 
     public void registerDevice(WebSocketSession session, String deviceSerialNumber) {
@@ -48,20 +110,57 @@ public class WebSocketSessionManager {
         return sessionId != null ? sessions.get(sessionId) : null;
     }
 
+    /**
+     * Queues a frame for the device and returns immediately. The result only says whether the
+     * frame was accepted; use {@link #sendMessageToDeviceAsync} to learn when it was written.
+     */
     public boolean sendMessageToDevice(String deviceSerialNumber, String message) {
-        WebSocketSession session = getSessionByDeviceSerialNumber(deviceSerialNumber);
-        if (session != null && session.isOpen()) {
-            try {
-                session.sendMessage(new TextMessage(message));
-                return true;
-            } catch (IOException e) {
-                log.error("Failed to send message to device: {}", deviceSerialNumber, e);
-            }
+        CompletableFuture<Boolean> result = sendMessageToDeviceAsync(deviceSerialNumber, message, defaultOverflowPolicy);
+        return !result.isDone() || result.join();
+    }
+
+    public CompletableFuture<Boolean> sendMessageToDeviceAsync(String deviceSerialNumber, String message) {
+        return sendMessageToDeviceAsync(deviceSerialNumber, message, defaultOverflowPolicy);
+    }
+
+    public CompletableFuture<Boolean> sendMessageToDeviceAsync(String deviceSerialNumber, String message, OverflowPolicy policy) {
+        String sessionId = deviceToSessionMap.get(deviceSerialNumber);
+        if (sessionId == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return enqueue(sessionId, message, policy);
+    }
+
+    public CompletableFuture<Boolean> sendMessage(WebSocketSession session, String message) {
+        return enqueue(session.getId(), message, defaultOverflowPolicy);
+    }
+
+    private CompletableFuture<Boolean> enqueue(String sessionId, String message, OverflowPolicy policy) {
+        DeviceOutboundQueue queue = outboundQueues.get(sessionId);
+        if (queue == null) {
+            log.warn("No outbound queue for session {}", sessionId);
+            return CompletableFuture.completedFuture(false);
         }
-        return false;
+        return queue.enqueue(message, policy);
+    }
+
+    /** Frames queued for the device and not yet written, 0 when it is not connected. */
+    public int getOutboundDepth(String deviceSerialNumber) {
+        String sessionId = deviceToSessionMap.get(deviceSerialNumber);
+        DeviceOutboundQueue queue = sessionId != null ? outboundQueues.get(sessionId) : null;
+        return queue != null ? queue.depth() : 0;
+    }
+
+    public Map<String, Map<String, Object>> getOutboundStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        outboundQueues.forEach((sessionId, queue) -> {
+            String deviceSerialNumber = sessionToDeviceMap.get(sessionId);
+            stats.put(deviceSerialNumber != null ? deviceSerialNumber : sessionId, queue.stats());
+        });
+        return stats;
     }
 
     public Map<String, WebSocketSession> getAllSessions() {
         return sessions;
     }
-}
\ No newline at end of file
+}
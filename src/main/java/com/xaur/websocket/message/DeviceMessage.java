@@ -0,0 +1,69 @@
+package com.xaur.websocket.message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decoded view of one flat {@code <Message>} frame: the first text of every direct child of the
+ * root element, keyed by element name. Instances are reused per worker thread by
+ * {@link DeviceMessageDecoder}, so a handler must copy out what it needs before returning.
+ */
+public class DeviceMessage {
+
+    public enum Kind { REQUEST, EVENT, RESPONSE, UNKNOWN }
+
+    private final Map<String, String> fields = new HashMap<>(64);
+    private Kind kind = Kind.UNKNOWN;
+    private String type;
+    private String raw;
+
+    void reset(String raw) {
+        fields.clear();
+        this.kind = Kind.UNKNOWN;
+        this.type = null;
+        this.raw = raw;
+    }
+
+    void put(String name, String value) {
+        fields.putIfAbsent(name, value);
+    }
+
+    void resolveKind() {
+        if ((type = fields.get("Request")) != null) {
+            kind = Kind.REQUEST;
+        } else if ((type = fields.get("Event")) != null) {
+            kind = Kind.EVENT;
+        } else if ((type = fields.get("Response")) != null) {
+            kind = Kind.RESPONSE;
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Trimmed text of the named child element with inner whitespace collapsed, or null when the
+     * element is absent; same contract as dom4j {@code Element.elementTextTrim}.
+     */
+    public String getText(String name) {
+        return fields.get(name);
+    }
+
+    /**
+     * The frame as received, without the XML declaration.
+     */
+    public String asXML() {
+        if (raw.startsWith("<?xml")) {
+            int end = raw.indexOf("?>");
+            if (end > 0) {
+                return raw.substring(end + 2).trim();
+            }
+        }
+        return raw;
+    }
+}
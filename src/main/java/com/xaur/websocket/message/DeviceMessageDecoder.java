@@ -0,0 +1,139 @@
+package com.xaur.websocket.message;
+
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+
+/**
+ * Single-pass StAX decoder for device frames. Only the direct children of the root element are
+ * captured, which covers the whole terminal protocol without building a DOM.
+ */
+@Component
+public class DeviceMessageDecoder {
+
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private final XMLInputFactory factory;
+    private final ThreadLocal<DecodeState> state = ThreadLocal.withInitial(DecodeState::new);
+
+    public DeviceMessageDecoder() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    public DeviceMessage decode(String payload) throws XMLStreamException {
+        DecodeState current = state.get();
+        DeviceMessage message = current.message;
+        message.reset(payload);
+
+        XMLStreamReader reader = factory.createXMLStreamReader(new StringReader(payload));
+        try {
+            int depth = 0;
+            String field = null;
+            String firstChunk = null;
+            StringBuilder text = current.text;
+            boolean multiChunk = false;
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2) {
+                            field = reader.getLocalName();
+                            firstChunk = null;
+                            multiChunk = false;
+                            text.setLength(0);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (depth == 2) {
+                            if (firstChunk == null) {
+                                firstChunk = reader.getText();
+                            } else {
+                                if (!multiChunk) {
+                                    text.append(firstChunk);
+                                    multiChunk = true;
+                                }
+                                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 2) {
+                            String value = multiChunk ? text.toString() : (firstChunk != null ? firstChunk : "");
+                            message.put(field, normalize(value));
+                        }
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+            if (current.text.capacity() > MAX_RETAINED_BUFFER) {
+                current.text = new StringBuilder(256);
+            }
+        }
+
+        message.resolveKind();
+        return message;
+    }
+
+    static String normalize(String value) {
+        int length = value.length();
+        int start = 0;
+        int end = length;
+        while (start < end && isSpace(value.charAt(start))) {
+            start++;
+        }
+        while (end > start && isSpace(value.charAt(end - 1))) {
+            end--;
+        }
+        boolean inner = false;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (isSpace(c) && (c != ' ' || isSpace(value.charAt(i + 1)))) {
+                inner = true;
+                break;
+            }
+        }
+        if (!inner) {
+            return start == 0 && end == length ? value : value.substring(start, end);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        boolean pendingSpace = false;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (isSpace(c)) {
+                pendingSpace = true;
+            } else {
+                if (pendingSpace) {
+                    sb.append(' ');
+                    pendingSpace = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // same delimiter set dom4j's getTextTrim tokenizes on
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static final class DecodeState {
+        private final DeviceMessage message = new DeviceMessage();
+        private StringBuilder text = new StringBuilder(256);
+    }
+}
@@ -0,0 +1,84 @@
+package com.xaur.websocket.message;
+
+/**
+ * Writes flat {@code <Message>} frames straight into a per-thread buffer. Output is identical to
+ * {@code DocumentHelper.createDocument()} + {@code addElement(..).setText(..)} + {@code asXML()},
+ * which is what the terminals have always been sent.
+ */
+final class FrameWriter {
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Message>";
+    private static final String FOOTER = "</Message>";
+    private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+    private static final ThreadLocal<FrameWriter> WRITERS = ThreadLocal.withInitial(FrameWriter::new);
+
+    private StringBuilder buffer = new StringBuilder(512);
+
+    private FrameWriter() {
+    }
+
+    static FrameWriter start() {
+        FrameWriter writer = WRITERS.get();
+        if (writer.buffer.capacity() > MAX_RETAINED_BUFFER) {
+            writer.buffer = new StringBuilder(512);
+        }
+        writer.buffer.setLength(0);
+        writer.buffer.append(HEADER);
+        return writer;
+    }
+
+    /**
+     * Builds a frame once for messages that never change, e.g. parameterless requests.
+     */
+    static String constant(String name, String text) {
+        return start().element(name, text).end();
+    }
+
+    FrameWriter element(String name, String text) {
+        if (text == null) {
+            // dom4j rejects null text the same way
+            throw new IllegalArgumentException("Adding text to an XML document must not be null");
+        }
+        buffer.append('<').append(name).append('>');
+        escape(text);
+        buffer.append("</").append(name).append('>');
+        return this;
+    }
+
+    FrameWriter elementIfPresent(String name, String text) {
+        return text != null ? element(name, text) : this;
+    }
+
+    String end() {
+        return buffer.append(FOOTER).toString();
+    }
+
+    private void escape(String text) {
+        int length = text.length();
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            String entity;
+            if (c == '&') {
+                entity = "&amp;";
+            } else if (c == '<') {
+                entity = "&lt;";
+            } else if (c == '>') {
+                entity = "&gt;";
+            } else if (c < 32 && c != '\t' && c != '\n' && c != '\r') {
+                entity = null;
+            } else {
+                continue;
+            }
+            buffer.append(text, last, i);
+            if (entity != null) {
+                buffer.append(entity);
+            } else {
+                buffer.append("&#").append((int) c).append(';');
+            }
+            last = i + 1;
+        }
+        buffer.append(text, last, length);
+    }
+}
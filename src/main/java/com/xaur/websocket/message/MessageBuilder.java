@@ -3,11 +3,7 @@ package com.xaur.websocket.message;
 import com.xaur.dto.DeviceEthernetSettingsDto;
 import com.xaur.dto.DeviceWifiSettingsDto;
 import lombok.extern.slf4j.Slf4j;
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
 import org.springframework.stereotype.Component;
-import org.springframework.web.socket.WebSocketSession;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -16,76 +12,64 @@ import java.time.format.DateTimeFormatter;
 @Slf4j
 public class MessageBuilder {
 
-    public String buildRegisterResponse(String deviceSerialNo, String token) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Response").setText("Register");
-        root.addElement("DeviceSerialNo").setText(deviceSerialNo);
-        root.addElement("Token").setText(token);
-        root.addElement("Result").setText("OK");
+    private static final String GET_FIRST_USER_DATA_REQUEST = FrameWriter.constant("Request", "GetFirstUserData");
+    private static final String GET_NEXT_USER_DATA_REQUEST = FrameWriter.constant("Request", "GetNextUserData");
+    private static final String GET_DEVICE_STATUS_ALL_REQUEST = FrameWriter.constant("Request", "GetDeviceStatusAll");
+    private static final String GET_FIRMWARE_VERSION_REQUEST = FrameWriter.constant("Request", "GetFirmwareVersion");
+    private static final String GET_GLOG_POS_INFO_REQUEST = FrameWriter.constant("Request", "GetGlogPosInfo");
+    private static final String GET_ETHERNET_SETTING_REQUEST = FrameWriter.constant("Request", "GetEthernetSetting");
+    private static final String GET_WIFI_SETTING_REQUEST = FrameWriter.constant("Request", "GetWiFiSetting");
+    private static final String CLEAR_LOG_DATA_REQUEST = FrameWriter.constant("Request", "ClearLogData");
+    private static final String GET_TIME_REQUEST = FrameWriter.constant("Request", "GetTime");
 
-        return document.asXML();
+    public String buildRegisterResponse(String deviceSerialNo, String token) {
+        return FrameWriter.start()
+                .element("Response", "Register")
+                .element("DeviceSerialNo", deviceSerialNo)
+                .element("Token", token)
+                .element("Result", "OK")
+                .end();
     }
 
     public String buildLoginResponse(String deviceSerialNo, String result) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Response").setText("Login");
-        root.addElement("DeviceSerialNo").setText(deviceSerialNo);
-        root.addElement("Result").setText(result);
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Response", "Login")
+                .element("DeviceSerialNo", deviceSerialNo)
+                .element("Result", result)
+                .end();
     }
 
     public String buildTimeLogResponse(String transId, String result) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Response").setText("TimeLog_v2");
-        if (transId != null) {
-            root.addElement("TransID").setText(transId);
-        }
-        root.addElement("Result").setText(result);
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Response", "TimeLog_v2")
+                .elementIfPresent("TransID", transId)
+                .element("Result", result)
+                .end();
     }
 
     public String buildAdminLogResponse(String transId, String result) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Response").setText("AdminLog_v2");
-        if (transId != null) {
-            root.addElement("TransID").setText(transId);
-        }
-        root.addElement("Result").setText(result);
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Response", "AdminLog_v2")
+                .elementIfPresent("TransID", transId)
+                .element("Result", result)
+                .end();
     }
 
     public String buildKeepAliveResponse(String devTime, String serverTime) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Response").setText("KeepAlive");
-        root.addElement("Result").setText("OK");
-        root.addElement("DevTime").setText(devTime);
-        root.addElement("ServerTime").setText(serverTime);
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Response", "KeepAlive")
+                .element("Result", "OK")
+                .element("DevTime", devTime)
+                .element("ServerTime", serverTime)
+                .end();
     }
 
     public String buildErrorResponse(String errorMessage) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Response").setText("Error");
-        root.addElement("Result").setText("Fail");
-        root.addElement("Error").setText(errorMessage);
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Response", "Error")
+                .element("Result", "Fail")
+                .element("Error", errorMessage)
+                .end();
     }
 
     private LocalDateTime parseDateTime(String dateTimeStr) {
@@ -126,221 +110,128 @@ public class MessageBuilder {
         }
     }
     public String buildGetFirstUserDataRequest() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("GetFirstUserData");
-
-        return document.asXML();
+        return GET_FIRST_USER_DATA_REQUEST;
     }
 
     public String buildGetNextUserDataRequest() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("GetNextUserData");
-
-        return document.asXML();
+        return GET_NEXT_USER_DATA_REQUEST;
     }
 
     public String buildGetUserDataRequest(String userId) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("GetUserData");
-        root.addElement("UserID").setText(userId);
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "GetUserData")
+                .element("UserID", userId)
+                .end();
     }
     public String buildGetDeviceStatusAllRequest() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("GetDeviceStatusAll");
-
-        return document.asXML();
+        return GET_DEVICE_STATUS_ALL_REQUEST;
     }
 
     public String buildGetFirmwareVersionRequest() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("GetFirmwareVersion");
-
-        return document.asXML();
+        return GET_FIRMWARE_VERSION_REQUEST;
     }
 
     public String buildGetDeviceStatusRequest(String paramName) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("GetDeviceStatus");
-        root.addElement("ParamName").setText(paramName);
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "GetDeviceStatus")
+                .element("ParamName", paramName)
+                .end();
     }
     public String buildGetGlogPosInfoRequest() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetGlogPosInfo");
-        return document.asXML();
+        return GET_GLOG_POS_INFO_REQUEST;
     }
     public String buildGetDeviceInfoExtRequest(String paramName) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetDeviceInfoExt");
-        root.addElement("ParamName").setText(paramName);
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "GetDeviceInfoExt")
+                .element("ParamName", paramName)
+                .end();
     }
     public String buildGetEthernetSettingRequest() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetEthernetSetting");
-        return document.asXML();
+        return GET_ETHERNET_SETTING_REQUEST;
     }
     public String buildGetWiFiSettingRequest() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetWiFiSetting");
-        return document.asXML();
+        return GET_WIFI_SETTING_REQUEST;
     }
     public String buildGetDepartmentRequest(Integer deptNo) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetDepartment");
-        root.addElement("DeptNo").setText(String.valueOf(deptNo));
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "GetDepartment")
+                .element("DeptNo", String.valueOf(deptNo))
+                .end();
     }
     public String buildGetFaceDataRequest(String userId) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetFaceData");
-        root.addElement("UserID").setText(userId);
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "GetFaceData")
+                .element("UserID", userId)
+                .end();
     }
     public String buildGetFingerDataRequest(String userId, Integer fingerNo, boolean fingerOnly) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetFingerData");
-        root.addElement("UserID").setText(userId);
-        root.addElement("FingerNo").setText(String.valueOf(fingerNo));
-        root.addElement("FingerOnly").setText(fingerOnly ? "1" : "0");
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "GetFingerData")
+                .element("UserID", userId)
+                .element("FingerNo", String.valueOf(fingerNo))
+                .element("FingerOnly", fingerOnly ? "1" : "0")
+                .end();
     }
     public String buildGetUserPhotoRequest(String userId) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetUserPhoto");
-        root.addElement("UserID").setText(userId);
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "GetUserPhoto")
+                .element("UserID", userId)
+                .end();
     }
 
     public String buildSetTimeCommand(String timeString) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("SetTime");
-        root.addElement("Time").setText(timeString);
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "SetTime")
+                .element("Time", timeString)
+                .end();
     }
 
     public String buildEmptyTimeLogCommand() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("ClearLogData");
-        return document.asXML();
+        return CLEAR_LOG_DATA_REQUEST;
     }
 
     public String buildSetDepartmentCommand(Integer deptNo, String name) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("SetDepartment");
-        root.addElement("DeptNo").setText(String.valueOf(deptNo));
+        FrameWriter frame = FrameWriter.start()
+                .element("Request", "SetDepartment")
+                .element("DeptNo", String.valueOf(deptNo));
 
         if (name != null) {
             byte[] nameBytes = name.getBytes(java.nio.charset.StandardCharsets.UTF_16LE);
             String encodedName = java.util.Base64.getEncoder().encodeToString(nameBytes);
-           // root.addElement("Name").setText(encodedName);
-            root.addElement("Data").setText(encodedName);
+           // frame.element("Name", encodedName);
+            frame.element("Data", encodedName);
         }
 
-        return document.asXML();
+        return frame.end();
     }
 
     public String buildSetWifiSettingsCommand(DeviceWifiSettingsDto settings) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("SetWiFiSetting");
-
-        if (settings.getUse() != null) {
-            root.addElement("Use").setText(settings.getUse());
-        }
-
-        if (settings.getSsid() != null) {
-            root.addElement("SSID").setText(settings.getSsid());
-        }
-
-        if (settings.getKey() != null) {
-            root.addElement("Key").setText(settings.getKey());
-        }
-
-        if (settings.getDhcp() != null) {
-            root.addElement("DHCP").setText(settings.getDhcp());
-        }
-
-        if (settings.getIp() != null) {
-            root.addElement("IP").setText(settings.getIp());
-        }
-
-        if (settings.getSubnet() != null) {
-            root.addElement("Subnet").setText(settings.getSubnet());
-        }
-
-        if (settings.getDefaultGateway() != null) {
-            root.addElement("DefaultGateway").setText(settings.getDefaultGateway());
-        }
-
-        if (settings.getPort() != null) {
-            root.addElement("Port").setText(settings.getPort().toString());
-        }
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "SetWiFiSetting")
+                .elementIfPresent("Use", settings.getUse())
+                .elementIfPresent("SSID", settings.getSsid())
+                .elementIfPresent("Key", settings.getKey())
+                .elementIfPresent("DHCP", settings.getDhcp())
+                .elementIfPresent("IP", settings.getIp())
+                .elementIfPresent("Subnet", settings.getSubnet())
+                .elementIfPresent("DefaultGateway", settings.getDefaultGateway())
+                .elementIfPresent("Port", settings.getPort() != null ? settings.getPort().toString() : null)
+                .end();
     }
 
     public String buildSetEthernetSettingsCommand(DeviceEthernetSettingsDto settings) {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-
-        root.addElement("Request").setText("SetEthernetSetting");
-
-        if (settings.getDhcp() != null) {
-            root.addElement("DHCP").setText(settings.getDhcp());
-        }
-
-        if (settings.getIp() != null) {
-            root.addElement("IP").setText(settings.getIp());
-        }
-
-        if (settings.getSubnet() != null) {
-            root.addElement("Subnet").setText(settings.getSubnet());
-        }
-
-        if (settings.getDefaultGateway() != null) {
-            root.addElement("DefaultGateway").setText(settings.getDefaultGateway());
-        }
-
-        if (settings.getPort() != null) {
-            root.addElement("Port").setText(settings.getPort().toString());
-        }
-
-        return document.asXML();
+        return FrameWriter.start()
+                .element("Request", "SetEthernetSetting")
+                .elementIfPresent("DHCP", settings.getDhcp())
+                .elementIfPresent("IP", settings.getIp())
+                .elementIfPresent("Subnet", settings.getSubnet())
+                .elementIfPresent("DefaultGateway", settings.getDefaultGateway())
+                .elementIfPresent("Port", settings.getPort() != null ? settings.getPort().toString() : null)
+                .end();
     }
 
     public String buildGetTimeCommand() {
-        Document document = DocumentHelper.createDocument();
-        Element root = document.addElement("Message");
-        root.addElement("Request").setText("GetTime");
-        return document.asXML();
+        return GET_TIME_REQUEST;
     }
 
-}
\ No newline at end of file
+}
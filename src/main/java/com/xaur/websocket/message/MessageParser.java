@@ -5,18 +5,17 @@ import com.xaur.repository.BulkUserRepository;
 import com.xaur.repository.TimeSheetRepository;
 
 import com.xaur.service.*;
+import com.xaur.util.DeviceNameUtils;
 import com.xaur.util.TokenGenerator;
 import com.xaur.websocket.WebSocketSessionManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketSession;
 
+import javax.xml.stream.XMLStreamException;
+
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -50,35 +49,38 @@ public class MessageParser {
     private final TimeSheetRepository timeSheetRepository;
     private final BranchService branchService;
     private final BulkUserRepository bulkUserRepository;
+    private final DeviceMessageDecoder messageDecoder;
+    private final LogIngestionService logIngestionService;
+    private final PunchDeduplicator punchDeduplicator;
+    private final DeviceOrgCache deviceOrgCache;
+    private final DevicePresenceTracker presenceTracker;
+    private final TemplateHarvester templateHarvester;
+    private final BulkUserPushService bulkUserPushService;
+    private final ProvisioningService provisioningService;
+    private final DeviceMigrationService deviceMigrationService;
+    private final TemplateStore templateStore;
 
 
 
 
 
 
-    public String parseAndProcessMessage(WebSocketSession session, String message) throws DocumentException {
-        Document document = DocumentHelper.parseText(message);
-        Element root = document.getRootElement();
-
-        Element requestElement = root.element("Request");
-        Element eventElement = root.element("Event");
-        Element responseElement = root.element("Response");
+    public String parseAndProcessMessage(WebSocketSession session, String message) throws XMLStreamException {
+        DeviceMessage root = messageDecoder.decode(message);
 
-        if (requestElement != null) {
-            String requestType = requestElement.getTextTrim();
-            return handleRequest(session, root, requestType);
-        } else if (eventElement != null) {
-            String eventType = eventElement.getTextTrim();
-            return handleEvent(session, root, eventType);
-        } else if (responseElement != null) {
-            String responseType = responseElement.getTextTrim();
-            return handleResponse(session, root, responseType);
-        } else {
-            log.warn("Unknown message format: {}", message);
-            return messageBuilder.buildErrorResponse("Unknown message format");
+        switch (root.getKind()) {
+            case REQUEST:
+                return handleRequest(session, root, root.getType());
+            case EVENT:
+                return handleEvent(session, root, root.getType());
+            case RESPONSE:
+                return handleResponse(session, root, root.getType());
+            default:
+                log.warn("Unknown message format: {}", message);
+                return messageBuilder.buildErrorResponse("Unknown message format");
         }
     }
-    private String handleResponse(WebSocketSession session, Element root, String responseType) {
+    private String handleResponse(WebSocketSession session, DeviceMessage root, String responseType) {
         log.info("Processing response: {}", responseType);
 
         switch (responseType) {
@@ -130,7 +132,7 @@ public class MessageParser {
                 return null; 
         }
     }
-    private String handleRequest(WebSocketSession session, Element root, String requestType) {
+    private String handleRequest(WebSocketSession session, DeviceMessage root, String requestType) {
         log.info("Processing request: {}", requestType);
 
         switch (requestType) {
@@ -144,10 +146,10 @@ public class MessageParser {
         }
     }
 
-    private String handleEvent(WebSocketSession session, Element root, String eventType) {
+    private String handleEvent(WebSocketSession session, DeviceMessage root, String eventType) {
         log.info("Processing event: {}", eventType);
 
-        String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
+        String deviceSerialNo = root.getText("DeviceSerialNo");
         if (deviceSerialNo != null) {
             deviceService.updateDeviceActivity(deviceSerialNo);
         }
@@ -165,10 +167,10 @@ public class MessageParser {
         }
     }
 
-    private String handleRegisterRequest(WebSocketSession session, Element root) {
-        String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-        String terminalType = root.elementTextTrim("TerminalType");
-        String cloudId = root.elementTextTrim("CloudId");
+    private String handleRegisterRequest(WebSocketSession session, DeviceMessage root) {
+        String deviceSerialNo = root.getText("DeviceSerialNo");
+        String terminalType = root.getText("TerminalType");
+        String cloudId = root.getText("CloudId");
 
         if (deviceSerialNo == null || deviceSerialNo.isEmpty()) {
             return messageBuilder.buildErrorResponse("DeviceSerialNo is required");
@@ -180,9 +182,9 @@ public class MessageParser {
         return messageBuilder.buildRegisterResponse(deviceSerialNo, device.getToken());
     }
 
-    private String handleLoginRequest(WebSocketSession session, Element root) {
-        String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-        String token = root.elementTextTrim("Token");
+    private String handleLoginRequest(WebSocketSession session, DeviceMessage root) {
+        String deviceSerialNo = root.getText("DeviceSerialNo");
+        String token = root.getText("Token");
 
         if (StringUtils.isEmpty(deviceSerialNo) || StringUtils.isEmpty(token)) {
             log.warn("Login attempt with empty device serial or token");
@@ -193,14 +195,15 @@ public class MessageParser {
         if (loginSuccess) {
             try {
                 sessionManager.registerDevice(session, deviceSerialNo);
+                session.getAttributes().put(DevicePresenceTracker.EPOCH_ATTRIBUTE, presenceTracker.connected(deviceSerialNo));
 
-                Optional<Device> deviceOpt = deviceService.getDeviceBySerialNumber(deviceSerialNo);
+                Optional<DeviceOrgCache.DeviceOrg> deviceOpt = deviceOrgCache.get(deviceSerialNo);
                 if (!deviceOpt.isPresent()) {
                     log.warn("Device not found in database: {}", deviceSerialNo);
                     return messageBuilder.buildLoginResponse(deviceSerialNo, "Fail");
                 }
 
-                Device device = deviceOpt.get();
+                DeviceOrgCache.DeviceOrg device = deviceOpt.get();
 
                 DeviceStatus deviceStatus = deviceStatusService.getDeviceStatus(deviceSerialNo)
                         .orElse(DeviceStatus.builder()
@@ -231,8 +234,9 @@ public class MessageParser {
                 log.info("Saving device status for device: {}", deviceSerialNo);
                 deviceStatusService.saveDeviceStatus(deviceStatus);
 
-                deviceStatusService.updateDeviceOnlineStatus(deviceSerialNo, true);
                 deviceStatusService.queryDeviceStatus(deviceSerialNo);
+                // commands queued while the device was away go out as soon as it is back
+                scheduledCommandService.dispatch(deviceSerialNo);
 
                 return messageBuilder.buildLoginResponse(deviceSerialNo, "OK");
 
@@ -246,19 +250,24 @@ public class MessageParser {
         }
     }
 
-    private String handleTimeLogEvent(WebSocketSession session, Element root) {
+    private String handleTimeLogEvent(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String logId = root.elementTextTrim("LogID");
-            String timeStr = root.elementTextTrim("Time");
-            String userId = root.elementTextTrim("UserID");
-            String action = root.elementTextTrim("Action");
-            String attendStat = root.elementTextTrim("AttendStat");
-            String apStat = root.elementTextTrim("APStat");
-            String jobCodeStr = root.elementTextTrim("JobCode");
-            String photoStr = root.elementTextTrim("Photo");
-            String logImage = root.elementTextTrim("LogImage");
-            String transId = root.elementTextTrim("TransID");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String logId = root.getText("LogID");
+            String timeStr = root.getText("Time");
+            String userId = root.getText("UserID");
+            String action = root.getText("Action");
+            String attendStat = root.getText("AttendStat");
+            String apStat = root.getText("APStat");
+            String jobCodeStr = root.getText("JobCode");
+            String photoStr = root.getText("Photo");
+            String logImage = root.getText("LogImage");
+            String transId = root.getText("TransID");
+            String dedupKey = transId != null ? transId : logId;
+
+            if (punchDeduplicator.isDuplicate("TimeLog", deviceSerialNo, dedupKey)) {
+                return messageBuilder.buildTimeLogResponse(transId, "OK");
+            }
 
             
             LocalDateTime logTime = parseDateTime(timeStr);
@@ -284,7 +293,6 @@ public class MessageParser {
                     .transId(transId)
                     .build();
 
-            timeLogService.saveLog(timeLog);
 
 
 
@@ -294,18 +302,9 @@ public class MessageParser {
             Optional<User> userOpt = userService.getUserByIdAndDeviceSerialNumber(
                     timeLog.getUserId(), timeLog.getDeviceSerialNumber());
 
-            Device device = deviceService.getDeviceBySerialNumber(deviceSerialNo)
-                    .orElse(new Device());  // Create an empty Device if not found
-
-
-
-            Company company = (device.getCompany() != null)
-                    ? companyService.getCompanyById(device.getCompany().getId()).orElse(new Company())  // Create an empty Company if not found
-                    :  new Company();  // If device has no company set, create an empty Company
-
-            Branch branch = (device.getBranch() != null)
-                    ? branchService.getBranchById(device.getBranch().getId()).orElse(new Branch())  // Create an empty Branch if not found
-                    : new Branch();
+            Optional<DeviceOrgCache.DeviceOrg> org = deviceOrgCache.get(deviceSerialNo);
+            Company company = org.map(DeviceOrgCache.DeviceOrg::getCompany).orElse(null);
+            Branch branch = org.map(DeviceOrgCache.DeviceOrg::getBranch).orElse(null);
 
 
 
@@ -318,10 +317,11 @@ public class MessageParser {
                 }
             }
 
-            if(device.getCompany()!=null&&device.getBranch()!=null) {
+            HrTimeSheetLog timeSheetLog = null;
+            if(company!=null&&branch!=null) {
 
 
-                HrTimeSheetLog timeSheetLog = new HrTimeSheetLog();
+                timeSheetLog = new HrTimeSheetLog();
                 timeSheetLog.setAttTime(logTime.toLocalTime());
                 timeSheetLog.setAttDate(logTime.toLocalDate());
                 timeSheetLog.setDateCode(logTime.toLocalDate());
@@ -332,15 +332,14 @@ public class MessageParser {
                     timeSheetLog.setStatus("OUT");
                 } else
                     timeSheetLog.setStatus("IN");
-                timeSheetLog.setDeviceId(device.getSerialNumber());
+                timeSheetLog.setDeviceId(deviceSerialNo);
                 //  timeSheetLog.setEmployeeName(employeeName);
-                timeSheetLog.setDeviceId(device.getSerialNumber());
                 timeSheetLog.setEmployeeRefCode(userId);
 
 
                 
                 timeSheetLog.setLogDate(logTime);
-                timeSheetLog.setCreatedBy(device.getSerialNumber());
+                timeSheetLog.setCreatedBy(deviceSerialNo);
                 timeSheetLog.setCreatedDate(logTime);
                 timeSheetLog.setIsProcessed(false);
                 timeSheetLog.setIsModified(false);
@@ -349,29 +348,43 @@ public class MessageParser {
 
 
 
-                timeSheetRepository.save(timeSheetLog);
-
             }
 
-
-
-            return messageBuilder.buildTimeLogResponse(transId, "OK");
+            // the ACK goes out only after the batch holding this punch has committed
+            logIngestionService.submitTimeLog(timeLog, timeSheetLog)
+                    .thenAccept(committed -> {
+                        if (committed) {
+                            punchDeduplicator.remember("TimeLog", deviceSerialNo, dedupKey);
+                        }
+                        sessionManager.sendMessage(session, messageBuilder.buildTimeLogResponse(transId, committed ? "OK" : "Fail"));
+                    });
+            return null;
          }catch (Exception e) {
             log.error("Error processing TimeLog_v2 event", e);
-            return messageBuilder.buildTimeLogResponse(root.elementTextTrim("TransID"), "Fail");
+            return messageBuilder.buildTimeLogResponse(root.getText("TransID"), "Fail");
         }
     }
 
-    private String handleAdminLogEvent(WebSocketSession session, Element root) {
+    private String handleAdminLogEvent(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String logId = root.elementTextTrim("LogID");
-            String timeStr = root.elementTextTrim("Time");
-            String adminId = root.elementTextTrim("AdminID");
-            String userId = root.elementTextTrim("UserID");
-            String action = root.elementTextTrim("Action");
-            String statStr = root.elementTextTrim("Stat");
-            String transId = root.elementTextTrim("TransID");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String logId = root.getText("LogID");
+            String timeStr = root.getText("Time");
+            String adminId = root.getText("AdminID");
+            String userId = root.getText("UserID");
+            String action = root.getText("Action");
+            String statStr = root.getText("Stat");
+            String transId = root.getText("TransID");
+            String dedupKey = transId != null ? transId : logId;
+
+            if (punchDeduplicator.isDuplicate("AdminLog", deviceSerialNo, dedupKey)) {
+                return messageBuilder.buildAdminLogResponse(transId, "OK");
+            }
+            if (!StringUtils.isEmpty(userId)) {
+                // enrollment changes on the terminal may not move any count the delta sync compares
+                userSyncService.markRosterChanged(deviceSerialNo);
+                templateHarvester.markUserChanged(deviceSerialNo, userId);
+            }
 
             
             LocalDateTime logTime = parseDateTime(timeStr);
@@ -391,18 +404,23 @@ public class MessageParser {
                     .transId(transId)
                     .build();
 
-            adminLogService.saveLog(adminLog);
-
-            return messageBuilder.buildAdminLogResponse(transId, "OK");
+            logIngestionService.submitAdminLog(adminLog)
+                    .thenAccept(committed -> {
+                        if (committed) {
+                            punchDeduplicator.remember("AdminLog", deviceSerialNo, dedupKey);
+                        }
+                        sessionManager.sendMessage(session, messageBuilder.buildAdminLogResponse(transId, committed ? "OK" : "Fail"));
+                    });
+            return null;
         } catch (Exception e) {
             log.error("Error processing AdminLog_v2 event", e);
-            return messageBuilder.buildAdminLogResponse(root.elementTextTrim("TransID"), "Fail");
+            return messageBuilder.buildAdminLogResponse(root.getText("TransID"), "Fail");
         }
     }
 
-    private String handleKeepAliveEvent(WebSocketSession session, Element root) {
-        String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-        String devTimeStr = root.elementTextTrim("DevTime");
+    private String handleKeepAliveEvent(WebSocketSession session, DeviceMessage root) {
+        String deviceSerialNo = root.getText("DeviceSerialNo");
+        String devTimeStr = root.getText("DevTime");
 
         
         if (deviceSerialNo != null) {
@@ -455,35 +473,35 @@ public class MessageParser {
             return LocalDateTime.now();
         }
     }
-    private String handleGetUserDataResponse(WebSocketSession session, Element root) {
+    private String handleGetUserDataResponse(WebSocketSession session, DeviceMessage root) {
         try {
 
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String userId = root.elementTextTrim("UserID");
-            String encodedName = root.elementTextTrim("Name");
-            String privilege = root.elementTextTrim("Privilege");
-            String departmentStr = root.elementTextTrim("Depart");
-            String enabledStr = root.elementTextTrim("Enabled");
-            String timeSet1Str = root.elementTextTrim("TimeSet1");
-            String timeSet2Str = root.elementTextTrim("TimeSet2");
-            String timeSet3Str = root.elementTextTrim("TimeSet3");
-            String timeSet4Str = root.elementTextTrim("TimeSet4");
-            String timeSet5Str = root.elementTextTrim("TimeSet5");
-            String userPeriodUsedStr = root.elementTextTrim("UserPeriod_Used");
-            String userPeriodStartStr = root.elementTextTrim("UserPeriod_Start");
-            String userPeriodEndStr = root.elementTextTrim("UserPeriod_End");
-            String card = root.elementTextTrim("Card");
-            String password = root.elementTextTrim("PWD");
-            String fingers = root.elementTextTrim("Fingers");
-            String faceEnrolledStr = root.elementTextTrim("FaceEnrolled");
-            String faceData = root.elementTextTrim("FaceData");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalId = root.getText("TerminalID");
+            String terminalType = root.getText("TerminalType");
+            String userId = root.getText("UserID");
+            String encodedName = root.getText("Name");
+            String privilege = root.getText("Privilege");
+            String departmentStr = root.getText("Depart");
+            String enabledStr = root.getText("Enabled");
+            String timeSet1Str = root.getText("TimeSet1");
+            String timeSet2Str = root.getText("TimeSet2");
+            String timeSet3Str = root.getText("TimeSet3");
+            String timeSet4Str = root.getText("TimeSet4");
+            String timeSet5Str = root.getText("TimeSet5");
+            String userPeriodUsedStr = root.getText("UserPeriod_Used");
+            String userPeriodStartStr = root.getText("UserPeriod_Start");
+            String userPeriodEndStr = root.getText("UserPeriod_End");
+            String card = root.getText("Card");
+            String password = root.getText("PWD");
+            String fingers = root.getText("Fingers");
+            String faceEnrolledStr = root.getText("FaceEnrolled");
+            String faceData = root.getText("FaceData");
+            String result = root.getText("Result");
 
             if ("OK".equals(result)) {
                 
-                String name = decodeBase64Utf16Name(encodedName);
+                String name = DeviceNameUtils.decodeBase64Utf16(encodedName);
                 Integer department = departmentStr != null ? Integer.parseInt(departmentStr) : 0;
                 boolean enabled = "Yes".equalsIgnoreCase(enabledStr);
                 Integer timeSet1 = timeSet1Str != null ? Integer.parseInt(timeSet1Str) : 0;
@@ -518,7 +536,8 @@ public class MessageParser {
                 user.setPassword(password);
                 user.setFingers(fingers);
                 user.setFaceEnrolled(faceEnrolled);
-                user.setFaceData(faceData);
+                user.setFaceTemplateHash(templateStore.put(faceData));
+                user.setFaceData(null);
 
                 userService.saveUser(user);
                 log.info("Saved user data for user ID: {}", userId);
@@ -533,32 +552,32 @@ public class MessageParser {
         }
     }
 
-    private String handleGetFirstUserDataResponse(WebSocketSession session, Element root) {
+    private String handleGetFirstUserDataResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String result = root.elementTextTrim("Result");
-            String moreStr = root.elementTextTrim("More");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String result = root.getText("Result");
+            String moreStr = root.getText("More");
 
             if ("OK".equals(result)) {
                 
-                String userId = root.elementTextTrim("UserID");
-                String encodedName = root.elementTextTrim("Name");
-                String name = decodeBase64Utf16Name(encodedName);
-                String privilege = root.elementTextTrim("Privilege");
-                String departmentStr = root.elementTextTrim("Depart");
-                String enabledStr = root.elementTextTrim("Enabled");
-                String timeSet1Str = root.elementTextTrim("TimeSet1");
-                String timeSet2Str = root.elementTextTrim("TimeSet2");
-                String timeSet3Str = root.elementTextTrim("TimeSet3");
-                String timeSet4Str = root.elementTextTrim("TimeSet4");
-                String timeSet5Str = root.elementTextTrim("TimeSet5");
-                String userPeriodUsedStr = root.elementTextTrim("UserPeriod_Used");
-                String userPeriodStartStr = root.elementTextTrim("UserPeriod_Start");
-                String userPeriodEndStr = root.elementTextTrim("UserPeriod_End");
-                String card = root.elementTextTrim("Card");
-                String password = root.elementTextTrim("PWD");
-                String fingers = root.elementTextTrim("Fingers");
-                String faceEnrolledStr = root.elementTextTrim("FaceEnrolled");
+                String userId = root.getText("UserID");
+                String encodedName = root.getText("Name");
+                String name = DeviceNameUtils.decodeBase64Utf16(encodedName);
+                String privilege = root.getText("Privilege");
+                String departmentStr = root.getText("Depart");
+                String enabledStr = root.getText("Enabled");
+                String timeSet1Str = root.getText("TimeSet1");
+                String timeSet2Str = root.getText("TimeSet2");
+                String timeSet3Str = root.getText("TimeSet3");
+                String timeSet4Str = root.getText("TimeSet4");
+                String timeSet5Str = root.getText("TimeSet5");
+                String userPeriodUsedStr = root.getText("UserPeriod_Used");
+                String userPeriodStartStr = root.getText("UserPeriod_Start");
+                String userPeriodEndStr = root.getText("UserPeriod_End");
+                String card = root.getText("Card");
+                String password = root.getText("PWD");
+                String fingers = root.getText("Fingers");
+                String faceEnrolledStr = root.getText("FaceEnrolled");
 
                 
                 Integer department = departmentStr != null ? Integer.parseInt(departmentStr) : 0;
@@ -574,35 +593,35 @@ public class MessageParser {
                 boolean faceEnrolled = "Yes".equalsIgnoreCase(faceEnrolledStr);
 
                 
-                User user = userService.getUserByIdAndDeviceSerialNumber(userId,deviceSerialNo).orElse(new User());
-                user.setUserId(userId);
-                user.setName(name);
-                user.setPrivilege(privilege);
-                user.setDepartment(department);
-                user.setEnabled(enabled);
-                user.setTimeSet1(timeSet1);
-                user.setTimeSet2(timeSet2);
-                user.setTimeSet3(timeSet3);
-                user.setTimeSet4(timeSet4);
-                user.setTimeSet5(timeSet5);
-                user.setUserPeriodUsed(userPeriodUsed);
-                user.setUserPeriodStart(userPeriodStart);
-                user.setUserPeriodEnd(userPeriodEnd);
-                user.setCard(card);
-                user.setPassword(password);
-                user.setFingers(fingers);
-                user.setFaceEnrolled(faceEnrolled);
-                user.setDeviceSerialNumber(deviceSerialNo);
-                userService.saveUser(user);
-                log.info("Saved first user data for user ID: {}", userId);
+                User user = User.builder()
+                        .userId(userId)
+                        .deviceSerialNumber(deviceSerialNo)
+                        .name(name)
+                        .privilege(privilege)
+                        .department(department)
+                        .enabled(enabled)
+                        .timeSet1(timeSet1)
+                        .timeSet2(timeSet2)
+                        .timeSet3(timeSet3)
+                        .timeSet4(timeSet4)
+                        .timeSet5(timeSet5)
+                        .userPeriodUsed(userPeriodUsed)
+                        .userPeriodStart(userPeriodStart)
+                        .userPeriodEnd(userPeriodEnd)
+                        .card(card)
+                        .password(password)
+                        .fingers(fingers)
+                        .faceEnrolled(faceEnrolled)
+                        .build();
 
-                
                 boolean more = "Yes".equalsIgnoreCase(moreStr);
                 if (more) {
-                    
+                    // ask for the next user before any database work so the device never waits on a write
                     userSyncService.continueUserSync(deviceSerialNo);
-                } else {
-                    
+                }
+                userSyncService.acceptUser(deviceSerialNo, user);
+                log.debug("Received first user data for user ID: {}", userId);
+                if (!more) {
                     userSyncService.completeUserSync(deviceSerialNo);
                 }
             } else {
@@ -617,32 +636,32 @@ public class MessageParser {
         }
     }
 
-    private String handleGetNextUserDataResponse(WebSocketSession session, Element root) {
+    private String handleGetNextUserDataResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String result = root.elementTextTrim("Result");
-            String moreStr = root.elementTextTrim("More");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String result = root.getText("Result");
+            String moreStr = root.getText("More");
 
             if ("OK".equals(result)) {
                 
-                String userId = root.elementTextTrim("UserID");
-                String encodedName = root.elementTextTrim("Name");
-                String name = decodeBase64Utf16Name(encodedName);
-                String privilege = root.elementTextTrim("Privilege");
-                String departmentStr = root.elementTextTrim("Depart");
-                String enabledStr = root.elementTextTrim("Enabled");
-                String timeSet1Str = root.elementTextTrim("TimeSet1");
-                String timeSet2Str = root.elementTextTrim("TimeSet2");
-                String timeSet3Str = root.elementTextTrim("TimeSet3");
-                String timeSet4Str = root.elementTextTrim("TimeSet4");
-                String timeSet5Str = root.elementTextTrim("TimeSet5");
-                String userPeriodUsedStr = root.elementTextTrim("UserPeriod_Used");
-                String userPeriodStartStr = root.elementTextTrim("UserPeriod_Start");
-                String userPeriodEndStr = root.elementTextTrim("UserPeriod_End");
-                String card = root.elementTextTrim("Card");
-                String password = root.elementTextTrim("PWD");
-                String fingers = root.elementTextTrim("Fingers");
-                String faceEnrolledStr = root.elementTextTrim("FaceEnrolled");
+                String userId = root.getText("UserID");
+                String encodedName = root.getText("Name");
+                String name = DeviceNameUtils.decodeBase64Utf16(encodedName);
+                String privilege = root.getText("Privilege");
+                String departmentStr = root.getText("Depart");
+                String enabledStr = root.getText("Enabled");
+                String timeSet1Str = root.getText("TimeSet1");
+                String timeSet2Str = root.getText("TimeSet2");
+                String timeSet3Str = root.getText("TimeSet3");
+                String timeSet4Str = root.getText("TimeSet4");
+                String timeSet5Str = root.getText("TimeSet5");
+                String userPeriodUsedStr = root.getText("UserPeriod_Used");
+                String userPeriodStartStr = root.getText("UserPeriod_Start");
+                String userPeriodEndStr = root.getText("UserPeriod_End");
+                String card = root.getText("Card");
+                String password = root.getText("PWD");
+                String fingers = root.getText("Fingers");
+                String faceEnrolledStr = root.getText("FaceEnrolled");
 
                 
                 Integer department = departmentStr != null ? Integer.parseInt(departmentStr) : 0;
@@ -658,37 +677,35 @@ public class MessageParser {
                 boolean faceEnrolled = "Yes".equalsIgnoreCase(faceEnrolledStr);
 
                 
-                User user = userService.getUserByIdAndDeviceSerialNumber(userId,deviceSerialNo).orElse(new User());
-                user.setUserId(userId);
-                user.setName(name);
-                user.setPrivilege(privilege);
-                user.setDepartment(department);
-                user.setEnabled(enabled);
-                user.setTimeSet1(timeSet1);
-                user.setTimeSet2(timeSet2);
-                user.setTimeSet3(timeSet3);
-                user.setTimeSet4(timeSet4);
-                user.setTimeSet5(timeSet5);
-                user.setUserPeriodUsed(userPeriodUsed);
-                user.setUserPeriodStart(userPeriodStart);
-                user.setUserPeriodEnd(userPeriodEnd);
-                user.setCard(card);
-                user.setPassword(password);
-                user.setFingers(fingers);
-                user.setFaceEnrolled(faceEnrolled);
-                user.setDeviceSerialNumber(deviceSerialNo);
-              userService.saveUser(user);
+                User user = User.builder()
+                        .userId(userId)
+                        .deviceSerialNumber(deviceSerialNo)
+                        .name(name)
+                        .privilege(privilege)
+                        .department(department)
+                        .enabled(enabled)
+                        .timeSet1(timeSet1)
+                        .timeSet2(timeSet2)
+                        .timeSet3(timeSet3)
+                        .timeSet4(timeSet4)
+                        .timeSet5(timeSet5)
+                        .userPeriodUsed(userPeriodUsed)
+                        .userPeriodStart(userPeriodStart)
+                        .userPeriodEnd(userPeriodEnd)
+                        .card(card)
+                        .password(password)
+                        .fingers(fingers)
+                        .faceEnrolled(faceEnrolled)
+                        .build();
 
-                log.info("id: {},UserId:{}, deviceSerialNumber: {}", user.getId(),user.getUserId(), user.getDeviceSerialNumber());
-                log.info("Saved next user data for user ID: {}", userId);
-
-                
                 boolean more = "Yes".equalsIgnoreCase(moreStr);
                 if (more) {
-                    
+                    // ask for the next user before any database work so the device never waits on a write
                     userSyncService.continueUserSync(deviceSerialNo);
-                } else {
-                    
+                }
+                userSyncService.acceptUser(deviceSerialNo, user);
+                log.debug("Received next user data for user ID: {}", userId);
+                if (!more) {
                     userSyncService.completeUserSync(deviceSerialNo);
                 }
             } else {
@@ -703,11 +720,11 @@ public class MessageParser {
         }
     }
 
-    private String handleGetDeviceStatusResponse(WebSocketSession session, Element root) {
+    private String handleGetDeviceStatusResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String paramName = root.elementTextTrim("ParamName");
-            String value = root.elementTextTrim("Value");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String paramName = root.getText("ParamName");
+            String value = root.getText("Value");
 
             if (deviceSerialNo == null || paramName == null || value == null) {
                 log.warn("Missing required fields in GetDeviceStatus response");
@@ -720,9 +737,9 @@ public class MessageParser {
                             .deviceSerialNo(deviceSerialNo)
                             .build());
 
-            Optional<Device> device = deviceService.getDeviceBySerialNumber(deviceSerialNo);
+            Optional<DeviceOrgCache.DeviceOrg> device = deviceOrgCache.get(deviceSerialNo);
             if(device.isPresent()){
-                Device _device = device.get();
+                DeviceOrgCache.DeviceOrg _device = device.get();
                 if(_device.getBranch()!=null)
                     deviceStatus.setBranch(_device.getBranch());
                 if(_device.getCompany()!=null)
@@ -770,9 +787,9 @@ public class MessageParser {
         }
     }
 
-    private String handleGetDeviceStatusAllResponse(WebSocketSession session, Element root) {
+    private String handleGetDeviceStatusAllResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
 
             log.info("Received GetDeviceStatusAll response for device: {}", deviceSerialNo);
             DeviceStatus deviceStatus = deviceStatusService.getDeviceStatus(deviceSerialNo)
@@ -781,14 +798,14 @@ public class MessageParser {
                             .build());
 
             
-            String managerCountStr = root.elementTextTrim("ManagerCount");
-            String userCountStr = root.elementTextTrim("UserCount");
-            String faceCountStr = root.elementTextTrim("FaceCount");
-            String fpCountStr = root.elementTextTrim("FpCount");
-            String cardCountStr = root.elementTextTrim("CardCount");
-            String pwdCountStr = root.elementTextTrim("PwdCount");
-            String doorStatusStr = root.elementTextTrim("DoorStatus");
-            String alarmStatusStr = root.elementTextTrim("AlarmStatus");
+            String managerCountStr = root.getText("ManagerCount");
+            String userCountStr = root.getText("UserCount");
+            String faceCountStr = root.getText("FaceCount");
+            String fpCountStr = root.getText("FpCount");
+            String cardCountStr = root.getText("CardCount");
+            String pwdCountStr = root.getText("PwdCount");
+            String doorStatusStr = root.getText("DoorStatus");
+            String alarmStatusStr = root.getText("AlarmStatus");
 
             
             if (managerCountStr != null) deviceStatus.setManagerCount(Integer.parseInt(managerCountStr));
@@ -800,9 +817,9 @@ public class MessageParser {
             if (doorStatusStr != null) deviceStatus.setDoorStatus(Integer.parseInt(doorStatusStr));
             if (alarmStatusStr != null) deviceStatus.setAlarmStatus(Integer.parseInt(alarmStatusStr));
 
-            Optional<Device> device = deviceService.getDeviceBySerialNumber(deviceSerialNo);
+            Optional<DeviceOrgCache.DeviceOrg> device = deviceOrgCache.get(deviceSerialNo);
             if (device.isPresent()) {
-                Device _device = device.get();
+                DeviceOrgCache.DeviceOrg _device = device.get();
                 if (_device.getBranch() != null)
                     deviceStatus.setBranch(_device.getBranch());
                 if (_device.getCompany() != null)
@@ -818,6 +835,7 @@ public class MessageParser {
 
             
             deviceStatusService.completeDeviceStatusQuery(deviceSerialNo);
+            deviceMigrationService.onDeviceStatus(deviceSerialNo, deviceStatus);
 
 
 
@@ -830,11 +848,11 @@ public class MessageParser {
         }
     }
 
-    private String handleGetFirmwareVersionResponse(WebSocketSession session, Element root) {
+    private String handleGetFirmwareVersionResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String version = root.elementTextTrim("Version");
-            String buildNumber = root.elementTextTrim("BuildNumber");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String version = root.getText("Version");
+            String buildNumber = root.getText("BuildNumber");
 
             
             DeviceStatus deviceStatus = deviceStatusService.getDeviceStatus(deviceSerialNo)
@@ -857,79 +875,29 @@ public class MessageParser {
         }
     }
 
-    private String decodeBase64Utf16Name(String encodedString) {
-        if (encodedString == null || encodedString.isEmpty()) {
-            return "";
-        }
-
-        try {
-            byte[] decodedBytes = java.util.Base64.getDecoder().decode(encodedString);
-            String result = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_16LE);
-
-            if (result.contains("�")) {
-                String utf8Result = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_8);
-                if (!utf8Result.contains("�")) {
-                    log.info("Successfully decoded name using UTF-8 instead of UTF-16LE");
-                    return utf8Result;
-                }
-
-                if (decodedBytes.length >= 2) {
-
-                    if (decodedBytes[0] == (byte)0xFF && decodedBytes[1] == (byte)0xFE) {
-                        return new String(decodedBytes, 2, decodedBytes.length - 2, java.nio.charset.StandardCharsets.UTF_16LE);
-                    }
-
-                    else if (decodedBytes[0] == (byte)0xFE && decodedBytes[1] == (byte)0xFF) {
-                        return new String(decodedBytes, 2, decodedBytes.length - 2, java.nio.charset.StandardCharsets.UTF_16BE);
-                    }
-                }
-
-                
-                String asciiResult = new String(decodedBytes, java.nio.charset.StandardCharsets.US_ASCII);
-                log.warn("Falling back to ASCII decoding for name: {}", asciiResult);
-                return asciiResult;
-            }
-
-            return result;
-        } catch (IllegalArgumentException e) {
-            log.warn("The name doesn't appear to be base64 encoded, returning as-is: {}", encodedString);
-            return encodedString;
-        } catch (Exception e) {
-            log.error("Error decoding base64 string: {}", encodedString, e);
-            return encodedString;
-        }
-    }
-    private String handleSetUserDataResponse(WebSocketSession session, Element root) {
+    private String handleSetUserDataResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String userId = root.elementTextTrim("UserID");
-            String type = root.elementTextTrim("Type");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String userId = root.getText("UserID");
+            String type = root.getText("Type");
+            String result = root.getText("Result");
 
             log.info("Received SetUserData response for user ID: {}, type: {}, result: {}", userId, type, result);
-            if (result.equalsIgnoreCase("ok")){
+            boolean pushed = "Set".equalsIgnoreCase(type)
+                    && bulkUserPushService.onSetUserDataResult(deviceSerialNo, userId, "OK".equalsIgnoreCase(result), result);
+            pushed = pushed || provisioningService.onSetUserDataResult(deviceSerialNo, userId, type, "OK".equalsIgnoreCase(result), result);
+            pushed = pushed || ("Set".equalsIgnoreCase(type)
+                    && deviceMigrationService.onSetUserDataResult(deviceSerialNo, userId, "OK".equalsIgnoreCase(result), result));
+            if (!pushed && result.equalsIgnoreCase("ok")){
                 bulkUserRepository.updateStatus(userId,deviceSerialNo).ifPresent(e->{e.setStatus("COMPLETED");bulkUserRepository.save(e);});
             }
 
-            
-            List<ScheduledCommand> pendingCommands = scheduledCommandService.getCommandsByDeviceSerialNumber(deviceSerialNo)
-                    .stream()
-                    .filter(cmd -> "SENT".equals(cmd.getStatus()) &&
-                            cmd.getUserId().equals(userId) &&
-                            cmd.getCommandType().equalsIgnoreCase(type))
-                    .collect(java.util.stream.Collectors.toList());
-
-            if (!pendingCommands.isEmpty()) {
-                
-                ScheduledCommand command = pendingCommands.get(pendingCommands.size() - 1);
-                String status = "OK".equals(result) ? "COMPLETED" : "FAILED";
-                scheduledCommandService.updateCommandStatus(command.getId(), status, root.asXML());
-                if(status.equalsIgnoreCase("completed")&&type.equalsIgnoreCase("delete"))
-                    userService.deleteUser(userId,deviceSerialNo);
+            // an answer a push, provisioning or migration item claimed is not also a queued command's
+            boolean queued = !pushed && scheduledCommandService.resolve(deviceSerialNo, type, userId, "OK".equals(result), root.asXML());
+            if (queued && "OK".equals(result) && "Delete".equalsIgnoreCase(type)) {
+                userService.deleteUser(userId,deviceSerialNo);
                 userFingerDataService.deleteUserFingerData(userId,deviceSerialNo);
                 userFaceDataService.deleteUserFaceData(userId,deviceSerialNo);
-
-
             }
 
             return null; 
@@ -939,13 +907,13 @@ public class MessageParser {
         }
     }
 
-    private String handleGetGlogPosInfoResponse(WebSocketSession session, Element root) {
+    private String handleGetGlogPosInfoResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String logCountStr = root.elementTextTrim("LogCount");
-            String maxCountStr = root.elementTextTrim("MaxCount");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String logCountStr = root.getText("LogCount");
+            String maxCountStr = root.getText("MaxCount");
             
 
             
@@ -968,17 +936,17 @@ public class MessageParser {
             return null;
         }
     }
-    private String handleGetDeviceInfoExtResponse(WebSocketSession session, Element root) {
+    private String handleGetDeviceInfoExtResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String paramName = root.elementTextTrim("ParamName");
-            String value1 = root.elementTextTrim("Value1");
-            String value2 = root.elementTextTrim("Value2");
-            String value3 = root.elementTextTrim("Value3");
-            String value4 = root.elementTextTrim("Value4");
-            String value5 = root.elementTextTrim("Value5");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String paramName = root.getText("ParamName");
+            String value1 = root.getText("Value1");
+            String value2 = root.getText("Value2");
+            String value3 = root.getText("Value3");
+            String value4 = root.getText("Value4");
+            String value5 = root.getText("Value5");
 
             
             deviceAdditionalInfoService.updateDeviceAdditionalInfo(
@@ -993,20 +961,20 @@ public class MessageParser {
             return null;
         }
     }
-    private String handleGetEthernetSettingResponse(WebSocketSession session, Element root) {
+    private String handleGetEthernetSettingResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String dhcp = root.elementTextTrim("DHCP");
-            String ip = root.elementTextTrim("IP");
-            String subnet = root.elementTextTrim("Subnet");
-            String defaultGateway = root.elementTextTrim("DefaultGateway");
-            String portStr = root.elementTextTrim("Port");
-            String macAddress = root.elementTextTrim("MacAddress");
-            String ipFromDhcp = root.elementTextTrim("IP_from_dhcp");
-            String subnetFromDhcp = root.elementTextTrim("Subnet_from_dhcp");
-            String defaultGatewayFromDhcp = root.elementTextTrim("DefaultGateway_from_dhcp");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String dhcp = root.getText("DHCP");
+            String ip = root.getText("IP");
+            String subnet = root.getText("Subnet");
+            String defaultGateway = root.getText("DefaultGateway");
+            String portStr = root.getText("Port");
+            String macAddress = root.getText("MacAddress");
+            String ipFromDhcp = root.getText("IP_from_dhcp");
+            String subnetFromDhcp = root.getText("Subnet_from_dhcp");
+            String defaultGatewayFromDhcp = root.getText("DefaultGateway_from_dhcp");
 
             
             Integer port = portStr != null ? Integer.parseInt(portStr.trim()) : null;
@@ -1040,23 +1008,23 @@ public class MessageParser {
         }
     }
 
-    private String handleGetWiFiSettingResponse(WebSocketSession session, Element root) {
+    private String handleGetWiFiSettingResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String use = root.elementTextTrim("Use");
-            String ssid = root.elementTextTrim("SSID");
-            String key = root.elementTextTrim("Key");
-            String dhcp = root.elementTextTrim("DHCP");
-            String ip = root.elementTextTrim("IP");
-            String subnet = root.elementTextTrim("Subnet");
-            String defaultGateway = root.elementTextTrim("DefaultGateway");
-            String portStr = root.elementTextTrim("Port");
-            String ipFromDhcp = root.elementTextTrim("IP_from_dhcp");
-            String subnetFromDhcp = root.elementTextTrim("Subnet_from_dhcp");
-            String defaultGatewayFromDhcp = root.elementTextTrim("DefaultGateway_from_dhcp");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String use = root.getText("Use");
+            String ssid = root.getText("SSID");
+            String key = root.getText("Key");
+            String dhcp = root.getText("DHCP");
+            String ip = root.getText("IP");
+            String subnet = root.getText("Subnet");
+            String defaultGateway = root.getText("DefaultGateway");
+            String portStr = root.getText("Port");
+            String ipFromDhcp = root.getText("IP_from_dhcp");
+            String subnetFromDhcp = root.getText("Subnet_from_dhcp");
+            String defaultGatewayFromDhcp = root.getText("DefaultGateway_from_dhcp");
+            String result = root.getText("Result");
 
             
             Integer port = portStr != null ? Integer.parseInt(portStr.trim()) : null;
@@ -1092,16 +1060,16 @@ public class MessageParser {
             return null;
         }
     }
-    private String handleGetDepartmentResponse(WebSocketSession session, Element root) {
+    private String handleGetDepartmentResponse(WebSocketSession session, DeviceMessage root) {
         String deviceSerialNo = null;
         try {
-            deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String deptNoStr = root.elementTextTrim("DeptNo");
-            String encodedName = root.elementTextTrim("Name");
-            String name = decodeBase64Utf16Name(encodedName);
-            String error = root.elementTextTrim("Error");
+            deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String deptNoStr = root.getText("DeptNo");
+            String encodedName = root.getText("Name");
+            String name = DeviceNameUtils.decodeBase64Utf16(encodedName);
+            String error = root.getText("Error");
 
             if (error != null && "Not exist".equals(error)) {
                 log.warn("Department {} does not exist for device: {}", deptNoStr, deviceSerialNo);
@@ -1128,24 +1096,31 @@ public class MessageParser {
         }
     }
 
-    private String handleGetFaceDataResponse(WebSocketSession session, Element root) {
+    private String handleGetFaceDataResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String userId = root.elementTextTrim("UserID");
-            String faceEnrolled = root.elementTextTrim("FaceEnrolled");
-            String faceData = root.elementTextTrim("FaceData");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String userId = root.getText("UserID");
+            String faceEnrolled = root.getText("FaceEnrolled");
+            String faceData = root.getText("FaceData");
+            String result = root.getText("Result");
+
+            boolean harvested = templateHarvester.onResponse(deviceSerialNo, TemplateHarvester.Kind.FACE, userId, null, "OK".equals(result));
+            try {
+                if ("OK".equals(result)) {
 
-            if ("OK".equals(result)) {
-                
-                userFaceDataService.updateUserFaceData(userId, deviceSerialNo, faceEnrolled, faceData);
+                    userFaceDataService.updateUserFaceData(userId, deviceSerialNo, faceEnrolled, faceData);
 
-                log.info("Updated face data for user: {}, device: {}", userId, deviceSerialNo);
-            } else {
-                log.warn("Failed to get face data for user: {}, device: {}, result: {}",
-                        userId, deviceSerialNo, result);
+                    log.info("Updated face data for user: {}, device: {}", userId, deviceSerialNo);
+                } else {
+                    log.warn("Failed to get face data for user: {}, device: {}, result: {}",
+                            userId, deviceSerialNo, result);
+                }
+            } finally {
+                if (harvested) {
+                    templateHarvester.onTemplateWritten(deviceSerialNo);
+                }
             }
 
             return null; 
@@ -1155,25 +1130,32 @@ public class MessageParser {
         }
     }
 
-    private String handleGetFingerDataResponse(WebSocketSession session, Element root) {
+    private String handleGetFingerDataResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String userId = root.elementTextTrim("UserID");
-            String fingerNoStr = root.elementTextTrim("FingerNo");
-            String duress = root.elementTextTrim("Duress");
-            String fingerData = root.elementTextTrim("FingerData");
-            String result = root.elementTextTrim("Result");
-
-            if (result == null) {
-                Integer fingerNo = Integer.parseInt(fingerNoStr);
-
-
-                userFingerDataService.updateUserFingerData(userId, fingerNo, deviceSerialNo, duress, fingerData);
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String userId = root.getText("UserID");
+            String fingerNoStr = root.getText("FingerNo");
+            String duress = root.getText("Duress");
+            String fingerData = root.getText("FingerData");
+            String result = root.getText("Result");
+
+            Integer fingerNo = fingerNoStr != null ? Integer.parseInt(fingerNoStr) : null;
+            // terminals differ on whether a successful answer carries Result at all
+            boolean ok = (result == null || "OK".equals(result)) && fingerData != null;
+            boolean harvested = templateHarvester.onResponse(deviceSerialNo, TemplateHarvester.Kind.FINGER, userId, fingerNo, ok);
+            try {
+                if (ok) {
+                    userFingerDataService.updateUserFingerData(userId, fingerNo, deviceSerialNo, duress, fingerData);
 
-                log.info("Updated finger data for user: {}, finger: {}, device: {}",
-                        userId, fingerNo, deviceSerialNo);
+                    log.info("Updated finger data for user: {}, finger: {}, device: {}",
+                            userId, fingerNo, deviceSerialNo);
+                }
+            } finally {
+                if (harvested) {
+                    templateHarvester.onTemplateWritten(deviceSerialNo);
+                }
             }
 
             return null; 
@@ -1183,15 +1165,16 @@ public class MessageParser {
         }
     }
 
-    private String handleGetUserPhotoResponse(WebSocketSession session, Element root) {
+    private String handleGetUserPhotoResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String terminalType = root.elementTextTrim("TerminalType");
-            String terminalId = root.elementTextTrim("TerminalID");
-            String userId = root.elementTextTrim("UserID");
-            String photoData = root.elementTextTrim("PhotoData");
-            String result = root.elementTextTrim("Result");
-
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String terminalType = root.getText("TerminalType");
+            String terminalId = root.getText("TerminalID");
+            String userId = root.getText("UserID");
+            String photoData = root.getText("PhotoData");
+            String result = root.getText("Result");
+
+            templateHarvester.onResponse(deviceSerialNo, TemplateHarvester.Kind.PHOTO, userId, null, "OK".equals(result));
             if ("OK".equals(result)) {
                 
                 userPhotoService.updateUserPhoto(userId, deviceSerialNo, photoData);
@@ -1208,23 +1191,13 @@ public class MessageParser {
             return null;
         }
     }
-    private String handleSetTimeResponse(WebSocketSession session, Element root) {
+    private String handleSetTimeResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String result = root.getText("Result");
             log.info("Received SetTime response for device: {}, result: {}", deviceSerialNo, result);
 
-            List<ScheduledCommand> pendingCommands = scheduledCommandService.getCommandsByDeviceSerialNumber(deviceSerialNo)
-                    .stream()
-                    .filter(cmd -> "SENT".equals(cmd.getStatus()) &&
-                            cmd.getCommandType().equalsIgnoreCase("SetTime"))
-                    .collect(java.util.stream.Collectors.toList());
-
-            if (!pendingCommands.isEmpty()) {
-                ScheduledCommand command = pendingCommands.get(pendingCommands.size() - 1);
-                String status = "OK".equals(result) ? "COMPLETED" : "FAILED";
-                scheduledCommandService.updateCommandStatus(command.getId(), status, root.asXML());
-            }
+            scheduledCommandService.resolve(deviceSerialNo, "SetTime", null, "OK".equals(result), root.asXML());
 
             return null; // No response needed
         } catch (Exception e) {
@@ -1233,24 +1206,14 @@ public class MessageParser {
         }
     }
 
-    private String handleClearLogDataResponse(WebSocketSession session, Element root) {
+    private String handleClearLogDataResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String result = root.getText("Result");
 
             log.info("Received ClearLogData response for device: {}, result: {}", deviceSerialNo, result);
 
-            List<ScheduledCommand> pendingCommands = scheduledCommandService.getCommandsByDeviceSerialNumber(deviceSerialNo)
-                    .stream()
-                    .filter(cmd -> "SENT".equals(cmd.getStatus()) &&
-                            cmd.getCommandType().equalsIgnoreCase("ClearLogData"))
-                    .collect(java.util.stream.Collectors.toList());
-
-            if (!pendingCommands.isEmpty()) {
-                ScheduledCommand command = pendingCommands.get(pendingCommands.size() - 1);
-                String status = "OK".equals(result) ? "COMPLETED" : "FAILED";
-                scheduledCommandService.updateCommandStatus(command.getId(), status, root.asXML());
-            }
+            scheduledCommandService.resolve(deviceSerialNo, "ClearLogData", null, "OK".equals(result), root.asXML());
 
             if ("OK".equals(result)) {
                // timeLogService.clearLogsByDeviceSerialNumber(deviceSerialNo);
@@ -1264,29 +1227,18 @@ public class MessageParser {
         }
     }
 
-    private String handleSetDepartmentResponse(WebSocketSession session, Element root) {
+    private String handleSetDepartmentResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String deptNoStr = root.elementTextTrim("DeptNo");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String deptNoStr = root.getText("DeptNo");
+            String result = root.getText("Result");
 
             Integer deptNo = deptNoStr != null ? Integer.parseInt(deptNoStr) : null;
 
             log.info("Received SetDepartment response for device: {}, department: {}, result: {}",
                     deviceSerialNo, deptNo, result);
 
-            List<ScheduledCommand> pendingCommands = scheduledCommandService.getCommandsByDeviceSerialNumber(deviceSerialNo)
-                    .stream()
-                    .filter(cmd -> "SENT".equals(cmd.getStatus()) &&
-                            cmd.getCommandType().equalsIgnoreCase("SetDepartment") &&
-                            cmd.getCommandXml().contains("<DeptNo>" + deptNoStr + "</DeptNo>"))
-                    .collect(java.util.stream.Collectors.toList());
-
-            if (!pendingCommands.isEmpty()) {
-                ScheduledCommand command = pendingCommands.get(pendingCommands.size() - 1);
-                String status = "OK".equals(result) ? "COMPLETED" : "FAILED";
-                scheduledCommandService.updateCommandStatus(command.getId(), status, root.asXML());
-            }
+            scheduledCommandService.resolve(deviceSerialNo, "SetDepartment", deptNoStr, "OK".equals(result), root.asXML());
             return null;
         } catch (Exception e) {
             log.error("Error processing SetDepartment response", e);
@@ -1294,24 +1246,14 @@ public class MessageParser {
         }
     }
 
-    private String handleSetWiFiSettingResponse(WebSocketSession session, Element root) {
+    private String handleSetWiFiSettingResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String result = root.getText("Result");
 
             log.info("Received SetWiFiSetting response for device: {}, result: {}", deviceSerialNo, result);
 
-            List<ScheduledCommand> pendingCommands = scheduledCommandService.getCommandsByDeviceSerialNumber(deviceSerialNo)
-                    .stream()
-                    .filter(cmd -> "SENT".equals(cmd.getStatus()) &&
-                            cmd.getCommandType().equalsIgnoreCase("SetWiFiSetting"))
-                    .collect(java.util.stream.Collectors.toList());
-
-            if (!pendingCommands.isEmpty()) {
-                ScheduledCommand command = pendingCommands.get(pendingCommands.size() - 1);
-                String status = "OK".equals(result) ? "COMPLETED" : "FAILED";
-                scheduledCommandService.updateCommandStatus(command.getId(), status, root.asXML());
-            }
+            scheduledCommandService.resolve(deviceSerialNo, "SetWiFiSetting", null, "OK".equals(result), root.asXML());
 
             if ("OK".equals(result)) {
                 String message = messageBuilder.buildGetWiFiSettingRequest();
@@ -1326,24 +1268,14 @@ public class MessageParser {
         }
     }
 
-    private String handleSetEthernetSettingResponse(WebSocketSession session, Element root) {
+    private String handleSetEthernetSettingResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String result = root.elementTextTrim("Result");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String result = root.getText("Result");
 
             log.info("Received SetEthernetSetting response for device: {}, result: {}", deviceSerialNo, result);
 
-            List<ScheduledCommand> pendingCommands = scheduledCommandService.getCommandsByDeviceSerialNumber(deviceSerialNo)
-                    .stream()
-                    .filter(cmd -> "SENT".equals(cmd.getStatus()) &&
-                            cmd.getCommandType().equalsIgnoreCase("SetEthernetSetting"))
-                    .collect(java.util.stream.Collectors.toList());
-
-            if (!pendingCommands.isEmpty()) {
-                ScheduledCommand command = pendingCommands.get(pendingCommands.size() - 1);
-                String status = "OK".equals(result) ? "COMPLETED" : "FAILED";
-                scheduledCommandService.updateCommandStatus(command.getId(), status, root.asXML());
-            }
+            scheduledCommandService.resolve(deviceSerialNo, "SetEthernetSetting", null, "OK".equals(result), root.asXML());
 
             if ("OK".equals(result)) {
                 String message = messageBuilder.buildGetEthernetSettingRequest();
@@ -1357,10 +1289,10 @@ public class MessageParser {
         }
     }
 
-    private String handleGetTimeResponse(WebSocketSession session, Element root) {
+    private String handleGetTimeResponse(WebSocketSession session, DeviceMessage root) {
         try {
-            String deviceSerialNo = root.elementTextTrim("DeviceSerialNo");
-            String timeStr = root.elementTextTrim("Time");
+            String deviceSerialNo = root.getText("DeviceSerialNo");
+            String timeStr = root.getText("Time");
 
                 LocalDateTime deviceTime = parseDateTime(timeStr);
                 log.info("Received device time for device: {}, time: {}", deviceSerialNo, deviceTime);
@@ -1373,16 +1305,7 @@ public class MessageParser {
                 deviceStatus.setDeviceTime(deviceTime);
                 deviceStatusService.updateDeviceStatus(deviceStatus);
 
-                List<ScheduledCommand> pendingCommands = scheduledCommandService.getCommandsByDeviceSerialNumber(deviceSerialNo)
-                        .stream()
-                        .filter(cmd -> "SENT".equals(cmd.getStatus()) &&
-                                cmd.getCommandType().equalsIgnoreCase("GetTime"))
-                        .collect(java.util.stream.Collectors.toList());
-
-                if (!pendingCommands.isEmpty()) {
-                    ScheduledCommand command = pendingCommands.get(pendingCommands.size() - 1);
-                    scheduledCommandService.updateCommandStatus(command.getId(), "COMPLETED", root.asXML());
-                }
+                scheduledCommandService.resolve(deviceSerialNo, "GetTime", null, true, root.asXML());
 
             return null;
         } catch (Exception e) {
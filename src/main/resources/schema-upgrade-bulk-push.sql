@@ -0,0 +1,8 @@
+-- One-off upgrade for databases whose bulk push table (user) predates the retry bookkeeping
+-- (schema.sql creates it with these columns for new databases). Run once, before starting the new
+-- version.
+ALTER TABLE user
+    ADD COLUMN attempts INT DEFAULT 0,
+    ADD COLUMN next_attempt_at DATETIME,
+    ADD COLUMN last_error VARCHAR(255),
+    ADD INDEX idx_user_status_device (status, device_serial_number);
@@ -0,0 +1,17 @@
+-- One-off upgrade for databases whose command_queue predates event-driven dispatch (schema.sql
+-- creates the table complete for new databases). Run once, before starting the new version.
+
+-- Event-driven command dispatch: the safety-net sweep and per-device mailbox reads go through this index
+ALTER TABLE command_queue ADD INDEX idx_command_queue_status_device (status, device_serial_number);
+
+-- In-flight command correlation: the key the device's answer echoes and how often the command was sent
+ALTER TABLE command_queue ADD COLUMN correlation_key VARCHAR(100), ADD COLUMN attempts INT DEFAULT 0;
+
+-- Priority lanes; rows queued before this change are given the OPERATIONAL class at startup
+ALTER TABLE command_queue ADD COLUMN priority VARCHAR(16);
+ALTER TABLE command_queue ADD INDEX idx_command_queue_device_lane (device_serial_number, status, priority);
+ALTER TABLE command_queue ADD INDEX idx_command_queue_device_user (device_serial_number, user_id);
+
+-- Broadcasts: every command of one fleet-wide job shares a job id
+ALTER TABLE command_queue ADD COLUMN job_id VARCHAR(36);
+ALTER TABLE command_queue ADD INDEX idx_command_queue_job (job_id);
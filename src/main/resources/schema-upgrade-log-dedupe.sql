@@ -0,0 +1,15 @@
+-- One-off upgrade for databases created before time_logs, admin_logs and hr_timesheet_log had
+-- their unique keys (schema.sql declares them for new databases). Run once, before starting the
+-- new version: drops resent duplicates, keeping the first row, then adds the keys the log writer's
+-- INSERT ... ON DUPLICATE KEY UPDATE relies on.
+DELETE t1 FROM time_logs t1 JOIN time_logs t2
+    ON t1.device_serial_number = t2.device_serial_number AND t1.trans_id = t2.trans_id AND t1.id > t2.id;
+ALTER TABLE time_logs ADD UNIQUE KEY uk_time_logs_device_trans (device_serial_number, trans_id);
+
+DELETE a1 FROM admin_logs a1 JOIN admin_logs a2
+    ON a1.device_serial_number = a2.device_serial_number AND a1.trans_id = a2.trans_id AND a1.id > a2.id;
+ALTER TABLE admin_logs ADD UNIQUE KEY uk_admin_logs_device_trans (device_serial_number, trans_id);
+
+DELETE h1 FROM hr_timesheet_log h1 JOIN hr_timesheet_log h2
+    ON h1.device_id = h2.device_id AND h1.device_log_id = h2.device_log_id AND h1.id > h2.id;
+ALTER TABLE hr_timesheet_log ADD UNIQUE KEY uk_hr_timesheet_log_device_log (device_id, device_log_id);
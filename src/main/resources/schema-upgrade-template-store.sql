@@ -0,0 +1,6 @@
+-- One-off upgrade for databases created before the template store. Run once, before starting the
+-- new version; the inline template text is moved into biometric_template in the background at
+-- startup.
+ALTER TABLE user_face_data ADD COLUMN template_hash CHAR(64);
+ALTER TABLE user_finger_data ADD COLUMN template_hash CHAR(64);
+ALTER TABLE users ADD COLUMN face_template_hash CHAR(64);
@@ -48,6 +48,7 @@ CREATE TABLE IF NOT EXISTS users (
     fingers TEXT,
     face_enrolled BOOLEAN DEFAULT FALSE,
     face_data LONGTEXT,
+    face_template_hash CHAR(64),
     created_at DATETIME DEFAULT CURRENT_TIMESTAMP,
     updated_at DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
     INDEX idx_user_id (user_id)
@@ -68,6 +69,7 @@ CREATE TABLE IF NOT EXISTS time_logs (
     log_image LONGTEXT,
     trans_id VARCHAR(100),
     created_at DATETIME DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE KEY uk_time_logs_device_trans (device_serial_number, trans_id),
     INDEX idx_device_serial_number (device_serial_number),
     INDEX idx_user_id (user_id),
     INDEX idx_log_time (log_time)
@@ -85,8 +87,108 @@ CREATE TABLE IF NOT EXISTS admin_logs (
     stat INT,
     trans_id VARCHAR(100),
     created_at DATETIME DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE KEY uk_admin_logs_device_trans (device_serial_number, trans_id),
     INDEX idx_device_serial_number (device_serial_number),
     INDEX idx_admin_id (admin_id),
     INDEX idx_user_id (user_id),
     INDEX idx_log_time (log_time)
-);
\ No newline at end of file
+);
+
+-- Create user_sync_checkpoint table
+CREATE TABLE IF NOT EXISTS user_sync_checkpoint (
+    device_serial_no VARCHAR(50) PRIMARY KEY,
+    signature VARCHAR(100),
+    last_full_sync DATETIME,
+    updated_at DATETIME
+);
+
+-- Databases created before the log tables had their unique keys: run schema-upgrade-log-dedupe.sql once
+
+-- Bulk user push staging: one row per user to push, with retry bookkeeping and the index the per-device dispatcher reads through
+CREATE TABLE IF NOT EXISTS user (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    user_id VARCHAR(255),
+    device_serial_number VARCHAR(255),
+    name VARCHAR(255),
+    privilege VARCHAR(255),
+    enabled BOOLEAN NOT NULL DEFAULT TRUE,
+    user_period_used BOOLEAN,
+    department INT,
+    status VARCHAR(255),
+    attempts INT DEFAULT 0,
+    next_attempt_at DATETIME,
+    last_error VARCHAR(255),
+    INDEX idx_user_status_device (status, device_serial_number)
+);
+-- Databases whose user table predates the retry bookkeeping: run schema-upgrade-bulk-push.sql once
+
+-- Whole-device migrations; checkpoint_id is the highest users.id already pushed to the target
+CREATE TABLE IF NOT EXISTS device_migration (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    source_serial_number VARCHAR(50) NOT NULL,
+    target_serial_number VARCHAR(50) NOT NULL,
+    from_device BOOLEAN DEFAULT FALSE,
+    status VARCHAR(20) NOT NULL,
+    checkpoint_id BIGINT,
+    users_total BIGINT,
+    users_done BIGINT,
+    users_failed BIGINT,
+    fingers_sent BIGINT,
+    faces_sent BIGINT,
+    verified_users INT,
+    verified_fingers INT,
+    verified_faces INT,
+    message VARCHAR(255),
+    created_at DATETIME,
+    updated_at DATETIME,
+    finished_at DATETIME,
+    INDEX idx_device_migration_status (status)
+);
+
+-- Content-addressed template store; per-device rows keep only the hash, legacy inline text is moved over at startup
+CREATE TABLE IF NOT EXISTS biometric_template (
+    hash CHAR(64) PRIMARY KEY,
+    format VARCHAR(8) NOT NULL,
+    compression VARCHAR(8) NOT NULL,
+    raw_size INT NOT NULL,
+    data LONGBLOB NOT NULL,
+    created_at DATETIME
+);
+-- Databases created before the template store: run schema-upgrade-template-store.sql once
+
+-- Per-user fingerprints of each device's roster as last walked or harvested; the reconciler diffs the users tables against it
+CREATE TABLE IF NOT EXISTS device_roster_snapshot (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    device_serial_number VARCHAR(50) NOT NULL,
+    user_id VARCHAR(255) NOT NULL,
+    user_hash CHAR(64) NOT NULL,
+    face_hash CHAR(64),
+    fingers VARCHAR(512),
+    recorded_at DATETIME,
+    UNIQUE KEY uk_device_roster_snapshot_device_user (device_serial_number, user_id)
+);
+
+-- Device command mailboxes; the safety-net sweep and per-device mailbox reads go through the status index
+CREATE TABLE IF NOT EXISTS command_queue (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    device_serial_number VARCHAR(255) NOT NULL,
+    command_type VARCHAR(255) NOT NULL,
+    command_xml TEXT NOT NULL,
+    status VARCHAR(255) NOT NULL,
+    user_id VARCHAR(255),
+    correlation_key VARCHAR(100),
+    attempts INT DEFAULT 0,
+    priority VARCHAR(16),
+    job_id VARCHAR(36),
+    response_xml TEXT,
+    scheduled_for DATETIME,
+    executed_at DATETIME,
+    completed_at DATETIME,
+    created_at DATETIME,
+    updated_at DATETIME,
+    INDEX idx_command_queue_status_device (status, device_serial_number),
+    INDEX idx_command_queue_device_lane (device_serial_number, status, priority),
+    INDEX idx_command_queue_device_user (device_serial_number, user_id),
+    INDEX idx_command_queue_job (job_id)
+);
+-- Databases whose command_queue predates any of the columns or indexes above: run schema-upgrade-command-queue.sql once
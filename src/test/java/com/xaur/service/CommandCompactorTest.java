@@ -0,0 +1,71 @@
+package com.xaur.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CommandCompactorTest {
+
+    @Test
+    void keepsSetAroundAFinger() {
+        assertThat(compact(
+                row(1, "SET", null),
+                row(2, "SET_FINGER", "1:0"),
+                row(3, "SET", null))).isEmpty();
+    }
+
+    @Test
+    void supersedesEarlierSetOfTheSameUser() {
+        assertThat(compact(
+                row(1, "SET", null),
+                row(2, "SET", null))).containsExactly(1L);
+    }
+
+    @Test
+    void keepsDeleteAndTheSetAfterIt() {
+        assertThat(compact(
+                row(1, "DELETE", null),
+                row(2, "SET", null))).isEmpty();
+    }
+
+    @Test
+    void deleteSupersedesEverythingBeforeIt() {
+        assertThat(compact(
+                row(1, "SET", null),
+                row(2, "SET_FINGER", "1:0"),
+                row(3, "DELETE", null),
+                row(4, "SET", null))).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void keepsOnlyTheLastWriteOfARepeatedFinger() {
+        assertThat(compact(
+                row(1, "SET_FINGER", "1:0"),
+                row(2, "SET_FINGER", "1:1"),
+                row(3, "SET_FINGER", "1:0"),
+                row(4, "SET_FINGER", "1:0"))).containsExactlyInAnyOrder(1L, 3L);
+    }
+
+    @Test
+    void keepsFingersWithoutCorrelationKey() {
+        assertThat(compact(
+                row(1, "SET_FINGER", null),
+                row(2, "SET_FINGER", null))).isEmpty();
+    }
+
+    private static List<Long> compact(Object[]... rows) {
+        List<Object[]> superseded = new ArrayList<>();
+        CommandCompactor.compactUser(Arrays.asList(rows), superseded);
+        return superseded.stream().map(row -> (Long) row[0]).collect(Collectors.toList());
+    }
+
+    /** A queued command row as the compactor reads it: id, type, user id, correlation key, length. */
+    private static Object[] row(long id, String type, String correlationKey) {
+        return new Object[]{id, type, "1", correlationKey, 100};
+    }
+}